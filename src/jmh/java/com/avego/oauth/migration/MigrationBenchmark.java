@@ -0,0 +1,219 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.SerializationUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+/**
+ * The MigrationBenchmark represents the jmh micro benchmarks of each step of migrating a token, they use the test
+ * token fixtures in src/test/resources and the old spring security jars in target/oldlib so they
+ * are run from the project dir with mvn -Pbenchmarks test-compile exec:exec
+ * @version $Id$
+ * @author conorroche
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MigrationBenchmark {
+
+	private byte[] tokenData;
+	private byte[] authData;
+	private byte[] refreshTokenData;
+
+	private ClassLoader oldClassLoader;
+	private ClassResolutionCache classCache;
+	private OauthDataMigrator migrator;
+	private CustomJdbcTokenStore tokenStore;
+	private final TokenKeyGenerator keyGenerator = new TokenKeyGenerator();
+	private final TokenBlobTranscoder transcoder = new TokenBlobTranscoder();
+	private final TokenBlobTranscoder.ValueRewriter valueRewriter = new TokenBlobTranscoder.ValueRewriter() {
+
+		public String rewrite(String oldValue) {
+			return MigrationBenchmark.this.keyGenerator.generateKey(oldValue);
+		}
+	};
+
+	private OAuth2AccessToken accessToken;
+	private OAuth2RefreshToken refreshToken;
+	private OAuth2Authentication authentication;
+	private String tokenValue;
+
+	/**
+	 * This loads the fixtures and creates the migrator used by the benchmarks
+	 * @throws Exception
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		File resourcesDir = new File(System.getProperty("benchmark.resources", "src/test/resources"));
+		this.tokenData = FileUtils.readFileToByteArray(new File(resourcesDir, "token1.dat"));
+		this.authData = FileUtils.readFileToByteArray(new File(resourcesDir, "auth2.dat"));
+		this.refreshTokenData = FileUtils.readFileToByteArray(new File(resourcesDir, "refreshtoken1.dat"));
+
+		// the old jars plus the test classes which have the principal class used by the auth fixture
+		ClassLoader oldLibClassLoader = ClassLoaderUtils.createClassLoaderWithJars(new File("target/oldlib").getAbsolutePath(), ClassLoader
+				.getSystemClassLoader().getParent());
+		this.oldClassLoader = new URLClassLoader(new URL[] { new File("target/test-classes").toURI().toURL() }, oldLibClassLoader);
+		this.classCache = new ClassResolutionCache(this.oldClassLoader);
+
+		this.migrator = new OauthDataMigrator(new InMemTestOauthMigrationDao(), this.oldClassLoader, false, true);
+		this.tokenStore = new CustomJdbcTokenStore(new DriverManagerDataSource());
+
+		this.accessToken = (OAuth2AccessToken) readObject(this.tokenData);
+		this.refreshToken = (OAuth2RefreshToken) readObject(this.refreshTokenData);
+		this.authentication = this.migrator.deserializeOAuth2Authentication(this.authData);
+		this.tokenValue = UUID.randomUUID().toString();
+	}
+
+	/**
+	 * This benchmarks deserializing the old authentication with the CustomObjectInputStream resolving each class with the old class loader
+	 * @return The deserialized authentication
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Object customObjectInputStreamDeserialize() throws Exception {
+		ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(this.authData), this.oldClassLoader);
+		try {
+			return ois.readObject();
+		} finally {
+			ois.close();
+		}
+	}
+
+	/**
+	 * This benchmarks deserializing the old authentication with the CustomObjectInputStream resolving classes through the class resolution cache
+	 * @return The deserialized authentication
+	 * @throws Exception
+	 */
+	@Benchmark
+	public Object customObjectInputStreamDeserializeCached() throws Exception {
+		ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(this.authData), this.classCache);
+		try {
+			return ois.readObject();
+		} finally {
+			ois.close();
+		}
+	}
+
+	/**
+	 * This benchmarks deserializing the old authentication and converting it to the new classes
+	 * @return The converted authentication
+	 * @throws Exception
+	 */
+	@Benchmark
+	public OAuth2Authentication deserializeOAuth2Authentication() throws Exception {
+		return this.migrator.deserializeOAuth2Authentication(this.authData);
+	}
+
+	/**
+	 * This benchmarks replacing the value of a refresh token
+	 * @return The refresh token with the new value
+	 * @throws Exception
+	 */
+	@Benchmark
+	public OAuth2RefreshToken replaceOAuth2RefreshTokenValue() throws Exception {
+		return this.migrator.replaceOAuth2RefreshTokenValue(this.refreshToken, this.tokenValue);
+	}
+
+	/**
+	 * This benchmarks serializing the new access token
+	 * @return The serialized token
+	 */
+	@Benchmark
+	public byte[] serializeAccessToken() {
+		return SerializationUtils.serialize((Serializable) this.accessToken);
+	}
+
+	/**
+	 * This benchmarks serializing the new authentication
+	 * @return The serialized authentication
+	 */
+	@Benchmark
+	public byte[] serializeAuthentication() {
+		return SerializationUtils.serialize(this.authentication);
+	}
+
+	/**
+	 * This benchmarks serializing the new authentication reusing the thread's serialization buffer
+	 * @return The serialized authentication
+	 * @throws IOException
+	 */
+	@Benchmark
+	public byte[] serializeAuthenticationWithContext() throws IOException {
+		return SerializationContext.get().serialize(this.authentication);
+	}
+
+	/**
+	 * This benchmarks hashing a token value to create its new key
+	 * @return The token key
+	 */
+	@Benchmark
+	public String extractTokenKey() {
+		return this.tokenStore.extractTokenKey(this.tokenValue);
+	}
+
+	/**
+	 * This benchmarks hashing a token value to create its new key with the token key generator
+	 * @return The token key
+	 */
+	@Benchmark
+	public String generateTokenKey() {
+		return this.keyGenerator.generateKey(this.tokenValue);
+	}
+
+	/**
+	 * This benchmarks replacing the token values of the old access token directly in its serialized data
+	 * @return The transcoded token
+	 */
+	@Benchmark
+	public byte[] transcodeAccessToken() {
+		return this.transcoder.transcodeAccessToken(this.tokenData, this.valueRewriter, this.valueRewriter);
+	}
+
+	private static Object readObject(byte[] data) throws IOException, ClassNotFoundException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return ois.readObject();
+		} finally {
+			ois.close();
+		}
+	}
+
+}
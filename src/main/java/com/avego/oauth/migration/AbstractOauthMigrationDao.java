@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The AbstractOauthMigrationDao represents a base class for Oauth migration daos that only implement the original methods of
+ * the OauthMigrationDao. The paged and streamed reads are built on the limited reads, the batched writes update one token at
+ * a time and finishMigration does nothing, so such a dao runs the default serial migration. Reading token id ranges for the
+ * parallel and pipeline modes and reading tokens by id for joint_migration and the MigratingJdbcTokenStore are not supported
+ * unless the subclass overrides those methods.
+ * @version $Id$
+ * @author conorroche
+ */
+public abstract class AbstractOauthMigrationDao implements OauthMigrationDao {
+
+	/**
+	 * This is the number of records read per page when the records are streamed
+	 */
+	public static final int STREAM_PAGE_SIZE = 100;
+
+	/**
+	 * {@inheritDoc} The first unmigrated records are read and those up to the given token id are dropped, this relies on
+	 * getUnmigratedOauthAccessTokenRecords(int) returning the records in token id order
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecords(com.avego.oauth.migration.TokenIdRange,
+	 *      java.lang.String, int)
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, int limit) {
+		checkRange(range);
+		return getRecordsAfter(getUnmigratedOauthAccessTokenRecords(limit), afterTokenId);
+	}
+
+	/**
+	 * {@inheritDoc} The first unmigrated records are read and those up to the given token id are dropped, this relies on
+	 * getUnmigratedOauthRefreshTokenRecords(int) returning the records in token id order
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(com.avego.oauth.migration.TokenIdRange,
+	 *      java.lang.String, int)
+	 */
+	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, int limit) {
+		checkRange(range);
+		return getRecordsAfter(getUnmigratedOauthRefreshTokenRecords(limit), afterTokenId);
+	}
+
+	/**
+	 * {@inheritDoc} The records are read a page at a time
+	 * @see com.avego.oauth.migration.OauthMigrationDao#streamUnmigratedOauthAccessTokenRecords(com.avego.oauth.migration.TokenIdRange,
+	 *      java.lang.String, com.avego.oauth.migration.TokenRecordCallback)
+	 */
+	public void streamUnmigratedOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthAccessTokenRecord> callback) {
+		String lastTokenId = afterTokenId;
+		List<OauthAccessTokenRecord> records = getUnmigratedOauthAccessTokenRecords(range, lastTokenId, STREAM_PAGE_SIZE);
+		while (!records.isEmpty()) {
+			for (OauthAccessTokenRecord record : records) {
+				if (!callback.processRecord(record)) {
+					return;
+				}
+				lastTokenId = record.getTokenId();
+			}
+			records = getUnmigratedOauthAccessTokenRecords(range, lastTokenId, STREAM_PAGE_SIZE);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} The records are read a page at a time
+	 * @see com.avego.oauth.migration.OauthMigrationDao#streamUnmigratedOauthRefreshTokenRecords(com.avego.oauth.migration.TokenIdRange,
+	 *      java.lang.String, com.avego.oauth.migration.TokenRecordCallback)
+	 */
+	public void streamUnmigratedOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback) {
+		String lastTokenId = afterTokenId;
+		List<OauthRefreshTokenRecord> records = getUnmigratedOauthRefreshTokenRecords(range, lastTokenId, STREAM_PAGE_SIZE);
+		while (!records.isEmpty()) {
+			for (OauthRefreshTokenRecord record : records) {
+				if (!callback.processRecord(record)) {
+					return;
+				}
+				lastTokenId = record.getTokenId();
+			}
+			records = getUnmigratedOauthRefreshTokenRecords(range, lastTokenId, STREAM_PAGE_SIZE);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} This is not supported unless overridden, it is needed for joint_migration
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(java.util.List)
+	 */
+	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(List<String> tokenIds) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not read refresh tokens by id so it cannot be used for a joint migration");
+	}
+
+	/**
+	 * {@inheritDoc} This is not supported unless overridden, it is needed by the MigratingJdbcTokenStore
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecords(java.util.List)
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(List<String> tokenIds) {
+		throw new UnsupportedOperationException(getClass().getName() + " does not read access tokens by id so it cannot migrate tokens as they are read");
+	}
+
+	/**
+	 * {@inheritDoc} This is not supported unless overridden, it is needed by the MigratingJdbcTokenStore
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecordsForRefreshToken(java.lang.String)
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecordsForRefreshToken(String refreshToken) {
+		throw new UnsupportedOperationException(getClass().getName()
+				+ " does not read access tokens by refresh token so it cannot migrate tokens as they are read");
+	}
+
+	/**
+	 * {@inheritDoc} Each token is updated with updateOauthAccessToken
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthAccessTokens(java.util.List)
+	 */
+	public void updateOauthAccessTokens(List<OauthAccessTokenUpdate> updates) {
+		for (OauthAccessTokenUpdate update : updates) {
+			updateOauthAccessToken(update.getOldTokenId(), update.getNewTokenId(), update.getNewRefreshToken(), update.getTokenData(),
+					update.getAuthData());
+		}
+	}
+
+	/**
+	 * {@inheritDoc} Each token is updated with updateOauthRefreshToken
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthRefreshTokens(java.util.List)
+	 */
+	public void updateOauthRefreshTokens(List<OauthRefreshTokenUpdate> updates) {
+		for (OauthRefreshTokenUpdate update : updates) {
+			updateOauthRefreshToken(update.getOldTokenId(), update.getNewTokenId(), update.getTokenData(), update.getAuthData());
+		}
+	}
+
+	/**
+	 * {@inheritDoc} The refresh tokens are updated and then the access tokens, they are not updated in a single transaction
+	 * unless the subclass overrides this
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthTokens(java.util.List, java.util.List)
+	 */
+	public void updateOauthTokens(List<OauthAccessTokenUpdate> accessTokenUpdates, List<OauthRefreshTokenUpdate> refreshTokenUpdates) {
+		if (refreshTokenUpdates != null) {
+			updateOauthRefreshTokens(refreshTokenUpdates);
+		}
+		if (accessTokenUpdates != null) {
+			updateOauthAccessTokens(accessTokenUpdates);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} The tokens are updated in place so there is nothing to do
+	 * @see com.avego.oauth.migration.OauthMigrationDao#finishMigration()
+	 */
+	public void finishMigration() {
+		// nothing to do
+	}
+
+	private void checkRange(TokenIdRange range) {
+		if (range != null) {
+			throw new UnsupportedOperationException(getClass().getName()
+					+ " does not read token id ranges so it can only be used for a serial migration");
+		}
+	}
+
+	private static <R extends TokenRecord> List<R> getRecordsAfter(List<R> records, String afterTokenId) {
+		if (afterTokenId == null) {
+			return records;
+		}
+		List<R> after = new ArrayList<R>(records.size());
+		for (R record : records) {
+			if (record.getTokenId().compareTo(afterTokenId) > 0) {
+				after.add(record);
+			}
+		}
+		return after;
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+
+/**
+ * The AccessorCache represents a thread safe cache of the methods and constructors used to convert the old token
+ * and authentication objects. Resolving an accessible method by name searches all the methods of the class and its
+ * super types, so this resolves each method or constructor once per class, name and argument types and reuses it for
+ * every record after that. Classes loaded by different class loaders are cached separately
+ * @version $Id$
+ * @author conorroche
+ */
+public class AccessorCache {
+
+	private static final Object NOT_FOUND = new Object();
+
+	private final ConcurrentMap<AccessorKey, Object> methods = new ConcurrentHashMap<AccessorKey, Object>();
+	private final ConcurrentMap<AccessorKey, Object> constructors = new ConcurrentHashMap<AccessorKey, Object>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * This gets the accessible method of the given class matching the name and parameter types
+	 * @param cls The class to get the method of
+	 * @param methodName The method name
+	 * @param parameterTypes The parameter types, a null type matches any non primitive parameter
+	 * @return The method or null if the class has no matching accessible method
+	 */
+	public Method getMethod(Class<?> cls, String methodName, Class<?>... parameterTypes) {
+		AccessorKey key = new AccessorKey(cls, methodName, parameterTypes);
+		Object method = this.methods.get(key);
+		if (method == null) {
+			this.misses.incrementAndGet();
+			method = MethodUtils.getMatchingAccessibleMethod(cls, methodName, parameterTypes);
+			if (method == null) {
+				method = NOT_FOUND;
+			}
+			this.methods.putIfAbsent(key, method);
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return method == NOT_FOUND ? null : (Method) method;
+	}
+
+	/**
+	 * This invokes the named method on the given object, the method is matched using the classes of the arguments
+	 * in the same way as MethodUtils.invokeMethod
+	 * @param object The object to invoke the method on
+	 * @param methodName The method name
+	 * @param args The arguments, may be null for no arguments
+	 * @return The value returned by the method
+	 * @throws NoSuchMethodException If there is no matching accessible method
+	 * @throws IllegalAccessException If the method could not be accessed
+	 * @throws InvocationTargetException If the method threw an exception
+	 */
+	public Object invokeMethod(Object object, String methodName, Object... args) throws NoSuchMethodException, IllegalAccessException,
+			InvocationTargetException {
+		Object[] methodArgs = args == null ? ArrayUtils.EMPTY_OBJECT_ARRAY : args;
+		return invokeMethod(object, methodName, methodArgs, ClassUtils.toClass(methodArgs));
+	}
+
+	/**
+	 * This invokes the named method with the given parameter types on the given object
+	 * @param object The object to invoke the method on
+	 * @param methodName The method name
+	 * @param args The arguments
+	 * @param parameterTypes The parameter types
+	 * @return The value returned by the method
+	 * @throws NoSuchMethodException If there is no matching accessible method
+	 * @throws IllegalAccessException If the method could not be accessed
+	 * @throws InvocationTargetException If the method threw an exception
+	 */
+	public Object invokeMethod(Object object, String methodName, Object[] args, Class<?>[] parameterTypes) throws NoSuchMethodException,
+			IllegalAccessException, InvocationTargetException {
+		Method method = getMethod(object.getClass(), methodName, parameterTypes);
+		if (method == null) {
+			throw new NoSuchMethodException("No such accessible method: " + methodName + "() on object: " + object.getClass().getName());
+		}
+		return method.invoke(object, args);
+	}
+
+	/**
+	 * This gets the accessible constructor of the given class with exactly the given parameter types
+	 * @param cls The class to get the constructor of
+	 * @param parameterTypes The parameter types
+	 * @return The constructor or null if the class has no such accessible constructor
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Constructor<T> getConstructor(Class<T> cls, Class<?>... parameterTypes) {
+		AccessorKey key = new AccessorKey(cls, null, parameterTypes);
+		Object constructor = this.constructors.get(key);
+		if (constructor == null) {
+			this.misses.incrementAndGet();
+			constructor = ConstructorUtils.getAccessibleConstructor(cls, parameterTypes);
+			if (constructor == null) {
+				constructor = NOT_FOUND;
+			}
+			this.constructors.putIfAbsent(key, constructor);
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return constructor == NOT_FOUND ? null : (Constructor<T>) constructor;
+	}
+
+	/**
+	 * This gets the number of lookups answered from the cache
+	 * @return the number of lookups answered from the cache
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * This gets the number of lookups that had to resolve the method or constructor
+	 * @return the number of lookups that had to resolve the method or constructor
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * This gets the number of methods and constructors cached
+	 * @return the number of methods and constructors cached
+	 */
+	public int size() {
+		return this.methods.size() + this.constructors.size();
+	}
+
+	/**
+	 * The AccessorKey represents the key of a cached method or constructor
+	 */
+	private static final class AccessorKey {
+
+		private final Class<?> cls;
+		private final String name;
+		private final Class<?>[] parameterTypes;
+		private final int hashCode;
+
+		AccessorKey(Class<?> cls, String name, Class<?>[] parameterTypes) {
+			this.cls = cls;
+			this.name = name;
+			this.parameterTypes = parameterTypes == null ? ArrayUtils.EMPTY_CLASS_ARRAY : parameterTypes;
+			this.hashCode = (31 * cls.hashCode() + (name == null ? 0 : name.hashCode())) * 31 + Arrays.hashCode(this.parameterTypes);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof AccessorKey)) {
+				return false;
+			}
+			AccessorKey other = (AccessorKey) obj;
+			return this.cls == other.cls && (this.name == null ? other.name == null : this.name.equals(other.name))
+					&& Arrays.equals(this.parameterTypes, other.parameterTypes);
+		}
+	}
+
+}
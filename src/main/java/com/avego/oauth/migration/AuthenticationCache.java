@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The AuthenticationCache represents a bounded LRU cache of converted authentications. The access and refresh tokens of a grant and
+ * the many tokens of a user carry identical old authentication blobs, so the converted and reserialized authentication is cached
+ * keyed by the SHA-256 digest of the old blob and each distinct authentication is only converted once.
+ * @version $Id$
+ * @author conorroche
+ */
+public class AuthenticationCache {
+
+	private final int maxSize;
+	private final Map<Key, byte[]> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 algorithm not available.  Fatal (should be in the JDK).");
+			}
+		}
+	};
+
+	/**
+	 * This creates an AuthenticationCache
+	 * @param maxSize The max number of converted authentications held, the least recently used are evicted beyond this
+	 */
+	public AuthenticationCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.cache = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+				if (size() > maxSize) {
+					AuthenticationCache.this.evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * This creates the key of the given old authentication data
+	 * @param oldAuthData The old serialized authentication
+	 * @return The key
+	 */
+	public Key key(byte[] oldAuthData) {
+		return new Key(this.digests.get().digest(oldAuthData), oldAuthData.length);
+	}
+
+	/**
+	 * This gets the converted authentication data cached for the given key
+	 * @param key The key of the old authentication data
+	 * @return The converted serialized authentication or null if it is not cached
+	 */
+	public byte[] get(Key key) {
+		byte[] authData;
+		synchronized (this.cache) {
+			authData = this.cache.get(key);
+		}
+		if (authData == null) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return authData;
+	}
+
+	/**
+	 * This caches the converted authentication data for the given key
+	 * @param key The key of the old authentication data
+	 * @param authData The converted serialized authentication
+	 */
+	public void put(Key key, byte[] authData) {
+		synchronized (this.cache) {
+			this.cache.put(key, authData);
+		}
+	}
+
+	/**
+	 * This gets the number of converted authentications held
+	 * @return the number of converted authentications held
+	 */
+	public int size() {
+		synchronized (this.cache) {
+			return this.cache.size();
+		}
+	}
+
+	/**
+	 * This gets the max number of converted authentications held
+	 * @return the max number of converted authentications held
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * This gets the number of authentications found in the cache
+	 * @return the number of authentications found in the cache
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * This gets the number of authentications that had to be converted
+	 * @return the number of authentications that had to be converted
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * This gets the number of authentications evicted to keep the cache within its max size
+	 * @return the number of authentications evicted
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * This gets the fraction of lookups found in the cache
+	 * @return the fraction of lookups found in the cache between 0 and 1
+	 */
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + this.misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("Authentication cache: %d authentication(s), %d hit(s), %d miss(es), %.1f%% hit rate, %d eviction(s)", size(), getHits(),
+				getMisses(), getHitRate() * 100, getEvictions());
+	}
+
+	/**
+	 * The Key represents the digest and length of an old serialized authentication
+	 */
+	public static final class Key {
+
+		private final byte[] digest;
+		private final int length;
+		private final int hashCode;
+
+		Key(byte[] digest, int length) {
+			this.digest = digest;
+			this.length = length;
+			this.hashCode = 31 * Arrays.hashCode(digest) + length;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return this.hashCode;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.length == other.length && Arrays.equals(this.digest, other.digest);
+		}
+	}
+
+}
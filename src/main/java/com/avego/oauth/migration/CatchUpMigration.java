@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The CatchUpMigration migrates the tokens the old application keeps creating while the bulk migration runs. It polls each
+ * migration for the first batch of unmigrated tokens, which is a limited query on the token_id index, and migrates them. A full
+ * batch means there are more tokens waiting so it polls again at once, otherwise the poll interval is halved each time the
+ * backlog shrinks and doubled each time it grows, within the min and max interval, so the tail is followed closely as the old
+ * application is drained. It stops once no unmigrated tokens have been found for the quiet period.
+ * @version $Id$
+ * @author conorroche
+ */
+public class CatchUpMigration {
+
+	private final int batchSize;
+	private final long minInterval;
+	private final long maxInterval;
+	private final long quietPeriod;
+	private long interval;
+	private int lastBacklog = -1;
+	private int numPolls;
+	private int numMigrated;
+
+	/**
+	 * This creates a CatchUpMigration
+	 * @param batchSize The max number of tokens of each type read and migrated per poll
+	 * @param minInterval The min time in milliseconds between polls that do not find a full batch
+	 * @param maxInterval The max time in milliseconds between polls
+	 * @param quietPeriod The time in milliseconds no unmigrated tokens must be found for before it stops
+	 */
+	public CatchUpMigration(int batchSize, long minInterval, long maxInterval, long quietPeriod) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1");
+		}
+		this.batchSize = batchSize;
+		this.minInterval = Math.max(0, minInterval);
+		this.maxInterval = Math.max(this.minInterval, maxInterval);
+		this.quietPeriod = quietPeriod;
+		this.interval = this.maxInterval;
+	}
+
+	/**
+	 * This polls the given migrations migrating their new unmigrated tokens until none have been found for the quiet period
+	 * or the thread is interrupted
+	 * @param migrations The migrations to poll, they are polled in order so access tokens should come before refresh tokens
+	 * @return The number of tokens migrated
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException If an InstantiationException exception occurs when using reflection to convert to the new objects
+	 */
+	public int run(List<? extends TokenMigration<?, ?>> migrations) throws IOException, ClassNotFoundException, NoSuchMethodException,
+			IllegalAccessException, InvocationTargetException, InstantiationException {
+		long lastFound = System.currentTimeMillis();
+		while (true) {
+			int backlog = 0;
+			boolean full = false;
+			for (TokenMigration<?, ?> migration : migrations) {
+				int num = migrateBatch(migration);
+				if (num > 0) {
+					System.out.println("Catch up migrated " + num + " " + migration.getTokenType() + "(s).");
+				}
+				backlog += num;
+				full |= num >= this.batchSize;
+			}
+			this.numPolls++;
+			this.numMigrated += backlog;
+
+			long now = System.currentTimeMillis();
+			if (backlog > 0) {
+				lastFound = now;
+			} else if (now - lastFound >= this.quietPeriod) {
+				return this.numMigrated;
+			}
+			long sleep = full ? 0 : nextInterval(backlog);
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return this.numMigrated;
+				}
+			}
+		}
+	}
+
+	/**
+	 * This gets the time to wait before the next poll given the number of tokens the last poll found
+	 * @param backlog The number of tokens the last poll found
+	 * @return The time in milliseconds to wait before the next poll
+	 */
+	long nextInterval(int backlog) {
+		if (this.lastBacklog >= 0 && backlog < this.lastBacklog) {
+			this.interval = Math.max(this.minInterval, this.interval / 2);
+		} else if (this.lastBacklog >= 0 && backlog > this.lastBacklog) {
+			this.interval = Math.min(this.maxInterval, Math.max(1, this.interval * 2));
+		}
+		this.lastBacklog = backlog;
+		return this.interval;
+	}
+
+	private <R extends TokenRecord, U extends TokenUpdate> int migrateBatch(TokenMigration<R, U> migration) throws IOException,
+			ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+		List<R> records = migration.getUnmigratedRecords(null, null, this.batchSize);
+		if (records.isEmpty()) {
+			return 0;
+		}
+		List<U> updates = new ArrayList<U>(records.size());
+		for (R record : records) {
+			U update = migration.transform(record);
+			if (update != null) {
+				updates.add(update);
+			}
+		}
+		migration.write(updates);
+		return records.size();
+	}
+
+	/**
+	 * This gets the number of times the migrations were polled
+	 * @return the number of polls
+	 */
+	public int getNumPolls() {
+		return this.numPolls;
+	}
+
+	/**
+	 * This gets the number of tokens migrated
+	 * @return the number of tokens migrated
+	 */
+	public int getNumMigrated() {
+		return this.numMigrated;
+	}
+
+}
@@ -13,6 +13,7 @@
 package com.avego.oauth.migration;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -49,4 +50,24 @@ public class ClassLoaderUtils {
 		return classLoader;
 	}
 
+	/**
+	 * This creates the class loader used to deserialize the pre 1.0 oauth data, it has the old jars from the oldlib dir
+	 * in the current dir or in currentdir/target/oldlib. The system class loader includes jars on the class path, however this also would include
+	 * the new versions of the spring classes which we do not want, so the parent is the parent of the system class loader which is the
+	 * ext class loader e.g. includes bootstrap java classes
+	 * @return The class loader
+	 * @throws FileNotFoundException If the oldlib dir was not found relative to the current dir or in currentdir/target/oldlib
+	 */
+	public static ClassLoader createOldLibClassLoader() throws FileNotFoundException {
+		// find where to source the old jars from
+		File oldLibDir = new File("oldlib");
+		if (!oldLibDir.exists()) {
+			oldLibDir = new File("target/oldlib");
+		}
+		if (!oldLibDir.exists()) {
+			throw new FileNotFoundException("Could not find the lib dir either in the current dir or in target dir");
+		}
+		return createClassLoaderWithJars(oldLibDir.getAbsolutePath(), ClassLoader.getSystemClassLoader().getParent());
+	}
+
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ClassResolutionCache represents a thread safe cache of the classes resolved by name using a given class loader.
+ * Deserializing each token blob resolves the same few dozen class names, and searching the jars of the deserialisation class loader
+ * for each of them again is expensive, so this resolves each name once and then reuses the class. It also resolves
+ * primitive and array type names which ClassLoader.loadClass does not. A single cache may be shared by the migration threads
+ * @version $Id$
+ * @author conorroche
+ */
+public class ClassResolutionCache {
+
+	private static final Map<String, Class<?>> PRIMITIVE_TYPES = new HashMap<String, Class<?>>();
+	static {
+		PRIMITIVE_TYPES.put("boolean", boolean.class);
+		PRIMITIVE_TYPES.put("byte", byte.class);
+		PRIMITIVE_TYPES.put("char", char.class);
+		PRIMITIVE_TYPES.put("short", short.class);
+		PRIMITIVE_TYPES.put("int", int.class);
+		PRIMITIVE_TYPES.put("long", long.class);
+		PRIMITIVE_TYPES.put("float", float.class);
+		PRIMITIVE_TYPES.put("double", double.class);
+		PRIMITIVE_TYPES.put("void", void.class);
+	}
+
+	private final ClassLoader classLoader;
+	private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * This creates a ClassResolutionCache
+	 * @param classLoader The class loader used to resolve classes
+	 */
+	public ClassResolutionCache(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * This resolves the class with the given name
+	 * @param name The class name as returned by Class.getName, e.g. a primitive type name or [Ljava.lang.String; for an array
+	 * @return The class
+	 * @throws ClassNotFoundException If the class loader could not find the class
+	 */
+	public Class<?> resolveClass(String name) throws ClassNotFoundException {
+		Class<?> cls = this.classes.get(name);
+		if (cls != null) {
+			this.hits.incrementAndGet();
+			return cls;
+		}
+		this.misses.incrementAndGet();
+		cls = PRIMITIVE_TYPES.get(name);
+		if (cls == null) {
+			// unlike loadClass this handles array names, the class is not initialized to match loadClass
+			cls = Class.forName(name, false, this.classLoader);
+		}
+		Class<?> existing = this.classes.putIfAbsent(name, cls);
+		return existing == null ? cls : existing;
+	}
+
+	/**
+	 * This gets the class loader used to resolve classes
+	 * @return the class loader used to resolve classes
+	 */
+	public ClassLoader getClassLoader() {
+		return this.classLoader;
+	}
+
+	/**
+	 * This gets the number of classes resolved from the cache
+	 * @return the number of classes resolved from the cache
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * This gets the number of classes that had to be resolved using the class loader
+	 * @return the number of classes that had to be resolved using the class loader
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * This gets the number of classes cached
+	 * @return the number of classes cached
+	 */
+	public int size() {
+		return this.classes.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Class resolution cache: " + size() + " class(es), " + getHits() + " hit(s), " + getMisses() + " miss(es)";
+	}
+
+}
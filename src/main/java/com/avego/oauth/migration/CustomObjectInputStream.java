@@ -26,6 +26,7 @@ import java.io.ObjectStreamClass;
 public class CustomObjectInputStream extends ObjectInputStream {
 
 	ClassLoader cl;
+	ClassResolutionCache classCache;
 
 	/**
 	 * This creates a CustomObjectInputStream
@@ -47,12 +48,27 @@ public class CustomObjectInputStream extends ObjectInputStream {
 		this.cl = cl;
 	}
 
+	/**
+	 * This creates a CustomObjectInputStream that resolves classes using a shared cache
+	 * @param in The input stream to use
+	 * @param classCache The cache used to resolve classes
+	 * @throws IOException
+	 */
+	public CustomObjectInputStream(InputStream in, ClassResolutionCache classCache) throws IOException {
+		super(in);
+		this.cl = classCache.getClassLoader();
+		this.classCache = classCache;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
 	 */
 	@Override
 	protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+		if (this.classCache != null) {
+			return this.classCache.resolveClass(desc.getName());
+		}
 		return this.cl.loadClass(desc.getName());
 	}
 
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The DryRun reads and converts the tokens of a migration without writing anything back to the db. It decorates the migration so
+ * that at most the sample size of tokens are read, the converted tokens are dropped rather than written and the tokens that could not
+ * be converted are collected rather than stopping the migration, it then reports the tokens that failed and projects how long the
+ * real migration of the whole table would take.
+ * @version $Id$
+ * @author conorroche
+ */
+public class DryRun {
+
+	private final String tokenType;
+	private final int sampleSize;
+	private final int maxFailures;
+	private final AtomicInteger numRead = new AtomicInteger();
+	private final AtomicInteger numFailed = new AtomicInteger();
+	private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * This creates a DryRun
+	 * @param tokenType The type of tokens being migrated
+	 * @param sampleSize The max number of tokens to read or 0 to read all of them
+	 * @param maxFailures The max number of failed tokens to keep the details of, all failures are counted
+	 */
+	public DryRun(String tokenType, int sampleSize, int maxFailures) {
+		this.tokenType = tokenType;
+		this.sampleSize = sampleSize <= 0 ? Integer.MAX_VALUE : sampleSize;
+		this.maxFailures = maxFailures;
+	}
+
+	/**
+	 * This decorates the given migration so that it reads at most the sample size of tokens and drops the converted tokens rather
+	 * than writing them. Paging and streaming carry on after the last token read so tokens that are not written are not read again.
+	 * @param migration The migration to decorate
+	 * @return The decorated migration
+	 */
+	public <R extends TokenRecord, U extends TokenUpdate> TokenMigration<R, U> withoutWrites(final TokenMigration<R, U> migration) {
+		return new TokenMigration<R, U>() {
+
+			public String getTokenType() {
+				return migration.getTokenType();
+			}
+
+			public int countUnmigratedRecords() {
+				return migration.countUnmigratedRecords();
+			}
+
+			public List<R> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+				int remaining = DryRun.this.sampleSize - DryRun.this.numRead.get();
+				if (remaining <= 0) {
+					return Collections.emptyList();
+				}
+				List<R> records = migration.getUnmigratedRecords(range, afterTokenId, Math.min(limit, remaining));
+				int taken = take(records.size());
+				return taken == records.size() ? records : records.subList(0, taken);
+			}
+
+			public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, final TokenRecordCallback<R> callback) {
+				migration.streamUnmigratedRecords(range, afterTokenId, new TokenRecordCallback<R>() {
+
+					public boolean processRecord(R tokenRecord) {
+						return take(1) == 1 && callback.processRecord(tokenRecord);
+					}
+				});
+			}
+
+			public U transform(R record) throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+					InvocationTargetException, InstantiationException {
+				return migration.transform(record);
+			}
+
+			public void write(List<U> updates) {
+				// a dry run never writes to the db
+			}
+		};
+	}
+
+	/**
+	 * This decorates the given migration so that a token that fails to convert is recorded and dropped rather than stopping the migration
+	 * @param migration The migration to decorate
+	 * @return The decorated migration
+	 */
+	public <R extends TokenRecord, U extends TokenUpdate> TokenMigration<R, U> collectFailures(final TokenMigration<R, U> migration) {
+		return new TokenMigration<R, U>() {
+
+			public String getTokenType() {
+				return migration.getTokenType();
+			}
+
+			public int countUnmigratedRecords() {
+				return migration.countUnmigratedRecords();
+			}
+
+			public List<R> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+				return migration.getUnmigratedRecords(range, afterTokenId, limit);
+			}
+
+			public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<R> callback) {
+				migration.streamUnmigratedRecords(range, afterTokenId, callback);
+			}
+
+			public U transform(R record) {
+				try {
+					return migration.transform(record);
+				} catch (Exception ex) {
+					recordFailure(record.getTokenId(), ex);
+					return null;
+				}
+			}
+
+			public void write(List<U> updates) {
+				List<U> converted = new ArrayList<U>(updates.size());
+				for (U update : updates) {
+					if (update != null) {
+						converted.add(update);
+					}
+				}
+				migration.write(converted);
+			}
+		};
+	}
+
+	/**
+	 * This takes up to the given number of tokens from what is left of the sample
+	 * @param count The number of tokens wanted
+	 * @return The number of tokens that can be read
+	 */
+	private int take(int count) {
+		while (true) {
+			int read = this.numRead.get();
+			int taken = (int) Math.min(count, (long) this.sampleSize - read);
+			if (taken <= 0) {
+				return 0;
+			}
+			if (this.numRead.compareAndSet(read, read + taken)) {
+				return taken;
+			}
+		}
+	}
+
+	private void recordFailure(String tokenId, Exception ex) {
+		if (this.numFailed.incrementAndGet() <= this.maxFailures) {
+			this.failures.add(tokenId + ": " + ex);
+		}
+	}
+
+	/**
+	 * This gets the number of tokens read
+	 * @return the number of tokens read
+	 */
+	public int getNumRead() {
+		return this.numRead.get();
+	}
+
+	/**
+	 * This gets the number of tokens that failed to convert
+	 * @return the number of tokens that failed to convert
+	 */
+	public int getNumFailed() {
+		return this.numFailed.get();
+	}
+
+	/**
+	 * This gets the token id and error of the tokens that failed to convert, up to the max failures
+	 * @return the token id and error of the tokens that failed to convert
+	 */
+	public List<String> getFailures() {
+		synchronized (this.failures) {
+			return new ArrayList<String>(this.failures);
+		}
+	}
+
+	/**
+	 * This projects the time it would take to migrate all the tokens from the time taken to read and convert the tokens of this dry run,
+	 * it does not include the time the db takes to apply the writes
+	 * @param numTokens The total number of tokens to migrate
+	 * @param elapsedMillis The time the dry run took
+	 * @return The projected time in ms or -1 if no tokens were read
+	 */
+	public long getProjectedMillis(int numTokens, long elapsedMillis) {
+		int read = this.numRead.get();
+		if (read == 0) {
+			return -1;
+		}
+		return (long) (elapsedMillis * ((double) numTokens / read));
+	}
+
+	/**
+	 * This prints the report of the dry run
+	 * @param out The stream to print to
+	 * @param numTokens The total number of tokens to migrate
+	 * @param elapsedMillis The time the dry run took
+	 */
+	public void printReport(PrintStream out, int numTokens, long elapsedMillis) {
+		int read = this.numRead.get();
+		out.println("Dry run of " + this.tokenType + "(s): read and converted " + read + " of " + numTokens + " in " + elapsedMillis + " ms ("
+				+ (elapsedMillis == 0 ? read : read * 1000L / elapsedMillis) + " tokens/sec), " + this.numFailed.get() + " failed to convert");
+		long projected = getProjectedMillis(numTokens, elapsedMillis);
+		if (projected >= 0) {
+			out.println(String.format("Projected time to migrate all %d %s(s): %d:%02d:%02d excluding the db writes", numTokens, this.tokenType,
+					projected / 3600000, (projected / 60000) % 60, (projected / 1000) % 60));
+		}
+		for (String failure : getFailures()) {
+			out.println("Failed to convert " + this.tokenType + " " + failure);
+		}
+		if (this.numFailed.get() > this.maxFailures) {
+			out.println("... and " + (this.numFailed.get() - this.maxFailures) + " more " + this.tokenType + "(s) failed to convert");
+		}
+	}
+
+}
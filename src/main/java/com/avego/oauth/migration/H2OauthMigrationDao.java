@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * The H2OauthMigrationDao represents an embedded h2 jdbc template implementation of the oauth migration dao. The db runs in
+ * MySQL mode so the same sql as a MySQL migration is used, which lets the whole jdbc path including the indexes, batching,
+ * transactions and connection pool be run and profiled locally with no db server. The M6d token tables are created if they
+ * do not exist, they can then be filled with the SyntheticTokenGenerator.
+ * @version $Id$
+ * @author conorroche
+ */
+public class H2OauthMigrationDao extends JdbcOauthMigrationDao {
+
+	/**
+	 * This is the param key for whether the token tables are created if they do not exist
+	 */
+	public static final String CREATE_SCHEMA_KEY = "create_schema";
+
+	/**
+	 * This is the classpath resource of the schema script
+	 */
+	public static final String SCHEMA_RESOURCE = "com/avego/oauth/migration/h2_schema.sql";
+
+	/**
+	 * This is the jdbc url used when none is given, an in memory db kept until the jvm exits
+	 */
+	public static final String DEFAULT_JDBC_URL = "jdbc:h2:mem:oauth";
+
+	/**
+	 * This creates a H2OauthMigrationDao
+	 * @param params The dao params
+	 * @throws SQLException
+	 */
+	public H2OauthMigrationDao(Map<String, Object> params) throws SQLException {
+		super(params);
+		if (ParamUtils.getBoolean(getParams(), CREATE_SCHEMA_KEY, true)) {
+			createSchema();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#buildDataSource()
+	 */
+	@Override
+	protected DataSource buildDataSource() {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL(getH2Url());
+		ds.setUser(getUser() == null ? "" : getUser());
+		ds.setPassword(getPass() == null ? "" : getPass());
+		return ds;
+	}
+
+	/**
+	 * This gets the jdbc url of the h2 db, MySQL mode is added unless a mode is given and an in memory db is kept open
+	 * when its last connection is closed otherwise the tokens would be lost between queries when the pool is disabled
+	 * @return The h2 jdbc url
+	 */
+	protected String getH2Url() {
+		String url = getJdbcUrl() == null ? DEFAULT_JDBC_URL : getJdbcUrl();
+		String upperUrl = url.toUpperCase();
+		StringBuilder h2Url = new StringBuilder(url);
+		if (upperUrl.indexOf(";MODE=") < 0) {
+			h2Url.append(";MODE=MySQL");
+		}
+		if (upperUrl.startsWith("JDBC:H2:MEM:") && upperUrl.indexOf(";DB_CLOSE_DELAY=") < 0) {
+			h2Url.append(";DB_CLOSE_DELAY=-1");
+		}
+		return h2Url.toString();
+	}
+
+	/**
+	 * This creates the M6d token tables and their indexes if they do not exist, the tables have the default names
+	 * so table name params are not applied to the script
+	 */
+	public void createSchema() {
+		getJdbcTemplate().execute("runscript from 'classpath:/" + SCHEMA_RESOURCE + "'");
+	}
+
+}
@@ -12,22 +12,34 @@
  */
 package com.avego.oauth.migration;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.sql.DataSource;
 
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.support.JdbcUtils;
 
 /**
  * The JdbcOauthMigrationDao represents a base class for Oauth migration daos that use spring JDBC template for db access
  * @version $Id: JdbcOauthMigrationDao.java 66424 2013-05-16 11:02:39Z conor.roche $
  * @author conorroche
  */
-public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
+public abstract class JdbcOauthMigrationDao implements SyntheticTokenDao {
 
 	/**
 	 * This is the param key to use for the username
@@ -52,10 +64,173 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 	 */
 	public static final String REFRESH_TOKEN_TABLE = "oauth_refresh_token";
 
+	/**
+	 * This is the param key for the max number of updates sent to the db in a single jdbc batch
+	 */
+	public static final String BATCH_SIZE_KEY = "batch_size";
+
+	/**
+	 * This is the param key for the number of updated rows after which the batch updates are committed
+	 */
+	public static final String COMMIT_INTERVAL_KEY = "commit_interval";
+
+	/**
+	 * This is the param key for the jdbc fetch size used when streaming token records
+	 */
+	public static final String FETCH_SIZE_KEY = "fetch_size";
+
+	/**
+	 * This is the param key for the table the migrated access tokens are copied to, when it is set the access token table is left
+	 * as it is and the migrated tokens are inserted into this table, it must already exist with the same columns
+	 */
+	public static final String TARGET_ACCESS_TOKEN_TABLE_KEY = "target_access_token_table";
+
+	/**
+	 * This is the param key for the table the migrated refresh tokens are copied to, when it is set the refresh token table is left
+	 * as it is and the migrated tokens are inserted into this table, it must already exist with the same columns
+	 */
+	public static final String TARGET_REFRESH_TOKEN_TABLE_KEY = "target_refresh_token_table";
+
+	/**
+	 * This is the param key for whether the target tables are renamed to the token table names once all the tokens are copied
+	 */
+	public static final String RENAME_TABLES_KEY = "rename_tables";
+
+	/**
+	 * This is the param key for the suffix added to the token table names when the target tables are renamed in their place
+	 */
+	public static final String RENAMED_TABLE_SUFFIX_KEY = "renamed_table_suffix";
+
+	/**
+	 * This is the default suffix added to the token table names when the target tables are renamed in their place
+	 */
+	public static final String DEFAULT_RENAMED_TABLE_SUFFIX = "_old";
+
+	/**
+	 * This is the param key for the max number of pooled connections, 0 disables the connection pool
+	 */
+	public static final String POOL_SIZE_KEY = "pool_size";
+
+	/**
+	 * This is the param key for the max time in milliseconds to wait for a pooled connection
+	 */
+	public static final String POOL_MAX_WAIT_KEY = "pool_max_wait";
+
+	/**
+	 * This is the param key for the max number of prepared statements cached per pooled connection, 0 disables the statement cache
+	 */
+	public static final String STATEMENT_CACHE_SIZE_KEY = "statement_cache_size";
+
+	/**
+	 * This is the param key for the query used to validate pooled connections, by default the driver validates them
+	 */
+	public static final String VALIDATION_QUERY_KEY = "validation_query";
+
+	/**
+	 * This is the param key for the time in milliseconds a pooled connection may be idle before it is validated
+	 */
+	public static final String VALIDATION_INTERVAL_KEY = "validation_interval";
+
+	/**
+	 * This is the min default max number of pooled connections, the default is raised to the number of connections the
+	 * migration threads configured by the params may hold at once
+	 */
+	public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2 + 4;
+
+	/**
+	 * This is the default max number of updates sent to the db in a single jdbc batch
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * This is the default jdbc fetch size used when streaming token records
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 100;
+
+	private static final String ACCESS_TOKEN_COLUMNS = "token_id, token, authentication_id, user_name, client_id, authentication, refresh_token";
+
+	private static final String REFRESH_TOKEN_COLUMNS = "token_id, token, authentication";
+
+	/**
+	 * This is the max number of token ids bound in a single in list, Oracle allows at most 1000
+	 */
+	private static final int MAX_IN_LIST_SIZE = 500;
+
+	private final UpdateParameterSetter<OauthAccessTokenUpdate> accessTokenUpdateSetter = new UpdateParameterSetter<OauthAccessTokenUpdate>() {
+
+		public void setValues(PreparedStatement ps, OauthAccessTokenUpdate update) throws SQLException {
+			StatementCreatorUtils.setParameterValue(ps, 1, Types.VARCHAR, update.getNewTokenId());
+			StatementCreatorUtils.setParameterValue(ps, 2, Types.VARCHAR, update.getNewRefreshToken());
+			setBlobParameter(ps, 3, update.getTokenData());
+			setBlobParameter(ps, 4, update.getAuthData());
+			StatementCreatorUtils.setParameterValue(ps, 5, Types.VARCHAR, update.getOldTokenId());
+		}
+	};
+
+	private final UpdateParameterSetter<OauthRefreshTokenUpdate> refreshTokenUpdateSetter = new UpdateParameterSetter<OauthRefreshTokenUpdate>() {
+
+		public void setValues(PreparedStatement ps, OauthRefreshTokenUpdate update) throws SQLException {
+			StatementCreatorUtils.setParameterValue(ps, 1, Types.VARCHAR, update.getNewTokenId());
+			setBlobParameter(ps, 2, update.getTokenData());
+			setBlobParameter(ps, 3, update.getAuthData());
+			StatementCreatorUtils.setParameterValue(ps, 4, Types.VARCHAR, update.getOldTokenId());
+		}
+	};
+
+	private final UpdateParameterSetter<OauthAccessTokenUpdate> accessTokenInsertSetter = new UpdateParameterSetter<OauthAccessTokenUpdate>() {
+
+		public void setValues(PreparedStatement ps, OauthAccessTokenUpdate update) throws SQLException {
+			StatementCreatorUtils.setParameterValue(ps, 1, Types.VARCHAR, update.getNewTokenId());
+			setBlobParameter(ps, 2, update.getTokenData());
+			StatementCreatorUtils.setParameterValue(ps, 3, Types.VARCHAR, update.getAuthenticationId());
+			StatementCreatorUtils.setParameterValue(ps, 4, Types.VARCHAR, update.getUserName());
+			StatementCreatorUtils.setParameterValue(ps, 5, Types.VARCHAR, update.getClientId());
+			setBlobParameter(ps, 6, update.getAuthData());
+			StatementCreatorUtils.setParameterValue(ps, 7, Types.VARCHAR, update.getNewRefreshToken());
+		}
+	};
+
+	private final UpdateParameterSetter<OauthRefreshTokenUpdate> refreshTokenInsertSetter = new UpdateParameterSetter<OauthRefreshTokenUpdate>() {
+
+		public void setValues(PreparedStatement ps, OauthRefreshTokenUpdate update) throws SQLException {
+			StatementCreatorUtils.setParameterValue(ps, 1, Types.VARCHAR, update.getNewTokenId());
+			setBlobParameter(ps, 2, update.getTokenData());
+			setBlobParameter(ps, 3, update.getAuthData());
+		}
+	};
+
+	private static final RowMapper<OauthAccessTokenRecord> ACCESS_TOKEN_ROW_MAPPER = new RowMapper<OauthAccessTokenRecord>() {
+
+		public OauthAccessTokenRecord mapRow(ResultSet rs, int rowNum) throws SQLException {
+			OauthAccessTokenRecord token = new OauthAccessTokenRecord();
+			token.setTokenId(rs.getString(1));
+			token.setToken(rs.getBytes(2));
+			token.setAuthenticationId(rs.getString(3));
+			token.setUserName(rs.getString(4));
+			token.setClientId(rs.getString(5));
+			token.setAuthentication(rs.getBytes(6));
+			token.setRefreshToken(rs.getString(7));
+			return token;
+		}
+	};
+
+	private static final RowMapper<OauthRefreshTokenRecord> REFRESH_TOKEN_ROW_MAPPER = new RowMapper<OauthRefreshTokenRecord>() {
+
+		public OauthRefreshTokenRecord mapRow(ResultSet rs, int rowNum) throws SQLException {
+			OauthRefreshTokenRecord token = new OauthRefreshTokenRecord();
+			token.setTokenId(rs.getString(1));
+			token.setToken(rs.getBytes(2));
+			token.setAuthentication(rs.getBytes(3));
+			return token;
+		}
+	};
+
 	private DataSource datasource;
 	private Map<String, Object> params;
 	private JdbcTemplate jdbcTemplate;
 	private CustomJdbcTokenStore tokenStore;
+	private final TokenKeyGenerator keyGenerator = new TokenKeyGenerator();
+	private volatile boolean refreshTokensCleared;
 
 	/**
 	 * This creates a JdbcOauthMigrationDao that uses the given params
@@ -67,7 +242,7 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 			throw new IllegalArgumentException("The parameters may not be null");
 		}
 		this.params = params;
-		this.datasource = buildDataSource();
+		this.datasource = buildPooledDataSource(buildDataSource());
 		this.jdbcTemplate = new JdbcTemplate(this.datasource);
 		this.tokenStore = new CustomJdbcTokenStore(this.datasource);
 	}
@@ -79,6 +254,42 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 	 */
 	protected abstract DataSource buildDataSource() throws SQLException;
 
+	/**
+	 * This wraps the given datasource in a connection pool configured by the params unless the pool size is 0
+	 * @param target The datasource that creates the physical connections
+	 * @return The pooled datasource or the given datasource if pooling is disabled
+	 */
+	protected DataSource buildPooledDataSource(DataSource target) {
+		int poolSize = getPoolSize();
+		if (poolSize <= 0) {
+			return target;
+		}
+		PooledDataSource pool = new PooledDataSource(target, poolSize);
+		pool.setMaxWait(ParamUtils.getLong(getParams(), POOL_MAX_WAIT_KEY, PooledDataSource.DEFAULT_MAX_WAIT));
+		pool.setStatementCacheSize(ParamUtils.getInt(getParams(), STATEMENT_CACHE_SIZE_KEY, PooledDataSource.DEFAULT_STATEMENT_CACHE_SIZE));
+		pool.setValidationQuery(ParamUtils.getString(getParams(), VALIDATION_QUERY_KEY, null));
+		pool.setValidationInterval(ParamUtils.getLong(getParams(), VALIDATION_INTERVAL_KEY, PooledDataSource.DEFAULT_VALIDATION_INTERVAL));
+		return pool;
+	}
+
+	/**
+	 * This gets the max number of pooled connections, by default enough for the migration threads configured by the params
+	 * @return The pool size, 0 or less if pooling is disabled
+	 */
+	protected int getPoolSize() {
+		return ParamUtils.getInt(getParams(), POOL_SIZE_KEY, Math.max(DEFAULT_POOL_SIZE, OauthDataMigrator.getRequiredConnections(getParams())));
+	}
+
+	/**
+	 * This closes the connection pool, the physical connections are closed and the dao cannot be used afterwards
+	 */
+	public void close() {
+		PooledDataSource pool = getConnectionPool();
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
 	/**
 	 * This gets the username parameter for this dao
 	 * @return The username parameter or null if there is none
@@ -124,6 +335,82 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 		return val == null ? REFRESH_TOKEN_TABLE : val.toString();
 	}
 
+	/**
+	 * This gets the table the migrated access tokens are copied to
+	 * @return the target access token table name or null if the access tokens are migrated in place
+	 */
+	protected String getTargetAccessTokenTableName() {
+		return ParamUtils.getString(getParams(), TARGET_ACCESS_TOKEN_TABLE_KEY, null);
+	}
+
+	/**
+	 * This gets the table the migrated refresh tokens are copied to
+	 * @return the target refresh token table name or null if the refresh tokens are migrated in place
+	 */
+	protected String getTargetRefreshTokenTableName() {
+		return ParamUtils.getString(getParams(), TARGET_REFRESH_TOKEN_TABLE_KEY, null);
+	}
+
+	/**
+	 * This gets whether any of the tokens are copied to new tables rather than migrated in place, when copying the unmigrated
+	 * tokens are left in the token tables so only a single pass over them migrates each token once
+	 * @return whether any of the tokens are copied to new tables
+	 */
+	public boolean isCopyingTokens() {
+		return getTargetAccessTokenTableName() != null || getTargetRefreshTokenTableName() != null;
+	}
+
+	/**
+	 * This gets whether the refresh tokens are copied to a new table rather than migrated in place
+	 * @return whether the refresh tokens are copied to a new table
+	 */
+	public boolean isCopyingRefreshTokens() {
+		return getTargetRefreshTokenTableName() != null;
+	}
+
+	/**
+	 * This gets the table the migrated access tokens are written to
+	 * @return the target access token table if copying otherwise the access token table
+	 */
+	private String getMigratedAccessTokenTableName() {
+		String tableName = getTargetAccessTokenTableName();
+		return tableName == null ? getAccessTokenTableName() : tableName;
+	}
+
+	/**
+	 * This gets the table the migrated refresh tokens are written to
+	 * @return the target refresh token table if copying otherwise the refresh token table
+	 */
+	private String getMigratedRefreshTokenTableName() {
+		String tableName = getTargetRefreshTokenTableName();
+		return tableName == null ? getRefreshTokenTableName() : tableName;
+	}
+
+	/**
+	 * This gets the max number of updates sent to the db in a single jdbc batch
+	 * @return the max number of updates sent to the db in a single jdbc batch
+	 */
+	protected int getBatchSize() {
+		return Math.max(1, ParamUtils.getInt(getParams(), BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE));
+	}
+
+	/**
+	 * This gets the number of updated rows after which the batch updates are committed, defaults to the batch size
+	 * @return the number of updated rows after which the batch updates are committed
+	 */
+	protected int getCommitInterval() {
+		return Math.max(1, ParamUtils.getInt(getParams(), COMMIT_INTERVAL_KEY, getBatchSize()));
+	}
+
+	/**
+	 * This gets the jdbc fetch size used when streaming token records, drivers that need a special
+	 * value to stream rows rather than buffer the whole result set should override this
+	 * @return the jdbc fetch size used when streaming token records
+	 */
+	protected int getStreamingFetchSize() {
+		return ParamUtils.getInt(getParams(), FETCH_SIZE_KEY, DEFAULT_FETCH_SIZE);
+	}
+
 	/**
 	 * This gets the parameters for this dao
 	 * @return The map of parameters for this dao
@@ -148,6 +435,14 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 		return this.datasource;
 	}
 
+	/**
+	 * This gets the connection pool of this dao
+	 * @return the connection pool or null if the connections are not pooled
+	 */
+	protected PooledDataSource getConnectionPool() {
+		return this.datasource instanceof PooledDataSource ? (PooledDataSource) this.datasource : null;
+	}
+
 	/**
 	 * This gets the tokenStore
 	 * @return the tokenStore
@@ -177,7 +472,7 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#countMigratedAccessTokens()
 	 */
 	public int countMigratedAccessTokens() {
-		return getJdbcTemplate().queryForInt("select count(token_id) from " + getAccessTokenTableName() + " where token_id not like ('%-%')");
+		return getJdbcTemplate().queryForInt("select count(token_id) from " + getMigratedAccessTokenTableName() + " where token_id not like ('%-%')");
 	}
 
 	/**
@@ -185,15 +480,16 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#countMigratedRefreshTokens()
 	 */
 	public int countMigratedRefreshTokens() {
-		return getJdbcTemplate().queryForInt("select count(token_id) from " + getRefreshTokenTableName() + " where token_id not like ('%-%')");
+		return getJdbcTemplate().queryForInt("select count(token_id) from " + getMigratedRefreshTokenTableName() + " where token_id not like ('%-%')");
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * {@inheritDoc} When the refresh tokens are copied the target table is cleared and the refresh token table is left as it is
 	 * @see com.avego.oauth.migration.OauthMigrationDao#clearRefreshTokens()
 	 */
 	public void clearRefreshTokens() {
-		getJdbcTemplate().update("delete token from " + getRefreshTokenTableName() + " token");
+		this.refreshTokensCleared = true;
+		getJdbcTemplate().update("delete from " + getMigratedRefreshTokenTableName());
 	}
 
 	/**
@@ -201,7 +497,16 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecords(int)
 	 */
 	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(int limit) {
-		return getOauthAccessTokenRecords(limit, false);
+		return getOauthAccessTokenRecords(null, null, limit, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecords(com.avego.oauth.migration.TokenIdRange, java.lang.String,
+	 *      int)
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, int limit) {
+		return getOauthAccessTokenRecords(range, afterTokenId, limit, false);
 	}
 
 	/**
@@ -209,36 +514,43 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#getMigratedOauthAccessTokenRecords(int)
 	 */
 	public List<OauthAccessTokenRecord> getMigratedOauthAccessTokenRecords(int limit) {
-		return getOauthAccessTokenRecords(limit, true);
+		return getOauthAccessTokenRecords(null, null, limit, true);
 	}
 
-	private List<OauthAccessTokenRecord> getOauthAccessTokenRecords(int limit, boolean migrated) {
-		String likeClause = migrated ? "not like ('%-%') " : "like ('%-%') ";
+	private List<OauthAccessTokenRecord> getOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, int limit, boolean migrated) {
+		List<Object> args = new ArrayList<Object>(3);
 		List<OauthAccessTokenRecord> accessTokens = getJdbcTemplate().query(
-				"select token_id, token, authentication_id, user_name, client_id, authentication, refresh_token from " + getAccessTokenTableName()
-						+ " where token_id " + likeClause + " order by token_id limit " + limit, new RowMapper<OauthAccessTokenRecord>() {
-
-					public OauthAccessTokenRecord mapRow(ResultSet rs, int rowNum) throws SQLException {
-						OauthAccessTokenRecord token = new OauthAccessTokenRecord();
-						token.setTokenId(rs.getString(1));
-						token.setToken(rs.getBytes(2));
-						token.setAuthenticationId(rs.getString(3));
-						token.setUserName(rs.getString(4));
-						token.setClientId(rs.getString(5));
-						token.setAuthentication(rs.getBytes(6));
-						token.setRefreshToken(rs.getString(7));
-						return token;
-					}
-				});
+				getLimitedQuerySql("select " + ACCESS_TOKEN_COLUMNS + " from " + (migrated ? getMigratedAccessTokenTableName() : getAccessTokenTableName())
+						+ buildWhereClause(range, afterTokenId, migrated, args) + " order by token_id", limit), args.toArray(), ACCESS_TOKEN_ROW_MAPPER);
 		return accessTokens;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#streamUnmigratedOauthAccessTokenRecords(com.avego.oauth.migration.TokenIdRange,
+	 *      java.lang.String, com.avego.oauth.migration.TokenRecordCallback)
+	 */
+	public void streamUnmigratedOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthAccessTokenRecord> callback) {
+		List<Object> args = new ArrayList<Object>(3);
+		streamRecords("select " + ACCESS_TOKEN_COLUMNS + " from " + getAccessTokenTableName() + buildWhereClause(range, afterTokenId, false, args)
+				+ " order by token_id", args, ACCESS_TOKEN_ROW_MAPPER, callback);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(int)
 	 */
 	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(int limit) {
-		return getOauthRefreshTokenRecords(limit, false);
+		return getOauthRefreshTokenRecords(null, null, limit, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(com.avego.oauth.migration.TokenIdRange, java.lang.String,
+	 *      int)
+	 */
+	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, int limit) {
+		return getOauthRefreshTokenRecords(range, afterTokenId, limit, false);
 	}
 
 	/**
@@ -246,31 +558,170 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#getMigratedOauthRefreshTokenRecords(int)
 	 */
 	public List<OauthRefreshTokenRecord> getMigratedOauthRefreshTokenRecords(int limit) {
-		return getOauthRefreshTokenRecords(limit, true);
+		return getOauthRefreshTokenRecords(null, null, limit, true);
 	}
 
-	private List<OauthRefreshTokenRecord> getOauthRefreshTokenRecords(int limit, boolean migrated) {
-		String likeClause = migrated ? "not like ('%-%') " : "like ('%-%') ";
+	private List<OauthRefreshTokenRecord> getOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, int limit, boolean migrated) {
+		List<Object> args = new ArrayList<Object>(3);
 		List<OauthRefreshTokenRecord> refreshTokens = getJdbcTemplate().query(
-				"select token_id, token, authentication from " + getRefreshTokenTableName() + " where token_id " + likeClause + " order by token_id limit "
-						+ limit, new RowMapper<OauthRefreshTokenRecord>() {
-
-					public OauthRefreshTokenRecord mapRow(ResultSet rs, int rowNum) throws SQLException {
-						OauthRefreshTokenRecord token = new OauthRefreshTokenRecord();
-						token.setTokenId(rs.getString(1));
-						token.setToken(rs.getBytes(2));
-						token.setAuthentication(rs.getBytes(3));
-						return token;
-					}
-				});
+				getLimitedQuerySql("select " + REFRESH_TOKEN_COLUMNS + " from " + (migrated ? getMigratedRefreshTokenTableName() : getRefreshTokenTableName())
+						+ buildWhereClause(range, afterTokenId, migrated, args) + " order by token_id", limit), args.toArray(), REFRESH_TOKEN_ROW_MAPPER);
 		return refreshTokens;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(java.util.List)
+	 */
+	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(List<String> tokenIds) {
+		return getUnmigratedRecords(REFRESH_TOKEN_COLUMNS, getRefreshTokenTableName(), tokenIds, REFRESH_TOKEN_ROW_MAPPER);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecords(java.util.List)
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(List<String> tokenIds) {
+		return getUnmigratedRecords(ACCESS_TOKEN_COLUMNS, getAccessTokenTableName(), tokenIds, ACCESS_TOKEN_ROW_MAPPER);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecordsForRefreshToken(java.lang.String)
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecordsForRefreshToken(String refreshToken) {
+		return getJdbcTemplate().query(
+				"select " + ACCESS_TOKEN_COLUMNS + " from " + getAccessTokenTableName() + " where token_id like ('%-%') and refresh_token = ?",
+				new Object[] { refreshToken }, ACCESS_TOKEN_ROW_MAPPER);
+	}
+
+	private <R extends TokenRecord> List<R> getUnmigratedRecords(String columns, String tableName, List<String> tokenIds, RowMapper<R> rowMapper) {
+		List<R> records = new ArrayList<R>(tokenIds.size());
+		for (int start = 0; start < tokenIds.size(); start += MAX_IN_LIST_SIZE) {
+			List<String> ids = tokenIds.subList(start, Math.min(tokenIds.size(), start + MAX_IN_LIST_SIZE));
+			StringBuilder sql = new StringBuilder("select ").append(columns).append(" from ").append(tableName)
+					.append(" where token_id like ('%-%') and token_id in (");
+			for (int i = 0; i < ids.size(); i++) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			sql.append(")");
+			records.addAll(getJdbcTemplate().query(sql.toString(), ids.toArray(), rowMapper));
+		}
+		return records;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#streamUnmigratedOauthRefreshTokenRecords(com.avego.oauth.migration.TokenIdRange,
+	 *      java.lang.String, com.avego.oauth.migration.TokenRecordCallback)
+	 */
+	public void streamUnmigratedOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback) {
+		List<Object> args = new ArrayList<Object>(3);
+		streamRecords("select " + REFRESH_TOKEN_COLUMNS + " from " + getRefreshTokenTableName() + buildWhereClause(range, afterTokenId, false, args)
+				+ " order by token_id", args, REFRESH_TOKEN_ROW_MAPPER, callback);
+	}
+
+	/**
+	 * This runs the given query with a forward only, read only result set using the streaming fetch size
+	 * and hands each mapped row to the callback as it is read
+	 * @param sql The query sql
+	 * @param args The bind args for the query
+	 * @param rowMapper The mapper that creates a record from each row
+	 * @param callback The callback that processes each record
+	 */
+	protected <R extends TokenRecord> void streamRecords(final String sql, final List<Object> args, final RowMapper<R> rowMapper,
+			final TokenRecordCallback<R> callback) {
+		final int fetchSize = getStreamingFetchSize();
+		getJdbcTemplate().query(new PreparedStatementCreator() {
+
+			public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+				PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				ps.setFetchSize(fetchSize);
+				for (int i = 0; i < args.size(); i++) {
+					StatementCreatorUtils.setParameterValue(ps, i + 1, Types.VARCHAR, args.get(i));
+				}
+				return ps;
+			}
+		}, new ResultSetExtractor<Object>() {
+
+			public Object extractData(ResultSet rs) throws SQLException, DataAccessException {
+				int rowNum = 0;
+				while (rs.next()) {
+					if (!callback.processRecord(rowMapper.mapRow(rs, rowNum++))) {
+						break;
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * This limits the given ordered query to its first rows, by default with a limit clause as supported by mysql,
+	 * databases without one should override this
+	 * @param sql The ordered query
+	 * @param limit The max number of rows to select
+	 * @return The limited query
+	 */
+	protected String getLimitedQuerySql(String sql, int limit) {
+		return sql + " limit " + limit;
+	}
+
+	/**
+	 * This binds the serialized token or authentication data of an update to the given parameter as a blob
+	 * @param ps The prepared statement
+	 * @param index The parameter index
+	 * @param data The serialized data which may be null
+	 * @throws SQLException If an error occurs setting the value
+	 */
+	protected void setBlobParameter(PreparedStatement ps, int index, byte[] data) throws SQLException {
+		StatementCreatorUtils.setParameterValue(ps, index, Types.BLOB, data);
+	}
+
+	/**
+	 * This builds the where clause selecting migrated or unmigrated tokens within the given range,
+	 * the token id bounds let the db seek straight to the start of the page using the token_id index
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id selected tokens must be after or null for no lower bound
+	 * @param migrated Whether to select migrated tokens
+	 * @param args The list the bind args for the clause are added to
+	 * @return The where clause
+	 */
+	protected String buildWhereClause(TokenIdRange range, String afterTokenId, boolean migrated, List<Object> args) {
+		StringBuilder clause = new StringBuilder(" where token_id ");
+		clause.append(migrated ? "not like ('%-%')" : "like ('%-%')");
+		if (range != null && range.getLowerBound() != null) {
+			clause.append(" and token_id >= ?");
+			args.add(range.getLowerBound());
+		}
+		if (range != null && range.getUpperBound() != null) {
+			clause.append(" and token_id < ?");
+			args.add(range.getUpperBound());
+		}
+		if (afterTokenId != null) {
+			clause.append(" and token_id > ?");
+			args.add(afterTokenId);
+		}
+		return clause.toString();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthAccessToken(java.lang.String, java.lang.String, java.lang.String, byte[], byte[])
 	 */
 	public void updateOauthAccessToken(String oldTokenId, String newTokenId, String newRefreshToken, byte[] tokenData, byte[] authData) {
+		if (getTargetAccessTokenTableName() != null) {
+			// the copied row needs the other columns of the unmigrated row
+			List<OauthAccessTokenRecord> records = getUnmigratedOauthAccessTokenRecords(Collections.singletonList(oldTokenId));
+			if (!records.isEmpty()) {
+				OauthAccessTokenUpdate update = new OauthAccessTokenUpdate(oldTokenId, newTokenId, newRefreshToken, tokenData, authData);
+				update.setAuthenticationId(records.get(0).getAuthenticationId());
+				update.setUserName(records.get(0).getUserName());
+				update.setClientId(records.get(0).getClientId());
+				updateOauthAccessTokens(Collections.singletonList(update));
+			}
+			return;
+		}
 		getJdbcTemplate().update(
 				"update " + getAccessTokenTableName() + " set token_id = ?, refresh_token = ?, token = ?, authentication = ? where token_id = ?",
 				new Object[] { newTokenId, newRefreshToken, tokenData, authData, oldTokenId },
@@ -282,17 +733,354 @@ public abstract class JdbcOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthRefreshToken(java.lang.String, java.lang.String, byte[], byte[])
 	 */
 	public void updateOauthRefreshToken(String oldTokenId, String newTokenId, byte[] tokenData, byte[] authData) {
+		if (getTargetRefreshTokenTableName() != null) {
+			updateOauthRefreshTokens(Collections.singletonList(new OauthRefreshTokenUpdate(oldTokenId, newTokenId, tokenData, authData)));
+			return;
+		}
 		getJdbcTemplate().update("update " + getRefreshTokenTableName() + " set token_id = ?, token = ?, authentication = ? where token_id = ?",
 				new Object[] { newTokenId, tokenData, authData, oldTokenId },
 				new int[] { java.sql.Types.VARCHAR, java.sql.Types.BLOB, java.sql.Types.BLOB, java.sql.Types.VARCHAR });
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthAccessTokens(java.util.List)
+	 */
+	public void updateOauthAccessTokens(List<OauthAccessTokenUpdate> updates) {
+		if (getTargetAccessTokenTableName() != null) {
+			updateOauthTokens(updates, null);
+		} else {
+			executeBatchUpdate(getAccessTokenUpdateSql(), updates, this.accessTokenUpdateSetter);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthRefreshTokens(java.util.List)
+	 */
+	public void updateOauthRefreshTokens(List<OauthRefreshTokenUpdate> updates) {
+		if (getTargetRefreshTokenTableName() != null) {
+			updateOauthTokens(null, updates);
+		} else {
+			executeBatchUpdate(getRefreshTokenUpdateSql(), updates, this.refreshTokenUpdateSetter);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthTokens(java.util.List, java.util.List)
+	 */
+	public void updateOauthTokens(final List<OauthAccessTokenUpdate> accessTokenUpdates, final List<OauthRefreshTokenUpdate> refreshTokenUpdates) {
+		if ((accessTokenUpdates == null || accessTokenUpdates.isEmpty()) && (refreshTokenUpdates == null || refreshTokenUpdates.isEmpty())) {
+			return;
+		}
+		getJdbcTemplate().execute(new ConnectionCallback<Object>() {
+
+			public Object doInConnection(Connection con) throws SQLException {
+				boolean autoCommit = con.getAutoCommit();
+				try {
+					con.setAutoCommit(false);
+					writeTokens(con, getTargetRefreshTokenTableName(), getRefreshTokenWriteSql(), refreshTokenUpdates, getRefreshTokenWriteSetter());
+					writeTokens(con, getTargetAccessTokenTableName(), getAccessTokenWriteSql(), accessTokenUpdates, getAccessTokenWriteSetter());
+					con.commit();
+				} catch (SQLException ex) {
+					con.rollback();
+					throw ex;
+				} catch (RuntimeException ex) {
+					con.rollback();
+					throw ex;
+				} finally {
+					con.setAutoCommit(autoCommit);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * This writes the given migrated tokens on the given connection, when they are copied any rows already copied for the same
+	 * tokens are deleted first so a copy that is run again after it failed or was stopped replaces them rather than failing on
+	 * their keys, the caller is responsible for the transaction
+	 * @param con The connection
+	 * @param targetTableName The table the tokens are copied to or null if they are migrated in place
+	 * @param sql The write sql
+	 * @param updates The migrated tokens
+	 * @param setter The setter that binds the parameters of the write sql
+	 * @throws SQLException If an error occurs writing the tokens
+	 */
+	private <U extends TokenUpdate> void writeTokens(Connection con, String targetTableName, String sql, List<U> updates,
+			UpdateParameterSetter<U> setter) throws SQLException {
+		if (targetTableName != null) {
+			executeBatches(con, "delete from " + targetTableName + " where token_id = ?", updates, new UpdateParameterSetter<U>() {
+
+				public void setValues(PreparedStatement ps, U update) throws SQLException {
+					StatementCreatorUtils.setParameterValue(ps, 1, Types.VARCHAR, update.getNewTokenId());
+				}
+			});
+		}
+		executeBatches(con, sql, updates, setter);
+	}
+
+	/**
+	 * This gets the sql that writes a migrated access token, an insert into the target table when the access tokens are copied
+	 * otherwise an update of the access token table
+	 * @return The write sql
+	 */
+	protected String getAccessTokenWriteSql() {
+		String tableName = getTargetAccessTokenTableName();
+		if (tableName == null) {
+			return getAccessTokenUpdateSql();
+		}
+		return "insert into " + tableName + " (" + ACCESS_TOKEN_COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?)";
+	}
+
+	private UpdateParameterSetter<OauthAccessTokenUpdate> getAccessTokenWriteSetter() {
+		return getTargetAccessTokenTableName() == null ? accessTokenUpdateSetter : accessTokenInsertSetter;
+	}
+
+	/**
+	 * This gets the sql that writes a migrated refresh token, an insert into the target table when the refresh tokens are copied
+	 * otherwise an update of the refresh token table
+	 * @return The write sql
+	 */
+	protected String getRefreshTokenWriteSql() {
+		String tableName = getTargetRefreshTokenTableName();
+		if (tableName == null) {
+			return getRefreshTokenUpdateSql();
+		}
+		return "insert into " + tableName + " (" + REFRESH_TOKEN_COLUMNS + ") values (?, ?, ?)";
+	}
+
+	private UpdateParameterSetter<OauthRefreshTokenUpdate> getRefreshTokenWriteSetter() {
+		return getTargetRefreshTokenTableName() == null ? refreshTokenUpdateSetter : refreshTokenInsertSetter;
+	}
+
+	/**
+	 * This gets the sql that updates a migrated access token
+	 * @return The update sql
+	 */
+	protected String getAccessTokenUpdateSql() {
+		return "update " + getAccessTokenTableName() + " set token_id = ?, refresh_token = ?, token = ?, authentication = ? where token_id = ?";
+	}
+
+	/**
+	 * This gets the sql that updates a migrated refresh token
+	 * @return The update sql
+	 */
+	protected String getRefreshTokenUpdateSql() {
+		return "update " + getRefreshTokenTableName() + " set token_id = ?, token = ?, authentication = ? where token_id = ?";
+	}
+
+	/**
+	 * {@inheritDoc} When the tokens were copied and the rename tables param is set the target tables are renamed to the token table
+	 * names and the token tables are kept with the renamed table suffix so the migration can be rolled back. The tables are only
+	 * renamed if each target table has at least as many tokens as its token table, otherwise the old application has created
+	 * tokens since they were copied which would be left behind in the renamed token table.
+	 * @throws IllegalStateException If a token table has more tokens than its target table
+	 * @see com.avego.oauth.migration.OauthMigrationDao#finishMigration()
+	 */
+	public void finishMigration() {
+		if (!isCopyingTokens() || !ParamUtils.getBoolean(getParams(), RENAME_TABLES_KEY, false)) {
+			return;
+		}
+		checkCopied(getAccessTokenTableName(), getTargetAccessTokenTableName());
+		// the copied refresh tokens are deleted when the migration removes the refresh tokens
+		if (!this.refreshTokensCleared) {
+			checkCopied(getRefreshTokenTableName(), getTargetRefreshTokenTableName());
+		}
+		String suffix = ParamUtils.getString(getParams(), RENAMED_TABLE_SUFFIX_KEY, DEFAULT_RENAMED_TABLE_SUFFIX);
+		Map<String, String> renames = new LinkedHashMap<String, String>();
+		if (getTargetAccessTokenTableName() != null) {
+			renames.put(getAccessTokenTableName(), getAccessTokenTableName() + suffix);
+			renames.put(getTargetAccessTokenTableName(), getAccessTokenTableName());
+		}
+		if (getTargetRefreshTokenTableName() != null) {
+			renames.put(getRefreshTokenTableName(), getRefreshTokenTableName() + suffix);
+			renames.put(getTargetRefreshTokenTableName(), getRefreshTokenTableName());
+		}
+		for (String sql : getRenameTablesSql(renames)) {
+			getJdbcTemplate().execute(sql);
+		}
+	}
+
+	private void checkCopied(String tableName, String targetTableName) {
+		if (targetTableName == null) {
+			return;
+		}
+		int numTokens = getJdbcTemplate().queryForInt("select count(token_id) from " + tableName);
+		int numCopied = getJdbcTemplate().queryForInt("select count(token_id) from " + targetTableName);
+		if (numCopied < numTokens) {
+			throw new IllegalStateException("The table: " + targetTableName + " has " + numCopied + " tokens but " + tableName + " has "
+					+ numTokens + ", tokens were created after they were copied so the tables were not renamed. Stop the old application"
+					+ " and run the migration again to copy them.");
+		}
+	}
+
+	/**
+	 * This gets the statements that rename the given tables in order, by default each table is renamed with its own alter table
+	 * statement, databases that can rename several tables in a single atomic statement should override this
+	 * @param renames The new table names keyed by the current table names in the order they must be renamed
+	 * @return The rename statements
+	 */
+	protected List<String> getRenameTablesSql(Map<String, String> renames) {
+		List<String> statements = new ArrayList<String>(renames.size());
+		for (Map.Entry<String, String> rename : renames.entrySet()) {
+			statements.add("alter table " + rename.getKey() + " rename to " + rename.getValue());
+		}
+		return statements;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.SyntheticTokenDao#insertOauthAccessTokens(java.util.List)
+	 */
+	public void insertOauthAccessTokens(List<OauthAccessTokenRecord> records) {
+		executeBatchUpdate("insert into " + getAccessTokenTableName() + " (" + ACCESS_TOKEN_COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?)", records,
+				new UpdateParameterSetter<OauthAccessTokenRecord>() {
+
+					public void setValues(PreparedStatement ps, OauthAccessTokenRecord record) throws SQLException {
+						StatementCreatorUtils.setParameterValue(ps, 1, Types.VARCHAR, record.getTokenId());
+						setBlobParameter(ps, 2, record.getToken());
+						StatementCreatorUtils.setParameterValue(ps, 3, Types.VARCHAR, record.getAuthenticationId());
+						StatementCreatorUtils.setParameterValue(ps, 4, Types.VARCHAR, record.getUserName());
+						StatementCreatorUtils.setParameterValue(ps, 5, Types.VARCHAR, record.getClientId());
+						setBlobParameter(ps, 6, record.getAuthentication());
+						StatementCreatorUtils.setParameterValue(ps, 7, Types.VARCHAR, record.getRefreshToken());
+					}
+				});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.SyntheticTokenDao#insertOauthRefreshTokens(java.util.List)
+	 */
+	public void insertOauthRefreshTokens(List<OauthRefreshTokenRecord> records) {
+		executeBatchUpdate("insert into " + getRefreshTokenTableName() + " (" + REFRESH_TOKEN_COLUMNS + ") values (?, ?, ?)", records,
+				new UpdateParameterSetter<OauthRefreshTokenRecord>() {
+
+					public void setValues(PreparedStatement ps, OauthRefreshTokenRecord record) throws SQLException {
+						StatementCreatorUtils.setParameterValue(ps, 1, Types.VARCHAR, record.getTokenId());
+						setBlobParameter(ps, 2, record.getToken());
+						setBlobParameter(ps, 3, record.getAuthentication());
+					}
+				});
+	}
+
+	/**
+	 * This executes the given sql for each of the given updates on the given connection using jdbc batches of up to the batch size,
+	 * the caller is responsible for the transaction
+	 * @param con The connection
+	 * @param sql The update sql
+	 * @param updates The updates to apply
+	 * @param setter The setter that binds the parameters of each update
+	 * @throws SQLException If an error occurs executing the batches
+	 */
+	protected <U> void executeBatches(Connection con, String sql, List<U> updates, UpdateParameterSetter<U> setter) throws SQLException {
+		if (updates == null || updates.isEmpty()) {
+			return;
+		}
+		int batchSize = getBatchSize();
+		PreparedStatement ps = con.prepareStatement(sql);
+		try {
+			int numBatched = 0;
+			for (U update : updates) {
+				setter.setValues(ps, update);
+				ps.addBatch();
+				if (++numBatched == batchSize) {
+					ps.executeBatch();
+					numBatched = 0;
+				}
+			}
+			if (numBatched > 0) {
+				ps.executeBatch();
+			}
+		} finally {
+			JdbcUtils.closeStatement(ps);
+		}
+	}
+
+	/**
+	 * This executes the given sql for each of the given updates using jdbc batches of up to the batch size,
+	 * the updates are made in a transaction that is committed each time the commit interval number of rows have been
+	 * updated and once all the updates have been sent. If an error occurs the uncommitted updates are rolled back
+	 * @param sql The update sql
+	 * @param updates The updates to apply
+	 * @param setter The setter that binds the parameters of each update
+	 */
+	protected <U> void executeBatchUpdate(final String sql, final List<U> updates, final UpdateParameterSetter<U> setter) {
+		if (updates == null || updates.isEmpty()) {
+			return;
+		}
+		final int batchSize = getBatchSize();
+		final int commitInterval = getCommitInterval();
+		getJdbcTemplate().execute(new ConnectionCallback<Object>() {
+
+			public Object doInConnection(Connection con) throws SQLException {
+				boolean autoCommit = con.getAutoCommit();
+				PreparedStatement ps = null;
+				try {
+					con.setAutoCommit(false);
+					ps = con.prepareStatement(sql);
+					int numBatched = 0;
+					int numUncommitted = 0;
+					for (U update : updates) {
+						setter.setValues(ps, update);
+						ps.addBatch();
+						numBatched++;
+						numUncommitted++;
+						if (numBatched == batchSize) {
+							ps.executeBatch();
+							numBatched = 0;
+						}
+						if (numUncommitted >= commitInterval) {
+							if (numBatched > 0) {
+								ps.executeBatch();
+								numBatched = 0;
+							}
+							con.commit();
+							numUncommitted = 0;
+						}
+					}
+					if (numBatched > 0) {
+						ps.executeBatch();
+					}
+					con.commit();
+				} catch (SQLException ex) {
+					con.rollback();
+					throw ex;
+				} catch (RuntimeException ex) {
+					con.rollback();
+					throw ex;
+				} finally {
+					JdbcUtils.closeStatement(ps);
+					con.setAutoCommit(autoCommit);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * The UpdateParameterSetter represents a callback that binds the parameters for an update to a prepared statement
+	 * @param <U> The type of update
+	 */
+	protected interface UpdateParameterSetter<U> {
+
+		/**
+		 * This sets the parameter values for the given update on the prepared statement
+		 * @param ps The prepared statement
+		 * @param update The update
+		 * @throws SQLException If an error occurs setting the values
+		 */
+		void setValues(PreparedStatement ps, U update) throws SQLException;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#generateNewTokenKey(java.lang.String)
 	 */
 	public String generateNewTokenKey(String tokenId) {
-		return this.tokenStore.extractTokenKey(tokenId);
+		return this.keyGenerator.generateKey(tokenId);
 	}
 
 }
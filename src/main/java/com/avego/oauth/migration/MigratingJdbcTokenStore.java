@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.JdbcTokenStore;
+
+/**
+ * The MigratingJdbcTokenStore represents a jdbc token store that migrates tokens when they are read. It lets the new version
+ * of spring security oauth be deployed before the bulk migration has finished, the migrator can then run in the background.
+ * A token is first looked up by its new key as usual so a migrated token costs nothing extra. If it is not found and the
+ * value has the form of an unmigrated token id, the unmigrated row is read, converted by the migrator exactly as the bulk
+ * migration would convert it, written back and then read again by its new key. If the bulk migration writes the row first
+ * the update changes nothing and the migrated row is read. The converted authentications are cached by the migrator as
+ * the tokens of a user share the same authentication. Removing a token first migrates the unmigrated rows it matches so
+ * a revoked token is not later migrated back into the store.
+ * Tokens looked up by their authentication are only found once migrated.
+ * @version $Id$
+ * @author conorroche
+ */
+public class MigratingJdbcTokenStore extends JdbcTokenStore {
+
+	private final OauthDataMigrator migrator;
+	private final OauthMigrationDao dao;
+	private final AtomicLong numAccessTokensMigrated = new AtomicLong();
+	private final AtomicLong numRefreshTokensMigrated = new AtomicLong();
+
+	/**
+	 * This creates a MigratingJdbcTokenStore
+	 * @param dataSource The datasource of the token tables
+	 * @param migrator The migrator used to convert the unmigrated tokens, its dao is used to read and write them
+	 */
+	public MigratingJdbcTokenStore(DataSource dataSource, OauthDataMigrator migrator) {
+		super(dataSource);
+		if (migrator == null) {
+			throw new IllegalArgumentException("The migrator may not be null");
+		}
+		this.migrator = migrator;
+		this.dao = migrator.getDao();
+		if (migrator.getAuthCache() == null && migrator.getAuthCacheSize() > 0) {
+			migrator.setAuthCache(new AuthenticationCache(migrator.getAuthCacheSize()));
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.springframework.security.oauth2.provider.token.JdbcTokenStore#readAccessToken(java.lang.String)
+	 */
+	@Override
+	public OAuth2AccessToken readAccessToken(String tokenValue) {
+		OAuth2AccessToken token = super.readAccessToken(tokenValue);
+		if (token == null && migrateAccessTokens(tokenValue)) {
+			token = super.readAccessToken(tokenValue);
+		}
+		return token;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.springframework.security.oauth2.provider.token.JdbcTokenStore#readAuthentication(java.lang.String)
+	 */
+	@Override
+	public OAuth2Authentication readAuthentication(String token) {
+		OAuth2Authentication authentication = super.readAuthentication(token);
+		if (authentication == null && migrateAccessTokens(token)) {
+			authentication = super.readAuthentication(token);
+		}
+		return authentication;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.springframework.security.oauth2.provider.token.JdbcTokenStore#removeAccessToken(java.lang.String)
+	 */
+	@Override
+	public void removeAccessToken(String tokenValue) {
+		migrateAccessTokens(tokenValue);
+		super.removeAccessToken(tokenValue);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.springframework.security.oauth2.provider.token.JdbcTokenStore#readRefreshToken(java.lang.String)
+	 */
+	@Override
+	public OAuth2RefreshToken readRefreshToken(String token) {
+		OAuth2RefreshToken refreshToken = super.readRefreshToken(token);
+		if (refreshToken == null && migrateRefreshToken(token)) {
+			refreshToken = super.readRefreshToken(token);
+		}
+		return refreshToken;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.springframework.security.oauth2.provider.token.JdbcTokenStore#readAuthenticationForRefreshToken(java.lang.String)
+	 */
+	@Override
+	public OAuth2Authentication readAuthenticationForRefreshToken(String value) {
+		OAuth2Authentication authentication = super.readAuthenticationForRefreshToken(value);
+		if (authentication == null && migrateRefreshToken(value)) {
+			authentication = super.readAuthenticationForRefreshToken(value);
+		}
+		return authentication;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.springframework.security.oauth2.provider.token.JdbcTokenStore#removeRefreshToken(java.lang.String)
+	 */
+	@Override
+	public void removeRefreshToken(String token) {
+		migrateRefreshToken(token);
+		super.removeRefreshToken(token);
+	}
+
+	/**
+	 * {@inheritDoc} The unmigrated access tokens still refer to the unmigrated refresh token value so they are migrated first
+	 * @see org.springframework.security.oauth2.provider.token.JdbcTokenStore#removeAccessTokenUsingRefreshToken(java.lang.String)
+	 */
+	@Override
+	public void removeAccessTokenUsingRefreshToken(String refreshToken) {
+		if (isUnmigratedTokenId(refreshToken)) {
+			migrateAccessTokens(this.dao.getUnmigratedOauthAccessTokenRecordsForRefreshToken(refreshToken));
+		}
+		super.removeAccessTokenUsingRefreshToken(refreshToken);
+	}
+
+	/**
+	 * This migrates the unmigrated access token with the given value if there is one
+	 * @param tokenValue The token value
+	 * @return Whether a token was migrated
+	 */
+	protected boolean migrateAccessTokens(String tokenValue) {
+		if (!isUnmigratedTokenId(tokenValue)) {
+			return false;
+		}
+		return migrateAccessTokens(this.dao.getUnmigratedOauthAccessTokenRecords(Collections.singletonList(tokenValue)));
+	}
+
+	private boolean migrateAccessTokens(List<OauthAccessTokenRecord> records) {
+		if (records.isEmpty()) {
+			return false;
+		}
+		List<OauthAccessTokenUpdate> updates = new ArrayList<OauthAccessTokenUpdate>(records.size());
+		for (OauthAccessTokenRecord record : records) {
+			try {
+				updates.add(this.migrator.transformAccessToken(record));
+			} catch (Exception ex) {
+				throw new DataRetrievalFailureException("Failed to migrate the access token: " + record.getTokenId(), ex);
+			}
+		}
+		this.dao.updateOauthAccessTokens(updates);
+		this.numAccessTokensMigrated.addAndGet(updates.size());
+		return true;
+	}
+
+	/**
+	 * This migrates the unmigrated refresh token with the given value if there is one
+	 * @param tokenValue The refresh token value
+	 * @return Whether a token was migrated
+	 */
+	protected boolean migrateRefreshToken(String tokenValue) {
+		if (!isUnmigratedTokenId(tokenValue)) {
+			return false;
+		}
+		List<OauthRefreshTokenRecord> records = this.dao.getUnmigratedOauthRefreshTokenRecords(Collections.singletonList(tokenValue));
+		if (records.isEmpty()) {
+			return false;
+		}
+		List<OauthRefreshTokenUpdate> updates = new ArrayList<OauthRefreshTokenUpdate>(records.size());
+		for (OauthRefreshTokenRecord record : records) {
+			try {
+				updates.add(this.migrator.transformRefreshToken(record));
+			} catch (Exception ex) {
+				throw new DataRetrievalFailureException("Failed to migrate the refresh token: " + record.getTokenId(), ex);
+			}
+		}
+		this.dao.updateOauthRefreshTokens(updates);
+		this.numRefreshTokensMigrated.addAndGet(updates.size());
+		return true;
+	}
+
+	/**
+	 * This checks whether the given value has the form of an unmigrated token id, the old token ids are the token values
+	 * which contain dashes whereas the new ones are hex md5 hashes so this avoids a query for tokens that do not exist
+	 * @param tokenValue The token value
+	 * @return Whether the value may be an unmigrated token id
+	 */
+	protected boolean isUnmigratedTokenId(String tokenValue) {
+		return tokenValue != null && tokenValue.indexOf('-') >= 0;
+	}
+
+	/**
+	 * This gets the migrator used to convert the unmigrated tokens
+	 * @return the migrator
+	 */
+	public OauthDataMigrator getMigrator() {
+		return this.migrator;
+	}
+
+	/**
+	 * This gets the number of access tokens migrated when they were read
+	 * @return the number of access tokens migrated
+	 */
+	public long getNumAccessTokensMigrated() {
+		return this.numAccessTokensMigrated.get();
+	}
+
+	/**
+	 * This gets the number of refresh tokens migrated when they were read
+	 * @return the number of refresh tokens migrated
+	 */
+	public long getNumRefreshTokensMigrated() {
+		return this.numRefreshTokensMigrated.get();
+	}
+
+}
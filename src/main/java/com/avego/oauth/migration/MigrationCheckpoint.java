@@ -0,0 +1,286 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * The MigrationCheckpoint represents the durable progress of a migration run stored in a properties file. For each token type and
+ * token id range it records the last token id written, the number of tokens migrated, the time spent and whether the range has completed,
+ * plus the token id and error of a failed range. A restarted run resumes each range after its last token id and skips completed ranges
+ * rather than rescanning the tables from the start. The ranges are recorded as well so a run that splits the token ids differently
+ * fails rather than silently starting again. The file is replaced atomically each time it is saved so it can be read at any time
+ * to check the status of a run in progress
+ * @version $Id$
+ * @author conorroche
+ */
+public class MigrationCheckpoint {
+
+	/**
+	 * The status of a run that is in progress or was killed
+	 */
+	public static final String STATUS_RUNNING = "running";
+
+	/**
+	 * The status of a run that completed
+	 */
+	public static final String STATUS_COMPLETED = "completed";
+
+	/**
+	 * The status of a run that failed
+	 */
+	public static final String STATUS_FAILED = "failed";
+
+	private static final String ALL_RANGES = "all";
+
+	private final File file;
+	private final long saveIntervalMillis;
+	private final Properties props = new Properties();
+	private long lastSaveMillis;
+
+	/**
+	 * This creates a MigrationCheckpoint, loading the progress of the previous run from the file unless that run completed
+	 * @param file The checkpoint file
+	 * @param saveIntervalMillis The min interval between saves of the progress of a range, completed and failed ranges are saved straight away
+	 * @throws IOException If the existing file could not be read
+	 */
+	public MigrationCheckpoint(File file, long saveIntervalMillis) throws IOException {
+		this.file = file;
+		this.saveIntervalMillis = saveIntervalMillis;
+		if (file.exists()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				this.props.load(in);
+			} finally {
+				in.close();
+			}
+			// a completed run is not resumed, the next run starts again and picks up any tokens added since
+			if (STATUS_COMPLETED.equals(this.props.getProperty("run.status"))) {
+				this.props.clear();
+			}
+		}
+	}
+
+	/**
+	 * This checks that the token id ranges of this run are the ones the progress in the checkpoint was saved for and records
+	 * them. The progress is saved per range so none of it would be used if the ranges had changed
+	 * @param rangeSplit The description of how this run splits the token ids into ranges
+	 * @throws IllegalStateException If the checkpoint has progress saved for different ranges
+	 */
+	public synchronized void checkRangeSplit(String rangeSplit) {
+		String savedRangeSplit = this.props.getProperty("run.range_split");
+		if (savedRangeSplit != null && !savedRangeSplit.equals(rangeSplit)) {
+			throw new IllegalStateException("The checkpoint file: " + this.file + " was saved by a run that split the token ids into "
+					+ savedRangeSplit + " but this run splits them into " + rangeSplit + " so none of its progress would be used,"
+					+ " run with the same migration_mode, migration_threads, migration_ranges and pipeline_reader_threads"
+					+ " or delete the checkpoint file to start again");
+		}
+		this.props.setProperty("run.range_split", rangeSplit);
+	}
+
+	/**
+	 * This records that a run has started or resumed
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	public synchronized void runStarted() throws IOException {
+		if (this.props.getProperty("run.started") == null) {
+			this.props.setProperty("run.started", new Date().toString());
+		} else {
+			this.props.setProperty("run.resumed", new Date().toString());
+		}
+		this.props.setProperty("run.status", STATUS_RUNNING);
+		save();
+	}
+
+	/**
+	 * This records that a run has completed
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	public synchronized void runCompleted() throws IOException {
+		this.props.setProperty("run.status", STATUS_COMPLETED);
+		save();
+	}
+
+	/**
+	 * This records that a run has failed
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	public synchronized void runFailed() throws IOException {
+		this.props.setProperty("run.status", STATUS_FAILED);
+		save();
+	}
+
+	/**
+	 * This gets the number of tokens of the given type there were to migrate when the run started
+	 * @param tokenType The token type
+	 * @return The number of tokens or -1 if not recorded
+	 */
+	public synchronized int getTotal(String tokenType) {
+		return Integer.parseInt(this.props.getProperty(typeKey(tokenType) + ".total", "-1"));
+	}
+
+	/**
+	 * This sets the number of tokens of the given type there were to migrate when the run started
+	 * @param tokenType The token type
+	 * @param total The number of tokens
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	public synchronized void setTotal(String tokenType, int total) throws IOException {
+		this.props.setProperty(typeKey(tokenType) + ".total", Integer.toString(total));
+		save();
+	}
+
+	/**
+	 * This gets the number of tokens of the given type migrated in all ranges
+	 * @param tokenType The token type
+	 * @return The number of tokens migrated
+	 */
+	public synchronized int getNumMigrated(String tokenType) {
+		int numMigrated = 0;
+		String suffix = ".migrated";
+		for (String key : this.props.stringPropertyNames()) {
+			if (key.startsWith(typeKey(tokenType) + ".") && key.endsWith(suffix)) {
+				numMigrated += Integer.parseInt(this.props.getProperty(key));
+			}
+		}
+		return numMigrated;
+	}
+
+	/**
+	 * This gets the last token id written in the given range
+	 * @param tokenType The token type
+	 * @param range The range, null for all token ids
+	 * @return The last token id or null if none have been written
+	 */
+	public synchronized String getLastTokenId(String tokenType, TokenIdRange range) {
+		return this.props.getProperty(key(tokenType, range, "last_token_id"));
+	}
+
+	/**
+	 * This gets whether the given range has completed
+	 * @param tokenType The token type
+	 * @param range The range, null for all token ids
+	 * @return True if the range has completed
+	 */
+	public synchronized boolean isCompleted(String tokenType, TokenIdRange range) {
+		return Boolean.parseBoolean(this.props.getProperty(key(tokenType, range, "completed")));
+	}
+
+	/**
+	 * This records the progress of a range, it is saved if the save interval has passed since the last save
+	 * @param tokenType The token type
+	 * @param range The range, null for all token ids
+	 * @param lastTokenId The last token id written
+	 * @param numMigrated The number of tokens written since the last progress
+	 * @param elapsedMillis The time spent since the last progress
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	public synchronized void rangeProgress(String tokenType, TokenIdRange range, String lastTokenId, int numMigrated, long elapsedMillis)
+			throws IOException {
+		this.props.setProperty(key(tokenType, range, "last_token_id"), lastTokenId);
+		add(key(tokenType, range, "migrated"), numMigrated);
+		add(key(tokenType, range, "elapsed_ms"), elapsedMillis);
+		if (System.currentTimeMillis() - this.lastSaveMillis >= this.saveIntervalMillis) {
+			save();
+		}
+	}
+
+	/**
+	 * This records that a range has completed and saves the checkpoint
+	 * @param tokenType The token type
+	 * @param range The range, null for all token ids
+	 * @param numMigrated The number of tokens written since the last progress
+	 * @param elapsedMillis The time spent since the last progress
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	public synchronized void rangeCompleted(String tokenType, TokenIdRange range, int numMigrated, long elapsedMillis) throws IOException {
+		add(key(tokenType, range, "migrated"), numMigrated);
+		add(key(tokenType, range, "elapsed_ms"), elapsedMillis);
+		this.props.setProperty(key(tokenType, range, "completed"), Boolean.TRUE.toString());
+		this.props.remove(key(tokenType, range, "failed_token_id"));
+		this.props.remove(key(tokenType, range, "failure"));
+		save();
+	}
+
+	/**
+	 * This records that a range failed and saves the checkpoint
+	 * @param tokenType The token type
+	 * @param range The range, null for all token ids
+	 * @param failedTokenId The id of the token that could not be migrated or null if the failure was not specific to a token
+	 * @param failure The failure
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	public synchronized void rangeFailed(String tokenType, TokenIdRange range, String failedTokenId, Throwable failure) throws IOException {
+		if (failedTokenId != null) {
+			this.props.setProperty(key(tokenType, range, "failed_token_id"), failedTokenId);
+		}
+		this.props.setProperty(key(tokenType, range, "failure"), String.valueOf(failure));
+		save();
+	}
+
+	/**
+	 * This saves the checkpoint, the file is written to a temp file first which then replaces the checkpoint file so
+	 * a reader or a crash never sees a partly written file
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	public synchronized void save() throws IOException {
+		this.props.setProperty("run.updated", new Date().toString());
+		File dir = this.file.getAbsoluteFile().getParentFile();
+		File tmpFile = new File(dir, this.file.getName() + ".tmp");
+		OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			this.props.store(out, "oauth token migration checkpoint");
+		} finally {
+			out.close();
+		}
+		if (!tmpFile.renameTo(this.file)) {
+			// some platforms do not allow renaming over an existing file
+			if (!this.file.delete() || !tmpFile.renameTo(this.file)) {
+				throw new IOException("Could not replace the checkpoint file: " + this.file + " with: " + tmpFile);
+			}
+		}
+		this.lastSaveMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * This gets the checkpoint file
+	 * @return the checkpoint file
+	 */
+	public File getFile() {
+		return this.file;
+	}
+
+	private void add(String key, long value) {
+		this.props.setProperty(key, Long.toString(Long.parseLong(this.props.getProperty(key, "0")) + value));
+	}
+
+	private static String key(String tokenType, TokenIdRange range, String name) {
+		String rangeKey = ALL_RANGES;
+		if (range != null) {
+			rangeKey = (range.getLowerBound() == null ? "" : range.getLowerBound()) + "-" + (range.getUpperBound() == null ? "" : range.getUpperBound());
+		}
+		return typeKey(tokenType) + "." + rangeKey + "." + name;
+	}
+
+	private static String typeKey(String tokenType) {
+		return tokenType.replace(' ', '_');
+	}
+
+}
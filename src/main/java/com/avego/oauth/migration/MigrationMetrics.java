@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The MigrationMetrics represents the per stage timing and throughput metrics of a migration. Stage times are summed across
+ * the migration threads, the summary compares the time spent waiting on the db with the time spent converting tokens
+ * to show whether a migration is limited by the db or by the cpu of the migrator
+ * @version $Id$
+ * @author conorroche
+ */
+public class MigrationMetrics {
+
+	private final Map<MigrationStage, StageMetrics> stages = new EnumMap<MigrationStage, StageMetrics>(MigrationStage.class);
+
+	/**
+	 * This creates a MigrationMetrics
+	 */
+	public MigrationMetrics() {
+		for (MigrationStage stage : MigrationStage.values()) {
+			this.stages.put(stage, new StageMetrics(stage));
+		}
+	}
+
+	/**
+	 * This gets the start time of an operation to pass to record
+	 * @return The start time in ns
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * This records an operation of the given stage on a single item that started at the given time
+	 * @param stage The stage
+	 * @param startNanos The start time returned by start
+	 * @param numBytes The number of bytes read or written
+	 */
+	public void record(MigrationStage stage, long startNanos, long numBytes) {
+		record(stage, startNanos, 1, numBytes);
+	}
+
+	/**
+	 * This records an operation of the given stage that started at the given time
+	 * @param stage The stage
+	 * @param startNanos The start time returned by start
+	 * @param numItems The number of items the operation handled, e.g. the number of token records in a db batch
+	 * @param numBytes The number of bytes read or written
+	 */
+	public void record(MigrationStage stage, long startNanos, long numItems, long numBytes) {
+		this.stages.get(stage).record(System.nanoTime() - startNanos, numItems, numBytes);
+	}
+
+	/**
+	 * This gets the metrics of the given stage
+	 * @param stage The stage
+	 * @return The metrics of the stage
+	 */
+	public StageMetrics getStageMetrics(MigrationStage stage) {
+		return this.stages.get(stage);
+	}
+
+	/**
+	 * This decorates the given migration so that its db reads and writes are recorded as the DAO_READ and DAO_WRITE stages
+	 * @param migration The migration to decorate
+	 * @return The decorated migration
+	 */
+	public <R extends TokenRecord, U extends TokenUpdate> TokenMigration<R, U> track(final TokenMigration<R, U> migration) {
+		return new TokenMigration<R, U>() {
+
+			public String getTokenType() {
+				return migration.getTokenType();
+			}
+
+			public int countUnmigratedRecords() {
+				return migration.countUnmigratedRecords();
+			}
+
+			public List<R> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+				long start = start();
+				List<R> records = migration.getUnmigratedRecords(range, afterTokenId, limit);
+				long bytes = 0;
+				for (R record : records) {
+					bytes += record.getDataLength();
+				}
+				record(MigrationStage.DAO_READ, start, records.size(), bytes);
+				return records;
+			}
+
+			public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, final TokenRecordCallback<R> callback) {
+				// the time between the callbacks is the time spent waiting for the db to produce the next row
+				final long[] readStart = { start() };
+				migration.streamUnmigratedRecords(range, afterTokenId, new TokenRecordCallback<R>() {
+
+					public boolean processRecord(R tokenRecord) {
+						record(MigrationStage.DAO_READ, readStart[0], tokenRecord.getDataLength());
+						try {
+							return callback.processRecord(tokenRecord);
+						} finally {
+							readStart[0] = start();
+						}
+					}
+				});
+			}
+
+			public U transform(R record) throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+					InvocationTargetException, InstantiationException {
+				return migration.transform(record);
+			}
+
+			public void write(List<U> updates) {
+				long start = start();
+				migration.write(updates);
+				long bytes = 0;
+				for (U update : updates) {
+					bytes += length(update.getTokenData()) + length(update.getAuthData());
+				}
+				record(MigrationStage.DAO_WRITE, start, updates.size(), bytes);
+			}
+		};
+	}
+
+	/**
+	 * This prints a summary table of the metrics of each stage
+	 * @param out The stream to print to
+	 */
+	public void printSummary(PrintStream out) {
+		long totalNanos = 0;
+		long dbNanos = 0;
+		for (StageMetrics metrics : this.stages.values()) {
+			totalNanos += metrics.getTotalNanos();
+			if (metrics.getStage().isDb()) {
+				dbNanos += metrics.getTotalNanos();
+			}
+		}
+
+		out.println(String.format("%-18s %10s %10s %12s %7s %10s %10s %10s %10s %10s %10s", "stage", "ops", "items", "total ms", "time %",
+				"items/sec", "mean us", "p50 us", "p99 us", "max us", "KB"));
+		for (StageMetrics metrics : this.stages.values()) {
+			out.println(String.format("%-18s %10d %10d %12d %6.1f%% %10d %10d %10d %10d %10d %10d", metrics.getStage().getLabel(), metrics.getCount(),
+					metrics.getItems(), metrics.getTotalNanos() / 1000000, percent(metrics.getTotalNanos(), totalNanos), metrics.getItemsPerSecond(),
+					metrics.getMeanNanos() / 1000, metrics.getPercentileNanos(0.5) / 1000, metrics.getPercentileNanos(0.99) / 1000,
+					metrics.getMaxNanos() / 1000, metrics.getBytes() / 1024));
+		}
+		out.println(String.format("db stages: %.1f%% of the recorded time, cpu stages: %.1f%%", percent(dbNanos, totalNanos),
+				percent(totalNanos - dbNanos, totalNanos)));
+	}
+
+	private static double percent(long value, long total) {
+		return total == 0 ? 0 : value * 100.0 / total;
+	}
+
+	private static int length(byte[] data) {
+		return data == null ? 0 : data.length;
+	}
+
+}
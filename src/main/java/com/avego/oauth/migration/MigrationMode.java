@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+/**
+ * The MigrationMode represents the ways the migrator can process the token tables
+ * @version $Id$
+ * @author conorroche
+ */
+public enum MigrationMode {
+
+	/**
+	 * Tokens are migrated one page at a time on the calling thread
+	 */
+	SERIAL,
+
+	/**
+	 * The token tables are split into non overlapping token id ranges which are
+	 * migrated concurrently by a pool of worker threads
+	 */
+	PARALLEL,
+
+	/**
+	 * Tokens are read, converted and written by separate pools of threads
+	 * connected by bounded queues so the stages overlap
+	 */
+	PIPELINE;
+
+	/**
+	 * This gets the mode with the given name ignoring case
+	 * @param name The mode name
+	 * @return The matching mode
+	 * @throws IllegalArgumentException If there is no mode with the given name
+	 */
+	public static MigrationMode fromName(String name) {
+		for (MigrationMode mode : values()) {
+			if (mode.name().equalsIgnoreCase(name.trim())) {
+				return mode;
+			}
+		}
+		throw new IllegalArgumentException("Unknown migration mode: " + name);
+	}
+
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The MigrationPipeline represents a migration engine that runs the migration as three stages
+ * connected by bounded queues: reader threads that read the token records of non overlapping token id ranges,
+ * a pool of transformer threads that convert the records and writer threads that write the converted
+ * records back to the db in batches. Each stage has its own number of threads and the bounded queues
+ * block a stage that gets ahead of the next one, so reading, converting and writing overlap without
+ * any stage buffering the whole table. If any stage fails the other stages stop as soon as they next
+ * touch a queue. As the writers do not write the records of a range in order, a checkpoint only records when ranges
+ * have completed and a resumed run reads any ranges that had not completed from their last token id recorded by
+ * the serial or parallel mode
+ * @version $Id$
+ * @author conorroche
+ */
+public class MigrationPipeline {
+
+	private static final Object END = new Object();
+
+	private static final long QUEUE_POLL_MILLIS = 100;
+
+	private final int readerThreads;
+	private final int transformerThreads;
+	private final int writerThreads;
+	private final int queueCapacity;
+	private final int pageSize;
+	private final boolean streaming;
+	private MigrationCheckpoint checkpoint;
+
+	/**
+	 * This creates a MigrationPipeline
+	 * @param readerThreads The number of reader threads, each reads its own token id range
+	 * @param transformerThreads The number of transformer threads
+	 * @param writerThreads The number of writer threads
+	 * @param queueCapacity The capacity of each of the queues between the stages
+	 * @param pageSize The max number of records read per query and written per call
+	 * @param streaming Whether the readers stream the records of their range rather than read them a page at a time
+	 */
+	public MigrationPipeline(int readerThreads, int transformerThreads, int writerThreads, int queueCapacity, int pageSize, boolean streaming) {
+		if (readerThreads < 1 || transformerThreads < 1 || writerThreads < 1) {
+			throw new IllegalArgumentException("Each pipeline stage must have at least 1 thread but had: " + readerThreads + " reader(s), "
+					+ transformerThreads + " transformer(s) and " + writerThreads + " writer(s)");
+		}
+		this.readerThreads = readerThreads;
+		this.transformerThreads = transformerThreads;
+		this.writerThreads = writerThreads;
+		this.queueCapacity = Math.max(1, queueCapacity);
+		this.pageSize = pageSize;
+		this.streaming = streaming;
+	}
+
+	/**
+	 * This migrates all the unmigrated tokens of the given migration
+	 * @param migration The migration to run
+	 * @return The number of records read from each range in token id order, all of these have been migrated when this returns
+	 * @throws ExecutionException If a stage failed, the cause is the exception thrown by the stage
+	 * @throws InterruptedException If interrupted whilst waiting for the stages to finish
+	 */
+	public <R extends TokenRecord, U extends TokenUpdate> List<RangeMigrationResult> migrate(final TokenMigration<R, U> migration)
+			throws ExecutionException, InterruptedException {
+
+		final BlockingQueue<Object> records = new ArrayBlockingQueue<Object>(this.queueCapacity);
+		final BlockingQueue<Object> updates = new ArrayBlockingQueue<Object>(this.queueCapacity);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+
+		List<TokenIdRange> ranges = TokenIdRange.split(this.readerThreads);
+		final List<RangeMigrationResult> results = new ArrayList<RangeMigrationResult>(ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			results.add(null);
+		}
+
+		List<Thread> readers = new ArrayList<Thread>(ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			final int rangeIndex = i;
+			final TokenIdRange range = ranges.get(i);
+			readers.add(new StageThread("oauth-migration-reader-" + (i + 1), failure, stopped) {
+
+				@Override
+				protected void runStage() throws Exception {
+					long start = System.currentTimeMillis();
+					int numRead = 0;
+					MigrationCheckpoint cp = MigrationPipeline.this.checkpoint;
+					if (cp == null || !cp.isCompleted(migration.getTokenType(), range)) {
+						numRead = read(migration, range, cp == null ? null : cp.getLastTokenId(migration.getTokenType(), range), records, stopped);
+					}
+					results.set(rangeIndex, new RangeMigrationResult(migration.getTokenType(), range, numRead, System.currentTimeMillis() - start));
+				}
+			});
+		}
+
+		List<Thread> transformers = new ArrayList<Thread>(this.transformerThreads);
+		for (int i = 0; i < this.transformerThreads; i++) {
+			transformers.add(new StageThread("oauth-migration-transformer-" + (i + 1), failure, stopped) {
+
+				@Override
+				@SuppressWarnings("unchecked")
+				protected void runStage() throws Exception {
+					Object record = take(records, stopped);
+					while (record != END && record != null) {
+						offer(updates, migration.transform((R) record), stopped);
+						record = take(records, stopped);
+					}
+				}
+			});
+		}
+
+		List<Thread> writers = new ArrayList<Thread>(this.writerThreads);
+		for (int i = 0; i < this.writerThreads; i++) {
+			writers.add(new StageThread("oauth-migration-writer-" + (i + 1), failure, stopped) {
+
+				@Override
+				@SuppressWarnings("unchecked")
+				protected void runStage() throws Exception {
+					List<Object> batch = new ArrayList<Object>(MigrationPipeline.this.pageSize);
+					boolean ended = false;
+					while (!ended) {
+						Object update = take(updates, stopped);
+						if (update == END || update == null) {
+							break;
+						}
+						batch.add(update);
+						updates.drainTo(batch, MigrationPipeline.this.pageSize - 1);
+						// the end markers are only queued after the last update so any drained
+						// with the batch end this writer and the extra ones belong to the other writers
+						int numEnds = 0;
+						while (batch.remove(END)) {
+							numEnds++;
+						}
+						if (!batch.isEmpty()) {
+							migration.write((List<U>) (List<?>) batch);
+							batch.clear();
+						}
+						if (numEnds > 0) {
+							ended = true;
+							endStage(updates, numEnds - 1, stopped);
+						}
+					}
+				}
+			});
+		}
+
+		startAll(readers);
+		startAll(transformers);
+		startAll(writers);
+
+		try {
+			// each stage is ended by putting one end marker per thread of the next stage once all its threads are done
+			joinAll(readers);
+			endStage(records, this.transformerThreads, stopped);
+			joinAll(transformers);
+			endStage(updates, this.writerThreads, stopped);
+			joinAll(writers);
+		} catch (InterruptedException ex) {
+			stopped.set(true);
+			interruptAll(readers);
+			interruptAll(transformers);
+			interruptAll(writers);
+			throw ex;
+		}
+
+		if (failure.get() != null) {
+			if (this.checkpoint != null) {
+				try {
+					this.checkpoint.rangeFailed(migration.getTokenType(), null, null, failure.get());
+				} catch (IOException ex) {
+					// report the migration failure rather than the checkpoint failure
+				}
+			}
+			throw new ExecutionException(failure.get().getMessage(), failure.get());
+		}
+		if (this.checkpoint != null) {
+			try {
+				for (RangeMigrationResult result : results) {
+					this.checkpoint.rangeCompleted(migration.getTokenType(), result.getRange(), result.getNumMigrated(), result.getElapsedMillis());
+				}
+			} catch (IOException ex) {
+				throw new ExecutionException("Failed to save the checkpoint: " + this.checkpoint.getFile(), ex);
+			}
+		}
+		return results;
+	}
+
+	private <R extends TokenRecord, U extends TokenUpdate> int read(TokenMigration<R, U> migration, TokenIdRange range, String afterTokenId,
+			final BlockingQueue<Object> queue, final AtomicBoolean stopped) throws InterruptedException {
+		if (this.streaming) {
+			final int[] numRead = new int[1];
+			migration.streamUnmigratedRecords(range, afterTokenId, new TokenRecordCallback<R>() {
+
+				public boolean processRecord(R record) {
+					try {
+						if (!offer(queue, record, stopped)) {
+							return false;
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return false;
+					}
+					numRead[0]++;
+					return true;
+				}
+			});
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException("Interrupted whilst streaming the records in the range: " + range);
+			}
+			return numRead[0];
+		}
+
+		int numRead = 0;
+		List<R> page = migration.getUnmigratedRecords(range, afterTokenId, this.pageSize);
+		while (!page.isEmpty()) {
+			for (R record : page) {
+				if (!offer(queue, record, stopped)) {
+					return numRead;
+				}
+				numRead++;
+			}
+			page = migration.getUnmigratedRecords(range, page.get(page.size() - 1).getTokenId(), this.pageSize);
+		}
+		return numRead;
+	}
+
+	/**
+	 * This gets the checkpoint the completed ranges are recorded in
+	 * @return the checkpoint or null if progress is not recorded
+	 */
+	public MigrationCheckpoint getCheckpoint() {
+		return this.checkpoint;
+	}
+
+	/**
+	 * This sets the checkpoint the completed ranges are recorded in
+	 * @param checkpoint the checkpoint or null if progress is not recorded
+	 */
+	public void setCheckpoint(MigrationCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * This puts an item on a queue waiting for space unless the pipeline is stopped
+	 * @return True if the item was queued, false if the pipeline was stopped
+	 */
+	private static boolean offer(BlockingQueue<Object> queue, Object item, AtomicBoolean stopped) throws InterruptedException {
+		while (!stopped.get()) {
+			if (queue.offer(item, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * This takes an item from a queue waiting for one unless the pipeline is stopped
+	 * @return The item or null if the pipeline was stopped
+	 */
+	private static Object take(BlockingQueue<Object> queue, AtomicBoolean stopped) throws InterruptedException {
+		while (!stopped.get()) {
+			Object item = queue.poll(QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if (item != null) {
+				return item;
+			}
+		}
+		return null;
+	}
+
+	private static void endStage(BlockingQueue<Object> queue, int numConsumers, AtomicBoolean stopped) throws InterruptedException {
+		for (int i = 0; i < numConsumers; i++) {
+			if (!offer(queue, END, stopped)) {
+				return;
+			}
+		}
+	}
+
+	private static void startAll(List<Thread> threads) {
+		for (Thread thread : threads) {
+			thread.start();
+		}
+	}
+
+	private static void joinAll(List<Thread> threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private static void interruptAll(List<Thread> threads) {
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * The StageThread represents a thread running one of the pipeline stages, the first exception thrown by
+	 * any stage is recorded and stops the whole pipeline
+	 */
+	private abstract static class StageThread extends Thread {
+
+		private final AtomicReference<Exception> failure;
+		private final AtomicBoolean stopped;
+
+		StageThread(String name, AtomicReference<Exception> failure, AtomicBoolean stopped) {
+			super(name);
+			this.failure = failure;
+			this.stopped = stopped;
+		}
+
+		@Override
+		public void run() {
+			try {
+				runStage();
+			} catch (InterruptedException ex) {
+				this.stopped.set(true);
+			} catch (Exception ex) {
+				this.failure.compareAndSet(null, ex);
+				this.stopped.set(true);
+			} catch (Error ex) {
+				this.failure.compareAndSet(null, new IllegalStateException("Pipeline stage: " + getName() + " failed, msg: " + ex.getMessage(), ex));
+				this.stopped.set(true);
+				throw ex;
+			}
+		}
+
+		/**
+		 * This runs the stage
+		 * @throws Exception If the stage fails
+		 */
+		protected abstract void runStage() throws Exception;
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+/**
+ * The MigrationStage represents one of the stages each token goes through when it is migrated, the time
+ * spent in each stage is recorded by the MigrationMetrics
+ * @version $Id$
+ * @author conorroche
+ */
+public enum MigrationStage {
+
+	/**
+	 * Reading the unmigrated token records from the db
+	 */
+	DAO_READ("dao read", true),
+
+	/**
+	 * Deserializing the token which is backward compatible
+	 */
+	TOKEN_DESERIALIZE("token deserialize", false),
+
+	/**
+	 * Deserializing the authentication using the old class versions
+	 */
+	AUTH_DESERIALIZE("auth deserialize", false),
+
+	/**
+	 * Converting the token and authentication objects to the new class versions using reflection
+	 */
+	CONVERT("convert", false),
+
+	/**
+	 * Serializing the new token and authentication objects
+	 */
+	SERIALIZE("serialize", false),
+
+	/**
+	 * Hashing the token values to create the new token keys
+	 */
+	KEY_HASH("key hash", false),
+
+	/**
+	 * Writing the migrated tokens to the db
+	 */
+	DAO_WRITE("dao write", true);
+
+	private final String label;
+	private final boolean db;
+
+	private MigrationStage(String label, boolean db) {
+		this.label = label;
+		this.db = db;
+	}
+
+	/**
+	 * This gets the label used for the stage in the metrics summary
+	 * @return the label used for the stage in the metrics summary
+	 */
+	public String getLabel() {
+		return this.label;
+	}
+
+	/**
+	 * This gets whether the stage waits on the db rather than using the cpu of the migrator
+	 * @return whether the stage waits on the db
+	 */
+	public boolean isDb() {
+		return this.db;
+	}
+
+}
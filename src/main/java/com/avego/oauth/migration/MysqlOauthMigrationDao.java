@@ -13,6 +13,8 @@
 package com.avego.oauth.migration;
 
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import javax.sql.DataSource;
@@ -46,7 +48,36 @@ public class MysqlOauthMigrationDao extends JdbcOauthMigrationDao {
 		ds.setUrl(getJdbcUrl());
 		ds.setUser(getUser());
 		ds.setPassword(getPass());
+		// the copied tokens are inserted rather than updated so each batch can be sent as a single multi row insert
+		if (isCopyingTokens()) {
+			ds.setRewriteBatchedStatements(true);
+		}
 		return ds;
 	}
 
+	/**
+	 * {@inheritDoc} Mysql renames all the tables in a single atomic statement so the application never sees a missing table
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getRenameTablesSql(java.util.Map)
+	 */
+	@Override
+	protected List<String> getRenameTablesSql(Map<String, String> renames) {
+		StringBuilder sql = new StringBuilder("rename table ");
+		String separator = "";
+		for (Map.Entry<String, String> rename : renames.entrySet()) {
+			sql.append(separator).append(rename.getKey()).append(" to ").append(rename.getValue());
+			separator = ", ";
+		}
+		return Collections.singletonList(sql.toString());
+	}
+
+	/**
+	 * {@inheritDoc} Connector/J only streams rows one at a time rather than reading the whole
+	 * result set into memory when the fetch size is Integer.MIN_VALUE
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getStreamingFetchSize()
+	 */
+	@Override
+	protected int getStreamingFetchSize() {
+		return ParamUtils.getInt(getParams(), FETCH_SIZE_KEY, Integer.MIN_VALUE);
+	}
+
 }
@@ -24,6 +24,7 @@ public class OauthAccessTokenRecord extends TokenRecord {
 	private String clientId;
 	private byte[] authentication;
 	private String refreshToken;
+	private OauthRefreshTokenRecord refreshTokenRecord;
 
 	/**
 	 * This gets the authenticationId
@@ -105,4 +106,30 @@ public class OauthAccessTokenRecord extends TokenRecord {
 		this.refreshToken = refreshToken;
 	}
 
+	/**
+	 * This gets the refresh token record read along with this access token when they are migrated jointly
+	 * @return the refresh token record or null if it was not read or does not exist
+	 */
+	public OauthRefreshTokenRecord getRefreshTokenRecord() {
+		return this.refreshTokenRecord;
+	}
+
+	/**
+	 * This sets the refresh token record read along with this access token when they are migrated jointly
+	 * @param refreshTokenRecord the refresh token record to set
+	 */
+	public void setRefreshTokenRecord(OauthRefreshTokenRecord refreshTokenRecord) {
+		this.refreshTokenRecord = refreshTokenRecord;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.TokenRecord#getDataLength()
+	 */
+	@Override
+	public int getDataLength() {
+		return super.getDataLength() + (this.authentication == null ? 0 : this.authentication.length)
+				+ (this.refreshTokenRecord == null ? 0 : this.refreshTokenRecord.getDataLength());
+	}
+
 }
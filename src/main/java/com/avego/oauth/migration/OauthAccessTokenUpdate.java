@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+/**
+ * The OauthAccessTokenUpdate represents the migrated data for an oauth access token record in the db
+ * @version $Id$
+ * @author conorroche
+ */
+public class OauthAccessTokenUpdate extends TokenUpdate {
+
+	private final String newRefreshToken;
+	private final OauthRefreshTokenUpdate refreshTokenUpdate;
+	private String authenticationId;
+	private String userName;
+	private String clientId;
+
+	/**
+	 * This creates an OauthAccessTokenUpdate
+	 * @param oldTokenId The old token id
+	 * @param newTokenId The new token id
+	 * @param newRefreshToken The new refresh token
+	 * @param tokenData The serialized token data
+	 * @param authData The serialized authentication data
+	 */
+	public OauthAccessTokenUpdate(String oldTokenId, String newTokenId, String newRefreshToken, byte[] tokenData, byte[] authData) {
+		this(oldTokenId, newTokenId, newRefreshToken, tokenData, authData, null);
+	}
+
+	/**
+	 * This creates an OauthAccessTokenUpdate that is written along with the update of its refresh token
+	 * @param oldTokenId The old token id
+	 * @param newTokenId The new token id
+	 * @param newRefreshToken The new refresh token
+	 * @param tokenData The serialized token data
+	 * @param authData The serialized authentication data
+	 * @param refreshTokenUpdate The update of the refresh token or null if it is migrated separately
+	 */
+	public OauthAccessTokenUpdate(String oldTokenId, String newTokenId, String newRefreshToken, byte[] tokenData, byte[] authData,
+			OauthRefreshTokenUpdate refreshTokenUpdate) {
+		super(oldTokenId, newTokenId, tokenData, authData);
+		this.newRefreshToken = newRefreshToken;
+		this.refreshTokenUpdate = refreshTokenUpdate;
+	}
+
+	/**
+	 * This gets the new refresh token
+	 * @return the new refresh token
+	 */
+	public String getNewRefreshToken() {
+		return this.newRefreshToken;
+	}
+
+	/**
+	 * This gets the update of the refresh token written along with this access token
+	 * @return the update of the refresh token or null if it is migrated separately
+	 */
+	public OauthRefreshTokenUpdate getRefreshTokenUpdate() {
+		return this.refreshTokenUpdate;
+	}
+
+	/**
+	 * This gets the authentication id of the token, it is only needed when the token is copied to a new table
+	 * @return the authentication id
+	 */
+	public String getAuthenticationId() {
+		return this.authenticationId;
+	}
+
+	/**
+	 * This sets the authentication id of the token
+	 * @param authenticationId the authentication id
+	 */
+	public void setAuthenticationId(String authenticationId) {
+		this.authenticationId = authenticationId;
+	}
+
+	/**
+	 * This gets the user name of the token, it is only needed when the token is copied to a new table
+	 * @return the user name
+	 */
+	public String getUserName() {
+		return this.userName;
+	}
+
+	/**
+	 * This sets the user name of the token
+	 * @param userName the user name
+	 */
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	/**
+	 * This gets the client id of the token, it is only needed when the token is copied to a new table
+	 * @return the client id
+	 */
+	public String getClientId() {
+		return this.clientId;
+	}
+
+	/**
+	 * This sets the client id of the token
+	 * @param clientId the client id
+	 */
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+
+}
@@ -12,7 +12,6 @@
  */
 package com.avego.oauth.migration;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -24,13 +23,13 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.commons.lang3.SerializationUtils;
-import org.apache.commons.lang3.reflect.ConstructorUtils;
-import org.apache.commons.lang3.reflect.MethodUtils;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
@@ -54,6 +53,8 @@ public class OauthDataMigrator {
 
 	private static final Object[] NO_ARGS = null;
 
+	private static final AccessorCache ACCESSORS = new AccessorCache();
+
 	/**
 	 * This is the parameter key for whether refresh tokens are removed as part of the migration
 	 */
@@ -64,6 +65,151 @@ public class OauthDataMigrator {
 	 */
 	public static final String SERIALIZE_NEW_TOKEN_VALUES_PARAM = "serialize_new_token_values";
 
+	/**
+	 * This is the parameter for the migration mode, either serial, parallel or pipeline, it can also be set as a system property
+	 */
+	public static final String MIGRATION_MODE_PARAM = "migration_mode";
+
+	/**
+	 * This is the parameter for the number of worker threads used in parallel mode, it can also be set as a system property
+	 */
+	public static final String MIGRATION_THREADS_PARAM = "migration_threads";
+
+	/**
+	 * This is the parameter for the number of token id ranges the tables are split into in parallel mode,
+	 * it defaults to the number of worker threads and can also be set as a system property
+	 */
+	public static final String MIGRATION_RANGES_PARAM = "migration_ranges";
+
+	/**
+	 * This is the parameter for whether token records are streamed from the db with a forward only cursor rather than
+	 * read a page at a time, it can also be set as a system property
+	 */
+	public static final String STREAMING_READS_PARAM = "streaming_reads";
+
+	/**
+	 * This is the parameter for the number of reader threads used in pipeline mode, each reads its own token id range,
+	 * it can also be set as a system property
+	 */
+	public static final String PIPELINE_READER_THREADS_PARAM = "pipeline_reader_threads";
+
+	/**
+	 * This is the default number of parallel migration threads
+	 */
+	public static final int DEFAULT_MIGRATION_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * This is the default number of pipeline reader threads
+	 */
+	public static final int DEFAULT_PIPELINE_READER_THREADS = 2;
+
+	/**
+	 * This is the default number of pipeline writer threads
+	 */
+	public static final int DEFAULT_PIPELINE_WRITER_THREADS = 2;
+
+	/**
+	 * This is the parameter for the number of transformer threads used in pipeline mode, it can also be set as a system property
+	 */
+	public static final String PIPELINE_TRANSFORMER_THREADS_PARAM = "pipeline_transformer_threads";
+
+	/**
+	 * This is the parameter for the number of writer threads used in pipeline mode, it can also be set as a system property
+	 */
+	public static final String PIPELINE_WRITER_THREADS_PARAM = "pipeline_writer_threads";
+
+	/**
+	 * This is the parameter for the capacity of the queues between the stages in pipeline mode, it can also be set as a system property
+	 */
+	public static final String PIPELINE_QUEUE_CAPACITY_PARAM = "pipeline_queue_capacity";
+
+	/**
+	 * This is the parameter for the interval in seconds between progress reports, 0 disables the periodic reports,
+	 * it can also be set as a system property
+	 */
+	public static final String PROGRESS_INTERVAL_PARAM = "progress_interval";
+
+	/**
+	 * This is the parameter for the file each migrated token is logged to for debugging, by default individual tokens are not logged,
+	 * it can also be set as a system property
+	 */
+	public static final String TOKEN_LOG_FILE_PARAM = "token_log_file";
+
+	/**
+	 * This is the parameter for the file the progress of a run is checkpointed to so a killed or failed run can be resumed,
+	 * by default progress is not checkpointed, it can also be set as a system property
+	 */
+	public static final String CHECKPOINT_FILE_PARAM = "checkpoint_file";
+
+	/**
+	 * This is the parameter for the min interval in ms between saves of the checkpoint file, it can also be set as a system property
+	 */
+	public static final String CHECKPOINT_INTERVAL_PARAM = "checkpoint_interval";
+
+	/**
+	 * This is the parameter for whether to do a dry run which reads and converts the tokens but never writes them back, it reports
+	 * the tokens that could not be converted and the projected time of the real migration, it can also be set as a system property
+	 */
+	public static final String DRY_RUN_PARAM = "dry_run";
+
+	/**
+	 * This is the parameter for the max number of tokens of each type read in a dry run, 0 reads all of them,
+	 * it can also be set as a system property
+	 */
+	public static final String DRY_RUN_SAMPLE_SIZE_PARAM = "dry_run_sample_size";
+
+	/**
+	 * This is the parameter for the max number of tokens that failed to convert a dry run reports the details of,
+	 * it can also be set as a system property
+	 */
+	public static final String DRY_RUN_MAX_FAILURES_PARAM = "dry_run_max_failures";
+
+	/**
+	 * This is the parameter for the max number of converted authentications cached so each distinct authentication shared by many tokens
+	 * is only converted once, 0 disables the cache, it can also be set as a system property
+	 */
+	public static final String AUTH_CACHE_SIZE_PARAM = "auth_cache_size";
+
+	/**
+	 * This is the parameter for whether to migrate each page of access tokens together with their refresh tokens, the refresh tokens
+	 * of a page are read in one query and both are written in one transaction, it can also be set as a system property
+	 */
+	public static final String JOINT_MIGRATION_PARAM = "joint_migration";
+
+	/**
+	 * This is the parameter for whether to replace the token values directly in the serialized token data rather than converting the
+	 * token objects, tokens that cannot be transcoded are still converted as objects, it can also be set as a system property,
+	 * it defaults to false so the tokens are converted as objects unless it is enabled
+	 */
+	public static final String TRANSCODE_TOKENS_PARAM = "transcode_tokens";
+
+	/**
+	 * This is the parameter for whether to keep migrating the tokens the old application creates after the bulk migration
+	 * until none have been created for the catch up quiet period, it can also be set as a system property
+	 */
+	public static final String CATCH_UP_PARAM = "catch_up";
+
+	/**
+	 * This is the parameter for the max number of tokens of each type migrated per catch up poll, it can also be set as a system property
+	 */
+	public static final String CATCH_UP_BATCH_SIZE_PARAM = "catch_up_batch_size";
+
+	/**
+	 * This is the parameter for the min time in milliseconds between catch up polls, it can also be set as a system property
+	 */
+	public static final String CATCH_UP_MIN_INTERVAL_PARAM = "catch_up_min_interval";
+
+	/**
+	 * This is the parameter for the max time in milliseconds between catch up polls, it can also be set as a system property
+	 */
+	public static final String CATCH_UP_MAX_INTERVAL_PARAM = "catch_up_max_interval";
+
+	/**
+	 * This is the parameter for the time in milliseconds no new tokens must be found for before the catch up stops,
+	 * it can also be set as a system property
+	 */
+	public static final String CATCH_UP_QUIET_PERIOD_PARAM = "catch_up_quiet_period";
+
 	private static final int PAGE_SIZE = Integer.parseInt(System.getProperty("query_page_size", "100"));
 
 	/**
@@ -108,8 +254,37 @@ public class OauthDataMigrator {
 
 	private OauthMigrationDao dao;
 	private ClassLoader deserialisationClassLoader;
+	private volatile ClassResolutionCache classResolutionCache;
 	private boolean removeRefreshTokens;
 	private boolean serializeNewTokenValues;
+	private MigrationMode migrationMode = MigrationMode.SERIAL;
+	private int migrationThreads = DEFAULT_MIGRATION_THREADS;
+	private int migrationRanges;
+	private boolean streamingReads;
+	private int pipelineReaderThreads = DEFAULT_PIPELINE_READER_THREADS;
+	private int pipelineTransformerThreads = Runtime.getRuntime().availableProcessors();
+	private int pipelineWriterThreads = DEFAULT_PIPELINE_WRITER_THREADS;
+	private int pipelineQueueCapacity = PAGE_SIZE * 4;
+	private int progressInterval = 10;
+	private String tokenLogFile;
+	private volatile TokenLog tokenLog;
+	private final MigrationMetrics metrics = new MigrationMetrics();
+	private String checkpointFile;
+	private long checkpointInterval = 1000;
+	private MigrationCheckpoint checkpoint;
+	private boolean dryRun;
+	private int dryRunSampleSize;
+	private int dryRunMaxFailures = 100;
+	private int authCacheSize = 10000;
+	private volatile AuthenticationCache authCache;
+	private boolean jointMigration;
+	private boolean transcodeTokens;
+	private final TokenBlobTranscoder transcoder = new TokenBlobTranscoder();
+	private boolean catchUp;
+	private int catchUpBatchSize = PAGE_SIZE;
+	private long catchUpMinInterval = 250;
+	private long catchUpMaxInterval = 10000;
+	private long catchUpQuietPeriod = 60000;
 
 	/**
 	 * This creates a OauthDataMigrator that uses the given dao and deserialisationClassLoader
@@ -138,20 +313,7 @@ public class OauthDataMigrator {
 	 */
 	public OauthDataMigrator(Map<String, Object> params) throws FileNotFoundException, DaoCreationException {
 		this.dao = OauthMigrationDaoFactory.newInstance(params);
-		// find where to source the old jars from
-		File oldLibDir = new File("oldlib");
-		if (!oldLibDir.exists()) {
-			oldLibDir = new File("target/oldlib");
-		}
-		if (!oldLibDir.exists()) {
-			throw new FileNotFoundException("Could not find the lib dir either in the current dir or in target dir");
-		}
-
-		// the system class loader includes jars on the class path, however this also would include
-		// the new versions of the spring classes which we do not want, so we use the
-		// Parent of the system class loader which is the ext class loader/ e..g includes bootstrap java classes
-		this.deserialisationClassLoader = ClassLoaderUtils.createClassLoaderWithJars(oldLibDir.getAbsolutePath(), ClassLoader.getSystemClassLoader()
-				.getParent());
+		this.deserialisationClassLoader = ClassLoaderUtils.createOldLibClassLoader();
 		if (params != null) {
 			Boolean val = (Boolean) params.get(REMOVE_REFRESH_TOKENS_PARAM);
 			if (val != null) {
@@ -162,10 +324,34 @@ public class OauthDataMigrator {
 				this.serializeNewTokenValues = val.booleanValue();
 			}
 		}
+		this.migrationMode = MigrationMode.fromName(ParamUtils.getString(params, MIGRATION_MODE_PARAM, MigrationMode.SERIAL.name()));
+		this.migrationThreads = ParamUtils.getInt(params, MIGRATION_THREADS_PARAM, this.migrationThreads);
+		this.migrationRanges = ParamUtils.getInt(params, MIGRATION_RANGES_PARAM, 0);
+		this.streamingReads = ParamUtils.getBoolean(params, STREAMING_READS_PARAM, false);
+		this.pipelineReaderThreads = ParamUtils.getInt(params, PIPELINE_READER_THREADS_PARAM, this.pipelineReaderThreads);
+		this.pipelineTransformerThreads = ParamUtils.getInt(params, PIPELINE_TRANSFORMER_THREADS_PARAM, this.pipelineTransformerThreads);
+		this.pipelineWriterThreads = ParamUtils.getInt(params, PIPELINE_WRITER_THREADS_PARAM, this.pipelineWriterThreads);
+		this.pipelineQueueCapacity = ParamUtils.getInt(params, PIPELINE_QUEUE_CAPACITY_PARAM, this.pipelineQueueCapacity);
+		this.progressInterval = ParamUtils.getInt(params, PROGRESS_INTERVAL_PARAM, this.progressInterval);
+		this.tokenLogFile = ParamUtils.getString(params, TOKEN_LOG_FILE_PARAM, null);
+		this.checkpointFile = ParamUtils.getString(params, CHECKPOINT_FILE_PARAM, null);
+		this.checkpointInterval = ParamUtils.getLong(params, CHECKPOINT_INTERVAL_PARAM, this.checkpointInterval);
+		this.dryRun = ParamUtils.getBoolean(params, DRY_RUN_PARAM, this.dryRun);
+		this.dryRunSampleSize = ParamUtils.getInt(params, DRY_RUN_SAMPLE_SIZE_PARAM, this.dryRunSampleSize);
+		this.dryRunMaxFailures = ParamUtils.getInt(params, DRY_RUN_MAX_FAILURES_PARAM, this.dryRunMaxFailures);
+		this.authCacheSize = ParamUtils.getInt(params, AUTH_CACHE_SIZE_PARAM, this.authCacheSize);
+		this.jointMigration = ParamUtils.getBoolean(params, JOINT_MIGRATION_PARAM, this.jointMigration);
+		this.transcodeTokens = ParamUtils.getBoolean(params, TRANSCODE_TOKENS_PARAM, this.transcodeTokens);
+		this.catchUp = ParamUtils.getBoolean(params, CATCH_UP_PARAM, this.catchUp);
+		this.catchUpBatchSize = ParamUtils.getInt(params, CATCH_UP_BATCH_SIZE_PARAM, this.catchUpBatchSize);
+		this.catchUpMinInterval = ParamUtils.getLong(params, CATCH_UP_MIN_INTERVAL_PARAM, this.catchUpMinInterval);
+		this.catchUpMaxInterval = ParamUtils.getLong(params, CATCH_UP_MAX_INTERVAL_PARAM, this.catchUpMaxInterval);
+		this.catchUpQuietPeriod = ParamUtils.getLong(params, CATCH_UP_QUIET_PERIOD_PARAM, this.catchUpQuietPeriod);
 	}
 
 	/**
-	 * This migrates the oauth data
+	 * This migrates the oauth data, the connection pool of a jdbc dao is closed once the run ends
+	 * @throws IllegalStateException If the connection pool of a jdbc dao is smaller than the migration threads need
 	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
 	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
 	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
@@ -176,8 +362,156 @@ public class OauthDataMigrator {
 	 */
 	public void migrateData() throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException,
 			IllegalArgumentException, InstantiationException {
-		migrateAccessTokens();
-		migrateRefreshTokens();
+		if (this.tokenLogFile != null) {
+			this.tokenLog = new TokenLog(new File(this.tokenLogFile));
+		}
+		this.authCache = this.authCacheSize > 0 ? new AuthenticationCache(this.authCacheSize) : null;
+		// a dry run writes nothing so there is no progress to checkpoint
+		if (this.checkpointFile != null && !this.dryRun) {
+			MigrationCheckpoint runCheckpoint = new MigrationCheckpoint(new File(this.checkpointFile), this.checkpointInterval);
+			runCheckpoint.checkRangeSplit(getRangeSplit());
+			runCheckpoint.runStarted();
+			this.checkpoint = runCheckpoint;
+		}
+		checkConnectionPool();
+		if (this.jointMigration && this.dao instanceof JdbcOauthMigrationDao && ((JdbcOauthMigrationDao) this.dao).isCopyingRefreshTokens()) {
+			// the refresh tokens copied with their access tokens stay unmigrated in the refresh token table so the refresh token
+			// pass would copy them all again
+			throw new IllegalStateException(JOINT_MIGRATION_PARAM + " cannot be used when the refresh tokens are copied to "
+					+ JdbcOauthMigrationDao.TARGET_REFRESH_TOKEN_TABLE_KEY);
+		}
+		boolean completed = false;
+		try {
+			migrateAccessTokens();
+			migrateRefreshTokens();
+			// a dry run writes nothing so the tokens it read would be found again on every poll
+			if (this.catchUp && !this.dryRun) {
+				if (isCopyingTokens()) {
+					// the copied tokens are left unmigrated in the token tables so they would be copied again on every poll
+					System.out.println("Skipping the catch up as the tokens are being copied to new tables.");
+				} else {
+					catchUp();
+				}
+			}
+			if (!this.dryRun) {
+				this.dao.finishMigration();
+			}
+			completed = true;
+		} finally {
+			try {
+				finishRun(completed);
+			} finally {
+				// the physical connections are not left open once the run ends
+				if (this.dao instanceof JdbcOauthMigrationDao) {
+					((JdbcOauthMigrationDao) this.dao).close();
+				}
+			}
+		}
+		System.out.println(getClassResolutionCache());
+		if (this.transcodeTokens) {
+			System.out.println(this.transcoder);
+		}
+		if (this.authCache != null) {
+			System.out.println(this.authCache);
+		}
+		if (this.dao instanceof JdbcOauthMigrationDao && ((JdbcOauthMigrationDao) this.dao).getConnectionPool() != null) {
+			System.out.println(((JdbcOauthMigrationDao) this.dao).getConnectionPool());
+		}
+		this.metrics.printSummary(System.out);
+	}
+
+	private boolean isCopyingTokens() {
+		return this.dao instanceof JdbcOauthMigrationDao && ((JdbcOauthMigrationDao) this.dao).isCopyingTokens();
+	}
+
+	/**
+	 * This checks the connection pool of a jdbc dao has enough connections for the migration threads, otherwise the threads
+	 * would wait on each other for connections until the pool max wait and the run would fail part way through
+	 */
+	private void checkConnectionPool() {
+		if (!(this.dao instanceof JdbcOauthMigrationDao)) {
+			return;
+		}
+		PooledDataSource pool = ((JdbcOauthMigrationDao) this.dao).getConnectionPool();
+		int required = getRequiredConnections(this.migrationMode, this.migrationThreads, this.pipelineReaderThreads, this.pipelineWriterThreads);
+		if (pool != null && pool.getMaxSize() < required) {
+			throw new IllegalStateException("The connection pool size: " + pool.getMaxSize() + " is less than the " + required
+					+ " connections the " + this.migrationMode.name().toLowerCase() + " migration threads may hold at once, raise "
+					+ JdbcOauthMigrationDao.POOL_SIZE_KEY + " or lower the number of threads");
+		}
+	}
+
+	/**
+	 * This gets the number of db connections the migration threads configured by the given params may hold at once
+	 * @param params The migration params
+	 * @return The number of connections needed
+	 */
+	static int getRequiredConnections(Map<String, Object> params) {
+		MigrationMode mode = MigrationMode.fromName(ParamUtils.getString(params, MIGRATION_MODE_PARAM, MigrationMode.SERIAL.name()));
+		return getRequiredConnections(mode, ParamUtils.getInt(params, MIGRATION_THREADS_PARAM, DEFAULT_MIGRATION_THREADS),
+				ParamUtils.getInt(params, PIPELINE_READER_THREADS_PARAM, DEFAULT_PIPELINE_READER_THREADS),
+				ParamUtils.getInt(params, PIPELINE_WRITER_THREADS_PARAM, DEFAULT_PIPELINE_WRITER_THREADS));
+	}
+
+	/**
+	 * This gets the number of db connections the given migration threads may hold at once, when streaming a thread that
+	 * reads and writes holds a connection for its reads while it writes with another
+	 * @param mode The migration mode
+	 * @param migrationThreads The number of parallel migration threads
+	 * @param readerThreads The number of pipeline reader threads
+	 * @param writerThreads The number of pipeline writer threads
+	 * @return The number of connections needed
+	 */
+	static int getRequiredConnections(MigrationMode mode, int migrationThreads, int readerThreads, int writerThreads) {
+		int workerConnections;
+		if (mode == MigrationMode.PARALLEL) {
+			workerConnections = migrationThreads * 2;
+		} else if (mode == MigrationMode.PIPELINE) {
+			workerConnections = readerThreads + writerThreads;
+		} else {
+			workerConnections = 2;
+		}
+		// one more for the counts and progress queries of the main thread
+		return workerConnections + 1;
+	}
+
+	/**
+	 * This closes the token log and records the end of the run in the checkpoint. When the run failed an error doing so
+	 * is only reported so it does not hide the exception that failed the migration.
+	 * @param completed Whether the run completed
+	 * @throws IOException If the run completed but the token log could not be closed or the checkpoint saved
+	 */
+	private void finishRun(boolean completed) throws IOException {
+		TokenLog log = this.tokenLog;
+		MigrationCheckpoint runCheckpoint = this.checkpoint;
+		this.tokenLog = null;
+		this.checkpoint = null;
+		IOException failure = null;
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException ex) {
+				failure = ex;
+				System.err.println("Failed to close the token log: " + ex.getMessage());
+			}
+		}
+		if (runCheckpoint != null) {
+			try {
+				if (completed) {
+					runCheckpoint.runCompleted();
+				} else {
+					runCheckpoint.runFailed();
+				}
+			} catch (IOException ex) {
+				if (failure == null) {
+					failure = ex;
+				}
+				System.err.println("Failed to save the checkpoint: " + ex.getMessage());
+			}
+		}
+		if (completed && failure != null) {
+			throw failure;
+		}
 	}
 
 	/**
@@ -212,6 +546,25 @@ public class OauthDataMigrator {
 		this.deserialisationClassLoader = deserialisationClassLoader;
 	}
 
+	/**
+	 * This gets the cache of the classes resolved by the deserialisationClassLoader, it is shared by all migration threads
+	 * and recreated if the deserialisationClassLoader is changed
+	 * @return the cache of the classes resolved by the deserialisationClassLoader
+	 */
+	public ClassResolutionCache getClassResolutionCache() {
+		ClassResolutionCache cache = this.classResolutionCache;
+		if (cache == null || cache.getClassLoader() != this.deserialisationClassLoader) {
+			synchronized (this) {
+				cache = this.classResolutionCache;
+				if (cache == null || cache.getClassLoader() != this.deserialisationClassLoader) {
+					cache = new ClassResolutionCache(this.deserialisationClassLoader);
+					this.classResolutionCache = cache;
+				}
+			}
+		}
+		return cache;
+	}
+
 	/**
 	 * This gets Whether refresh tokens are to be removed, spring sec m6 creates refresh tokens for every access token which is not needed when
 	 * implicit
@@ -253,194 +606,1101 @@ public class OauthDataMigrator {
 	}
 
 	/**
-	 * This migrates the oauth access tokens
-	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
-	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
-	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
-	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
-	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
-	 * @throws InstantiationException
-	 * @throws IllegalArgumentException
+	 * This gets the mode used to migrate the tokens
+	 * @return the mode used to migrate the tokens
 	 */
-	@SuppressWarnings("unchecked")
-	protected void migrateAccessTokens() throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException,
-			IllegalArgumentException, InstantiationException {
+	public MigrationMode getMigrationMode() {
+		return this.migrationMode;
+	}
 
-		int numTokens = this.dao.countUnmigratedAccessTokens();
-		int pageSize = PAGE_SIZE;
+	/**
+	 * This sets the mode used to migrate the tokens
+	 * @param migrationMode the mode used to migrate the tokens
+	 */
+	public void setMigrationMode(MigrationMode migrationMode) {
+		this.migrationMode = migrationMode;
+	}
 
-		int numMigrated = 0;
-		System.out.println("Starting Migrating " + numTokens + " access token(s) ...");
+	/**
+	 * This gets the number of worker threads used in parallel mode
+	 * @return the number of worker threads used in parallel mode
+	 */
+	public int getMigrationThreads() {
+		return this.migrationThreads;
+	}
 
-		while (numTokens > 0) {
+	/**
+	 * This sets the number of worker threads used in parallel mode
+	 * @param migrationThreads the number of worker threads used in parallel mode
+	 */
+	public void setMigrationThreads(int migrationThreads) {
+		this.migrationThreads = migrationThreads;
+	}
 
-			List<OauthAccessTokenRecord> accessTokens = this.dao.getUnmigratedOauthAccessTokenRecords(pageSize);
+	/**
+	 * This gets the number of token id ranges the tables are split into in parallel mode, 0 or less means one range per worker thread
+	 * @return the number of token id ranges the tables are split into in parallel mode
+	 */
+	public int getMigrationRanges() {
+		return this.migrationRanges;
+	}
 
-			for (OauthAccessTokenRecord tokenRecord : accessTokens) {
+	/**
+	 * This sets the number of token id ranges the tables are split into in parallel mode, 0 or less means one range per worker thread
+	 * @param migrationRanges the number of token id ranges the tables are split into in parallel mode
+	 */
+	public void setMigrationRanges(int migrationRanges) {
+		this.migrationRanges = migrationRanges;
+	}
 
-				String oldTokenId = tokenRecord.getTokenId();
-				System.out.println("Migrating token with id: " + oldTokenId + "...");
+	/**
+	 * This gets whether token records are streamed from the db with a forward only cursor rather than read a page at a time
+	 * @return whether token records are streamed from the db
+	 */
+	public boolean isStreamingReads() {
+		return this.streamingReads;
+	}
 
-				String newTokenId = this.dao.generateNewTokenKey(tokenRecord.getTokenId());
-				String newRefreshToken = this.dao.generateNewTokenKey(tokenRecord.getRefreshToken());
+	/**
+	 * This sets whether token records are streamed from the db with a forward only cursor rather than read a page at a time
+	 * @param streamingReads whether token records are streamed from the db
+	 */
+	public void setStreamingReads(boolean streamingReads) {
+		this.streamingReads = streamingReads;
+	}
 
-				if (this.removeRefreshTokens) {
-					newRefreshToken = null;
-				}
+	/**
+	 * This gets the number of reader threads used in pipeline mode
+	 * @return the number of reader threads used in pipeline mode
+	 */
+	public int getPipelineReaderThreads() {
+		return this.pipelineReaderThreads;
+	}
 
-				System.out.println("New token id: " + newTokenId);
-				System.out.println("New refresh token id: " + newRefreshToken);
-
-				// deserialize the token, note this is backward compatible
-				OAuth2AccessToken accessToken = null;
-				ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(tokenRecord.getToken()));
-				try {
-					Object obj = ois.readObject();
-					accessToken = (OAuth2AccessToken) obj;
-				} finally {
-					ois.close();
-				}
+	/**
+	 * This sets the number of reader threads used in pipeline mode
+	 * @param pipelineReaderThreads the number of reader threads used in pipeline mode
+	 */
+	public void setPipelineReaderThreads(int pipelineReaderThreads) {
+		this.pipelineReaderThreads = pipelineReaderThreads;
+	}
 
-				// replace the token value in the access token..
-				if (this.serializeNewTokenValues) {
+	/**
+	 * This gets the number of transformer threads used in pipeline mode
+	 * @return the number of transformer threads used in pipeline mode
+	 */
+	public int getPipelineTransformerThreads() {
+		return this.pipelineTransformerThreads;
+	}
 
-					Constructor<OAuth2AccessToken> constructor = null;
+	/**
+	 * This sets the number of transformer threads used in pipeline mode
+	 * @param pipelineTransformerThreads the number of transformer threads used in pipeline mode
+	 */
+	public void setPipelineTransformerThreads(int pipelineTransformerThreads) {
+		this.pipelineTransformerThreads = pipelineTransformerThreads;
+	}
 
-					// see if it has a set value method
-					Method setValueMethod = MethodUtils.getAccessibleMethod(accessToken.getClass(), "setValue", String.class);
-					if (setValueMethod != null) {
-						Object res = setValueMethod.invoke(accessToken, newTokenId);
-						if (res != null && res instanceof OAuth2AccessToken) {
-							accessToken = (OAuth2AccessToken) res;
-						}
-					} else {
+	/**
+	 * This gets the number of writer threads used in pipeline mode
+	 * @return the number of writer threads used in pipeline mode
+	 */
+	public int getPipelineWriterThreads() {
+		return this.pipelineWriterThreads;
+	}
 
-						// look for constructors that we can use
-						constructor = (Constructor<OAuth2AccessToken>) ConstructorUtils.getAccessibleConstructor(accessToken.getClass(), String.class);
-						if (constructor != null) {
+	/**
+	 * This sets the number of writer threads used in pipeline mode
+	 * @param pipelineWriterThreads the number of writer threads used in pipeline mode
+	 */
+	public void setPipelineWriterThreads(int pipelineWriterThreads) {
+		this.pipelineWriterThreads = pipelineWriterThreads;
+	}
 
-							OAuth2AccessToken newAccessToken = constructor.newInstance(newTokenId);
+	/**
+	 * This gets the capacity of the queues between the stages in pipeline mode
+	 * @return the capacity of the queues between the stages in pipeline mode
+	 */
+	public int getPipelineQueueCapacity() {
+		return this.pipelineQueueCapacity;
+	}
 
-							// we also need to invoke setters for other fields
-							MethodUtils.invokeMethod(newAccessToken, "setAdditionalInformation", accessToken.getAdditionalInformation());
-							MethodUtils.invokeMethod(newAccessToken, "setExpiration", accessToken.getExpiration());
-							MethodUtils.invokeMethod(newAccessToken, "setScope", accessToken.getScope());
-							MethodUtils.invokeMethod(newAccessToken, "setTokenType", accessToken.getTokenType());
+	/**
+	 * This sets the capacity of the queues between the stages in pipeline mode
+	 * @param pipelineQueueCapacity the capacity of the queues between the stages in pipeline mode
+	 */
+	public void setPipelineQueueCapacity(int pipelineQueueCapacity) {
+		this.pipelineQueueCapacity = pipelineQueueCapacity;
+	}
 
-							accessToken = newAccessToken;
+	/**
+	 * This gets the timing and throughput metrics of each stage of the migration
+	 * @return the timing and throughput metrics of each stage of the migration
+	 */
+	public MigrationMetrics getMetrics() {
+		return this.metrics;
+	}
 
-						} else {
-							throw new IllegalStateException("The access token with the class: " + accessToken.getClass().getName()
-									+ " did not have a set value method nor a constructor taking a string which we need to update its token value");
-						}
+	/**
+	 * This gets the interval in seconds between progress reports, 0 or less disables the periodic reports
+	 * @return the interval in seconds between progress reports
+	 */
+	public int getProgressInterval() {
+		return this.progressInterval;
+	}
 
-					}
+	/**
+	 * This sets the interval in seconds between progress reports, 0 or less disables the periodic reports
+	 * @param progressInterval the interval in seconds between progress reports
+	 */
+	public void setProgressInterval(int progressInterval) {
+		this.progressInterval = progressInterval;
+	}
 
-					// we also need to overwrite the refresh token
-					String newRefreshTokenValue = this.dao.generateNewTokenKey(accessToken.getRefreshToken().getValue());
-					OAuth2RefreshToken refreshToken = replaceOAuth2RefreshTokenValue(accessToken.getRefreshToken(), newRefreshTokenValue);
-					MethodUtils.invokeMethod(accessToken, "setRefreshToken", refreshToken);
-				}
+	/**
+	 * This gets the file each migrated token is logged to, null if individual tokens are not logged
+	 * @return the file each migrated token is logged to
+	 */
+	public String getTokenLogFile() {
+		return this.tokenLogFile;
+	}
 
-				if (this.removeRefreshTokens) {
-					MethodUtils.invokeMethod(accessToken, "setRefreshToken", new Object[] { null }, new Class<?>[] { OAuth2RefreshToken.class });
-				}
+	/**
+	 * This sets the file each migrated token is logged to, null if individual tokens are not logged
+	 * @param tokenLogFile the file each migrated token is logged to
+	 */
+	public void setTokenLogFile(String tokenLogFile) {
+		this.tokenLogFile = tokenLogFile;
+	}
 
-				byte[] tokenData = SerializationUtils.serialize((Serializable) accessToken);
+	/**
+	 * This gets the file the progress of a run is checkpointed to, null if progress is not checkpointed
+	 * @return the file the progress of a run is checkpointed to
+	 */
+	public String getCheckpointFile() {
+		return this.checkpointFile;
+	}
 
-				// deserialise the authenticated, this is NOT backward compatible so we have to read using a diff class loader
-				OAuth2Authentication auth = deserializeOAuth2Authentication(tokenRecord.getAuthentication());
-				byte[] authData = SerializationUtils.serialize(auth);
+	/**
+	 * This sets the file the progress of a run is checkpointed to, null if progress is not checkpointed
+	 * @param checkpointFile the file the progress of a run is checkpointed to
+	 */
+	public void setCheckpointFile(String checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
 
-				// this does the actual migration of the token
-				this.dao.updateOauthAccessToken(oldTokenId, newTokenId, newRefreshToken, tokenData, authData);
+	/**
+	 * This gets the min interval in ms between saves of the checkpoint file
+	 * @return the min interval in ms between saves of the checkpoint file
+	 */
+	public long getCheckpointInterval() {
+		return this.checkpointInterval;
+	}
 
-				System.out.println("Migrated token with id: " + oldTokenId);
-				numMigrated++;
-				System.out.println("");
-			}
-			numTokens = this.dao.countUnmigratedAccessTokens();
-		}
+	/**
+	 * This sets the min interval in ms between saves of the checkpoint file
+	 * @param checkpointInterval the min interval in ms between saves of the checkpoint file
+	 */
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
 
-		System.out.println("Finished Migrating " + numMigrated + " access token(s).");
+	/**
+	 * This gets whether to do a dry run which reads and converts the tokens but never writes them back
+	 * @return whether to do a dry run
+	 */
+	public boolean isDryRun() {
+		return this.dryRun;
+	}
 
+	/**
+	 * This sets whether to do a dry run which reads and converts the tokens but never writes them back
+	 * @param dryRun whether to do a dry run
+	 */
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
 	}
 
 	/**
-	 * This migrates the oauth refresh tokens
-	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
-	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
-	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
-	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
-	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
-	 * @throws InstantiationException
-	 * @throws IllegalArgumentException
+	 * This gets the max number of tokens of each type read in a dry run, 0 reads all of them
+	 * @return the max number of tokens of each type read in a dry run
 	 */
-	protected void migrateRefreshTokens() throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException,
-			IllegalArgumentException, InstantiationException {
+	public int getDryRunSampleSize() {
+		return this.dryRunSampleSize;
+	}
 
-		int numTokens = this.dao.countUnmigratedRefreshTokens();
+	/**
+	 * This sets the max number of tokens of each type read in a dry run, 0 reads all of them
+	 * @param dryRunSampleSize the max number of tokens of each type read in a dry run
+	 */
+	public void setDryRunSampleSize(int dryRunSampleSize) {
+		this.dryRunSampleSize = dryRunSampleSize;
+	}
 
-		if (this.removeRefreshTokens) {
-			System.out.println("Clearing " + numTokens + " refresh token(s)...");
-			this.dao.clearRefreshTokens();
-			System.out.println("Finished clearing refresh token(s).");
-		} else {
+	/**
+	 * This gets the max number of tokens that failed to convert a dry run reports the details of
+	 * @return the max number of tokens that failed to convert a dry run reports the details of
+	 */
+	public int getDryRunMaxFailures() {
+		return this.dryRunMaxFailures;
+	}
 
-			int pageSize = PAGE_SIZE;
+	/**
+	 * This sets the max number of tokens that failed to convert a dry run reports the details of
+	 * @param dryRunMaxFailures the max number of tokens that failed to convert a dry run reports the details of
+	 */
+	public void setDryRunMaxFailures(int dryRunMaxFailures) {
+		this.dryRunMaxFailures = dryRunMaxFailures;
+	}
 
-			int numMigrated = 0;
-			System.out.println("Starting Migrating " + numTokens + " refresh token(s) ...");
+	/**
+	 * This gets the max number of converted authentications cached, 0 if the cache is disabled
+	 * @return the max number of converted authentications cached
+	 */
+	public int getAuthCacheSize() {
+		return this.authCacheSize;
+	}
 
-			while (numTokens > 0) {
+	/**
+	 * This sets the max number of converted authentications cached, 0 disables the cache
+	 * @param authCacheSize the max number of converted authentications cached
+	 */
+	public void setAuthCacheSize(int authCacheSize) {
+		this.authCacheSize = authCacheSize;
+	}
+
+	/**
+	 * This gets the cache of converted authentications of the last migration, null if the cache was disabled or no migration has run
+	 * @return the cache of converted authentications
+	 */
+	public AuthenticationCache getAuthCache() {
+		return this.authCache;
+	}
+
+	/**
+	 * This gets whether the tokens created by the old application after the bulk migration are migrated until none have been
+	 * created for the catch up quiet period
+	 * @return whether the catch up is enabled
+	 */
+	public boolean isCatchUp() {
+		return this.catchUp;
+	}
+
+	/**
+	 * This sets whether the tokens created by the old application after the bulk migration are migrated until none have been
+	 * created for the catch up quiet period
+	 * @param catchUp whether the catch up is enabled
+	 */
+	public void setCatchUp(boolean catchUp) {
+		this.catchUp = catchUp;
+	}
 
-				List<OauthRefreshTokenRecord> refreshTokens = this.dao.getUnmigratedOauthRefreshTokenRecords(pageSize);
+	/**
+	 * This gets the max number of tokens of each type migrated per catch up poll
+	 * @return the max number of tokens of each type migrated per catch up poll
+	 */
+	public int getCatchUpBatchSize() {
+		return this.catchUpBatchSize;
+	}
 
-				for (OauthRefreshTokenRecord tokenRecord : refreshTokens) {
+	/**
+	 * This sets the max number of tokens of each type migrated per catch up poll
+	 * @param catchUpBatchSize the max number of tokens of each type migrated per catch up poll
+	 */
+	public void setCatchUpBatchSize(int catchUpBatchSize) {
+		this.catchUpBatchSize = catchUpBatchSize;
+	}
 
-					String oldTokenId = tokenRecord.getTokenId();
+	/**
+	 * This gets the min time in milliseconds between catch up polls
+	 * @return the min time in milliseconds between catch up polls
+	 */
+	public long getCatchUpMinInterval() {
+		return this.catchUpMinInterval;
+	}
 
-					System.out.println("Migrating token with id: " + oldTokenId + "...");
+	/**
+	 * This sets the min time in milliseconds between catch up polls
+	 * @param catchUpMinInterval the min time in milliseconds between catch up polls
+	 */
+	public void setCatchUpMinInterval(long catchUpMinInterval) {
+		this.catchUpMinInterval = catchUpMinInterval;
+	}
 
-					String newTokenId = this.dao.generateNewTokenKey(tokenRecord.getTokenId());
+	/**
+	 * This gets the max time in milliseconds between catch up polls
+	 * @return the max time in milliseconds between catch up polls
+	 */
+	public long getCatchUpMaxInterval() {
+		return this.catchUpMaxInterval;
+	}
 
-					System.out.println("New token id: " + newTokenId);
+	/**
+	 * This sets the max time in milliseconds between catch up polls
+	 * @param catchUpMaxInterval the max time in milliseconds between catch up polls
+	 */
+	public void setCatchUpMaxInterval(long catchUpMaxInterval) {
+		this.catchUpMaxInterval = catchUpMaxInterval;
+	}
 
-					// deserialize the token, note this is backward compatible
-					OAuth2RefreshToken refreshToken = null;
-					ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(tokenRecord.getToken()));
-					try {
-						Object obj = ois.readObject();
-						refreshToken = (OAuth2RefreshToken) obj;
-					} finally {
-						ois.close();
-					}
+	/**
+	 * This gets the time in milliseconds no new tokens must be found for before the catch up stops
+	 * @return the catch up quiet period in milliseconds
+	 */
+	public long getCatchUpQuietPeriod() {
+		return this.catchUpQuietPeriod;
+	}
+
+	/**
+	 * This sets the time in milliseconds no new tokens must be found for before the catch up stops
+	 * @param catchUpQuietPeriod the catch up quiet period in milliseconds
+	 */
+	public void setCatchUpQuietPeriod(long catchUpQuietPeriod) {
+		this.catchUpQuietPeriod = catchUpQuietPeriod;
+	}
+
+	/**
+	 * This sets the cache of converted authentications used when tokens are converted outside of a migration run, a migration
+	 * run replaces it with a new cache of the auth cache size
+	 * @param authCache the cache of converted authentications or null to convert each authentication
+	 */
+	public void setAuthCache(AuthenticationCache authCache) {
+		this.authCache = authCache;
+	}
+
+	/**
+	 * This gets whether the token values are replaced directly in the serialized token data rather than converting the token objects
+	 * @return whether the token values are replaced directly in the serialized token data
+	 */
+	public boolean isTranscodeTokens() {
+		return this.transcodeTokens;
+	}
+
+	/**
+	 * This sets whether the token values are replaced directly in the serialized token data rather than converting the token objects
+	 * @param transcodeTokens whether the token values are replaced directly in the serialized token data
+	 */
+	public void setTranscodeTokens(boolean transcodeTokens) {
+		this.transcodeTokens = transcodeTokens;
+	}
+
+	/**
+	 * This gets the transcoder which replaces the token values directly in the serialized token data
+	 * @return the transcoder
+	 */
+	public TokenBlobTranscoder getTranscoder() {
+		return this.transcoder;
+	}
+
+	/**
+	 * This gets whether each page of access tokens is migrated together with their refresh tokens
+	 * @return whether each page of access tokens is migrated together with their refresh tokens
+	 */
+	public boolean isJointMigration() {
+		return this.jointMigration;
+	}
+
+	/**
+	 * This sets whether each page of access tokens is migrated together with their refresh tokens
+	 * @param jointMigration whether each page of access tokens is migrated together with their refresh tokens
+	 */
+	public void setJointMigration(boolean jointMigration) {
+		this.jointMigration = jointMigration;
+	}
+
+	/**
+	 * This migrates the oauth access tokens
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException
+	 * @throws IllegalArgumentException
+	 */
+	protected void migrateAccessTokens() throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException,
+			IllegalArgumentException, InstantiationException {
+
+		TokenMigration<OauthAccessTokenRecord, OauthAccessTokenUpdate> migration = createAccessTokenMigration();
+		int numTokens = countTokensToMigrate(migration);
+		System.out.println("Starting Migrating " + numTokens + " access token(s) ...");
+		int numMigrated = migrateTokens(migration, numTokens);
+		System.out.println("Finished Migrating " + numMigrated + " access token(s).");
 
-					// replace the token value in the refresh token..
-					if (this.serializeNewTokenValues) {
-						refreshToken = replaceOAuth2RefreshTokenValue(refreshToken, newTokenId);
+	}
+
+	/**
+	 * This keeps migrating the tokens created by the old application since the bulk migration read the tables until none
+	 * have been created for the catch up quiet period
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException
+	 */
+	protected void catchUp() throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException,
+			InstantiationException {
+
+		List<TokenMigration<?, ?>> migrations = new ArrayList<TokenMigration<?, ?>>(2);
+		migrations.add(this.metrics.track(createAccessTokenMigration()));
+		if (!this.removeRefreshTokens) {
+			migrations.add(this.metrics.track(createRefreshTokenMigration()));
+		}
+		System.out.println("Catching up with new tokens until none have been created for " + this.catchUpQuietPeriod + "ms ...");
+		CatchUpMigration migration = new CatchUpMigration(this.catchUpBatchSize, this.catchUpMinInterval, this.catchUpMaxInterval,
+				this.catchUpQuietPeriod);
+		int numMigrated = migration.run(migrations);
+		if (this.removeRefreshTokens) {
+			this.dao.clearRefreshTokens();
+		}
+		System.out.println("Finished catching up, migrated " + numMigrated + " token(s) in " + migration.getNumPolls() + " poll(s).");
+	}
+
+	/**
+	 * This creates the migration of the access tokens, when joint migration is enabled each page of access tokens is read and
+	 * written together with its refresh tokens
+	 * @return The access token migration
+	 */
+	private TokenMigration<OauthAccessTokenRecord, OauthAccessTokenUpdate> createAccessTokenMigration() {
+
+		// there is nothing to migrate jointly when the refresh tokens are removed
+		final boolean joint = this.jointMigration && !this.removeRefreshTokens;
+		return new TokenMigration<OauthAccessTokenRecord, OauthAccessTokenUpdate>() {
+
+			public String getTokenType() {
+				return "access token";
+			}
+
+			public int countUnmigratedRecords() {
+				return OauthDataMigrator.this.dao.countUnmigratedAccessTokens();
+			}
+
+			public List<OauthAccessTokenRecord> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+				List<OauthAccessTokenRecord> records = OauthDataMigrator.this.dao.getUnmigratedOauthAccessTokenRecords(range, afterTokenId, limit);
+				if (joint) {
+					readRefreshTokenRecords(records);
+				}
+				return records;
+			}
+
+			public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthAccessTokenRecord> callback) {
+				if (joint) {
+					streamWithRefreshTokenRecords(range, afterTokenId, callback);
+				} else {
+					OauthDataMigrator.this.dao.streamUnmigratedOauthAccessTokenRecords(range, afterTokenId, callback);
+				}
+			}
+
+			public OauthAccessTokenUpdate transform(OauthAccessTokenRecord record) throws IOException, ClassNotFoundException, NoSuchMethodException,
+					IllegalAccessException, InvocationTargetException, InstantiationException {
+				OauthAccessTokenUpdate update = transformAccessToken(record);
+				if (record.getRefreshTokenRecord() != null) {
+					OauthRefreshTokenUpdate refreshTokenUpdate = transformRefreshToken(record.getRefreshTokenRecord());
+					OauthAccessTokenUpdate jointUpdate = new OauthAccessTokenUpdate(update.getOldTokenId(), update.getNewTokenId(),
+							update.getNewRefreshToken(), update.getTokenData(), update.getAuthData(), refreshTokenUpdate);
+					jointUpdate.setAuthenticationId(update.getAuthenticationId());
+					jointUpdate.setUserName(update.getUserName());
+					jointUpdate.setClientId(update.getClientId());
+					update = jointUpdate;
+				}
+				return update;
+			}
+
+			public void write(List<OauthAccessTokenUpdate> updates) {
+				if (joint) {
+					List<OauthRefreshTokenUpdate> refreshTokenUpdates = new ArrayList<OauthRefreshTokenUpdate>(updates.size());
+					for (OauthAccessTokenUpdate update : updates) {
+						if (update.getRefreshTokenUpdate() != null) {
+							refreshTokenUpdates.add(update.getRefreshTokenUpdate());
+						}
 					}
+					OauthDataMigrator.this.dao.updateOauthTokens(updates, refreshTokenUpdates);
+				} else {
+					OauthDataMigrator.this.dao.updateOauthAccessTokens(updates);
+				}
+			}
+		};
+	}
+
+	/**
+	 * This reads the unmigrated refresh tokens of the given page of access tokens in a single query and sets them on the access token records,
+	 * a refresh token shared by several access tokens is only set on the first of them so it is migrated once
+	 * @param records The page of access token records
+	 */
+	private void readRefreshTokenRecords(List<OauthAccessTokenRecord> records) {
+		Set<String> refreshTokenIds = new LinkedHashSet<String>();
+		for (OauthAccessTokenRecord record : records) {
+			if (record.getRefreshToken() != null) {
+				refreshTokenIds.add(record.getRefreshToken());
+			}
+		}
+		if (refreshTokenIds.isEmpty()) {
+			return;
+		}
+		Map<String, OauthRefreshTokenRecord> refreshTokens = new HashMap<String, OauthRefreshTokenRecord>();
+		for (OauthRefreshTokenRecord refreshToken : this.dao.getUnmigratedOauthRefreshTokenRecords(new ArrayList<String>(refreshTokenIds))) {
+			refreshTokens.put(refreshToken.getTokenId(), refreshToken);
+		}
+		for (OauthAccessTokenRecord record : records) {
+			if (record.getRefreshToken() != null) {
+				record.setRefreshTokenRecord(refreshTokens.remove(record.getRefreshToken()));
+			}
+		}
+	}
+
+	/**
+	 * This streams the unmigrated access tokens to the given callback a page at a time so the refresh tokens of each page
+	 * can be read in a single query before the page is handed on
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id records must be after or null to start from the beginning of the range
+	 * @param callback The callback that processes each record
+	 */
+	private void streamWithRefreshTokenRecords(TokenIdRange range, String afterTokenId, final TokenRecordCallback<OauthAccessTokenRecord> callback) {
+		final List<OauthAccessTokenRecord> page = new ArrayList<OauthAccessTokenRecord>(PAGE_SIZE);
+		final boolean[] stopped = { false };
+		this.dao.streamUnmigratedOauthAccessTokenRecords(range, afterTokenId, new TokenRecordCallback<OauthAccessTokenRecord>() {
+
+			public boolean processRecord(OauthAccessTokenRecord record) {
+				page.add(record);
+				if (page.size() >= PAGE_SIZE) {
+					stopped[0] = !processPage(page, callback);
+				}
+				return !stopped[0];
+			}
+		});
+		if (!stopped[0]) {
+			processPage(page, callback);
+		}
+	}
+
+	private boolean processPage(List<OauthAccessTokenRecord> page, TokenRecordCallback<OauthAccessTokenRecord> callback) {
+		readRefreshTokenRecords(page);
+		try {
+			for (OauthAccessTokenRecord record : page) {
+				if (!callback.processRecord(record)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			page.clear();
+		}
+	}
+
+	/**
+	 * This converts a single oauth access token to its migrated form
+	 * @param tokenRecord The access token record to convert
+	 * @return The migrated access token data to write to the db
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException
+	 * @throws IllegalArgumentException
+	 */
+	protected OauthAccessTokenUpdate transformAccessToken(OauthAccessTokenRecord tokenRecord) throws IOException, ClassNotFoundException,
+			NoSuchMethodException, IllegalAccessException, InvocationTargetException, IllegalArgumentException, InstantiationException {
+
+		String oldTokenId = tokenRecord.getTokenId();
+		long start = this.metrics.start();
+		String newTokenId = this.dao.generateNewTokenKey(tokenRecord.getTokenId());
+		String newRefreshToken = tokenRecord.getRefreshToken() == null ? null : this.dao.generateNewTokenKey(tokenRecord.getRefreshToken());
+		this.metrics.record(MigrationStage.KEY_HASH, start, 0);
+
+		if (this.removeRefreshTokens) {
+			newRefreshToken = null;
+		}
+
+		// removing the refresh token changes the handles of the stream so only the object conversion can do that
+		byte[] tokenData = null;
+		if (this.transcodeTokens && !this.removeRefreshTokens) {
+			tokenData = transcodeAccessToken(tokenRecord.getToken(), newTokenId);
+		}
+		if (tokenData == null) {
+			tokenData = convertAccessToken(tokenRecord, newTokenId);
+		}
+
+		byte[] authData = convertAuthentication(tokenRecord.getAuthentication());
+
+		// the line is only built when the token log is enabled
+		TokenLog log = this.tokenLog;
+		if (log != null) {
+			log.log("Migrated access token: " + oldTokenId + " to: " + newTokenId + " with refresh token: " + newRefreshToken);
+		}
+
+		OauthAccessTokenUpdate update = new OauthAccessTokenUpdate(oldTokenId, newTokenId, newRefreshToken, tokenData, authData);
+		update.setAuthenticationId(tokenRecord.getAuthenticationId());
+		update.setUserName(tokenRecord.getUserName());
+		update.setClientId(tokenRecord.getClientId());
+		return update;
+	}
+
+	/**
+	 * This replaces the token values of the given serialized access token directly in the serialized data
+	 * @param oldTokenData The serialized access token
+	 * @param newTokenId The new token value
+	 * @return The transcoded access token data or null if it could not be transcoded
+	 */
+	private byte[] transcodeAccessToken(byte[] oldTokenData, final String newTokenId) {
+		long start = this.metrics.start();
+		byte[] tokenData;
+		if (this.serializeNewTokenValues) {
+			tokenData = this.transcoder.transcodeAccessToken(oldTokenData, new TokenBlobTranscoder.ValueRewriter() {
+
+				public String rewrite(String oldValue) {
+					return newTokenId;
+				}
+			}, new TokenBlobTranscoder.ValueRewriter() {
 
-					byte[] tokenData = SerializationUtils.serialize((Serializable) refreshToken);
+				public String rewrite(String oldValue) {
+					return OauthDataMigrator.this.dao.generateNewTokenKey(oldValue);
+				}
+			});
+		} else {
+			tokenData = this.transcoder.transcodeAccessToken(oldTokenData, null, null);
+		}
+		this.metrics.record(MigrationStage.CONVERT, start, 0);
+		return tokenData;
+	}
+
+	/**
+	 * This converts the token of the given access token record by deserializing it, replacing its values and serializing it again
+	 * @param tokenRecord The access token record to convert
+	 * @param newTokenId The new token value
+	 * @return The serialized migrated access token
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException
+	 * @throws IllegalArgumentException
+	 */
+	@SuppressWarnings("unchecked")
+	private byte[] convertAccessToken(OauthAccessTokenRecord tokenRecord, String newTokenId) throws IOException, ClassNotFoundException,
+			NoSuchMethodException, IllegalAccessException, InvocationTargetException, IllegalArgumentException, InstantiationException {
+
+		// deserialize the token, note this is backward compatible
+		long start = this.metrics.start();
+		OAuth2AccessToken accessToken = null;
+		ObjectInputStream ois = SerializationContext.get().openObjectInputStream(tokenRecord.getToken());
+		try {
+			Object obj = ois.readObject();
+			accessToken = (OAuth2AccessToken) obj;
+		} finally {
+			ois.close();
+		}
+		this.metrics.record(MigrationStage.TOKEN_DESERIALIZE, start, tokenRecord.getToken().length);
+
+		// replace the token value in the access token..
+		start = this.metrics.start();
+		if (this.serializeNewTokenValues) {
 
-					// deserialise the authenticated, this is NOT backward compatible so we have to read using a diff class loader
-					OAuth2Authentication auth = deserializeOAuth2Authentication(tokenRecord.getAuthentication());
-					byte[] authData = SerializationUtils.serialize(auth);
+			Constructor<OAuth2AccessToken> constructor = null;
 
-					// this does the actual migration of the token
-					this.dao.updateOauthRefreshToken(oldTokenId, newTokenId, tokenData, authData);
+			// see if it has a set value method
+			Method setValueMethod = ACCESSORS.getMethod(accessToken.getClass(), "setValue", String.class);
+			if (setValueMethod != null) {
+				Object res = setValueMethod.invoke(accessToken, newTokenId);
+				if (res != null && res instanceof OAuth2AccessToken) {
+					accessToken = (OAuth2AccessToken) res;
+				}
+			} else {
+
+				// look for constructors that we can use
+				constructor = (Constructor<OAuth2AccessToken>) ACCESSORS.getConstructor(accessToken.getClass(), String.class);
+				if (constructor != null) {
 
-					System.out.println("Migrated token with id: " + oldTokenId);
-					numMigrated++;
-					System.out.println("");
+					OAuth2AccessToken newAccessToken = constructor.newInstance(newTokenId);
+
+					// we also need to invoke setters for other fields
+					ACCESSORS.invokeMethod(newAccessToken, "setAdditionalInformation", accessToken.getAdditionalInformation());
+					ACCESSORS.invokeMethod(newAccessToken, "setExpiration", accessToken.getExpiration());
+					ACCESSORS.invokeMethod(newAccessToken, "setScope", accessToken.getScope());
+					ACCESSORS.invokeMethod(newAccessToken, "setTokenType", accessToken.getTokenType());
+
+					accessToken = newAccessToken;
+
+				} else {
+					throw new IllegalStateException("The access token with the class: " + accessToken.getClass().getName()
+							+ " did not have a set value method nor a constructor taking a string which we need to update its token value");
 				}
-				numTokens = this.dao.countUnmigratedRefreshTokens();
+
 			}
 
+			// we also need to overwrite the refresh token
+			if (accessToken.getRefreshToken() != null) {
+				this.metrics.record(MigrationStage.CONVERT, start, 0);
+				start = this.metrics.start();
+				String newRefreshTokenValue = this.dao.generateNewTokenKey(accessToken.getRefreshToken().getValue());
+				this.metrics.record(MigrationStage.KEY_HASH, start, 0);
+				start = this.metrics.start();
+				OAuth2RefreshToken refreshToken = replaceOAuth2RefreshTokenValue(accessToken.getRefreshToken(), newRefreshTokenValue);
+				ACCESSORS.invokeMethod(accessToken, "setRefreshToken", refreshToken);
+			}
+		}
+
+		if (this.removeRefreshTokens) {
+			ACCESSORS.invokeMethod(accessToken, "setRefreshToken", new Object[] { null }, new Class<?>[] { OAuth2RefreshToken.class });
+		}
+		this.metrics.record(MigrationStage.CONVERT, start, 0);
+
+		start = this.metrics.start();
+		byte[] tokenData = SerializationContext.get().serialize((Serializable) accessToken);
+		this.metrics.record(MigrationStage.SERIALIZE, start, tokenData.length);
+		return tokenData;
+	}
+
+	/**
+	 * This migrates the oauth refresh tokens
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException
+	 * @throws IllegalArgumentException
+	 */
+	protected void migrateRefreshTokens() throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException,
+			IllegalArgumentException, InstantiationException {
+
+		if (this.removeRefreshTokens && this.dryRun) {
+			System.out.println("Dry run, would clear " + this.dao.countUnmigratedRefreshTokens() + " refresh token(s).");
+		} else if (this.removeRefreshTokens) {
+			int numTokens = this.dao.countUnmigratedRefreshTokens();
+			System.out.println("Clearing " + numTokens + " refresh token(s)...");
+			this.dao.clearRefreshTokens();
+			System.out.println("Finished clearing refresh token(s).");
+		} else {
+
+			TokenMigration<OauthRefreshTokenRecord, OauthRefreshTokenUpdate> migration = createRefreshTokenMigration();
+			int numTokens = countTokensToMigrate(migration);
+			System.out.println("Starting Migrating " + numTokens + " refresh token(s) ...");
+			int numMigrated = migrateTokens(migration, numTokens);
 			System.out.println("Finished Migrating " + numMigrated + " refresh token(s).");
 		}
 	}
 
+	/**
+	 * This creates the migration of the refresh tokens
+	 * @return The refresh token migration
+	 */
+	private TokenMigration<OauthRefreshTokenRecord, OauthRefreshTokenUpdate> createRefreshTokenMigration() {
+		return new TokenMigration<OauthRefreshTokenRecord, OauthRefreshTokenUpdate>() {
+
+			public String getTokenType() {
+				return "refresh token";
+			}
+
+			public int countUnmigratedRecords() {
+				return OauthDataMigrator.this.dao.countUnmigratedRefreshTokens();
+			}
+
+			public List<OauthRefreshTokenRecord> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+				return OauthDataMigrator.this.dao.getUnmigratedOauthRefreshTokenRecords(range, afterTokenId, limit);
+			}
+
+			public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback) {
+				OauthDataMigrator.this.dao.streamUnmigratedOauthRefreshTokenRecords(range, afterTokenId, callback);
+			}
+
+			public OauthRefreshTokenUpdate transform(OauthRefreshTokenRecord record) throws IOException, ClassNotFoundException,
+					NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+				return transformRefreshToken(record);
+			}
+
+			public void write(List<OauthRefreshTokenUpdate> updates) {
+				OauthDataMigrator.this.dao.updateOauthRefreshTokens(updates);
+			}
+		};
+	}
+
+	/**
+	 * This converts a single oauth refresh token to its migrated form
+	 * @param tokenRecord The refresh token record to convert
+	 * @return The migrated refresh token data to write to the db
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException
+	 * @throws IllegalArgumentException
+	 */
+	protected OauthRefreshTokenUpdate transformRefreshToken(OauthRefreshTokenRecord tokenRecord) throws IOException, ClassNotFoundException,
+			NoSuchMethodException, IllegalAccessException, InvocationTargetException, IllegalArgumentException, InstantiationException {
+
+		String oldTokenId = tokenRecord.getTokenId();
+		long start = this.metrics.start();
+		final String newTokenId = this.dao.generateNewTokenKey(tokenRecord.getTokenId());
+		this.metrics.record(MigrationStage.KEY_HASH, start, 0);
+
+		byte[] tokenData = null;
+		if (this.transcodeTokens) {
+			start = this.metrics.start();
+			tokenData = this.transcoder.transcodeRefreshToken(tokenRecord.getToken(), !this.serializeNewTokenValues ? null
+					: new TokenBlobTranscoder.ValueRewriter() {
+
+						public String rewrite(String oldValue) {
+							return newTokenId;
+						}
+					});
+			this.metrics.record(MigrationStage.CONVERT, start, 0);
+		}
+		if (tokenData == null) {
+			tokenData = convertRefreshToken(tokenRecord, newTokenId);
+		}
+
+		byte[] authData = convertAuthentication(tokenRecord.getAuthentication());
+
+		// the line is only built when the token log is enabled
+		TokenLog log = this.tokenLog;
+		if (log != null) {
+			log.log("Migrated refresh token: " + oldTokenId + " to: " + newTokenId);
+		}
+
+		return new OauthRefreshTokenUpdate(oldTokenId, newTokenId, tokenData, authData);
+	}
+
+	/**
+	 * This converts the token of the given refresh token record by deserializing it, replacing its value and serializing it again
+	 * @param tokenRecord The refresh token record to convert
+	 * @param newTokenId The new token value
+	 * @return The serialized migrated refresh token
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException
+	 * @throws IllegalArgumentException
+	 */
+	private byte[] convertRefreshToken(OauthRefreshTokenRecord tokenRecord, String newTokenId) throws IOException, ClassNotFoundException,
+			NoSuchMethodException, IllegalAccessException, InvocationTargetException, IllegalArgumentException, InstantiationException {
+
+		// deserialize the token, note this is backward compatible
+		long start = this.metrics.start();
+		OAuth2RefreshToken refreshToken = null;
+		ObjectInputStream ois = SerializationContext.get().openObjectInputStream(tokenRecord.getToken());
+		try {
+			Object obj = ois.readObject();
+			refreshToken = (OAuth2RefreshToken) obj;
+		} finally {
+			ois.close();
+		}
+		this.metrics.record(MigrationStage.TOKEN_DESERIALIZE, start, tokenRecord.getToken().length);
+
+		// replace the token value in the refresh token..
+		if (this.serializeNewTokenValues) {
+			start = this.metrics.start();
+			refreshToken = replaceOAuth2RefreshTokenValue(refreshToken, newTokenId);
+			this.metrics.record(MigrationStage.CONVERT, start, 0);
+		}
+
+		start = this.metrics.start();
+		byte[] tokenData = SerializationContext.get().serialize((Serializable) refreshToken);
+		this.metrics.record(MigrationStage.SERIALIZE, start, tokenData.length);
+		return tokenData;
+	}
+
+	/**
+	 * This converts the given old serialized authentication to the new serialized authentication, the result is cached when the
+	 * authentication cache is enabled as many tokens share the same authentication
+	 * @param oldAuthData The serialized data created with the old version of the classes
+	 * @return The serialized authentication created with the new class versions
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws NoSuchMethodException
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 */
+	byte[] convertAuthentication(byte[] oldAuthData) throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+			InvocationTargetException {
+		AuthenticationCache cache = this.authCache;
+		AuthenticationCache.Key key = null;
+		if (cache != null) {
+			key = cache.key(oldAuthData);
+			byte[] authData = cache.get(key);
+			if (authData != null) {
+				return authData;
+			}
+		}
+
+		// deserialise the authenticated, this is NOT backward compatible so we have to read using a diff class loader
+		OAuth2Authentication auth = deserializeOAuth2Authentication(oldAuthData);
+		long start = this.metrics.start();
+		byte[] authData = SerializationContext.get().serialize(auth);
+		this.metrics.record(MigrationStage.SERIALIZE, start, authData.length);
+		if (cache != null) {
+			cache.put(key, authData);
+		}
+		return authData;
+	}
+
+	/**
+	 * This gets the number of tokens the given migration has to migrate, when resuming a checkpointed run this is worked out from
+	 * the checkpoint rather than counted again
+	 * @param migration The token migration
+	 * @return The number of tokens to migrate
+	 * @throws IOException If the checkpoint could not be saved
+	 */
+	private int countTokensToMigrate(TokenMigration<?, ?> migration) throws IOException {
+		if (this.checkpoint != null) {
+			int total = this.checkpoint.getTotal(migration.getTokenType());
+			if (total >= 0) {
+				return Math.max(0, total - this.checkpoint.getNumMigrated(migration.getTokenType()));
+			}
+			int numTokens = migration.countUnmigratedRecords();
+			this.checkpoint.setTotal(migration.getTokenType(), numTokens);
+			return numTokens;
+		}
+		return migration.countUnmigratedRecords();
+	}
+
+	/**
+	 * This migrates all the unmigrated tokens of the given migration using the configured migration mode,
+	 * the progress is reported in the background at the configured interval
+	 * @param untrackedMigration The token migration
+	 * @param numTokens The number of tokens to migrate, used to estimate the time remaining
+	 * @return The number of tokens migrated
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException
+	 */
+	/**
+	 * This describes how the token ids are split into ranges by the migration mode, the checkpoint progress is saved per range
+	 * @return The description of the ranges
+	 */
+	private String getRangeSplit() {
+		if (this.migrationMode == MigrationMode.PIPELINE) {
+			return TokenIdRange.split(this.pipelineReaderThreads).size() + " range(s)";
+		} else if (this.migrationMode == MigrationMode.PARALLEL) {
+			// the engine uses at least one range per thread
+			return TokenIdRange.split(Math.max(this.migrationRanges, this.migrationThreads)).size() + " range(s)";
+		}
+		return "a single range";
+	}
+
+	private <R extends TokenRecord, U extends TokenUpdate> int migrateTokens(TokenMigration<R, U> untrackedMigration, int numTokens) throws IOException,
+			ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+
+		if (this.dryRun) {
+			return dryRunTokens(untrackedMigration, numTokens);
+		}
+		ProgressReporter reporter = new ProgressReporter(untrackedMigration.getTokenType(), numTokens, this.progressInterval * 1000L, System.out);
+		TokenMigration<R, U> migration = reporter.track(this.metrics.track(untrackedMigration));
+		reporter.start();
+		try {
+			return migrateTokens(migration);
+		} finally {
+			reporter.stop();
+		}
+	}
+
+	/**
+	 * This reads and converts the tokens of the given migration without writing them, then reports the tokens that could not be converted
+	 * and the projected time to migrate all of them
+	 * @param untrackedMigration The migration
+	 * @param numTokens The number of tokens to migrate
+	 * @return The number of tokens converted
+	 */
+	private <R extends TokenRecord, U extends TokenUpdate> int dryRunTokens(TokenMigration<R, U> untrackedMigration, int numTokens) throws IOException,
+			ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+
+		DryRun dryRun = new DryRun(untrackedMigration.getTokenType(), this.dryRunSampleSize, this.dryRunMaxFailures);
+		int numSampled = this.dryRunSampleSize > 0 ? Math.min(this.dryRunSampleSize, numTokens) : numTokens;
+		ProgressReporter reporter = new ProgressReporter(untrackedMigration.getTokenType(), numSampled, this.progressInterval * 1000L, System.out);
+		// the writes are dropped above the metrics so no db write stage is recorded, the failures are collected above the reporter so they are counted
+		TokenMigration<R, U> migration = dryRun.collectFailures(reporter.track(dryRun.withoutWrites(this.metrics.track(untrackedMigration))));
+		long start = System.currentTimeMillis();
+		reporter.start();
+		try {
+			migrateTokens(migration);
+		} finally {
+			reporter.stop();
+		}
+		dryRun.printReport(System.out, numTokens, System.currentTimeMillis() - start);
+		return dryRun.getNumRead() - dryRun.getNumFailed();
+	}
+
+	private <R extends TokenRecord, U extends TokenUpdate> int migrateTokens(TokenMigration<R, U> migration) throws IOException, ClassNotFoundException,
+			NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
+
+		int numMigrated = 0;
+		if (this.migrationMode == MigrationMode.PARALLEL || this.migrationMode == MigrationMode.PIPELINE) {
+
+			List<RangeMigrationResult> results = null;
+			try {
+				if (this.migrationMode == MigrationMode.PIPELINE) {
+					MigrationPipeline pipeline = new MigrationPipeline(this.pipelineReaderThreads, this.pipelineTransformerThreads,
+							this.pipelineWriterThreads, this.pipelineQueueCapacity, PAGE_SIZE, this.streamingReads);
+					pipeline.setCheckpoint(this.checkpoint);
+					System.out.println("Migrating " + migration.getTokenType() + "(s) using a pipeline of " + this.pipelineReaderThreads
+							+ " reader(s), " + this.pipelineTransformerThreads + " transformer(s) and " + this.pipelineWriterThreads + " writer(s)");
+					results = pipeline.migrate(migration);
+				} else {
+					ParallelMigrationEngine engine = new ParallelMigrationEngine(this.migrationThreads, this.migrationRanges, PAGE_SIZE,
+							this.streamingReads);
+					engine.setCheckpoint(this.checkpoint);
+					System.out.println("Migrating " + migration.getTokenType() + "(s) in " + engine.getNumRanges() + " range(s) using "
+							+ engine.getNumThreads() + " thread(s)");
+					results = engine.migrate(migration);
+				}
+			} catch (ExecutionException ex) {
+				rethrowMigrationException(ex.getCause());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted whilst migrating " + migration.getTokenType() + "(s)", ex);
+			}
+			for (RangeMigrationResult result : results) {
+				System.out.println(result);
+				numMigrated += result.getNumMigrated();
+			}
+
+		} else {
+
+			// migrate the whole token id space as a single range on this thread
+			try {
+				numMigrated = new RangeMigrationTask<R, U>(migration, null, PAGE_SIZE, new AtomicBoolean(false), this.streamingReads, this.checkpoint).call()
+						.getNumMigrated();
+			} catch (Exception ex) {
+				rethrowMigrationException(ex);
+			}
+		}
+		return numMigrated;
+	}
+
+	/**
+	 * This rethrows an exception thrown by a migration worker as the checked exception declared by the migrate methods
+	 * @param cause The exception thrown by the worker
+	 */
+	private static void rethrowMigrationException(Throwable cause) throws IOException, ClassNotFoundException, NoSuchMethodException,
+			IllegalAccessException, InvocationTargetException, InstantiationException {
+		if (cause instanceof IOException) {
+			throw (IOException) cause;
+		} else if (cause instanceof ClassNotFoundException) {
+			throw (ClassNotFoundException) cause;
+		} else if (cause instanceof NoSuchMethodException) {
+			throw (NoSuchMethodException) cause;
+		} else if (cause instanceof IllegalAccessException) {
+			throw (IllegalAccessException) cause;
+		} else if (cause instanceof InvocationTargetException) {
+			throw (InvocationTargetException) cause;
+		} else if (cause instanceof InstantiationException) {
+			throw (InstantiationException) cause;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		throw new IllegalStateException("Failed migrating tokens, msg: " + cause.getMessage(), cause);
+	}
+
 	/**
 	 * This creates a new refresh token with the token id replaced with the given new token id,
 	 * it maintains the token expiry assuming the token implements ExpiringOAuth2RefreshToken
@@ -454,13 +1714,13 @@ public class OauthDataMigrator {
 	 * @throws NoSuchMethodException
 	 */
 	@SuppressWarnings("unchecked")
-	private OAuth2RefreshToken replaceOAuth2RefreshTokenValue(OAuth2RefreshToken origToken, String newTokenId) throws IllegalArgumentException,
+	OAuth2RefreshToken replaceOAuth2RefreshTokenValue(OAuth2RefreshToken origToken, String newTokenId) throws IllegalArgumentException,
 			InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
 		OAuth2RefreshToken refreshToken = origToken;
 		if (origToken != null) {
 
 			// see if it has a set value method
-			Method setValueMethod = MethodUtils.getAccessibleMethod(refreshToken.getClass(), "setValue", String.class);
+			Method setValueMethod = ACCESSORS.getMethod(refreshToken.getClass(), "setValue", String.class);
 
 			if (setValueMethod != null) {
 				Object res = setValueMethod.invoke(refreshToken, newTokenId);
@@ -474,10 +1734,10 @@ public class OauthDataMigrator {
 				// look for constructors that we can use
 				if (refreshToken instanceof ExpiringOAuth2RefreshToken) {
 					java.util.Date expiry = ((ExpiringOAuth2RefreshToken) refreshToken).getExpiration();
-					constructor = (Constructor<OAuth2RefreshToken>) ConstructorUtils.getAccessibleConstructor(refreshToken.getClass(), java.util.Date.class,
+					constructor = (Constructor<OAuth2RefreshToken>) ACCESSORS.getConstructor(refreshToken.getClass(), java.util.Date.class,
 							String.class);
 					if (constructor == null) {
-						constructor = (Constructor<OAuth2RefreshToken>) ConstructorUtils.getAccessibleConstructor(refreshToken.getClass(), String.class,
+						constructor = (Constructor<OAuth2RefreshToken>) ACCESSORS.getConstructor(refreshToken.getClass(), String.class,
 								java.util.Date.class);
 						if (constructor != null) {
 							refreshToken = constructor.newInstance(newTokenId, expiry);
@@ -486,7 +1746,7 @@ public class OauthDataMigrator {
 						refreshToken = constructor.newInstance(expiry, newTokenId);
 					}
 				} else {
-					constructor = (Constructor<OAuth2RefreshToken>) ConstructorUtils.getAccessibleConstructor(refreshToken.getClass(), String.class);
+					constructor = (Constructor<OAuth2RefreshToken>) ACCESSORS.getConstructor(refreshToken.getClass(), String.class);
 					if (constructor != null) {
 						refreshToken = constructor.newInstance(newTokenId);
 					}
@@ -513,28 +1773,32 @@ public class OauthDataMigrator {
 	 * @throws IllegalAccessException
 	 * @throws InvocationTargetException
 	 */
-	private OAuth2Authentication deserializeOAuth2Authentication(byte[] oldAuthData) throws IOException, ClassNotFoundException, NoSuchMethodException,
+	OAuth2Authentication deserializeOAuth2Authentication(byte[] oldAuthData) throws IOException, ClassNotFoundException, NoSuchMethodException,
 			IllegalAccessException, InvocationTargetException {
 		OAuth2Authentication auth = null;
-		ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(oldAuthData), this.deserialisationClassLoader);
+		long start = this.metrics.start();
+		ObjectInputStream ois = SerializationContext.get().openObjectInputStream(oldAuthData, getClassResolutionCache());
 		try {
 			Object obj = ois.readObject();
+			this.metrics.record(MigrationStage.AUTH_DESERIALIZE, start, oldAuthData.length);
+			start = this.metrics.start();
 
 			// the instance of this is the old OAuth2Authentication however we cannot cast
 			// so have to use reflection to access the fields and data
 			// and then construct a new OAuth2Authentication from this
 
-			Object oldAuthorizationRequest = MethodUtils.invokeMethod(obj, "getAuthorizationRequest", NO_ARGS);
+			Object oldAuthorizationRequest = ACCESSORS.invokeMethod(obj, "getAuthorizationRequest", NO_ARGS);
 
-			Object authentication = MethodUtils.invokeMethod(obj, "getUserAuthentication", NO_ARGS);
-			Object principal = MethodUtils.invokeMethod(authentication, "getPrincipal", NO_ARGS);
-			Object credentials = MethodUtils.invokeMethod(authentication, "getCredentials", NO_ARGS);
-			Collection<GrantedAuthority> authorities = convertAuthorities((Collection<?>) MethodUtils.invokeMethod(authentication, "getAuthorities", NO_ARGS));
+			Object authentication = ACCESSORS.invokeMethod(obj, "getUserAuthentication", NO_ARGS);
+			Object principal = ACCESSORS.invokeMethod(authentication, "getPrincipal", NO_ARGS);
+			Object credentials = ACCESSORS.invokeMethod(authentication, "getCredentials", NO_ARGS);
+			Collection<GrantedAuthority> authorities = convertAuthorities((Collection<?>) ACCESSORS.invokeMethod(authentication, "getAuthorities", NO_ARGS));
 
 			// now construct the oauth authentication object with the new auth and request
 			Authentication authToken = new UsernamePasswordAuthenticationToken(principal, credentials, authorities);
 			AuthorizationRequest authReq = convertAuthorizationRequest(oldAuthorizationRequest);
 			auth = new OAuth2Authentication(authReq, authToken);
+			this.metrics.record(MigrationStage.CONVERT, start, 0);
 
 		} finally {
 			ois.close();
@@ -545,17 +1809,17 @@ public class OauthDataMigrator {
 	@SuppressWarnings("unchecked")
 	static AuthorizationRequest convertAuthorizationRequest(Object authorizationRequest) throws NoSuchMethodException, IllegalAccessException,
 			InvocationTargetException {
-		Map<String, String> authorizationParameters = (Map<String, String>) MethodUtils.invokeMethod(authorizationRequest, "getParameters", NO_ARGS);
-		// String clientId = (String) MethodUtils.invokeMethod(authorizationRequest, "getClientId", NO_ARGS);
-		// Collection<String> scope = (Collection<String>) MethodUtils.invokeMethod(authorizationRequest, "getScope", NO_ARGS);
-		Collection<GrantedAuthority> authorities = convertAuthorities((Collection<?>) MethodUtils.invokeMethod(authorizationRequest, "getAuthorities", NO_ARGS));
-		Set<String> resourceIds = (Set<String>) MethodUtils.invokeMethod(authorizationRequest, "getResourceIds", NO_ARGS);
-		Boolean approvedObj = (Boolean) MethodUtils.invokeMethod(authorizationRequest, "isApproved", NO_ARGS);
+		Map<String, String> authorizationParameters = (Map<String, String>) ACCESSORS.invokeMethod(authorizationRequest, "getParameters", NO_ARGS);
+		// String clientId = (String) ACCESSORS.invokeMethod(authorizationRequest, "getClientId", NO_ARGS);
+		// Collection<String> scope = (Collection<String>) ACCESSORS.invokeMethod(authorizationRequest, "getScope", NO_ARGS);
+		Collection<GrantedAuthority> authorities = convertAuthorities((Collection<?>) ACCESSORS.invokeMethod(authorizationRequest, "getAuthorities", NO_ARGS));
+		Set<String> resourceIds = (Set<String>) ACCESSORS.invokeMethod(authorizationRequest, "getResourceIds", NO_ARGS);
+		Boolean approvedObj = (Boolean) ACCESSORS.invokeMethod(authorizationRequest, "isApproved", NO_ARGS);
 		boolean approved = false;
 		if (approvedObj != null) {
 			approved = approvedObj;
 		}
-		String redirectUri = (String) MethodUtils.invokeMethod(authorizationRequest, "getRedirectUri", NO_ARGS);
+		String redirectUri = (String) ACCESSORS.invokeMethod(authorizationRequest, "getRedirectUri", NO_ARGS);
 		DefaultAuthorizationRequest req = new DefaultAuthorizationRequest(authorizationParameters);
 		req.setApproved(approved);
 		req.setAuthorities(authorities);
@@ -569,7 +1833,7 @@ public class OauthDataMigrator {
 		List<GrantedAuthority> res = new ArrayList<GrantedAuthority>();
 		if (authorities != null) {
 			for (Object authority : authorities) {
-				String auth = (String) MethodUtils.invokeMethod(authority, "getAuthority", NO_ARGS);
+				String auth = (String) ACCESSORS.invokeMethod(authority, "getAuthority", NO_ARGS);
 				res.add(new SimpleGrantedAuthority(auth));
 			}
 		}
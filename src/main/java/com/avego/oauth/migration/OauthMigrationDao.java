@@ -16,7 +16,8 @@ import java.util.List;
 
 /**
  * The OauthMigrationDao represents a DAO for migrating oauth data
- * from pre 1.0 e.g. M6 to 1.0
+ * from pre 1.0 e.g. M6 to 1.0, a dao that only implements the original methods can extend AbstractOauthMigrationDao
+ * for default implementations of the paged, streamed and batched methods
  * @version $Id: OauthMigrationDao.java 66463 2013-05-16 14:29:24Z conor.roche $
  * @author conorroche
  */
@@ -73,6 +74,69 @@ public interface OauthMigrationDao {
 	 */
 	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(int limit);
 
+	/**
+	 * This gets a page of unmigrated oauth access token records within the given token id range from the db,
+	 * the records are ordered by token id and the page starts after the given token id so a caller can
+	 * resume reading from the last token id it saw rather than rescanning from the start of the table
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id records must be after or null to start from the beginning of the range
+	 * @param limit The max number of records to get
+	 * @return The list of oauth access token records, this is empty once there are no more records
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, int limit);
+
+	/**
+	 * This gets a page of unmigrated oauth refresh token records within the given token id range from the db,
+	 * the records are ordered by token id and the page starts after the given token id so a caller can
+	 * resume reading from the last token id it saw rather than rescanning from the start of the table
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id records must be after or null to start from the beginning of the range
+	 * @param limit The max number of records to get
+	 * @return The list of oauth refresh token records, this is empty once there are no more records
+	 */
+	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, int limit);
+
+	/**
+	 * This streams the unmigrated oauth access token records within the given token id range in token id order
+	 * to the given callback as they are read from the db, unlike the paged reads only the current record is held in memory
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id records must be after or null to start from the beginning of the range
+	 * @param callback The callback that processes each record
+	 */
+	public void streamUnmigratedOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthAccessTokenRecord> callback);
+
+	/**
+	 * This streams the unmigrated oauth refresh token records within the given token id range in token id order
+	 * to the given callback as they are read from the db, unlike the paged reads only the current record is held in memory
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id records must be after or null to start from the beginning of the range
+	 * @param callback The callback that processes each record
+	 */
+	public void streamUnmigratedOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback);
+
+	/**
+	 * This gets the unmigrated oauth refresh token records with the given token ids from the db, this is used to read the
+	 * refresh tokens of a page of access tokens in a single query so both can be migrated together
+	 * @param tokenIds The token ids of the refresh tokens
+	 * @return The list of oauth refresh token records that exist and are unmigrated, in no particular order
+	 */
+	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(List<String> tokenIds);
+
+	/**
+	 * This gets the unmigrated oauth access token records with the given token ids from the db, this is used to migrate
+	 * a token that is read before the bulk migration has reached it
+	 * @param tokenIds The token ids of the access tokens
+	 * @return The list of oauth access token records that exist and are unmigrated, in no particular order
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(List<String> tokenIds);
+
+	/**
+	 * This gets the unmigrated oauth access token records that were issued with the given refresh token
+	 * @param refreshToken The unmigrated refresh token value
+	 * @return The list of oauth access token records, in no particular order
+	 */
+	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecordsForRefreshToken(String refreshToken);
+
 	/**
 	 * This gets a given number of migrated oauth access token records from the db
 	 * @param limit The max number of records to get
@@ -106,4 +170,31 @@ public interface OauthMigrationDao {
 	 */
 	public void updateOauthRefreshToken(String oldTokenId, String newTokenId, byte[] tokenData, byte[] authData);
 
+	/**
+	 * This updates a list of oauth access tokens in the db, implementations should write the
+	 * updates in batches rather than one statement per token
+	 * @param updates The migrated access token data
+	 */
+	public void updateOauthAccessTokens(List<OauthAccessTokenUpdate> updates);
+
+	/**
+	 * This updates a list of oauth refresh tokens in the db, implementations should write the
+	 * updates in batches rather than one statement per token
+	 * @param updates The migrated refresh token data
+	 */
+	public void updateOauthRefreshTokens(List<OauthRefreshTokenUpdate> updates);
+
+	/**
+	 * This updates a list of oauth access tokens and a list of oauth refresh tokens in the db in a single transaction
+	 * so an access token and its refresh token are either both migrated or neither is
+	 * @param accessTokenUpdates The migrated access token data
+	 * @param refreshTokenUpdates The migrated refresh token data
+	 */
+	public void updateOauthTokens(List<OauthAccessTokenUpdate> accessTokenUpdates, List<OauthRefreshTokenUpdate> refreshTokenUpdates);
+
+	/**
+	 * This is called once all the tokens have been migrated, a dao that copies the migrated tokens to new tables can swap them in
+	 */
+	public void finishMigration();
+
 }
@@ -37,4 +37,13 @@ public class OauthRefreshTokenRecord extends TokenRecord {
 		this.authentication = authentication;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.TokenRecord#getDataLength()
+	 */
+	@Override
+	public int getDataLength() {
+		return super.getDataLength() + (this.authentication == null ? 0 : this.authentication.length);
+	}
+
 }
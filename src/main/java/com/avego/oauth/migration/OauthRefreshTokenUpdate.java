@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+/**
+ * The OauthRefreshTokenUpdate represents the migrated data for an oauth refresh token record in the db
+ * @version $Id$
+ * @author conorroche
+ */
+public class OauthRefreshTokenUpdate extends TokenUpdate {
+
+	/**
+	 * This creates an OauthRefreshTokenUpdate
+	 * @param oldTokenId The old token id
+	 * @param newTokenId The new token id
+	 * @param tokenData The serialized token data
+	 * @param authData The serialized authentication data
+	 */
+	public OauthRefreshTokenUpdate(String oldTokenId, String newTokenId, byte[] tokenData, byte[] authData) {
+		super(oldTokenId, newTokenId, tokenData, authData);
+	}
+
+}
@@ -12,8 +12,12 @@
  */
 package com.avego.oauth.migration;
 
+import java.io.ByteArrayInputStream;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.Map;
+import java.util.Properties;
 
 import javax.sql.DataSource;
 
@@ -28,7 +32,29 @@ import oracle.jdbc.pool.OracleDataSource;
 public class OracleOauthMigrationDao extends JdbcOauthMigrationDao {
 
 	/**
-	 * This creates a MysqlOauthMigrationDao
+	 * This is the default number of rows the oracle driver prefetches when streaming token records
+	 */
+	public static final int DEFAULT_ORACLE_FETCH_SIZE = 500;
+
+	/**
+	 * This is the param key for the number of bytes of each blob the oracle driver returns with the row rather than
+	 * fetching the blob in another round trip, it should be at least the average size of the serialized tokens and authentications
+	 */
+	public static final String LOB_PREFETCH_SIZE_KEY = "lob_prefetch_size";
+
+	/**
+	 * This is the default number of bytes of each blob prefetched with the row, most serialized tokens and authentications are
+	 * well under this
+	 */
+	public static final int DEFAULT_LOB_PREFETCH_SIZE = 8192;
+
+	/**
+	 * This is the largest value the oracle driver binds directly for sql on a blob column, larger values are streamed
+	 */
+	static final int MAX_DIRECT_BIND_SIZE = 2000;
+
+	/**
+	 * This creates a OracleOauthMigrationDao
 	 * @param params The dao params
 	 * @throws SQLException
 	 */
@@ -47,6 +73,54 @@ public class OracleOauthMigrationDao extends JdbcOauthMigrationDao {
 		ds.setURL(getJdbcUrl());
 		ds.setUser(getUser());
 		ds.setPassword(getPass());
+		// each row and its blobs are returned in the same round trip both for the pages and when streaming
+		Properties props = new Properties();
+		props.setProperty("defaultRowPrefetch", String.valueOf(getStreamingFetchSize()));
+		props.setProperty("oracle.jdbc.defaultLobPrefetchSize", String.valueOf(ParamUtils.getInt(getParams(), LOB_PREFETCH_SIZE_KEY,
+				DEFAULT_LOB_PREFETCH_SIZE)));
+		ds.setConnectionProperties(props);
+		// the driver caches the statements itself when the pool does not
+		if (getPoolSize() <= 0
+				|| ParamUtils.getInt(getParams(), STATEMENT_CACHE_SIZE_KEY, PooledDataSource.DEFAULT_STATEMENT_CACHE_SIZE) <= 0) {
+			ds.setImplicitCachingEnabled(true);
+		}
 		return ds;
 	}
+
+	/**
+	 * {@inheritDoc} Oracle has no limit clause, ROWNUM is used rather than fetch first so it also works before 12c,
+	 * oracle stops reading the token_id index once the first rows of the ordered inner query are found
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getLimitedQuerySql(java.lang.String, int)
+	 */
+	@Override
+	protected String getLimitedQuerySql(String sql, int limit) {
+		return "select * from (" + sql + ") where rownum <= " + limit;
+	}
+
+	/**
+	 * {@inheritDoc} The driver only binds values of up to 2000 bytes directly for sql on a blob column, these are bound as bytes.
+	 * Larger values are streamed by the driver whichever setter is used so they are bound as a stream of known length rather
+	 * than as a blob which would create a temporary lob per row.
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#setBlobParameter(java.sql.PreparedStatement, int, byte[])
+	 */
+	@Override
+	protected void setBlobParameter(PreparedStatement ps, int index, byte[] data) throws SQLException {
+		if (data == null) {
+			ps.setNull(index, Types.BLOB);
+		} else if (data.length > MAX_DIRECT_BIND_SIZE) {
+			ps.setBinaryStream(index, new ByteArrayInputStream(data), data.length);
+		} else {
+			ps.setBytes(index, data);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} The oracle driver prefetches 10 rows per round trip by default which
+	 * is too few when streaming the token tables
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getStreamingFetchSize()
+	 */
+	@Override
+	protected int getStreamingFetchSize() {
+		return ParamUtils.getInt(getParams(), FETCH_SIZE_KEY, DEFAULT_ORACLE_FETCH_SIZE);
+	}
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ParallelMigrationEngine represents an engine that splits the token id space into
+ * non overlapping ranges and migrates the ranges concurrently using a fixed pool of worker threads.
+ * If migrating any range fails the remaining workers stop after their current page
+ * @version $Id$
+ * @author conorroche
+ */
+public class ParallelMigrationEngine {
+
+	private final int numThreads;
+	private final int numRanges;
+	private final int pageSize;
+	private final boolean streaming;
+	private MigrationCheckpoint checkpoint;
+
+	/**
+	 * This creates a ParallelMigrationEngine
+	 * @param numThreads The number of worker threads
+	 * @param numRanges The number of token id ranges to split the tokens into
+	 * @param pageSize The max number of records read per query or converted per write when streaming
+	 * @param streaming Whether to stream the records of each range rather than read them a page at a time
+	 */
+	public ParallelMigrationEngine(int numThreads, int numRanges, int pageSize, boolean streaming) {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException("The number of threads must be at least 1 but was: " + numThreads);
+		}
+		this.numThreads = numThreads;
+		this.numRanges = Math.max(numRanges, numThreads);
+		this.pageSize = pageSize;
+		this.streaming = streaming;
+	}
+
+	/**
+	 * This migrates all the unmigrated tokens of the given migration
+	 * @param migration The migration to run
+	 * @return The results for each range in token id order
+	 * @throws ExecutionException If migrating a range failed, the cause is the exception thrown by the migration
+	 * @throws InterruptedException If interrupted whilst waiting for the workers to finish
+	 */
+	public <R extends TokenRecord, U extends TokenUpdate> List<RangeMigrationResult> migrate(TokenMigration<R, U> migration) throws ExecutionException,
+			InterruptedException {
+
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final AtomicInteger threadNum = new AtomicInteger(0);
+		ExecutorService executor = Executors.newFixedThreadPool(this.numThreads, new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "oauth-migration-worker-" + threadNum.incrementAndGet());
+			}
+		});
+
+		List<Future<RangeMigrationResult>> futures = new ArrayList<Future<RangeMigrationResult>>(this.numRanges);
+		try {
+			for (TokenIdRange range : TokenIdRange.split(this.numRanges)) {
+				final RangeMigrationTask<R, U> task = new RangeMigrationTask<R, U>(migration, range, this.pageSize, failed, this.streaming,
+						this.checkpoint);
+				futures.add(executor.submit(new Callable<RangeMigrationResult>() {
+
+					public RangeMigrationResult call() throws Exception {
+						try {
+							return task.call();
+						} catch (Exception ex) {
+							failed.set(true);
+							throw ex;
+						}
+					}
+				}));
+			}
+			executor.shutdown();
+
+			List<RangeMigrationResult> results = new ArrayList<RangeMigrationResult>(futures.size());
+			for (Future<RangeMigrationResult> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * This gets the number of worker threads
+	 * @return the number of worker threads
+	 */
+	public int getNumThreads() {
+		return this.numThreads;
+	}
+
+	/**
+	 * This gets the number of token id ranges the tokens are split into
+	 * @return the number of token id ranges
+	 */
+	public int getNumRanges() {
+		return this.numRanges;
+	}
+
+	/**
+	 * This gets the checkpoint the progress of each range is recorded in
+	 * @return the checkpoint or null if progress is not recorded
+	 */
+	public MigrationCheckpoint getCheckpoint() {
+		return this.checkpoint;
+	}
+
+	/**
+	 * This sets the checkpoint the progress of each range is recorded in, ranges resume from the checkpoint
+	 * @param checkpoint the checkpoint or null if progress is not recorded
+	 */
+	public void setCheckpoint(MigrationCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.Map;
+
+/**
+ * The ParamUtils represents a utility class for reading migration parameters,
+ * a value in the params map takes precedence over a system property of the same name
+ * @version $Id$
+ * @author conorroche
+ */
+public class ParamUtils {
+
+	/**
+	 * This gets a string parameter
+	 * @param params The params, may be null
+	 * @param key The param key, also used as the system property name
+	 * @param defaultValue The value to return if the param is not set
+	 * @return The param value or the default value if it is not set
+	 */
+	public static String getString(Map<String, Object> params, String key, String defaultValue) {
+		Object val = params == null ? null : params.get(key);
+		if (val == null) {
+			val = System.getProperty(key);
+		}
+		return val == null || val.toString().length() == 0 ? defaultValue : val.toString();
+	}
+
+	/**
+	 * This gets an int parameter
+	 * @param params The params, may be null
+	 * @param key The param key, also used as the system property name
+	 * @param defaultValue The value to return if the param is not set
+	 * @return The param value or the default value if it is not set
+	 */
+	public static int getInt(Map<String, Object> params, String key, int defaultValue) {
+		String val = getString(params, key, null);
+		return val == null ? defaultValue : Integer.parseInt(val.trim());
+	}
+
+	/**
+	 * This gets a long parameter
+	 * @param params The params, may be null
+	 * @param key The param key, also used as the system property name
+	 * @param defaultValue The value to return if the param is not set
+	 * @return The param value or the default value if it is not set
+	 */
+	public static long getLong(Map<String, Object> params, String key, long defaultValue) {
+		String val = getString(params, key, null);
+		return val == null ? defaultValue : Long.parseLong(val.trim());
+	}
+
+	/**
+	 * This gets a boolean parameter
+	 * @param params The params, may be null
+	 * @param key The param key, also used as the system property name
+	 * @param defaultValue The value to return if the param is not set
+	 * @return The param value or the default value if it is not set
+	 */
+	public static boolean getBoolean(Map<String, Object> params, String key, boolean defaultValue) {
+		String val = getString(params, key, null);
+		return val == null ? defaultValue : Boolean.parseBoolean(val.trim());
+	}
+
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.support.JdbcUtils;
+
+/**
+ * The PooledDataSource represents a fixed size pool of connections created by a target datasource. Closing a connection
+ * handed out by the pool returns it to the pool, the most recently returned connection is handed out first so the pool
+ * only opens as many physical connections as the migration threads use at the same time. Each pooled connection caches
+ * the prepared statements created with just the sql so the batch updates and paged queries are only prepared once per
+ * connection. A connection that has been idle for longer than the validation interval is validated before it is handed
+ * out and replaced if it is no longer valid. The time spent waiting for a connection is recorded so an undersized
+ * pool shows up in the migration summary. The migration only needs a fixed size pool whose wait and statement cache
+ * counts can be reported with the other migration metrics, so this small pool is used rather than adding a pool library
+ * to the migrator's dependencies.
+ * @version $Id$
+ * @author conorroche
+ */
+public class PooledDataSource extends AbstractDataSource {
+
+	/**
+	 * This is the default max time in milliseconds to wait for a connection
+	 */
+	public static final long DEFAULT_MAX_WAIT = 30000;
+
+	/**
+	 * This is the default max number of prepared statements cached per connection
+	 */
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 20;
+
+	/**
+	 * This is the default time in milliseconds a connection may be idle before it is validated
+	 */
+	public static final long DEFAULT_VALIDATION_INTERVAL = 30000;
+
+	/**
+	 * This is the time in seconds the driver is given to validate a connection
+	 */
+	private static final int VALIDATION_TIMEOUT = 5;
+
+	private static final Method PREPARE_STATEMENT_METHOD;
+	static {
+		try {
+			PREPARE_STATEMENT_METHOD = Connection.class.getMethod("prepareStatement", String.class);
+		} catch (NoSuchMethodException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private final DataSource target;
+	private final int maxSize;
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private long maxWait = DEFAULT_MAX_WAIT;
+	private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+	private long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+	private String validationQuery;
+	private volatile boolean closed;
+
+	private final AtomicLong numBorrowed = new AtomicLong();
+	private final AtomicLong numCreated = new AtomicLong();
+	private final AtomicLong numInvalid = new AtomicLong();
+	private final AtomicLong numTimeouts = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+
+	/**
+	 * This creates a PooledDataSource
+	 * @param target The datasource that creates the physical connections
+	 * @param maxSize The max number of connections in the pool
+	 */
+	public PooledDataSource(DataSource target, int maxSize) {
+		if (target == null) {
+			throw new IllegalArgumentException("The target datasource may not be null");
+		}
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("The max size of the pool must be at least 1");
+		}
+		this.target = target;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * {@inheritDoc} This waits up to the max wait for a connection to be returned when all the connections are in use
+	 * @see javax.sql.DataSource#getConnection()
+	 */
+	public Connection getConnection() throws SQLException {
+		if (this.closed) {
+			throw new SQLException("The connection pool is closed");
+		}
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = this.permits.tryAcquire(this.maxWait, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection", ex);
+		}
+		long waited = System.nanoTime() - start;
+		this.waitNanos.addAndGet(waited);
+		updateMaxWait(waited);
+		if (!acquired) {
+			this.numTimeouts.incrementAndGet();
+			throw new SQLException("Timed out after " + this.maxWait + "ms waiting for one of the " + this.maxSize
+					+ " pooled connection(s), the pool size may be too small for the number of migration threads");
+		}
+		try {
+			PooledConnection connection = borrow();
+			this.numBorrowed.incrementAndGet();
+			return connection.open();
+		} catch (SQLException ex) {
+			this.permits.release();
+			throw ex;
+		} catch (RuntimeException ex) {
+			this.permits.release();
+			throw ex;
+		}
+	}
+
+	/**
+	 * {@inheritDoc} The pool always uses the credentials it was created with
+	 * @see javax.sql.DataSource#getConnection(java.lang.String, java.lang.String)
+	 */
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("The pooled datasource does not support connections with other credentials");
+	}
+
+	private PooledConnection borrow() throws SQLException {
+		PooledConnection connection;
+		while ((connection = this.idle.pollFirst()) != null) {
+			if (connection.validate()) {
+				return connection;
+			}
+			this.numInvalid.incrementAndGet();
+			connection.closePhysical();
+		}
+		connection = new PooledConnection(this.target.getConnection());
+		this.numCreated.incrementAndGet();
+		return connection;
+	}
+
+	private void release(PooledConnection connection, boolean reusable) {
+		if (reusable && !this.closed) {
+			this.idle.offerFirst(connection);
+		} else {
+			connection.closePhysical();
+		}
+		this.permits.release();
+	}
+
+	private void updateMaxWait(long waited) {
+		long max;
+		while (waited > (max = this.maxWaitNanos.get())) {
+			if (this.maxWaitNanos.compareAndSet(max, waited)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * This closes the idle physical connections of the pool, connections in use are closed when they are returned
+	 */
+	public void close() {
+		this.closed = true;
+		PooledConnection connection;
+		while ((connection = this.idle.pollFirst()) != null) {
+			connection.closePhysical();
+		}
+	}
+
+	/**
+	 * This gets the max number of connections in the pool
+	 * @return the max number of connections in the pool
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * This gets the number of idle connections in the pool
+	 * @return the number of idle connections in the pool
+	 */
+	public int getNumIdle() {
+		return this.idle.size();
+	}
+
+	/**
+	 * This gets the number of connections currently handed out by the pool
+	 * @return the number of connections in use
+	 */
+	public int getNumActive() {
+		return this.maxSize - this.permits.availablePermits();
+	}
+
+	/**
+	 * This gets the max time in milliseconds to wait for a connection
+	 * @return the max time in milliseconds to wait for a connection
+	 */
+	public long getMaxWait() {
+		return this.maxWait;
+	}
+
+	/**
+	 * This sets the max time in milliseconds to wait for a connection
+	 * @param maxWait the max time in milliseconds to wait for a connection
+	 */
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * This gets the max number of prepared statements cached per connection, 0 if statements are not cached
+	 * @return the max number of prepared statements cached per connection
+	 */
+	public int getStatementCacheSize() {
+		return this.statementCacheSize;
+	}
+
+	/**
+	 * This sets the max number of prepared statements cached per connection, 0 disables the statement cache
+	 * @param statementCacheSize the max number of prepared statements cached per connection
+	 */
+	public void setStatementCacheSize(int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * This gets the time in milliseconds a connection may be idle before it is validated
+	 * @return the time in milliseconds a connection may be idle before it is validated
+	 */
+	public long getValidationInterval() {
+		return this.validationInterval;
+	}
+
+	/**
+	 * This sets the time in milliseconds a connection may be idle before it is validated, 0 validates it each time it is handed out
+	 * @param validationInterval the time in milliseconds a connection may be idle before it is validated
+	 */
+	public void setValidationInterval(long validationInterval) {
+		this.validationInterval = validationInterval;
+	}
+
+	/**
+	 * This gets the query used to validate connections, null if the driver validates them
+	 * @return the query used to validate connections
+	 */
+	public String getValidationQuery() {
+		return this.validationQuery;
+	}
+
+	/**
+	 * This sets the query used to validate connections, null uses the driver's connection validation
+	 * @param validationQuery the query used to validate connections
+	 */
+	public void setValidationQuery(String validationQuery) {
+		this.validationQuery = validationQuery;
+	}
+
+	/**
+	 * This gets the number of connections handed out by the pool
+	 * @return the number of connections handed out
+	 */
+	public long getNumBorrowed() {
+		return this.numBorrowed.get();
+	}
+
+	/**
+	 * This gets the number of physical connections the pool has opened
+	 * @return the number of physical connections opened
+	 */
+	public long getNumCreated() {
+		return this.numCreated.get();
+	}
+
+	/**
+	 * This gets the number of idle connections that failed validation and were replaced
+	 * @return the number of connections that failed validation
+	 */
+	public long getNumInvalid() {
+		return this.numInvalid.get();
+	}
+
+	/**
+	 * This gets the number of times the max wait elapsed before a connection was available
+	 * @return the number of timeouts
+	 */
+	public long getNumTimeouts() {
+		return this.numTimeouts.get();
+	}
+
+	/**
+	 * This gets the total time in milliseconds spent waiting for connections
+	 * @return the total time in milliseconds spent waiting for connections
+	 */
+	public long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.waitNanos.get());
+	}
+
+	/**
+	 * This gets the average time in milliseconds spent waiting for a connection
+	 * @return the average time in milliseconds spent waiting for a connection
+	 */
+	public double getAverageWaitMillis() {
+		long requests = this.numBorrowed.get() + this.numTimeouts.get();
+		return requests == 0 ? 0 : this.waitNanos.get() / 1000000.0 / requests;
+	}
+
+	/**
+	 * This gets the longest time in milliseconds spent waiting for a connection
+	 * @return the longest time in milliseconds spent waiting for a connection
+	 */
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos.get());
+	}
+
+	/**
+	 * This gets the number of prepared statements reused from the statement cache
+	 * @return the number of statement cache hits
+	 */
+	public long getStatementHits() {
+		return this.statementHits.get();
+	}
+
+	/**
+	 * This gets the number of cacheable prepared statements that had to be prepared
+	 * @return the number of statement cache misses
+	 */
+	public long getStatementMisses() {
+		return this.statementMisses.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("Connection pool: %d connection(s) of %d opened, %d borrow(s), %.2fms avg wait, %dms max wait, %dms total wait, "
+				+ "%d timeout(s), %d invalid connection(s), %d statement cache hit(s), %d miss(es)", getNumCreated(), this.maxSize, getNumBorrowed(),
+				getAverageWaitMillis(), getMaxWaitMillis(), getTotalWaitMillis(), getNumTimeouts(), getNumInvalid(), getStatementHits(),
+				getStatementMisses());
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException ex) {
+			throw ex.getTargetException();
+		}
+	}
+
+	/**
+	 * The PooledConnection represents a physical connection of the pool and its statement cache
+	 */
+	private final class PooledConnection {
+
+		private final Connection physical;
+		private final Map<String, PreparedStatement> statements;
+		private long lastUsed = System.currentTimeMillis();
+		private boolean physicalClosed;
+
+		PooledConnection(Connection physical) {
+			this.physical = physical;
+			final int cacheSize = PooledDataSource.this.statementCacheSize;
+			this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (size() > cacheSize) {
+						JdbcUtils.closeStatement(eldest.getValue());
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * This creates the proxy handed out for a single use of the connection
+		 */
+		Connection open() {
+			return (Connection) Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(), new Class<?>[] { Connection.class },
+					new ConnectionHandler(this));
+		}
+
+		boolean validate() {
+			if (System.currentTimeMillis() - this.lastUsed < PooledDataSource.this.validationInterval) {
+				return true;
+			}
+			try {
+				if (PooledDataSource.this.validationQuery == null) {
+					return this.physical.isValid(VALIDATION_TIMEOUT);
+				}
+				Statement stmt = this.physical.createStatement();
+				try {
+					stmt.setQueryTimeout(VALIDATION_TIMEOUT);
+					stmt.execute(PooledDataSource.this.validationQuery);
+				} finally {
+					JdbcUtils.closeStatement(stmt);
+				}
+				return true;
+			} catch (SQLException ex) {
+				return false;
+			}
+		}
+
+		/**
+		 * This gets a cached statement for the sql removing it from the cache while it is in use
+		 */
+		synchronized PreparedStatement takeStatement(String sql) {
+			return this.statements.remove(sql);
+		}
+
+		/**
+		 * This returns a statement to the cache, if another statement for the same sql was returned first this one is closed
+		 */
+		synchronized void returnStatement(String sql, PreparedStatement statement) {
+			if (this.physicalClosed || PooledDataSource.this.statementCacheSize <= 0 || this.statements.containsKey(sql)) {
+				JdbcUtils.closeStatement(statement);
+			} else {
+				this.statements.put(sql, statement);
+			}
+		}
+
+		/**
+		 * This resets the state a user of the connection may have changed so it is clean for the next user
+		 */
+		boolean reset() {
+			try {
+				if (!this.physical.getAutoCommit()) {
+					this.physical.rollback();
+					this.physical.setAutoCommit(true);
+				}
+				this.physical.clearWarnings();
+				this.lastUsed = System.currentTimeMillis();
+				return true;
+			} catch (SQLException ex) {
+				return false;
+			}
+		}
+
+		synchronized void closePhysical() {
+			this.physicalClosed = true;
+			for (Iterator<PreparedStatement> it = this.statements.values().iterator(); it.hasNext();) {
+				JdbcUtils.closeStatement(it.next());
+				it.remove();
+			}
+			JdbcUtils.closeConnection(this.physical);
+		}
+	}
+
+	/**
+	 * The ConnectionHandler represents the proxy of a pooled connection for a single use, closing it returns the connection
+	 * to the pool and any later calls fail as they would on a closed connection
+	 */
+	private final class ConnectionHandler implements InvocationHandler {
+
+		private final PooledConnection connection;
+		private boolean closed;
+
+		ConnectionHandler(PooledConnection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "Pooled connection: " + this.connection.physical;
+			} else if (name.equals("isClosed") && method.getParameterTypes().length == 0) {
+				return this.closed;
+			} else if (name.equals("close") && method.getParameterTypes().length == 0) {
+				if (!this.closed) {
+					this.closed = true;
+					release(this.connection, this.connection.reset());
+				}
+				return null;
+			} else if (this.closed) {
+				throw new SQLException("The connection has been returned to the pool");
+			} else if (method.equals(PREPARE_STATEMENT_METHOD) && PooledDataSource.this.statementCacheSize > 0) {
+				String sql = (String) args[0];
+				PreparedStatement statement = this.connection.takeStatement(sql);
+				if (statement == null) {
+					PooledDataSource.this.statementMisses.incrementAndGet();
+					statement = this.connection.physical.prepareStatement(sql);
+				} else {
+					PooledDataSource.this.statementHits.incrementAndGet();
+				}
+				return Proxy.newProxyInstance(PooledDataSource.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+						new StatementHandler(this.connection, sql, statement, (Connection) proxy));
+			}
+			return PooledDataSource.invoke(this.connection.physical, method, args);
+		}
+	}
+
+	/**
+	 * The StatementHandler represents the proxy of a cached prepared statement, closing it clears its parameters and batch
+	 * and returns it to the statement cache of its connection
+	 */
+	private static final class StatementHandler implements InvocationHandler {
+
+		private final PooledConnection connection;
+		private final String sql;
+		private final PreparedStatement statement;
+		private final Connection proxyConnection;
+		private boolean closed;
+
+		StatementHandler(PooledConnection connection, String sql, PreparedStatement statement, Connection proxyConnection) {
+			this.connection = connection;
+			this.sql = sql;
+			this.statement = statement;
+			this.proxyConnection = proxyConnection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString")) {
+				return "Cached statement: " + this.statement;
+			} else if (name.equals("isClosed") && method.getParameterTypes().length == 0) {
+				return this.closed;
+			} else if (name.equals("close") && method.getParameterTypes().length == 0) {
+				if (!this.closed) {
+					this.closed = true;
+					try {
+						this.statement.clearParameters();
+						this.statement.clearBatch();
+						this.statement.clearWarnings();
+						this.connection.returnStatement(this.sql, this.statement);
+					} catch (SQLException ex) {
+						JdbcUtils.closeStatement(this.statement);
+					}
+				}
+				return null;
+			} else if (this.closed) {
+				throw new SQLException("The statement has been closed");
+			} else if (name.equals("getConnection") && method.getParameterTypes().length == 0) {
+				return this.proxyConnection;
+			}
+			return PooledDataSource.invoke(this.statement, method, args);
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The PostgresCopyEncoder encodes rows in the binary format read by the postgres copy from stdin command. Each row is
+ * written as its number of fields followed by the length and bytes of each field, strings are sent as utf8 and byte
+ * arrays as they are so the serialized tokens are not escaped as they would be in the text format.
+ * @version $Id$
+ * @author conorroche
+ */
+public class PostgresCopyEncoder {
+
+	private static final byte[] SIGNATURE = new byte[] { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0 };
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int numFields;
+	private final ByteArrayOutputStream bytes;
+	private final DataOutputStream out;
+	private int numRows;
+
+	/**
+	 * This creates a PostgresCopyEncoder
+	 * @param numFields The number of fields in each row
+	 */
+	public PostgresCopyEncoder(int numFields) {
+		if (numFields < 1) {
+			throw new IllegalArgumentException("The number of fields must be at least 1");
+		}
+		this.numFields = numFields;
+		this.bytes = new ByteArrayOutputStream(4096);
+		this.out = new DataOutputStream(this.bytes);
+		try {
+			this.out.write(SIGNATURE);
+			// no flags and no header extension
+			this.out.writeInt(0);
+			this.out.writeInt(0);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Failed to write to a byte array", ex);
+		}
+	}
+
+	/**
+	 * This adds a row
+	 * @param values The field values which must be strings, byte arrays or null
+	 */
+	public void addRow(Object... values) {
+		if (values.length != this.numFields) {
+			throw new IllegalArgumentException("Expected " + this.numFields + " fields but got " + values.length);
+		}
+		try {
+			this.out.writeShort(this.numFields);
+			for (Object value : values) {
+				if (value == null) {
+					this.out.writeInt(-1);
+				} else if (value instanceof byte[]) {
+					writeField((byte[]) value);
+				} else if (value instanceof String) {
+					writeField(((String) value).getBytes(UTF8));
+				} else {
+					throw new IllegalArgumentException("Unsupported field type: " + value.getClass().getName());
+				}
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException("Failed to write to a byte array", ex);
+		}
+		this.numRows++;
+	}
+
+	private void writeField(byte[] value) throws IOException {
+		this.out.writeInt(value.length);
+		this.out.write(value);
+	}
+
+	/**
+	 * This gets the encoded rows followed by the trailer that ends the copy data
+	 * @return The copy data
+	 */
+	public byte[] toByteArray() {
+		byte[] data = this.bytes.toByteArray();
+		byte[] copyData = new byte[data.length + 2];
+		System.arraycopy(data, 0, copyData, 0, data.length);
+		// the trailer is a field count of -1
+		copyData[data.length] = (byte) 0xff;
+		copyData[data.length + 1] = (byte) 0xff;
+		return copyData;
+	}
+
+	/**
+	 * This gets a stream of the copy data
+	 * @return The copy data stream
+	 */
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(toByteArray());
+	}
+
+	/**
+	 * This gets the number of rows added
+	 * @return the number of rows
+	 */
+	public int getNumRows() {
+		return this.numRows;
+	}
+
+}
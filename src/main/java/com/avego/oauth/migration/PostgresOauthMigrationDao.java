@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.postgresql.Driver;
+import org.postgresql.PGConnection;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.jdbc.support.JdbcUtils;
+
+/**
+ * The PostgresOauthMigrationDao represents a postgres jdbc template implementation
+ * of the oauth migration dao. The token records are streamed through a server side cursor and the migrated
+ * tokens are sent to a temporary staging table with a binary copy then applied to the token tables with a single
+ * update or insert, which is far fewer round trips than a batch update of each row.
+ * @version $Id$
+ * @author conorroche
+ */
+public class PostgresOauthMigrationDao extends JdbcOauthMigrationDao {
+
+	/**
+	 * This is the default number of rows read per round trip from the cursor when streaming token records
+	 */
+	public static final int DEFAULT_POSTGRES_FETCH_SIZE = 1000;
+
+	private static final String ACCESS_TOKEN_STAGE_TABLE = "oauth_access_token_stage";
+
+	private static final String REFRESH_TOKEN_STAGE_TABLE = "oauth_refresh_token_stage";
+
+	/**
+	 * This creates a PostgresOauthMigrationDao
+	 * @param params The dao params
+	 * @throws SQLException
+	 */
+	public PostgresOauthMigrationDao(Map<String, Object> params) throws SQLException {
+		super(params);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#buildDataSource()
+	 */
+	@Override
+	protected DataSource buildDataSource() {
+		return new SimpleDriverDataSource(new Driver(), getJdbcUrl(), getUser(), getPass());
+	}
+
+	/**
+	 * {@inheritDoc} The postgres driver reads the whole result set into memory unless a fetch size is set
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getStreamingFetchSize()
+	 */
+	@Override
+	protected int getStreamingFetchSize() {
+		return ParamUtils.getInt(getParams(), FETCH_SIZE_KEY, DEFAULT_POSTGRES_FETCH_SIZE);
+	}
+
+	/**
+	 * {@inheritDoc} The postgres driver only reads through a server side cursor within a transaction, with auto commit
+	 * it ignores the fetch size, so the query is run in a read only transaction
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#streamRecords(java.lang.String, java.util.List,
+	 *      org.springframework.jdbc.core.RowMapper, com.avego.oauth.migration.TokenRecordCallback)
+	 */
+	@Override
+	protected <R extends TokenRecord> void streamRecords(final String sql, final List<Object> args, final RowMapper<R> rowMapper,
+			final TokenRecordCallback<R> callback) {
+		final int fetchSize = getStreamingFetchSize();
+		getJdbcTemplate().execute(new ConnectionCallback<Object>() {
+
+			public Object doInConnection(Connection con) throws SQLException {
+				boolean autoCommit = con.getAutoCommit();
+				boolean readOnly = con.isReadOnly();
+				PreparedStatement ps = null;
+				ResultSet rs = null;
+				try {
+					con.setAutoCommit(false);
+					con.setReadOnly(true);
+					ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					ps.setFetchSize(fetchSize);
+					for (int i = 0; i < args.size(); i++) {
+						StatementCreatorUtils.setParameterValue(ps, i + 1, Types.VARCHAR, args.get(i));
+					}
+					rs = ps.executeQuery();
+					int rowNum = 0;
+					while (rs.next()) {
+						if (!callback.processRecord(rowMapper.mapRow(rs, rowNum++))) {
+							break;
+						}
+					}
+					JdbcUtils.closeResultSet(rs);
+					rs = null;
+					con.commit();
+				} catch (SQLException ex) {
+					con.rollback();
+					throw ex;
+				} catch (RuntimeException ex) {
+					con.rollback();
+					throw ex;
+				} finally {
+					JdbcUtils.closeResultSet(rs);
+					JdbcUtils.closeStatement(ps);
+					con.setReadOnly(readOnly);
+					con.setAutoCommit(autoCommit);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#updateOauthAccessTokens(java.util.List)
+	 */
+	@Override
+	public void updateOauthAccessTokens(List<OauthAccessTokenUpdate> updates) {
+		copyUpdates(updates, null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#updateOauthRefreshTokens(java.util.List)
+	 */
+	@Override
+	public void updateOauthRefreshTokens(List<OauthRefreshTokenUpdate> updates) {
+		copyUpdates(null, updates);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#updateOauthTokens(java.util.List, java.util.List)
+	 */
+	@Override
+	public void updateOauthTokens(List<OauthAccessTokenUpdate> accessTokenUpdates, List<OauthRefreshTokenUpdate> refreshTokenUpdates) {
+		copyUpdates(accessTokenUpdates, refreshTokenUpdates);
+	}
+
+	/**
+	 * This copies the given updates to the staging tables and applies them in a single transaction
+	 * @param accessTokenUpdates The access token updates which may be null
+	 * @param refreshTokenUpdates The refresh token updates which may be null
+	 */
+	private void copyUpdates(final List<OauthAccessTokenUpdate> accessTokenUpdates, final List<OauthRefreshTokenUpdate> refreshTokenUpdates) {
+		final boolean hasAccessTokens = accessTokenUpdates != null && !accessTokenUpdates.isEmpty();
+		final boolean hasRefreshTokens = refreshTokenUpdates != null && !refreshTokenUpdates.isEmpty();
+		if (!hasAccessTokens && !hasRefreshTokens) {
+			return;
+		}
+		getJdbcTemplate().execute(new ConnectionCallback<Object>() {
+
+			public Object doInConnection(Connection con) throws SQLException {
+				boolean autoCommit = con.getAutoCommit();
+				try {
+					con.setAutoCommit(false);
+					if (hasRefreshTokens) {
+						copyRefreshTokens(con, refreshTokenUpdates);
+					}
+					if (hasAccessTokens) {
+						copyAccessTokens(con, accessTokenUpdates);
+					}
+					con.commit();
+				} catch (SQLException ex) {
+					con.rollback();
+					throw ex;
+				} catch (RuntimeException ex) {
+					con.rollback();
+					throw ex;
+				} finally {
+					con.setAutoCommit(autoCommit);
+				}
+				return null;
+			}
+		});
+	}
+
+	private void copyAccessTokens(Connection con, List<OauthAccessTokenUpdate> updates) throws SQLException {
+		PostgresCopyEncoder encoder = new PostgresCopyEncoder(8);
+		for (OauthAccessTokenUpdate update : updates) {
+			encoder.addRow(update.getOldTokenId(), update.getNewTokenId(), update.getTokenData(), update.getAuthenticationId(), update.getUserName(),
+					update.getClientId(), update.getAuthData(), update.getNewRefreshToken());
+		}
+		// the staging table lasts for the session and its rows are deleted on commit
+		execute(con, "create temporary table if not exists " + ACCESS_TOKEN_STAGE_TABLE + " (old_token_id varchar(256), token_id varchar(256),"
+				+ " token bytea, authentication_id varchar(256), user_name varchar(256), client_id varchar(256), authentication bytea,"
+				+ " refresh_token varchar(256)) on commit delete rows");
+		copyIn(con, ACCESS_TOKEN_STAGE_TABLE, encoder);
+		String targetTableName = getTargetAccessTokenTableName();
+		if (targetTableName == null) {
+			execute(con, "update " + getAccessTokenTableName() + " t set token_id = s.token_id, refresh_token = s.refresh_token, token = s.token,"
+					+ " authentication = s.authentication from " + ACCESS_TOKEN_STAGE_TABLE + " s where t.token_id = s.old_token_id");
+		} else {
+			// rows copied before a restart are replaced as in the jdbc dao
+			execute(con, "delete from " + targetTableName + " t using " + ACCESS_TOKEN_STAGE_TABLE + " s where t.token_id = s.token_id");
+			execute(con, "insert into " + targetTableName + " (token_id, token, authentication_id, user_name, client_id, authentication, refresh_token)"
+					+ " select token_id, token, authentication_id, user_name, client_id, authentication, refresh_token from " + ACCESS_TOKEN_STAGE_TABLE);
+		}
+	}
+
+	private void copyRefreshTokens(Connection con, List<OauthRefreshTokenUpdate> updates) throws SQLException {
+		PostgresCopyEncoder encoder = new PostgresCopyEncoder(4);
+		for (OauthRefreshTokenUpdate update : updates) {
+			encoder.addRow(update.getOldTokenId(), update.getNewTokenId(), update.getTokenData(), update.getAuthData());
+		}
+		execute(con, "create temporary table if not exists " + REFRESH_TOKEN_STAGE_TABLE
+				+ " (old_token_id varchar(256), token_id varchar(256), token bytea, authentication bytea) on commit delete rows");
+		copyIn(con, REFRESH_TOKEN_STAGE_TABLE, encoder);
+		String targetTableName = getTargetRefreshTokenTableName();
+		if (targetTableName == null) {
+			execute(con, "update " + getRefreshTokenTableName() + " t set token_id = s.token_id, token = s.token, authentication = s.authentication from "
+					+ REFRESH_TOKEN_STAGE_TABLE + " s where t.token_id = s.old_token_id");
+		} else {
+			execute(con, "delete from " + targetTableName + " t using " + REFRESH_TOKEN_STAGE_TABLE + " s where t.token_id = s.token_id");
+			execute(con, "insert into " + targetTableName + " (token_id, token, authentication) select token_id, token, authentication from "
+					+ REFRESH_TOKEN_STAGE_TABLE);
+		}
+	}
+
+	/**
+	 * This sends the encoded rows to the given table with a binary copy
+	 * @param con The connection, it is unwrapped to get the postgres copy api
+	 * @param tableName The table to copy the rows to
+	 * @param encoder The encoded rows
+	 * @throws SQLException If the copy fails
+	 */
+	protected void copyIn(Connection con, String tableName, PostgresCopyEncoder encoder) throws SQLException {
+		try {
+			con.unwrap(PGConnection.class).getCopyAPI().copyIn("copy " + tableName + " from stdin (format binary)", encoder.getInputStream());
+		} catch (IOException ex) {
+			throw new SQLException("Failed to copy " + encoder.getNumRows() + " rows to " + tableName, ex);
+		}
+	}
+
+	private static void execute(Connection con, String sql) throws SQLException {
+		Statement stmt = con.createStatement();
+		try {
+			stmt.execute(sql);
+		} finally {
+			JdbcUtils.closeStatement(stmt);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} Postgres runs the statements sent in a single call in one transaction so the tables are renamed atomically
+	 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getRenameTablesSql(java.util.Map)
+	 */
+	@Override
+	protected List<String> getRenameTablesSql(Map<String, String> renames) {
+		StringBuilder sql = new StringBuilder();
+		for (String statement : super.getRenameTablesSql(renames)) {
+			if (sql.length() > 0) {
+				sql.append("; ");
+			}
+			sql.append(statement);
+		}
+		return Collections.singletonList(sql.toString());
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ProgressReporter represents a reporter that prints the progress of a token migration from a background thread
+ * at a fixed interval, the migration threads only update counters so reporting never slows down or serializes the migration.
+ * Each report has the number of tokens migrated, the rows/sec and bytes/sec written over the last interval,
+ * the estimated time remaining and the number of errors
+ * @version $Id$
+ * @author conorroche
+ */
+public class ProgressReporter {
+
+	private final String tokenType;
+	private final long totalRecords;
+	private final long intervalMillis;
+	private final PrintStream out;
+
+	private final AtomicLong numMigrated = new AtomicLong();
+	private final AtomicLong numBytes = new AtomicLong();
+	private final AtomicLong numErrors = new AtomicLong();
+
+	private ScheduledExecutorService executor;
+	private long startMillis;
+	private long lastReportMillis;
+	private long lastReportMigrated;
+	private long lastReportBytes;
+
+	/**
+	 * This creates a ProgressReporter
+	 * @param tokenType The type of token being migrated, used in the reports
+	 * @param totalRecords The number of tokens to migrate, used to estimate the time remaining
+	 * @param intervalMillis The interval between reports in ms, 0 or less disables the periodic reports
+	 * @param out The stream the reports are printed to
+	 */
+	public ProgressReporter(String tokenType, long totalRecords, long intervalMillis, PrintStream out) {
+		this.tokenType = tokenType;
+		this.totalRecords = totalRecords;
+		this.intervalMillis = intervalMillis;
+		this.out = out;
+	}
+
+	/**
+	 * This starts the periodic reports
+	 */
+	public synchronized void start() {
+		this.startMillis = System.currentTimeMillis();
+		this.lastReportMillis = this.startMillis;
+		if (this.intervalMillis > 0) {
+			this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "oauth-migration-progress");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.executor.scheduleAtFixedRate(new Runnable() {
+
+				public void run() {
+					report();
+				}
+			}, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * This stops the periodic reports and prints a final report
+	 */
+	public void stop() {
+		ScheduledExecutorService exec;
+		synchronized (this) {
+			exec = this.executor;
+			this.executor = null;
+		}
+		if (exec != null) {
+			exec.shutdownNow();
+		}
+		report();
+	}
+
+	/**
+	 * This records that tokens were written
+	 * @param count The number of tokens written
+	 * @param bytes The number of bytes of token and authentication data written
+	 */
+	public void recordMigrated(int count, long bytes) {
+		this.numMigrated.addAndGet(count);
+		this.numBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * This records that a token could not be migrated
+	 */
+	public void recordError() {
+		this.numErrors.incrementAndGet();
+	}
+
+	/**
+	 * This decorates the given migration so that the tokens it writes and the tokens it fails to transform are recorded by this reporter
+	 * @param migration The migration to decorate
+	 * @return The decorated migration
+	 */
+	public <R extends TokenRecord, U extends TokenUpdate> TokenMigration<R, U> track(final TokenMigration<R, U> migration) {
+		return new TokenMigration<R, U>() {
+
+			public String getTokenType() {
+				return migration.getTokenType();
+			}
+
+			public int countUnmigratedRecords() {
+				return migration.countUnmigratedRecords();
+			}
+
+			public List<R> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+				return migration.getUnmigratedRecords(range, afterTokenId, limit);
+			}
+
+			public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<R> callback) {
+				migration.streamUnmigratedRecords(range, afterTokenId, callback);
+			}
+
+			public U transform(R record) throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+					InvocationTargetException, InstantiationException {
+				boolean transformed = false;
+				try {
+					U update = migration.transform(record);
+					transformed = true;
+					return update;
+				} finally {
+					if (!transformed) {
+						recordError();
+					}
+				}
+			}
+
+			public void write(List<U> updates) {
+				migration.write(updates);
+				long bytes = 0;
+				for (U update : updates) {
+					bytes += length(update.getTokenData()) + length(update.getAuthData());
+				}
+				recordMigrated(updates.size(), bytes);
+			}
+		};
+	}
+
+	/**
+	 * This gets the number of tokens migrated so far
+	 * @return the number of tokens migrated so far
+	 */
+	public long getNumMigrated() {
+		return this.numMigrated.get();
+	}
+
+	/**
+	 * This gets the number of bytes written so far
+	 * @return the number of bytes written so far
+	 */
+	public long getNumBytes() {
+		return this.numBytes.get();
+	}
+
+	/**
+	 * This gets the number of errors so far
+	 * @return the number of errors so far
+	 */
+	public long getNumErrors() {
+		return this.numErrors.get();
+	}
+
+	/**
+	 * This prints a report of the progress since the last report
+	 */
+	synchronized void report() {
+		long now = System.currentTimeMillis();
+		long migrated = this.numMigrated.get();
+		long bytes = this.numBytes.get();
+		long elapsed = Math.max(1, now - this.lastReportMillis);
+
+		long rowsPerSec = (migrated - this.lastReportMigrated) * 1000 / elapsed;
+		long bytesPerSec = (bytes - this.lastReportBytes) * 1000 / elapsed;
+		this.out.println("Migrated " + migrated + "/" + this.totalRecords + " " + this.tokenType + "(s), " + rowsPerSec + " rows/sec, "
+				+ bytesPerSec / 1024 + " KB/sec, ETA " + formatEta(migrated, now) + ", " + this.numErrors.get() + " error(s)");
+
+		this.lastReportMillis = now;
+		this.lastReportMigrated = migrated;
+		this.lastReportBytes = bytes;
+	}
+
+	private String formatEta(long migrated, long now) {
+		if (migrated == 0) {
+			return "unknown";
+		}
+		// estimate from the average rate since the start, the rate of a single interval is too noisy
+		long remainingSecs = Math.max(0, this.totalRecords - migrated) * (now - this.startMillis) / migrated / 1000;
+		return String.format("%02d:%02d:%02d", remainingSecs / 3600, (remainingSecs / 60) % 60, remainingSecs % 60);
+	}
+
+	private static int length(byte[] data) {
+		return data == null ? 0 : data.length;
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+/**
+ * The RangeMigrationResult represents the totals for the migration of a single token id range
+ * @version $Id$
+ * @author conorroche
+ */
+public class RangeMigrationResult {
+
+	private final String tokenType;
+	private final TokenIdRange range;
+	private final int numMigrated;
+	private final long elapsedMillis;
+
+	/**
+	 * This creates a RangeMigrationResult
+	 * @param tokenType The type of token migrated
+	 * @param range The token id range that was migrated
+	 * @param numMigrated The number of tokens migrated in the range
+	 * @param elapsedMillis The time taken to migrate the range in ms
+	 */
+	public RangeMigrationResult(String tokenType, TokenIdRange range, int numMigrated, long elapsedMillis) {
+		this.tokenType = tokenType;
+		this.range = range;
+		this.numMigrated = numMigrated;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * This gets the type of token migrated
+	 * @return the type of token migrated
+	 */
+	public String getTokenType() {
+		return this.tokenType;
+	}
+
+	/**
+	 * This gets the token id range that was migrated
+	 * @return the token id range that was migrated
+	 */
+	public TokenIdRange getRange() {
+		return this.range;
+	}
+
+	/**
+	 * This gets the number of tokens migrated in the range
+	 * @return the number of tokens migrated in the range
+	 */
+	public int getNumMigrated() {
+		return this.numMigrated;
+	}
+
+	/**
+	 * This gets the time taken to migrate the range in ms
+	 * @return the time taken to migrate the range in ms
+	 */
+	public long getElapsedMillis() {
+		return this.elapsedMillis;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Migrated " + this.numMigrated + " " + this.tokenType + "(s) in range " + this.range + " in " + this.elapsedMillis + " ms";
+	}
+
+}
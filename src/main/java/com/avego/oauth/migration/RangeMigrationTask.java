@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The RangeMigrationTask represents the migration of the unmigrated tokens within a single token id range,
+ * the tokens are read a page at a time in token id order, converted and then each page is written back in one call.
+ * In streaming mode the tokens are instead streamed from a single query and written back each time a page of
+ * tokens has been converted. If a checkpoint is given the task resumes after the last token id it recorded for the range
+ * and records its progress after each page is written
+ * @param <R> The type of token record migrated
+ * @param <U> The type of the migrated data written back for each record
+ * @version $Id$
+ * @author conorroche
+ */
+public class RangeMigrationTask<R extends TokenRecord, U extends TokenUpdate> implements Callable<RangeMigrationResult> {
+
+	private final TokenMigration<R, U> migration;
+	private final TokenIdRange range;
+	private final int pageSize;
+	private final AtomicBoolean stopped;
+	private final boolean streaming;
+	private final MigrationCheckpoint checkpoint;
+	private long lastProgressMillis;
+
+	/**
+	 * This creates a RangeMigrationTask
+	 * @param migration The token migration
+	 * @param range The token id range to migrate or null for all token ids
+	 * @param pageSize The max number of records read per query
+	 * @param stopped A flag that when set stops the task after its current page
+	 * @param streaming Whether to stream the records rather than read them a page at a time
+	 */
+	public RangeMigrationTask(TokenMigration<R, U> migration, TokenIdRange range, int pageSize, AtomicBoolean stopped, boolean streaming) {
+		this(migration, range, pageSize, stopped, streaming, null);
+	}
+
+	/**
+	 * This creates a RangeMigrationTask that records its progress in the given checkpoint and resumes from it
+	 * @param migration The token migration
+	 * @param range The token id range to migrate or null for all token ids
+	 * @param pageSize The max number of records read per query
+	 * @param stopped A flag that when set stops the task after its current page
+	 * @param streaming Whether to stream the records rather than read them a page at a time
+	 * @param checkpoint The checkpoint or null if progress is not recorded
+	 */
+	public RangeMigrationTask(TokenMigration<R, U> migration, TokenIdRange range, int pageSize, AtomicBoolean stopped, boolean streaming,
+			MigrationCheckpoint checkpoint) {
+		this.migration = migration;
+		this.range = range;
+		this.pageSize = pageSize;
+		this.stopped = stopped;
+		this.streaming = streaming;
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.util.concurrent.Callable#call()
+	 */
+	public RangeMigrationResult call() throws Exception {
+		long start = System.currentTimeMillis();
+		this.lastProgressMillis = start;
+		String afterTokenId = null;
+		if (this.checkpoint != null) {
+			if (this.checkpoint.isCompleted(this.migration.getTokenType(), this.range)) {
+				return new RangeMigrationResult(this.migration.getTokenType(), this.range, 0, 0);
+			}
+			afterTokenId = this.checkpoint.getLastTokenId(this.migration.getTokenType(), this.range);
+		}
+		int numMigrated = this.streaming ? streamRange(afterTokenId) : readRange(afterTokenId);
+		if (this.checkpoint != null && !this.stopped.get()) {
+			this.checkpoint.rangeCompleted(this.migration.getTokenType(), this.range, 0, System.currentTimeMillis() - this.lastProgressMillis);
+		}
+		return new RangeMigrationResult(this.migration.getTokenType(), this.range, numMigrated, System.currentTimeMillis() - start);
+	}
+
+	private int readRange(String afterTokenId) throws Exception {
+		int numMigrated = 0;
+		List<R> records = this.migration.getUnmigratedRecords(this.range, afterTokenId, this.pageSize);
+		while (!records.isEmpty() && !this.stopped.get()) {
+			List<U> updates = new ArrayList<U>(records.size());
+			for (R record : records) {
+				updates.add(transform(record));
+			}
+			write(updates, records.get(records.size() - 1).getTokenId());
+			numMigrated += updates.size();
+			records = this.migration.getUnmigratedRecords(this.range, records.get(records.size() - 1).getTokenId(), this.pageSize);
+		}
+		return numMigrated;
+	}
+
+	private int streamRange(String afterTokenId) throws Exception {
+		final List<U> updates = new ArrayList<U>(this.pageSize);
+		final String[] lastTokenId = new String[1];
+		final int[] numMigrated = new int[1];
+		try {
+			this.migration.streamUnmigratedRecords(this.range, afterTokenId, new TokenRecordCallback<R>() {
+
+				public boolean processRecord(R record) {
+					if (RangeMigrationTask.this.stopped.get()) {
+						return false;
+					}
+					try {
+						updates.add(transform(record));
+						lastTokenId[0] = record.getTokenId();
+						if (updates.size() >= RangeMigrationTask.this.pageSize) {
+							write(updates, lastTokenId[0]);
+							numMigrated[0] += updates.size();
+							updates.clear();
+						}
+					} catch (RuntimeException ex) {
+						throw ex;
+					} catch (Exception ex) {
+						throw new TransformException(ex);
+					}
+					return true;
+				}
+			});
+		} catch (TransformException ex) {
+			throw (Exception) ex.getCause();
+		}
+		if (!updates.isEmpty()) {
+			write(updates, lastTokenId[0]);
+			numMigrated[0] += updates.size();
+		}
+		return numMigrated[0];
+	}
+
+	private U transform(R record) throws Exception {
+		try {
+			return this.migration.transform(record);
+		} catch (Exception ex) {
+			if (this.checkpoint != null) {
+				this.checkpoint.rangeFailed(this.migration.getTokenType(), this.range, record.getTokenId(), ex);
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * This writes the updates and then records that the records up to the given token id have been migrated
+	 */
+	private void write(List<U> updates, String lastTokenId) throws IOException {
+		try {
+			this.migration.write(updates);
+		} catch (RuntimeException ex) {
+			if (this.checkpoint != null) {
+				this.checkpoint.rangeFailed(this.migration.getTokenType(), this.range, null, ex);
+			}
+			throw ex;
+		}
+		if (this.checkpoint != null) {
+			long now = System.currentTimeMillis();
+			this.checkpoint.rangeProgress(this.migration.getTokenType(), this.range, lastTokenId, updates.size(), now - this.lastProgressMillis);
+			this.lastProgressMillis = now;
+		}
+	}
+
+	/**
+	 * The TransformException carries a checked exception thrown converting a streamed record out of the record callback
+	 */
+	private static class TransformException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		TransformException(Exception cause) {
+			super(cause);
+		}
+	}
+
+}
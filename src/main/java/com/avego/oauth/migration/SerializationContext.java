@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * The SerializationContext represents the serialization buffers of a migration thread which are reused for every token
+ * the thread converts rather than allocated for each one. Objects are serialized into a growable buffer that is kept between tokens
+ * so it only grows to fit the largest token once, then a single right sized copy is taken as the token is written to the db later
+ * by which time the buffer has been reused. Likewise the input stream wrapping the data being deserialized is reset rather than
+ * recreated, the object streams themselves cannot be reused as each blob is a separate stream with its own header.
+ * @version $Id$
+ * @author conorroche
+ */
+public class SerializationContext {
+
+	/**
+	 * This is the initial size of the output buffer, enough for most tokens and authentications
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	/**
+	 * This is the max size of output buffer kept between tokens, a buffer grown beyond this by an unusually large token is dropped
+	 */
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<SerializationContext> CONTEXTS = new ThreadLocal<SerializationContext>() {
+
+		@Override
+		protected SerializationContext initialValue() {
+			return new SerializationContext();
+		}
+	};
+
+	private OutputBuffer output = new OutputBuffer();
+	private final InputBuffer input = new InputBuffer();
+	private boolean inputInUse;
+
+	/**
+	 * This gets the serialization context of the current thread
+	 * @return The serialization context of the current thread
+	 */
+	public static SerializationContext get() {
+		return CONTEXTS.get();
+	}
+
+	/**
+	 * This serializes the given object
+	 * @param obj The object to serialize
+	 * @return The serialized data
+	 * @throws IOException If the object could not be serialized
+	 */
+	public byte[] serialize(Serializable obj) throws IOException {
+		OutputBuffer buffer = this.output;
+		buffer.reset();
+		ObjectOutputStream oos = new ObjectOutputStream(buffer);
+		try {
+			oos.writeObject(obj);
+		} finally {
+			oos.close();
+		}
+		byte[] data = buffer.toByteArray();
+		if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			this.output = new OutputBuffer();
+		}
+		return data;
+	}
+
+	/**
+	 * This creates an object input stream that reads the given data, the underlying input is reused so the stream must be closed
+	 * before the next stream is opened on this thread
+	 * @param data The serialized data
+	 * @return The object input stream
+	 * @throws IOException If the stream header could not be read
+	 */
+	public ObjectInputStream openObjectInputStream(byte[] data) throws IOException {
+		InputStream in = open(data);
+		try {
+			return new ObjectInputStream(in);
+		} catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * This creates an object input stream that reads the given data resolving the classes using the given cache, the underlying input
+	 * is reused so the stream must be closed before the next stream is opened on this thread
+	 * @param data The serialized data
+	 * @param classCache The cache used to resolve classes
+	 * @return The object input stream
+	 * @throws IOException If the stream header could not be read
+	 */
+	public ObjectInputStream openObjectInputStream(byte[] data, ClassResolutionCache classCache) throws IOException {
+		InputStream in = open(data);
+		try {
+			return new CustomObjectInputStream(in, classCache);
+		} catch (IOException ex) {
+			in.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * This gets an input stream reading the given data, the reused input is only handed out when it has been closed since it was
+	 * last opened, otherwise a new input stream is created
+	 */
+	private InputStream open(byte[] data) {
+		if (this.inputInUse) {
+			return new ByteArrayInputStream(data);
+		}
+		this.inputInUse = true;
+		this.input.setData(data);
+		return this.input;
+	}
+
+	/**
+	 * The OutputBuffer represents a byte array output stream whose buffer is kept when it is reset
+	 */
+	private static class OutputBuffer extends ByteArrayOutputStream {
+
+		OutputBuffer() {
+			super(INITIAL_BUFFER_SIZE);
+		}
+
+		int capacity() {
+			return this.buf.length;
+		}
+	}
+
+	/**
+	 * The InputBuffer represents a byte array input stream that can be pointed at new data, closing it releases it for reuse
+	 * and drops the reference to the data
+	 */
+	private class InputBuffer extends ByteArrayInputStream {
+
+		private final byte[] empty = new byte[0];
+
+		InputBuffer() {
+			super(new byte[0]);
+		}
+
+		void setData(byte[] data) {
+			this.buf = data;
+			this.pos = 0;
+			this.mark = 0;
+			this.count = data.length;
+		}
+
+		@Override
+		public void close() {
+			this.buf = this.empty;
+			this.pos = 0;
+			this.mark = 0;
+			this.count = 0;
+			SerializationContext.this.inputInUse = false;
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The StageMetrics represents the thread safe timing and throughput metrics of a single migration stage, it counts
+ * the operations, items and bytes and keeps a histogram of the operation latencies in power of 2 nanosecond buckets
+ * @version $Id$
+ * @author conorroche
+ */
+public class StageMetrics {
+
+	private static final int NUM_BUCKETS = 65;
+
+	private final MigrationStage stage;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong items = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+	/**
+	 * This creates a StageMetrics
+	 * @param stage The stage the metrics are for
+	 */
+	public StageMetrics(MigrationStage stage) {
+		this.stage = stage;
+	}
+
+	/**
+	 * This records a single operation of the stage
+	 * @param nanos The time the operation took in ns
+	 * @param numItems The number of items the operation handled
+	 * @param numBytes The number of bytes the operation read or wrote
+	 */
+	public void record(long nanos, long numItems, long numBytes) {
+		long duration = Math.max(0, nanos);
+		this.count.incrementAndGet();
+		this.items.addAndGet(numItems);
+		this.bytes.addAndGet(numBytes);
+		this.totalNanos.addAndGet(duration);
+		// bucket i holds the durations d where 2^(i-1) <= d < 2^i, bucket 0 holds 0
+		this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(duration));
+		long max = this.maxNanos.get();
+		while (duration > max && !this.maxNanos.compareAndSet(max, duration)) {
+			max = this.maxNanos.get();
+		}
+	}
+
+	/**
+	 * This gets the latency below which the given fraction of operations completed, it is the upper bound of the histogram bucket
+	 * so it over estimates by at most a factor of 2
+	 * @param fraction The fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return The latency in ns or 0 if there were no operations
+	 */
+	public long getPercentileNanos(double fraction) {
+		long total = this.count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(total * fraction));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += this.buckets.get(i);
+			if (seen >= target) {
+				return Math.min(i == NUM_BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1, getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	/**
+	 * This gets the stage the metrics are for
+	 * @return the stage the metrics are for
+	 */
+	public MigrationStage getStage() {
+		return this.stage;
+	}
+
+	/**
+	 * This gets the number of operations recorded
+	 * @return the number of operations recorded
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * This gets the number of items handled by the operations
+	 * @return the number of items handled by the operations
+	 */
+	public long getItems() {
+		return this.items.get();
+	}
+
+	/**
+	 * This gets the number of bytes read or written by the operations
+	 * @return the number of bytes read or written by the operations
+	 */
+	public long getBytes() {
+		return this.bytes.get();
+	}
+
+	/**
+	 * This gets the total time of the operations in ns, summed across all threads
+	 * @return the total time of the operations in ns
+	 */
+	public long getTotalNanos() {
+		return this.totalNanos.get();
+	}
+
+	/**
+	 * This gets the time of the slowest operation in ns
+	 * @return the time of the slowest operation in ns
+	 */
+	public long getMaxNanos() {
+		return this.maxNanos.get();
+	}
+
+	/**
+	 * This gets the mean time of the operations in ns
+	 * @return the mean time of the operations in ns or 0 if there were no operations
+	 */
+	public long getMeanNanos() {
+		long total = this.count.get();
+		return total == 0 ? 0 : this.totalNanos.get() / total;
+	}
+
+	/**
+	 * This gets the number of items handled per second of time spent in the stage, as the time is summed across all threads this is
+	 * the rate of a single thread
+	 * @return the number of items handled per second or 0 if no time was recorded
+	 */
+	public long getItemsPerSecond() {
+		long nanos = this.totalNanos.get();
+		return nanos == 0 ? 0 : (long) (this.items.get() * 1000000000.0 / nanos);
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.List;
+
+/**
+ * The SyntheticTokenDao represents a DAO the SyntheticTokenGenerator writes generated test data through, the migration
+ * itself never inserts tokens so a migration dao only needs to implement this to be used with the generator
+ * @version $Id$
+ * @author conorroche
+ */
+public interface SyntheticTokenDao extends OauthMigrationDao {
+
+	/**
+	 * This inserts a list of oauth access token records into the db as they are, e.g. to create test data,
+	 * implementations should write the records in batches rather than one statement per token
+	 * @param records The records to insert
+	 */
+	public void insertOauthAccessTokens(List<OauthAccessTokenRecord> records);
+
+	/**
+	 * This inserts a list of oauth refresh token records into the db as they are, e.g. to create test data,
+	 * implementations should write the records in batches rather than one statement per token
+	 * @param records The records to insert
+	 */
+	public void insertOauthRefreshTokens(List<OauthRefreshTokenRecord> records);
+
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+
+/**
+ * The SyntheticTokenGenerator represents a generator of pre 1.0 e.g. M6 oauth token data for scale testing the migration.
+ * The token and authentication blobs are created from the old spring security classes loaded with the old lib class loader
+ * so they are in exactly the form the migrator reads from a production db. Each access token belongs to one of a configurable
+ * number of users and clients, each user has some of a configurable number of authorities and a configurable fraction of the access tokens
+ * have a refresh token. The records are written through a SyntheticTokenDao in batches
+ * @version $Id$
+ * @author conorroche
+ */
+public class SyntheticTokenGenerator {
+
+	/**
+	 * This is the parameter for the number of distinct users the tokens belong to, it can also be set as a system property
+	 */
+	public static final String USERS_PARAM = "generator_users";
+
+	/**
+	 * This is the parameter for the number of distinct clients the tokens are issued to, it can also be set as a system property
+	 */
+	public static final String CLIENTS_PARAM = "generator_clients";
+
+	/**
+	 * This is the parameter for the number of distinct user authorities, it can also be set as a system property
+	 */
+	public static final String AUTHORITIES_PARAM = "generator_authorities";
+
+	/**
+	 * This is the parameter for the fraction of access tokens between 0 and 1 that have a refresh token, it can also be set as a system property
+	 */
+	public static final String REFRESH_TOKEN_RATIO_PARAM = "generator_refresh_token_ratio";
+
+	/**
+	 * This is the parameter for the seed of the random data so a data set can be reproduced, it can also be set as a system property
+	 */
+	public static final String SEED_PARAM = "generator_seed";
+
+	private static final String ACCESS_TOKEN_CLASS = "org.springframework.security.oauth2.common.DefaultOAuth2AccessToken";
+	private static final String REFRESH_TOKEN_CLASS = "org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken";
+	private static final String OAUTH2_AUTHENTICATION_CLASS = "org.springframework.security.oauth2.provider.OAuth2Authentication";
+	private static final String USER_AUTHENTICATION_CLASS = "org.springframework.security.authentication.UsernamePasswordAuthenticationToken";
+	private static final String AUTHENTICATION_CLASS = "org.springframework.security.core.Authentication";
+	private static final String USER_CLASS = "org.springframework.security.core.userdetails.User";
+	private static final String AUTHORITY_CLASS = "org.springframework.security.core.authority.SimpleGrantedAuthority";
+
+	private static final String[] SCOPES = { "read", "write", "trust" };
+
+	private static final int MAX_CACHED_AUTHENTICATIONS = 10000;
+
+	private static final long TOKEN_VALIDITY_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * This generates pre 1.0 oauth token data in a db
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 4) {
+			System.err.println("Usage <db_jdbc_url> <db_user> <db_pw> <num_access_tokens>");
+			System.err.println("Or <db_jdbc_url> <db_user> <db_pw> <num_access_tokens> <oauth_access_token_table> <oauth_refresh_token_table>");
+			System.exit(1);
+		}
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(JdbcOauthMigrationDao.JDBC_URL_KEY, args[0]);
+		params.put(JdbcOauthMigrationDao.USER_KEY, args[1]);
+		params.put(JdbcOauthMigrationDao.PASS_KEY, args[2]);
+		if (args.length > 4) {
+			params.put(JdbcOauthMigrationDao.ACCESS_TOKEN_TABLE, args[4]);
+		}
+		if (args.length > 5) {
+			params.put(JdbcOauthMigrationDao.REFRESH_TOKEN_TABLE, args[5]);
+		}
+
+		OauthMigrationDao dao = OauthMigrationDaoFactory.newInstance(params);
+		if (!(dao instanceof SyntheticTokenDao)) {
+			System.err.println("The dao " + dao.getClass().getName() + " does not implement " + SyntheticTokenDao.class.getName()
+					+ " so it cannot insert tokens");
+			System.exit(1);
+		}
+
+		SyntheticTokenGenerator generator = new SyntheticTokenGenerator((SyntheticTokenDao) dao, ClassLoaderUtils.createOldLibClassLoader(), params);
+		long start = System.currentTimeMillis();
+		int numAccessTokens = Integer.parseInt(args[3]);
+		int numRefreshTokens = generator.generate(numAccessTokens);
+		System.out.println("Generated " + numAccessTokens + " access token(s) and " + numRefreshTokens + " refresh token(s) in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private final SyntheticTokenDao dao;
+	private final ClassLoader oldClassLoader;
+	private int numUsers;
+	private int numClients;
+	private int numAuthorities;
+	private double refreshTokenRatio;
+	private long seed;
+	private int batchSize = 1000;
+
+	private final Map<String, byte[]> authentications = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > MAX_CACHED_AUTHENTICATIONS;
+		}
+	};
+
+	/**
+	 * This creates a SyntheticTokenGenerator
+	 * @param dao The dao the token records are written to
+	 * @param oldClassLoader The class loader with the pre 1.0 spring security classes
+	 * @param params The generator params, may be null to use the defaults or the system properties
+	 */
+	public SyntheticTokenGenerator(SyntheticTokenDao dao, ClassLoader oldClassLoader, Map<String, Object> params) {
+		this.dao = dao;
+		this.oldClassLoader = oldClassLoader;
+		this.numUsers = ParamUtils.getInt(params, USERS_PARAM, 10000);
+		this.numClients = ParamUtils.getInt(params, CLIENTS_PARAM, 5);
+		this.numAuthorities = ParamUtils.getInt(params, AUTHORITIES_PARAM, 3);
+		this.refreshTokenRatio = Double.parseDouble(ParamUtils.getString(params, REFRESH_TOKEN_RATIO_PARAM, "1.0"));
+		this.seed = ParamUtils.getLong(params, SEED_PARAM, System.currentTimeMillis());
+	}
+
+	/**
+	 * This generates the given number of unmigrated access tokens and their refresh tokens
+	 * @param numAccessTokens The number of access tokens to generate
+	 * @return The number of refresh tokens generated
+	 * @throws ClassNotFoundException If the old spring security classes could not be loaded
+	 * @throws NoSuchMethodException If an old class did not have an expected constructor or method
+	 * @throws IllegalAccessException If an old constructor, method or field could not be accessed
+	 * @throws InvocationTargetException If an old constructor or method threw an exception
+	 * @throws InstantiationException If an old class could not be instantiated
+	 * @throws IOException If an old object could not be serialized
+	 */
+	public int generate(int numAccessTokens) throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+			InvocationTargetException, InstantiationException, IOException {
+		Random random = new Random(this.seed);
+		int numRefreshTokens = 0;
+		List<OauthAccessTokenRecord> accessTokens = new ArrayList<OauthAccessTokenRecord>(this.batchSize);
+		List<OauthRefreshTokenRecord> refreshTokens = new ArrayList<OauthRefreshTokenRecord>(this.batchSize);
+
+		for (int i = 0; i < numAccessTokens; i++) {
+			String userName = "user-" + random.nextInt(this.numUsers);
+			String clientId = "client-" + random.nextInt(this.numClients);
+			String tokenValue = new UUID(random.nextLong(), random.nextLong()).toString();
+			String refreshTokenValue = null;
+			Date expiration = new Date(System.currentTimeMillis() + (long) (random.nextDouble() * TOKEN_VALIDITY_MILLIS));
+
+			byte[] authData = getAuthentication(userName, clientId);
+
+			Object refreshToken = null;
+			if (random.nextDouble() < this.refreshTokenRatio) {
+				refreshTokenValue = new UUID(random.nextLong(), random.nextLong()).toString();
+				refreshToken = newOldInstance(REFRESH_TOKEN_CLASS, new Object[] { refreshTokenValue, expiration }, new Class<?>[] { String.class,
+						Date.class });
+
+				OauthRefreshTokenRecord refreshTokenRecord = new OauthRefreshTokenRecord();
+				refreshTokenRecord.setTokenId(refreshTokenValue);
+				refreshTokenRecord.setToken(SerializationUtils.serialize((Serializable) refreshToken));
+				refreshTokenRecord.setAuthentication(authData);
+				refreshTokens.add(refreshTokenRecord);
+				numRefreshTokens++;
+			}
+
+			Object accessToken = newOldInstance(ACCESS_TOKEN_CLASS, new Object[] { tokenValue }, new Class<?>[] { String.class });
+			MethodUtils.invokeMethod(accessToken, "setExpiration", expiration);
+			MethodUtils.invokeMethod(accessToken, "setScope", getClientScope(clientId));
+			MethodUtils.invokeMethod(accessToken, "setTokenType", "bearer");
+			if (refreshToken != null) {
+				MethodUtils.invokeMethod(accessToken, "setRefreshToken", refreshToken);
+			}
+
+			OauthAccessTokenRecord accessTokenRecord = new OauthAccessTokenRecord();
+			accessTokenRecord.setTokenId(tokenValue);
+			accessTokenRecord.setToken(SerializationUtils.serialize((Serializable) accessToken));
+			accessTokenRecord.setAuthenticationId(this.dao.generateNewTokenKey("username=" + userName + ",client_id=" + clientId));
+			accessTokenRecord.setUserName(userName);
+			accessTokenRecord.setClientId(clientId);
+			accessTokenRecord.setAuthentication(authData);
+			accessTokenRecord.setRefreshToken(refreshTokenValue);
+			accessTokens.add(accessTokenRecord);
+
+			if (accessTokens.size() >= this.batchSize) {
+				flush(accessTokens, refreshTokens);
+			}
+		}
+		flush(accessTokens, refreshTokens);
+		return numRefreshTokens;
+	}
+
+	private void flush(List<OauthAccessTokenRecord> accessTokens, List<OauthRefreshTokenRecord> refreshTokens) {
+		if (!accessTokens.isEmpty()) {
+			this.dao.insertOauthAccessTokens(accessTokens);
+			accessTokens.clear();
+		}
+		if (!refreshTokens.isEmpty()) {
+			this.dao.insertOauthRefreshTokens(refreshTokens);
+			refreshTokens.clear();
+		}
+	}
+
+	/**
+	 * This gets the serialized old authentication of the given user and client, the same user and client
+	 * always have the same authentication so recently used ones are reused rather than serialized again
+	 */
+	private byte[] getAuthentication(String userName, String clientId) throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException,
+			InvocationTargetException, InstantiationException {
+		String key = userName + "/" + clientId;
+		byte[] authData = this.authentications.get(key);
+		if (authData == null) {
+			authData = SerializationUtils.serialize((Serializable) createAuthentication(userName, clientId));
+			this.authentications.put(key, authData);
+		}
+		return authData;
+	}
+
+	/**
+	 * This creates an old OAuth2Authentication of the given user and client
+	 */
+	private Object createAuthentication(String userName, String clientId) throws ClassNotFoundException, NoSuchMethodException,
+			IllegalAccessException, InvocationTargetException, InstantiationException {
+
+		List<Object> userAuthorities = new ArrayList<Object>();
+		// each user consistently has the same authorities, always including the first
+		Random random = new Random(this.seed ^ userName.hashCode());
+		for (int i = 0; i < this.numAuthorities; i++) {
+			if (i == 0 || random.nextBoolean()) {
+				userAuthorities.add(newOldInstance(AUTHORITY_CLASS, new Object[] { "ROLE_" + i }, new Class<?>[] { String.class }));
+			}
+		}
+
+		Object user = newOldInstance(USER_CLASS, new Object[] { userName, "", userAuthorities }, new Class<?>[] { String.class, String.class,
+				Collection.class });
+		Object userAuthentication = newOldInstance(USER_AUTHENTICATION_CLASS, new Object[] { user, null, userAuthorities }, new Class<?>[] {
+				Object.class, Object.class, Collection.class });
+
+		Set<String> scope = getClientScope(clientId);
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("client_id", clientId);
+		parameters.put("scope", join(scope));
+		parameters.put("response_type", "token");
+		parameters.put("redirect_uri", "http://localhost/" + clientId + "/callback");
+
+		List<Object> clientAuthorities = new ArrayList<Object>();
+		clientAuthorities.add(newOldInstance(AUTHORITY_CLASS, new Object[] { "ROLE_CLIENT" }, new Class<?>[] { String.class }));
+		Set<String> resourceIds = new LinkedHashSet<String>();
+		resourceIds.add("oauth2-resource");
+
+		// the authorization request is the type of the first param of the oauth2 authentication constructor
+		Class<?> oauth2AuthenticationClass = this.oldClassLoader.loadClass(OAUTH2_AUTHENTICATION_CLASS);
+		Class<?> authenticationClass = this.oldClassLoader.loadClass(AUTHENTICATION_CLASS);
+		Constructor<?> constructor = null;
+		for (Constructor<?> candidate : oauth2AuthenticationClass.getConstructors()) {
+			Class<?>[] types = candidate.getParameterTypes();
+			if (types.length == 2 && types[1] == authenticationClass) {
+				constructor = candidate;
+			}
+		}
+		if (constructor == null) {
+			throw new NoSuchMethodException("The class: " + OAUTH2_AUTHENTICATION_CLASS + " did not have a constructor taking a request and an "
+					+ AUTHENTICATION_CLASS);
+		}
+		Object authorizationRequest = newAuthorizationRequest(constructor.getParameterTypes()[0], parameters);
+		setFieldIfPresent(authorizationRequest, "approved", Boolean.TRUE);
+		setFieldIfPresent(authorizationRequest, "authorities", clientAuthorities);
+		setFieldIfPresent(authorizationRequest, "parameters", parameters);
+		setFieldIfPresent(authorizationRequest, "resourceIds", resourceIds);
+		setFieldIfPresent(authorizationRequest, "scope", scope);
+
+		return constructor.newInstance(authorizationRequest, userAuthentication);
+	}
+
+	/**
+	 * This creates an old authorization request, using the constructor taking the parameters if there is one
+	 * or otherwise the constructor with the fewest params, the fields are then set directly
+	 */
+	private Object newAuthorizationRequest(Class<?> requestClass, Map<String, String> parameters) throws InstantiationException,
+			IllegalAccessException, InvocationTargetException {
+		Constructor<?> constructor = ConstructorUtils.getMatchingAccessibleConstructor(requestClass, Map.class);
+		if (constructor != null) {
+			return constructor.newInstance(parameters);
+		}
+		for (Constructor<?> candidate : requestClass.getDeclaredConstructors()) {
+			if (constructor == null || candidate.getParameterTypes().length < constructor.getParameterTypes().length) {
+				constructor = candidate;
+			}
+		}
+		if (constructor == null) {
+			throw new InstantiationException("The class: " + requestClass.getName() + " has no constructors");
+		}
+		Class<?>[] types = constructor.getParameterTypes();
+		Object[] args = new Object[types.length];
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == boolean.class) {
+				args[i] = Boolean.FALSE;
+			} else if (types[i].isPrimitive()) {
+				args[i] = Integer.valueOf(0);
+			}
+		}
+		constructor.setAccessible(true);
+		return constructor.newInstance(args);
+	}
+
+	private Object newOldInstance(String className, Object[] args, Class<?>[] parameterTypes) throws ClassNotFoundException, NoSuchMethodException,
+			IllegalAccessException, InvocationTargetException, InstantiationException {
+		return ConstructorUtils.invokeConstructor(this.oldClassLoader.loadClass(className), args, parameterTypes);
+	}
+
+	private static void setFieldIfPresent(Object target, String fieldName, Object value) throws IllegalAccessException {
+		Field field = FieldUtils.getField(target.getClass(), fieldName, true);
+		if (field != null) {
+			FieldUtils.writeField(field, target, value, true);
+		}
+	}
+
+	/**
+	 * This gets the scope of the given client, each client consistently has the same scope
+	 */
+	private Set<String> getClientScope(String clientId) {
+		Random random = new Random(this.seed ^ clientId.hashCode());
+		Set<String> scope = new LinkedHashSet<String>();
+		scope.add(SCOPES[0]);
+		for (int i = 1; i < SCOPES.length; i++) {
+			if (random.nextBoolean()) {
+				scope.add(SCOPES[i]);
+			}
+		}
+		return scope;
+	}
+
+	private static String join(Set<String> values) {
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * This gets the number of distinct users the tokens belong to
+	 * @return the number of distinct users the tokens belong to
+	 */
+	public int getNumUsers() {
+		return this.numUsers;
+	}
+
+	/**
+	 * This sets the number of distinct users the tokens belong to
+	 * @param numUsers the number of distinct users the tokens belong to
+	 */
+	public void setNumUsers(int numUsers) {
+		this.numUsers = numUsers;
+	}
+
+	/**
+	 * This gets the number of distinct clients the tokens are issued to
+	 * @return the number of distinct clients the tokens are issued to
+	 */
+	public int getNumClients() {
+		return this.numClients;
+	}
+
+	/**
+	 * This sets the number of distinct clients the tokens are issued to
+	 * @param numClients the number of distinct clients the tokens are issued to
+	 */
+	public void setNumClients(int numClients) {
+		this.numClients = numClients;
+	}
+
+	/**
+	 * This gets the number of distinct user authorities
+	 * @return the number of distinct user authorities
+	 */
+	public int getNumAuthorities() {
+		return this.numAuthorities;
+	}
+
+	/**
+	 * This sets the number of distinct user authorities
+	 * @param numAuthorities the number of distinct user authorities
+	 */
+	public void setNumAuthorities(int numAuthorities) {
+		this.numAuthorities = numAuthorities;
+	}
+
+	/**
+	 * This gets the fraction of access tokens between 0 and 1 that have a refresh token
+	 * @return the fraction of access tokens that have a refresh token
+	 */
+	public double getRefreshTokenRatio() {
+		return this.refreshTokenRatio;
+	}
+
+	/**
+	 * This sets the fraction of access tokens between 0 and 1 that have a refresh token
+	 * @param refreshTokenRatio the fraction of access tokens that have a refresh token
+	 */
+	public void setRefreshTokenRatio(double refreshTokenRatio) {
+		this.refreshTokenRatio = refreshTokenRatio;
+	}
+
+	/**
+	 * This gets the seed of the random data
+	 * @return the seed of the random data
+	 */
+	public long getSeed() {
+		return this.seed;
+	}
+
+	/**
+	 * This sets the seed of the random data
+	 * @param seed the seed of the random data
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * This gets the number of records written to the dao per call
+	 * @return the number of records written to the dao per call
+	 */
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+
+	/**
+	 * This sets the number of records written to the dao per call
+	 * @param batchSize the number of records written to the dao per call
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TokenBlobTranscoder rewrites the token value strings of serialized access and refresh tokens directly in the java serialization
+ * stream. The token classes are backward compatible so the only change the migration makes to them is replacing the token values,
+ * rather than deserializing the token, replacing the values using reflection and serializing it again, this parses the stream grammar,
+ * finds the value fields of the known token classes and swaps the strings in place. Replacing a string with a string keeps the
+ * handle numbering of the stream so the rest of the stream is copied as is. If the stream contains anything this does not recognise,
+ * such as an unknown token class or layout, a shared value string or an externalizable object without block data, null is returned
+ * so the caller can fall back to converting the objects.
+ * @version $Id$
+ * @author conorroche
+ */
+public class TokenBlobTranscoder {
+
+	/**
+	 * This is the class of the access tokens the transcoder recognises
+	 */
+	public static final String ACCESS_TOKEN_CLASS = "org.springframework.security.oauth2.common.DefaultOAuth2AccessToken";
+
+	/**
+	 * This is the base class of the refresh tokens the transcoder recognises which declares the value field
+	 */
+	public static final String REFRESH_TOKEN_CLASS = "org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken";
+
+	/**
+	 * This is the class of the expiring refresh tokens the transcoder recognises
+	 */
+	public static final String EXPIRING_REFRESH_TOKEN_CLASS = "org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken";
+
+	private static final String STRING_TYPE = "Ljava/lang/String;";
+
+	private static final Set<String> REFRESH_TOKEN_CLASSES = new HashSet<String>(Arrays.asList(REFRESH_TOKEN_CLASS, EXPIRING_REFRESH_TOKEN_CLASS));
+
+	private final AtomicLong numTranscoded = new AtomicLong();
+	private final AtomicLong numUnrecognised = new AtomicLong();
+
+	/**
+	 * This transcodes a serialized access token replacing its value and the value of its refresh token
+	 * @param data The serialized access token
+	 * @param tokenValue The rewriter of the token value or null to keep it
+	 * @param refreshTokenValue The rewriter of the refresh token value or null to keep it
+	 * @return The transcoded access token or null if the stream was not recognised
+	 */
+	public byte[] transcodeAccessToken(byte[] data, ValueRewriter tokenValue, ValueRewriter refreshTokenValue) {
+		List<Replacement> replacements = new ArrayList<Replacement>(2);
+		StreamParser parser = new StreamParser(data);
+		try {
+			ObjectValue token = parser.readTopLevelObject();
+			if (token == null || !ACCESS_TOKEN_CLASS.equals(token.className)) {
+				return unrecognised();
+			}
+			if (tokenValue != null && !addReplacement(parser, token, ACCESS_TOKEN_CLASS, tokenValue, replacements)) {
+				return unrecognised();
+			}
+			if (refreshTokenValue != null) {
+				if (!token.hasField(ACCESS_TOKEN_CLASS, "refreshToken")) {
+					return unrecognised();
+				}
+				Object refreshToken = token.getField(ACCESS_TOKEN_CLASS, "refreshToken");
+				if (refreshToken != null) {
+					// a refresh token shared with another part of the stream cannot be changed on its own
+					if (!(refreshToken instanceof ObjectValue) || !REFRESH_TOKEN_CLASSES.contains(((ObjectValue) refreshToken).className)
+							|| parser.isReferenced(((ObjectValue) refreshToken).handle)) {
+						return unrecognised();
+					}
+					if (!addReplacement(parser, (ObjectValue) refreshToken, REFRESH_TOKEN_CLASS, refreshTokenValue, replacements)) {
+						return unrecognised();
+					}
+				}
+			}
+		} catch (UnrecognisedStreamException ex) {
+			return unrecognised();
+		}
+		return transcoded(data, replacements);
+	}
+
+	/**
+	 * This transcodes a serialized refresh token replacing its value
+	 * @param data The serialized refresh token
+	 * @param tokenValue The rewriter of the token value or null to keep it
+	 * @return The transcoded refresh token or null if the stream was not recognised
+	 */
+	public byte[] transcodeRefreshToken(byte[] data, ValueRewriter tokenValue) {
+		List<Replacement> replacements = new ArrayList<Replacement>(1);
+		StreamParser parser = new StreamParser(data);
+		try {
+			ObjectValue token = parser.readTopLevelObject();
+			if (token == null || !REFRESH_TOKEN_CLASSES.contains(token.className)) {
+				return unrecognised();
+			}
+			if (tokenValue != null && !addReplacement(parser, token, REFRESH_TOKEN_CLASS, tokenValue, replacements)) {
+				return unrecognised();
+			}
+		} catch (UnrecognisedStreamException ex) {
+			return unrecognised();
+		}
+		return transcoded(data, replacements);
+	}
+
+	/**
+	 * This gets the number of tokens transcoded
+	 * @return the number of tokens transcoded
+	 */
+	public long getNumTranscoded() {
+		return this.numTranscoded.get();
+	}
+
+	/**
+	 * This gets the number of tokens that were not recognised and had to be converted as objects
+	 * @return the number of tokens that were not recognised
+	 */
+	public long getNumUnrecognised() {
+		return this.numUnrecognised.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Token transcoder: " + getNumTranscoded() + " token(s) transcoded, " + getNumUnrecognised() + " token(s) not recognised";
+	}
+
+	private byte[] unrecognised() {
+		this.numUnrecognised.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * This adds the replacement of the string value field of the given object, the value must be a string written in place
+	 * that nothing else in the stream refers to
+	 * @return True if the replacement was added
+	 */
+	private static boolean addReplacement(StreamParser parser, ObjectValue obj, String declaringClass, ValueRewriter rewriter,
+			List<Replacement> replacements) {
+		if (!STRING_TYPE.equals(obj.getFieldType(declaringClass, "value"))) {
+			return false;
+		}
+		Object value = obj.getField(declaringClass, "value");
+		if (value == null) {
+			return true;
+		}
+		if (!(value instanceof StringValue) || parser.isReferenced(((StringValue) value).handle)) {
+			return false;
+		}
+		StringValue string = (StringValue) value;
+		replacements.add(new Replacement(string.start, string.end, rewriter.rewrite(string.value)));
+		return true;
+	}
+
+	private byte[] transcoded(byte[] data, List<Replacement> replacements) {
+		this.numTranscoded.incrementAndGet();
+		if (replacements.isEmpty()) {
+			return data;
+		}
+		// the fields are written in name order so the refresh token comes before the access token value
+		Collections.sort(replacements);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 32 * replacements.size());
+			DataOutputStream out = new DataOutputStream(bytes);
+			int pos = 0;
+			for (Replacement replacement : replacements) {
+				out.write(data, pos, replacement.start - pos);
+				out.writeByte(ObjectStreamConstants.TC_STRING);
+				out.writeUTF(replacement.value);
+				pos = replacement.end;
+			}
+			out.write(data, pos, data.length - pos);
+			return bytes.toByteArray();
+		} catch (IOException ex) {
+			// only thrown for strings longer than 64k which token values never are
+			this.numTranscoded.decrementAndGet();
+			return unrecognised();
+		}
+	}
+
+	/**
+	 * The ValueRewriter represents a callback that gives the new value of a token value
+	 */
+	public interface ValueRewriter {
+
+		/**
+		 * This gets the new value of a token value
+		 * @param oldValue The old value
+		 * @return The new value
+		 */
+		String rewrite(String oldValue);
+	}
+
+	/**
+	 * The Replacement represents a string element of the stream to replace
+	 */
+	private static class Replacement implements Comparable<Replacement> {
+
+		final int start;
+		final int end;
+		final String value;
+
+		Replacement(int start, int end, String value) {
+			this.start = start;
+			this.end = end;
+			this.value = value;
+		}
+
+		public int compareTo(Replacement other) {
+			return this.start < other.start ? -1 : (this.start == other.start ? 0 : 1);
+		}
+	}
+
+	/**
+	 * The ClassDesc represents a class descriptor read from the stream
+	 */
+	private static class ClassDesc {
+
+		final String name;
+		final int flags;
+		final char[] fieldTypes;
+		final String[] fieldNames;
+		final String[] fieldClassNames;
+		ClassDesc superDesc;
+
+		ClassDesc(String name, int flags, int numFields) {
+			this.name = name;
+			this.flags = flags;
+			this.fieldTypes = new char[numFields];
+			this.fieldNames = new String[numFields];
+			this.fieldClassNames = new String[numFields];
+		}
+	}
+
+	/**
+	 * The ObjectValue represents an object read from the stream along with the values of its object fields
+	 */
+	private static class ObjectValue {
+
+		final String className;
+		final int handle;
+		final Map<String, Object> fields = new HashMap<String, Object>();
+		final Map<String, String> fieldTypes = new HashMap<String, String>();
+
+		ObjectValue(String className, int handle) {
+			this.className = className;
+			this.handle = handle;
+		}
+
+		boolean hasField(String declaringClass, String name) {
+			return this.fieldTypes.containsKey(declaringClass + "." + name);
+		}
+
+		String getFieldType(String declaringClass, String name) {
+			return this.fieldTypes.get(declaringClass + "." + name);
+		}
+
+		Object getField(String declaringClass, String name) {
+			return this.fields.get(declaringClass + "." + name);
+		}
+	}
+
+	/**
+	 * The StringValue represents a string written in place in the stream
+	 */
+	private static class StringValue {
+
+		final String value;
+		final int handle;
+		final int start;
+		final int end;
+
+		StringValue(String value, int handle, int start, int end) {
+			this.value = value;
+			this.handle = handle;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * The Reference represents a back reference to an earlier object in the stream
+	 */
+	private static class Reference {
+
+		final Object target;
+
+		Reference(Object target) {
+			this.target = target;
+		}
+	}
+
+	/**
+	 * The UnrecognisedStreamException is thrown when the stream contains something the parser cannot handle or is corrupt
+	 */
+	private static class UnrecognisedStreamException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		UnrecognisedStreamException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The StreamParser parses the java serialization stream grammar, it records the field values of objects but only builds
+	 * strings for the values of string fields
+	 */
+	private static class StreamParser {
+
+		private static final Object NON_STRING = new Object();
+
+		private final byte[] data;
+		private int pos;
+		private final List<Object> handles = new ArrayList<Object>();
+		private final Set<Integer> referenced = new HashSet<Integer>();
+
+		StreamParser(byte[] data) {
+			this.data = data;
+		}
+
+		boolean isReferenced(int handle) {
+			return this.referenced.contains(Integer.valueOf(handle));
+		}
+
+		ObjectValue readTopLevelObject() throws UnrecognisedStreamException {
+			if (readShort() != (ObjectStreamConstants.STREAM_MAGIC & 0xffff) || readShort() != ObjectStreamConstants.STREAM_VERSION) {
+				throw new UnrecognisedStreamException("Not a serialization stream");
+			}
+			Object obj = readObject();
+			if (this.pos != this.data.length) {
+				throw new UnrecognisedStreamException("The stream has more than one top level object");
+			}
+			return obj instanceof ObjectValue ? (ObjectValue) obj : null;
+		}
+
+		private Object readObject() throws UnrecognisedStreamException {
+			int start = this.pos;
+			int tc = readByte();
+			switch (tc) {
+				case ObjectStreamConstants.TC_NULL:
+					return null;
+				case ObjectStreamConstants.TC_REFERENCE:
+					int handle = readInt() - ObjectStreamConstants.baseWireHandle;
+					if (handle < 0 || handle >= this.handles.size()) {
+						throw new UnrecognisedStreamException("Invalid handle: " + handle);
+					}
+					this.referenced.add(Integer.valueOf(handle));
+					return new Reference(this.handles.get(handle));
+				case ObjectStreamConstants.TC_STRING:
+				case ObjectStreamConstants.TC_LONGSTRING:
+					long length = tc == ObjectStreamConstants.TC_STRING ? readShort() : readLong();
+					if (length < 0 || length > this.data.length - this.pos) {
+						throw new UnrecognisedStreamException("Invalid string length: " + length);
+					}
+					String value = tc == ObjectStreamConstants.TC_STRING ? decodeUtf(start + 1, (int) length) : null;
+					this.pos += (int) length;
+					StringValue string = new StringValue(value, this.handles.size(), start, this.pos);
+					this.handles.add(string);
+					return tc == ObjectStreamConstants.TC_STRING ? string : NON_STRING;
+				case ObjectStreamConstants.TC_CLASSDESC:
+				case ObjectStreamConstants.TC_PROXYCLASSDESC:
+					this.pos = start;
+					return readClassDesc();
+				case ObjectStreamConstants.TC_CLASS:
+					readClassDesc();
+					this.handles.add(NON_STRING);
+					return NON_STRING;
+				case ObjectStreamConstants.TC_ENUM:
+					readClassDesc();
+					this.handles.add(NON_STRING);
+					readObject();
+					return NON_STRING;
+				case ObjectStreamConstants.TC_ARRAY:
+					readArray();
+					return NON_STRING;
+				case ObjectStreamConstants.TC_OBJECT:
+					return readOrdinaryObject();
+				default:
+					throw new UnrecognisedStreamException("Unsupported type code: " + tc);
+			}
+		}
+
+		private ClassDesc readClassDesc() throws UnrecognisedStreamException {
+			int tc = readByte();
+			switch (tc) {
+				case ObjectStreamConstants.TC_NULL:
+					return null;
+				case ObjectStreamConstants.TC_REFERENCE:
+					this.pos--;
+					Object target = ((Reference) readObject()).target;
+					if (!(target instanceof ClassDesc)) {
+						throw new UnrecognisedStreamException("Reference is not a class descriptor");
+					}
+					return (ClassDesc) target;
+				case ObjectStreamConstants.TC_PROXYCLASSDESC:
+					ClassDesc proxyDesc = new ClassDesc(null, ObjectStreamConstants.SC_SERIALIZABLE, 0);
+					this.handles.add(proxyDesc);
+					int numInterfaces = readInt();
+					for (int i = 0; i < numInterfaces; i++) {
+						readUtf();
+					}
+					skipAnnotation();
+					proxyDesc.superDesc = readClassDesc();
+					return proxyDesc;
+				case ObjectStreamConstants.TC_CLASSDESC:
+					String name = readUtf();
+					readLong();
+					int handle = this.handles.size();
+					this.handles.add(null);
+					int flags = readByte();
+					int numFields = readShort();
+					ClassDesc desc = new ClassDesc(name, flags, numFields);
+					this.handles.set(handle, desc);
+					for (int i = 0; i < numFields; i++) {
+						desc.fieldTypes[i] = (char) readByte();
+						desc.fieldNames[i] = readUtf();
+						if (desc.fieldTypes[i] == 'L' || desc.fieldTypes[i] == '[') {
+							Object className = readObject();
+							if (className instanceof Reference) {
+								className = ((Reference) className).target;
+							}
+							if (!(className instanceof StringValue)) {
+								throw new UnrecognisedStreamException("Invalid field type of: " + desc.fieldNames[i]);
+							}
+							desc.fieldClassNames[i] = ((StringValue) className).value;
+						}
+					}
+					skipAnnotation();
+					desc.superDesc = readClassDesc();
+					return desc;
+				default:
+					throw new UnrecognisedStreamException("Unsupported class descriptor type code: " + tc);
+			}
+		}
+
+		private void readArray() throws UnrecognisedStreamException {
+			ClassDesc desc = readClassDesc();
+			this.handles.add(NON_STRING);
+			int length = readInt();
+			if (desc == null || desc.name == null || desc.name.length() < 2 || length < 0) {
+				throw new UnrecognisedStreamException("Invalid array");
+			}
+			char type = desc.name.charAt(1);
+			if (type == 'L' || type == '[') {
+				for (int i = 0; i < length; i++) {
+					readObject();
+				}
+			} else {
+				skip((long) primitiveSize(type) * length);
+			}
+		}
+
+		private ObjectValue readOrdinaryObject() throws UnrecognisedStreamException {
+			ClassDesc desc = readClassDesc();
+			if (desc == null) {
+				throw new UnrecognisedStreamException("Object without a class descriptor");
+			}
+			ObjectValue obj = new ObjectValue(desc.name, this.handles.size());
+			this.handles.add(obj);
+			if ((desc.flags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+				if ((desc.flags & ObjectStreamConstants.SC_BLOCK_DATA) == 0) {
+					throw new UnrecognisedStreamException("Externalizable object without block data: " + desc.name);
+				}
+				skipAnnotation();
+				return obj;
+			}
+
+			// the data of the super classes is written first
+			List<ClassDesc> hierarchy = new ArrayList<ClassDesc>();
+			for (ClassDesc d = desc; d != null; d = d.superDesc) {
+				hierarchy.add(0, d);
+			}
+			for (ClassDesc d : hierarchy) {
+				for (int i = 0; i < d.fieldTypes.length; i++) {
+					char type = d.fieldTypes[i];
+					String key = d.name + "." + d.fieldNames[i];
+					if (type == 'L' || type == '[') {
+						obj.fieldTypes.put(key, d.fieldClassNames[i]);
+						Object value = readObject();
+						obj.fields.put(key, value);
+					} else {
+						skip(primitiveSize(type));
+					}
+				}
+				if ((d.flags & ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
+					skipAnnotation();
+				}
+			}
+			return obj;
+		}
+
+		/**
+		 * This skips block data and objects up to and including the end block data marker
+		 */
+		private void skipAnnotation() throws UnrecognisedStreamException {
+			while (true) {
+				int tc = peekByte();
+				if (tc == ObjectStreamConstants.TC_ENDBLOCKDATA) {
+					this.pos++;
+					return;
+				} else if (tc == ObjectStreamConstants.TC_BLOCKDATA) {
+					this.pos++;
+					skip(readByte());
+				} else if (tc == ObjectStreamConstants.TC_BLOCKDATALONG) {
+					this.pos++;
+					skip(readInt() & 0xffffffffL);
+				} else {
+					readObject();
+				}
+			}
+		}
+
+		private static int primitiveSize(char type) throws UnrecognisedStreamException {
+			switch (type) {
+				case 'B':
+				case 'Z':
+					return 1;
+				case 'C':
+				case 'S':
+					return 2;
+				case 'I':
+				case 'F':
+					return 4;
+				case 'J':
+				case 'D':
+					return 8;
+				default:
+					throw new UnrecognisedStreamException("Unsupported field type: " + type);
+			}
+		}
+
+		private String readUtf() throws UnrecognisedStreamException {
+			int start = this.pos;
+			int length = readShort();
+			skip(length);
+			return decodeUtf(start, length);
+		}
+
+		/**
+		 * This decodes the modified utf-8 string with the 2 byte length at the given offset
+		 */
+		private String decodeUtf(int offset, int length) throws UnrecognisedStreamException {
+			try {
+				return new DataInputStream(new ByteArrayInputStream(this.data, offset, length + 2)).readUTF();
+			} catch (IOException ex) {
+				throw new UnrecognisedStreamException("Invalid string: " + ex.getMessage());
+			}
+		}
+
+		private void skip(long length) throws UnrecognisedStreamException {
+			if (length < 0 || length > this.data.length - this.pos) {
+				throw new UnrecognisedStreamException("Unexpected end of stream");
+			}
+			this.pos += (int) length;
+		}
+
+		private int peekByte() throws UnrecognisedStreamException {
+			if (this.pos >= this.data.length) {
+				throw new UnrecognisedStreamException("Unexpected end of stream");
+			}
+			return this.data[this.pos] & 0xff;
+		}
+
+		private int readByte() throws UnrecognisedStreamException {
+			int b = peekByte();
+			this.pos++;
+			return b;
+		}
+
+		private int readShort() throws UnrecognisedStreamException {
+			return (readByte() << 8) | readByte();
+		}
+
+		private int readInt() throws UnrecognisedStreamException {
+			return (readShort() << 16) | readShort();
+		}
+
+		private long readLong() throws UnrecognisedStreamException {
+			return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The TokenIdRange represents a range of token ids, the lower bound is inclusive
+ * and the upper bound exclusive, a null bound means the range is unbounded on that side.
+ * Unmigrated token ids are UUIDs so ranges are split on their leading hex digits
+ * @version $Id$
+ * @author conorroche
+ */
+public class TokenIdRange {
+
+	/**
+	 * This is the max number of ranges the token id space can be split into
+	 */
+	public static final int MAX_RANGES = 256;
+
+	private final String lowerBound;
+	private final String upperBound;
+
+	/**
+	 * This creates a TokenIdRange
+	 * @param lowerBound The inclusive lower bound or null if unbounded
+	 * @param upperBound The exclusive upper bound or null if unbounded
+	 */
+	public TokenIdRange(String lowerBound, String upperBound) {
+		this.lowerBound = lowerBound;
+		this.upperBound = upperBound;
+	}
+
+	/**
+	 * This splits the token id space into the given number of non overlapping ranges
+	 * that together cover every possible token id
+	 * @param numRanges The number of ranges, this is capped at {@link #MAX_RANGES}
+	 * @return The list of ranges in token id order
+	 */
+	public static List<TokenIdRange> split(int numRanges) {
+		int num = Math.max(1, Math.min(numRanges, MAX_RANGES));
+		List<TokenIdRange> ranges = new ArrayList<TokenIdRange>(num);
+		String lower = null;
+		for (int i = 1; i <= num; i++) {
+			String upper = i == num ? null : String.format("%02x", i * MAX_RANGES / num);
+			ranges.add(new TokenIdRange(lower, upper));
+			lower = upper;
+		}
+		return ranges;
+	}
+
+	/**
+	 * This gets the inclusive lower bound
+	 * @return the inclusive lower bound or null if unbounded
+	 */
+	public String getLowerBound() {
+		return this.lowerBound;
+	}
+
+	/**
+	 * This gets the exclusive upper bound
+	 * @return the exclusive upper bound or null if unbounded
+	 */
+	public String getUpperBound() {
+		return this.upperBound;
+	}
+
+	/**
+	 * This checks whether the given token id falls within this range
+	 * @param tokenId The token id
+	 * @return True if the token id is within this range
+	 */
+	public boolean contains(String tokenId) {
+		if (this.lowerBound != null && tokenId.compareTo(this.lowerBound) < 0) {
+			return false;
+		}
+		if (this.upperBound != null && tokenId.compareTo(this.upperBound) >= 0) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "[" + (this.lowerBound == null ? "" : this.lowerBound) + ", " + (this.upperBound == null ? "" : this.upperBound) + ")";
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The TokenKeyGenerator creates the same keys as JdbcTokenStore.extractTokenKey, the lower case hex of the md5 of the utf-8 bytes of the
+ * token value, without getting a new MessageDigest or going through a BigInteger and String.format for every token. Each thread reuses
+ * its own digest and buffers so a generator can be shared by the migration threads.
+ * @version $Id$
+ * @author conorroche
+ */
+public class TokenKeyGenerator {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final int MD5_LENGTH = 16;
+
+	private final ThreadLocal<State> state = new ThreadLocal<State>() {
+
+		@Override
+		protected State initialValue() {
+			return new State();
+		}
+	};
+
+	/**
+	 * This generates the key of the given token value
+	 * @param value The token value
+	 * @return The key or null if the value is null
+	 */
+	public String generateKey(String value) {
+		if (value == null) {
+			return null;
+		}
+		State state = this.state.get();
+		MessageDigest digest = state.digest;
+		if (!state.updateAscii(value)) {
+			try {
+				digest.update(value.getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException("UTF-8 encoding not available.  Fatal (should be in the JDK).");
+			}
+		}
+		try {
+			digest.digest(state.hash, 0, MD5_LENGTH);
+		} catch (DigestException e) {
+			throw new IllegalStateException("Could not create the MD5 digest of the token.", e);
+		}
+		char[] hex = state.hex;
+		for (int i = 0; i < MD5_LENGTH; i++) {
+			int b = state.hash[i] & 0xff;
+			hex[i * 2] = HEX_DIGITS[b >>> 4];
+			hex[i * 2 + 1] = HEX_DIGITS[b & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * The State holds the digest and buffers of a thread
+	 */
+	private static class State {
+
+		final MessageDigest digest;
+		final byte[] hash = new byte[MD5_LENGTH];
+		final char[] hex = new char[MD5_LENGTH * 2];
+		byte[] bytes = new byte[64];
+
+		State() {
+			try {
+				this.digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("MD5 algorithm not available.  Fatal (should be in the JDK).");
+			}
+		}
+
+		/**
+		 * This updates the digest with the given value if it is all ascii, in which case its utf-8 bytes are its chars
+		 * @param value The value
+		 * @return True if the value was ascii and the digest was updated, false if the digest is untouched
+		 */
+		boolean updateAscii(String value) {
+			int length = value.length();
+			if (this.bytes.length < length) {
+				this.bytes = new byte[Math.max(length, this.bytes.length * 2)];
+			}
+			for (int i = 0; i < length; i++) {
+				char c = value.charAt(i);
+				if (c >= 0x80) {
+					return false;
+				}
+				this.bytes[i] = (byte) c;
+			}
+			this.digest.update(this.bytes, 0, length);
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The TokenLog represents a debug log of the individual tokens migrated, lines are queued by the migration threads
+ * and written to a file by a background thread so logging does not block on the file
+ * @version $Id$
+ * @author conorroche
+ */
+public class TokenLog {
+
+	private static final String END = new String("END");
+
+	private static final int QUEUE_CAPACITY = 10000;
+
+	private final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+	private final Writer writer;
+	private final Thread writerThread;
+	private volatile IOException failure;
+
+	/**
+	 * This creates a TokenLog that appends to the given file
+	 * @param file The file to log to
+	 * @throws IOException If the file could not be opened
+	 */
+	public TokenLog(File file) throws IOException {
+		this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+		this.writerThread = new Thread("oauth-migration-token-log") {
+
+			@Override
+			public void run() {
+				writeLines();
+			}
+		};
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	/**
+	 * This queues a line to be written to the log, it only blocks if the writer has fallen a long way behind
+	 * @param line The line to log
+	 */
+	public void log(String line) {
+		if (this.failure != null) {
+			return;
+		}
+		try {
+			this.lines.put(line);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * This writes any queued lines and closes the log file
+	 * @throws IOException If the log could not be written
+	 */
+	public void close() throws IOException {
+		try {
+			this.lines.put(END);
+			this.writerThread.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (this.failure != null) {
+			throw this.failure;
+		}
+	}
+
+	private void writeLines() {
+		try {
+			try {
+				String line = this.lines.take();
+				while (line != END) {
+					this.writer.write(line);
+					this.writer.write('\n');
+					// only flush once the queue is drained so lines are written in blocks
+					if (this.lines.isEmpty()) {
+						this.writer.flush();
+					}
+					line = this.lines.take();
+				}
+			} finally {
+				this.writer.close();
+			}
+		} catch (IOException ex) {
+			this.failure = ex;
+			this.lines.clear();
+		} catch (InterruptedException ex) {
+			// stop writing
+		}
+	}
+
+}
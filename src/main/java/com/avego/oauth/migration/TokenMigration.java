@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+/**
+ * The TokenMigration represents the migration of one type of token record, it is used
+ * by the migration engines to read, convert and write records without knowing the record type
+ * @param <R> The type of token record migrated
+ * @param <U> The type of the migrated data written back for each record
+ * @version $Id$
+ * @author conorroche
+ */
+public interface TokenMigration<R extends TokenRecord, U extends TokenUpdate> {
+
+	/**
+	 * This gets a description of the type of token migrated e.g. access token
+	 * @return The description of the type of token migrated
+	 */
+	public String getTokenType();
+
+	/**
+	 * This gets the number of unmigrated token records
+	 * @return The number of unmigrated token records
+	 */
+	public int countUnmigratedRecords();
+
+	/**
+	 * This gets a page of unmigrated token records within the given range ordered by token id
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id records must be after or null to start from the beginning of the range
+	 * @param limit The max number of records to get
+	 * @return The list of unmigrated token records, this is empty once there are no more records
+	 */
+	public List<R> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit);
+
+	/**
+	 * This streams the unmigrated token records within the given range in token id order to the given callback
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id records must be after or null to start from the beginning of the range
+	 * @param callback The callback that processes each record
+	 */
+	public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<R> callback);
+
+	/**
+	 * This converts the given token record to its migrated form, it does not write anything to the db
+	 * @param record The token record to convert
+	 * @return The migrated data for the record
+	 * @throws IOException If an IO error occurs such as when serializing/deserializing data
+	 * @throws ClassNotFoundException If a class not found when serializing/deserializing data
+	 * @throws NoSuchMethodException If a NoSuchMethodException exception occurs when using reflection to convert to the new objects
+	 * @throws IllegalAccessException If an IllegalAccessException exception occurs when using reflection to convert to the new objects
+	 * @throws InvocationTargetException If an invocation target exception occurs when using reflection to convert to the new objects
+	 * @throws InstantiationException If an InstantiationException exception occurs when using reflection to convert to the new objects
+	 */
+	public U transform(R record) throws IOException, ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException,
+			InstantiationException;
+
+	/**
+	 * This writes the migrated data for a page of token records to the db
+	 * @param updates The migrated data to write
+	 */
+	public void write(List<U> updates);
+
+}
@@ -51,6 +51,14 @@ public abstract class TokenRecord {
 		this.token = token;
 	}
 
+	/**
+	 * This gets the number of bytes of serialized data in the record
+	 * @return the number of bytes of serialized data in the record
+	 */
+	public int getDataLength() {
+		return this.token == null ? 0 : this.token.length;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see java.lang.Object#toString()
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+/**
+ * The TokenRecordCallback represents a callback that is handed token records one at a time
+ * as they are streamed from the db
+ * @param <R> The type of token record
+ * @version $Id$
+ * @author conorroche
+ */
+public interface TokenRecordCallback<R extends TokenRecord> {
+
+	/**
+	 * This processes a single token record
+	 * @param record The token record
+	 * @return True to continue streaming records, false to stop
+	 */
+	public boolean processRecord(R record);
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+/**
+ * The TokenUpdate represents a base class for the migrated data of a token record
+ * that is to be written back to the db
+ * @version $Id$
+ * @author conorroche
+ */
+public abstract class TokenUpdate {
+
+	private final String oldTokenId;
+	private final String newTokenId;
+	private final byte[] tokenData;
+	private final byte[] authData;
+
+	/**
+	 * This creates a TokenUpdate
+	 * @param oldTokenId The old token id
+	 * @param newTokenId The new token id
+	 * @param tokenData The serialized token data
+	 * @param authData The serialized authentication data
+	 */
+	protected TokenUpdate(String oldTokenId, String newTokenId, byte[] tokenData, byte[] authData) {
+		this.oldTokenId = oldTokenId;
+		this.newTokenId = newTokenId;
+		this.tokenData = tokenData;
+		this.authData = authData;
+	}
+
+	/**
+	 * This gets the old token id
+	 * @return the old token id
+	 */
+	public String getOldTokenId() {
+		return this.oldTokenId;
+	}
+
+	/**
+	 * This gets the new token id
+	 * @return the new token id
+	 */
+	public String getNewTokenId() {
+		return this.newTokenId;
+	}
+
+	/**
+	 * This gets the serialized token data
+	 * @return the serialized token data
+	 */
+	public byte[] getTokenData() {
+		return this.tokenData;
+	}
+
+	/**
+	 * This gets the serialized authentication data
+	 * @return the serialized authentication data
+	 */
+	public byte[] getAuthData() {
+		return this.authData;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.oldTokenId + " -> " + this.newTokenId;
+	}
+
+}
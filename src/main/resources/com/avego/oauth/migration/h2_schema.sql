@@ -0,0 +1,37 @@
+-- This is the schema structure for v 1.0.0.M6d adapted for an embedded H2 db in MySQL mode,
+-- the token ids are primary keys so the migration pages through the tokens using the index as it does on a production db
+create table if not exists oauth_client_details (
+  client_id VARCHAR(256) PRIMARY KEY,
+  resource_ids VARCHAR(256),
+  client_secret VARCHAR(256),
+  scope VARCHAR(256),
+  authorized_grant_types VARCHAR(256),
+  web_server_redirect_uri VARCHAR(256),
+  authorities VARCHAR(256),
+  access_token_validity INTEGER,
+  refresh_token_validity INTEGER
+);
+
+create table if not exists oauth_access_token (
+  token_id VARCHAR(256) PRIMARY KEY,
+  token BLOB,
+  authentication_id VARCHAR(256),
+  user_name VARCHAR(256),
+  client_id VARCHAR(256),
+  authentication BLOB,
+  refresh_token VARCHAR(256)
+);
+
+create index if not exists oauth_access_token_authentication_id on oauth_access_token (authentication_id);
+
+create index if not exists oauth_access_token_refresh_token on oauth_access_token (refresh_token);
+
+create table if not exists oauth_refresh_token (
+  token_id VARCHAR(256) PRIMARY KEY,
+  token BLOB,
+  authentication BLOB
+);
+
+create table if not exists oauth_code (
+  code VARCHAR(256), authentication BLOB
+);
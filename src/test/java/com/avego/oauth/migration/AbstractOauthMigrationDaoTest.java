@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The AbstractOauthMigrationDaoTest represents a test case for the default implementations of the AbstractOauthMigrationDao
+ * @version $Id$
+ * @author conorroche
+ */
+public class AbstractOauthMigrationDaoTest extends TestCase {
+
+	/**
+	 * This tests that the pages and streams are read after the given token id and that ranges are rejected
+	 * @throws Exception
+	 */
+	public void testReads() throws Exception {
+		OriginalMethodsDao dao = new OriginalMethodsDao(5);
+
+		List<OauthAccessTokenRecord> page = dao.getUnmigratedOauthAccessTokenRecords(null, null, 2);
+		Assert.assertEquals(2, page.size());
+		Assert.assertEquals("a-1", page.get(0).getTokenId());
+
+		// a token that failed to migrate is still unmigrated but is not read again
+		dao.failedTokenId = "a-2";
+		dao.updateOauthAccessToken("a-1", "a1", null, null, null);
+		dao.updateOauthAccessToken("a-2", "a2", null, null, null);
+		page = dao.getUnmigratedOauthAccessTokenRecords(null, "a-2", 2);
+		Assert.assertEquals(1, page.size());
+		Assert.assertEquals("a-3", page.get(0).getTokenId());
+
+		final List<String> streamed = new ArrayList<String>();
+		dao.streamUnmigratedOauthAccessTokenRecords(null, "a-2", new TokenRecordCallback<OauthAccessTokenRecord>() {
+
+			public boolean processRecord(OauthAccessTokenRecord record) {
+				streamed.add(record.getTokenId());
+				return streamed.size() < 2;
+			}
+		});
+		Assert.assertEquals(Arrays.asList("a-3", "a-4"), streamed);
+
+		try {
+			dao.getUnmigratedOauthAccessTokenRecords(new TokenIdRange("a", "b"), null, 2);
+			fail("Expected token id ranges not to be supported");
+		} catch (UnsupportedOperationException ex) {
+			// expected
+		}
+		try {
+			dao.getUnmigratedOauthRefreshTokenRecords(Arrays.asList("r-1"));
+			fail("Expected reading by token id not to be supported");
+		} catch (UnsupportedOperationException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 * This tests that the batched updates update each token
+	 * @throws Exception
+	 */
+	public void testUpdates() throws Exception {
+		OriginalMethodsDao dao = new OriginalMethodsDao(3);
+		dao.updateOauthTokens(Arrays.asList(new OauthAccessTokenUpdate("a-1", "a1", "r1", null, null), new OauthAccessTokenUpdate("a-2", "a2",
+				null, null, null)), Arrays.asList(new OauthRefreshTokenUpdate("r-1", "r1", null, null)));
+		Assert.assertEquals(1, dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(2, dao.countMigratedAccessTokens());
+		Assert.assertEquals(2, dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(1, dao.countMigratedRefreshTokens());
+		dao.finishMigration();
+	}
+
+	/**
+	 * The OriginalMethodsDao represents an in memory dao that only implements the original methods of the OauthMigrationDao
+	 */
+	private static final class OriginalMethodsDao extends AbstractOauthMigrationDao {
+
+		private final Map<String, OauthAccessTokenRecord> accessTokens = new TreeMap<String, OauthAccessTokenRecord>();
+		private final Map<String, OauthRefreshTokenRecord> refreshTokens = new TreeMap<String, OauthRefreshTokenRecord>();
+		private String failedTokenId;
+
+		OriginalMethodsDao(int numTokens) {
+			for (int i = 1; i <= numTokens; i++) {
+				OauthAccessTokenRecord accessToken = new OauthAccessTokenRecord();
+				accessToken.setTokenId("a-" + i);
+				this.accessTokens.put(accessToken.getTokenId(), accessToken);
+				OauthRefreshTokenRecord refreshToken = new OauthRefreshTokenRecord();
+				refreshToken.setTokenId("r-" + i);
+				this.refreshTokens.put(refreshToken.getTokenId(), refreshToken);
+			}
+		}
+
+		public int countUnmigratedAccessTokens() {
+			return getRecords(this.accessTokens, false, Integer.MAX_VALUE).size();
+		}
+
+		public int countMigratedAccessTokens() {
+			return getRecords(this.accessTokens, true, Integer.MAX_VALUE).size();
+		}
+
+		public int countUnmigratedRefreshTokens() {
+			return getRecords(this.refreshTokens, false, Integer.MAX_VALUE).size();
+		}
+
+		public int countMigratedRefreshTokens() {
+			return getRecords(this.refreshTokens, true, Integer.MAX_VALUE).size();
+		}
+
+		public void clearRefreshTokens() {
+			this.refreshTokens.clear();
+		}
+
+		public String generateNewTokenKey(String tokenId) {
+			return tokenId.replace("-", "");
+		}
+
+		public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(int limit) {
+			return getRecords(this.accessTokens, false, limit);
+		}
+
+		public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(int limit) {
+			return getRecords(this.refreshTokens, false, limit);
+		}
+
+		public List<OauthAccessTokenRecord> getMigratedOauthAccessTokenRecords(int limit) {
+			return getRecords(this.accessTokens, true, limit);
+		}
+
+		public List<OauthRefreshTokenRecord> getMigratedOauthRefreshTokenRecords(int limit) {
+			return getRecords(this.refreshTokens, true, limit);
+		}
+
+		public void updateOauthAccessToken(String oldTokenId, String newTokenId, String newRefreshToken, byte[] tokenData, byte[] authData) {
+			if (!oldTokenId.equals(this.failedTokenId)) {
+				OauthAccessTokenRecord record = this.accessTokens.remove(oldTokenId);
+				record.setTokenId(newTokenId);
+				this.accessTokens.put(newTokenId, record);
+			}
+		}
+
+		public void updateOauthRefreshToken(String oldTokenId, String newTokenId, byte[] tokenData, byte[] authData) {
+			OauthRefreshTokenRecord record = this.refreshTokens.remove(oldTokenId);
+			record.setTokenId(newTokenId);
+			this.refreshTokens.put(newTokenId, record);
+		}
+
+		private static <R extends TokenRecord> List<R> getRecords(Map<String, R> records, boolean migrated, int limit) {
+			List<R> selected = new ArrayList<R>();
+			for (R record : records.values()) {
+				if (selected.size() < limit && record.getTokenId().indexOf('-') < 0 == migrated) {
+					selected.add(record);
+				}
+			}
+			return selected;
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.lang.reflect.Constructor;
+import java.util.Date;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+
+/**
+ * The AccessorCacheTest represents a test case for the AccessorCache
+ * @version $Id$
+ * @author conorroche
+ */
+public class AccessorCacheTest extends TestCase {
+
+	/**
+	 * This tests that methods are resolved once and then served from the cache
+	 * @throws Exception
+	 */
+	public void testInvokeMethod() throws Exception {
+		AccessorCache cache = new AccessorCache();
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken("test");
+		Date expiry = new Date();
+
+		cache.invokeMethod(token, "setExpiration", expiry);
+		Assert.assertEquals(expiry, cache.invokeMethod(token, "getExpiration", (Object[]) null));
+		cache.invokeMethod(token, "setExpiration", new Object[] { null }, new Class<?>[] { Date.class });
+		Assert.assertNull(token.getExpiration());
+		cache.invokeMethod(token, "setExpiration", expiry);
+
+		Assert.assertEquals(expiry, token.getExpiration());
+		Assert.assertEquals(2, cache.getMisses());
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(2, cache.size());
+	}
+
+	/**
+	 * This tests that missing methods and constructors are cached as missing
+	 * @throws Exception
+	 */
+	public void testNotFound() throws Exception {
+		AccessorCache cache = new AccessorCache();
+		Assert.assertNull(cache.getMethod(DefaultOAuth2AccessToken.class, "setTokenValue", String.class));
+		Assert.assertNull(cache.getMethod(DefaultOAuth2AccessToken.class, "setTokenValue", String.class));
+		Assert.assertNull(cache.getConstructor(DefaultOAuth2AccessToken.class, Date.class));
+		try {
+			cache.invokeMethod(new DefaultOAuth2AccessToken("test"), "setTokenValue", "test2");
+			Assert.fail("Expected a NoSuchMethodException");
+		} catch (NoSuchMethodException ex) {
+			// expected
+		}
+		Assert.assertEquals(2, cache.getHits());
+
+		Constructor<DefaultOAuth2AccessToken> constructor = cache.getConstructor(DefaultOAuth2AccessToken.class, String.class);
+		Assert.assertSame(constructor, cache.getConstructor(DefaultOAuth2AccessToken.class, String.class));
+		Assert.assertEquals("test", constructor.newInstance("test").getValue());
+	}
+
+}
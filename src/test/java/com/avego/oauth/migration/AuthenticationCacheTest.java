@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The AuthenticationCacheTest represents a test case for the AuthenticationCache
+ * @version $Id$
+ * @author conorroche
+ */
+public class AuthenticationCacheTest extends TestCase {
+
+	/**
+	 * This tests that equal blobs share a key, the hit stats are kept and the least recently used authentication is evicted
+	 */
+	public void testCache() {
+		AuthenticationCache cache = new AuthenticationCache(2);
+		byte[] a = "authentication a".getBytes();
+		byte[] b = "authentication b".getBytes();
+		byte[] c = "authentication c".getBytes();
+
+		Assert.assertEquals(cache.key(a), cache.key(a.clone()));
+		Assert.assertFalse(cache.key(a).equals(cache.key(b)));
+
+		Assert.assertNull(cache.get(cache.key(a)));
+		cache.put(cache.key(a), "new a".getBytes());
+		Assert.assertEquals("new a", new String(cache.get(cache.key(a.clone()))));
+		cache.put(cache.key(b), "new b".getBytes());
+
+		// a was used more recently than b so b is evicted
+		Assert.assertNotNull(cache.get(cache.key(a)));
+		cache.put(cache.key(c), "new c".getBytes());
+		Assert.assertEquals(2, cache.size());
+		Assert.assertNull(cache.get(cache.key(b)));
+		Assert.assertNotNull(cache.get(cache.key(a)));
+		Assert.assertNotNull(cache.get(cache.key(c)));
+
+		Assert.assertEquals(4, cache.getHits());
+		Assert.assertEquals(2, cache.getMisses());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals(4.0 / 6, cache.getHitRate(), 0.0001);
+	}
+
+}
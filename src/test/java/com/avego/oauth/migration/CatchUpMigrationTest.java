@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The CatchUpMigrationTest represents a test case for the CatchUpMigration
+ * @version $Id$
+ * @author conorroche
+ */
+public class CatchUpMigrationTest extends TestCase {
+
+	/**
+	 * This tests that the tokens created while catching up are migrated and it stops after the quiet period
+	 * @throws Exception
+	 */
+	public void testCatchUp() throws Exception {
+		TestMigration migration = new TestMigration();
+		for (int i = 0; i < 25; i++) {
+			migration.tokenIds.add("0-" + i);
+		}
+		// the old application creates 3 more tokens each time a batch is written for the first few batches
+		migration.numCreatedPerWrite = 3;
+		migration.numWritesCreating = 4;
+
+		CatchUpMigration catchUp = new CatchUpMigration(10, 1, 5, 50);
+		long start = System.currentTimeMillis();
+		int numMigrated = catchUp.run(Collections.singletonList(migration));
+
+		Assert.assertEquals(37, numMigrated);
+		Assert.assertEquals(37, migration.numWritten);
+		Assert.assertTrue(migration.tokenIds.isEmpty());
+		Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+	}
+
+	/**
+	 * This tests that the poll interval is lowered as the backlog shrinks and raised as it grows
+	 */
+	public void testNextInterval() {
+		CatchUpMigration catchUp = new CatchUpMigration(100, 100, 1600, 1000);
+		Assert.assertEquals(1600, catchUp.nextInterval(50));
+		Assert.assertEquals(800, catchUp.nextInterval(20));
+		Assert.assertEquals(400, catchUp.nextInterval(5));
+		Assert.assertEquals(200, catchUp.nextInterval(0));
+		Assert.assertEquals(200, catchUp.nextInterval(0));
+		Assert.assertEquals(400, catchUp.nextInterval(10));
+		Assert.assertEquals(200, catchUp.nextInterval(1));
+		Assert.assertEquals(100, catchUp.nextInterval(0));
+	}
+
+	/**
+	 * The TestMigration represents an in memory migration of refresh tokens that creates new tokens as it writes
+	 */
+	private static class TestMigration implements TokenMigration<OauthRefreshTokenRecord, OauthRefreshTokenUpdate> {
+
+		final Set<String> tokenIds = new TreeSet<String>();
+		int numCreatedPerWrite;
+		int numWritesCreating;
+		int numWritten;
+		int numCreated;
+
+		public String getTokenType() {
+			return "refresh token";
+		}
+
+		public int countUnmigratedRecords() {
+			return this.tokenIds.size();
+		}
+
+		public List<OauthRefreshTokenRecord> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+			List<OauthRefreshTokenRecord> records = new ArrayList<OauthRefreshTokenRecord>();
+			for (String tokenId : this.tokenIds) {
+				if (records.size() == limit) {
+					break;
+				}
+				OauthRefreshTokenRecord record = new OauthRefreshTokenRecord();
+				record.setTokenId(tokenId);
+				records.add(record);
+			}
+			return records;
+		}
+
+		public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback) {
+			throw new UnsupportedOperationException();
+		}
+
+		public OauthRefreshTokenUpdate transform(OauthRefreshTokenRecord record) {
+			return new OauthRefreshTokenUpdate(record.getTokenId(), record.getTokenId().replace("-", ""), null, null);
+		}
+
+		public void write(List<OauthRefreshTokenUpdate> updates) {
+			for (OauthRefreshTokenUpdate update : updates) {
+				this.tokenIds.remove(update.getOldTokenId());
+			}
+			this.numWritten += updates.size();
+			if (this.numWritesCreating-- > 0) {
+				for (int i = 0; i < this.numCreatedPerWrite; i++) {
+					this.tokenIds.add("1-" + this.numCreated++);
+				}
+			}
+		}
+	}
+
+}
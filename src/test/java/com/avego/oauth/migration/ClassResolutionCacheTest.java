@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+/**
+ * The ClassResolutionCacheTest represents a test case for the ClassResolutionCache
+ * @version $Id$
+ * @author conorroche
+ */
+public class ClassResolutionCacheTest extends TestCase {
+
+	/**
+	 * This tests resolving class, primitive and array names
+	 * @throws Exception
+	 */
+	public void testResolveClass() throws Exception {
+		ClassResolutionCache cache = new ClassResolutionCache(getClass().getClassLoader());
+		Assert.assertSame(String.class, cache.resolveClass("java.lang.String"));
+		Assert.assertSame(int.class, cache.resolveClass("int"));
+		Assert.assertSame(String[].class, cache.resolveClass("[Ljava.lang.String;"));
+		Assert.assertSame(long[][].class, cache.resolveClass("[[J"));
+		Assert.assertSame(String.class, cache.resolveClass("java.lang.String"));
+
+		Assert.assertEquals(4, cache.size());
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(4, cache.getMisses());
+
+		try {
+			cache.resolveClass("com.avego.oauth.migration.DoesNotExist");
+			Assert.fail("Expected a ClassNotFoundException");
+		} catch (ClassNotFoundException ex) {
+			// expected
+		}
+		Assert.assertEquals(4, cache.size());
+	}
+
+	/**
+	 * This tests deserializing through the custom object input stream using the cache
+	 * @throws Exception
+	 */
+	public void testDeserialize() throws Exception {
+		ClassResolutionCache cache = new ClassResolutionCache(getClass().getClassLoader());
+		ArrayList<Object> data = new ArrayList<Object>(Arrays.asList(new String[] { "a", "b" }, new int[] { 1, 2 }, int.class, "c"));
+		byte[] bytes = SerializationUtils.serialize(data);
+
+		for (int i = 0; i < 2; i++) {
+			ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(bytes), cache);
+			try {
+				List<?> res = (List<?>) ois.readObject();
+				Assert.assertTrue(Arrays.equals(new String[] { "a", "b" }, (String[]) res.get(0)));
+				Assert.assertTrue(Arrays.equals(new int[] { 1, 2 }, (int[]) res.get(1)));
+				Assert.assertSame(int.class, res.get(2));
+			} finally {
+				ois.close();
+			}
+		}
+		Assert.assertTrue(cache.getHits() >= cache.size());
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The DryRunTest represents a test case for the DryRun
+ * @version $Id$
+ * @author conorroche
+ */
+public class DryRunTest extends TestCase {
+
+	/**
+	 * This tests that a dry run of all the tokens converts them all without writing any and collects the failures
+	 * @throws Exception
+	 */
+	public void testDryRunAll() throws Exception {
+		verifyDryRun(false);
+	}
+
+	/**
+	 * This tests that a streamed dry run of all the tokens converts them all without writing any and collects the failures
+	 * @throws Exception
+	 */
+	public void testStreamingDryRunAll() throws Exception {
+		verifyDryRun(true);
+	}
+
+	/**
+	 * This tests that a dry run reads no more than the sample size
+	 * @throws Exception
+	 */
+	public void testSample() throws Exception {
+		for (boolean streaming : new boolean[] { false, true }) {
+			TestMigration migration = new TestMigration(100);
+			DryRun dryRun = new DryRun(migration.getTokenType(), 25, 10);
+			new RangeMigrationTask<OauthRefreshTokenRecord, OauthRefreshTokenUpdate>(dryRun.collectFailures(dryRun.withoutWrites(migration)), null,
+					10, new AtomicBoolean(false), streaming).call();
+			Assert.assertEquals(25, dryRun.getNumRead());
+			Assert.assertEquals(25, migration.numTransformed);
+			Assert.assertEquals(4000, dryRun.getProjectedMillis(100, 1000));
+		}
+	}
+
+	private void verifyDryRun(boolean streaming) throws Exception {
+		TestMigration migration = new TestMigration(100);
+		migration.failingTokenIds.add("0-10");
+		migration.failingTokenIds.add("0-20");
+		migration.failingTokenIds.add("0-30");
+		DryRun dryRun = new DryRun(migration.getTokenType(), 0, 2);
+		RangeMigrationResult result = new RangeMigrationTask<OauthRefreshTokenRecord, OauthRefreshTokenUpdate>(
+				dryRun.collectFailures(dryRun.withoutWrites(migration)), null, 10, new AtomicBoolean(false), streaming).call();
+
+		Assert.assertEquals(100, result.getNumMigrated());
+		Assert.assertEquals(100, dryRun.getNumRead());
+		Assert.assertEquals(3, dryRun.getNumFailed());
+		Assert.assertEquals(2, dryRun.getFailures().size());
+		Assert.assertTrue(dryRun.getFailures().get(0).startsWith("0-10: "));
+		Assert.assertEquals(0, migration.numWritten);
+		Assert.assertEquals(1000, dryRun.getProjectedMillis(100, 1000));
+	}
+
+	/**
+	 * The TestMigration represents an in memory migration of refresh tokens
+	 */
+	private static class TestMigration implements TokenMigration<OauthRefreshTokenRecord, OauthRefreshTokenUpdate> {
+
+		final Set<String> tokenIds = new TreeSet<String>();
+		final Set<String> failingTokenIds = new TreeSet<String>();
+		int numTransformed;
+		int numWritten;
+
+		TestMigration(int numTokens) {
+			for (int i = 0; i < numTokens; i++) {
+				this.tokenIds.add("0-" + (i < 10 ? "0" : "") + i);
+			}
+		}
+
+		public String getTokenType() {
+			return "refresh token";
+		}
+
+		public int countUnmigratedRecords() {
+			return this.tokenIds.size();
+		}
+
+		public List<OauthRefreshTokenRecord> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+			List<OauthRefreshTokenRecord> records = new ArrayList<OauthRefreshTokenRecord>();
+			for (String tokenId : this.tokenIds) {
+				if (records.size() == limit) {
+					break;
+				}
+				if (afterTokenId == null || tokenId.compareTo(afterTokenId) > 0) {
+					OauthRefreshTokenRecord record = new OauthRefreshTokenRecord();
+					record.setTokenId(tokenId);
+					records.add(record);
+				}
+			}
+			return records;
+		}
+
+		public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback) {
+			for (OauthRefreshTokenRecord record : getUnmigratedRecords(range, afterTokenId, Integer.MAX_VALUE)) {
+				if (!callback.processRecord(record)) {
+					return;
+				}
+			}
+		}
+
+		public OauthRefreshTokenUpdate transform(OauthRefreshTokenRecord record) throws IOException {
+			this.numTransformed++;
+			if (this.failingTokenIds.contains(record.getTokenId())) {
+				throw new IOException("Failed to transform: " + record.getTokenId());
+			}
+			return new OauthRefreshTokenUpdate(record.getTokenId(), record.getTokenId().replace("-", ""), null, null);
+		}
+
+		public void write(List<OauthRefreshTokenUpdate> updates) {
+			this.numWritten += updates.size();
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The H2OauthMigrationDaoTest represents a test case for the H2OauthMigrationDao, it runs the jdbc dao against an in memory db
+ * @version $Id$
+ * @author conorroche
+ */
+public class H2OauthMigrationDaoTest extends TestCase {
+
+	private H2OauthMigrationDao dao;
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		this.dao.getJdbcTemplate().execute("drop all objects");
+		this.dao.close();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(JdbcOauthMigrationDao.JDBC_URL_KEY, "jdbc:h2:mem:" + getName());
+		this.dao = new H2OauthMigrationDao(params);
+
+		List<OauthRefreshTokenRecord> refreshTokens = new ArrayList<OauthRefreshTokenRecord>();
+		List<OauthAccessTokenRecord> accessTokens = new ArrayList<OauthAccessTokenRecord>();
+		for (int i = 1; i <= 3; i++) {
+			OauthRefreshTokenRecord refreshToken = new OauthRefreshTokenRecord();
+			refreshToken.setTokenId("r-" + i);
+			refreshToken.setToken(new byte[] { (byte) i });
+			refreshToken.setAuthentication(new byte[] { 1, (byte) i });
+			refreshTokens.add(refreshToken);
+
+			OauthAccessTokenRecord accessToken = new OauthAccessTokenRecord();
+			accessToken.setTokenId("a-" + i);
+			accessToken.setToken(new byte[] { (byte) i });
+			accessToken.setAuthenticationId("auth" + i);
+			accessToken.setUserName("user" + i);
+			accessToken.setClientId("client");
+			accessToken.setAuthentication(new byte[] { 1, (byte) i });
+			accessToken.setRefreshToken("r-" + i);
+			accessTokens.add(accessToken);
+		}
+		this.dao.insertOauthRefreshTokens(refreshTokens);
+		this.dao.insertOauthAccessTokens(accessTokens);
+	}
+
+	/**
+	 * This tests that MySQL mode is added to the url and an in memory db is kept open unless the url sets them
+	 */
+	public void testH2Url() throws Exception {
+		Assert.assertEquals("jdbc:h2:mem:" + getName() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", this.dao.getH2Url());
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(JdbcOauthMigrationDao.JDBC_URL_KEY, "jdbc:h2:file:/tmp/oauth;mode=Oracle");
+		params.put(H2OauthMigrationDao.CREATE_SCHEMA_KEY, "false");
+		params.put(JdbcOauthMigrationDao.POOL_SIZE_KEY, "0");
+		Assert.assertEquals("jdbc:h2:file:/tmp/oauth;mode=Oracle", new H2OauthMigrationDao(params).getH2Url());
+	}
+
+	/**
+	 * This tests that creating the schema again leaves the existing tokens in place
+	 */
+	public void testCreateSchemaAgain() {
+		this.dao.createSchema();
+		Assert.assertEquals(3, this.dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(3, this.dao.countUnmigratedRefreshTokens());
+	}
+
+	/**
+	 * This tests that the unmigrated tokens are read a page at a time in token id order
+	 */
+	public void testPaging() {
+		Assert.assertEquals(3, this.dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(3, this.dao.countUnmigratedRefreshTokens());
+
+		List<OauthAccessTokenRecord> page = this.dao.getUnmigratedOauthAccessTokenRecords(null, null, 2);
+		Assert.assertEquals(2, page.size());
+		Assert.assertEquals("a-1", page.get(0).getTokenId());
+		Assert.assertEquals("a-2", page.get(1).getTokenId());
+		Assert.assertEquals("user2", page.get(1).getUserName());
+
+		page = this.dao.getUnmigratedOauthAccessTokenRecords(null, "a-2", 2);
+		Assert.assertEquals(1, page.size());
+		Assert.assertEquals("a-3", page.get(0).getTokenId());
+		Assert.assertEquals("r-3", page.get(0).getRefreshToken());
+	}
+
+	/**
+	 * This tests that the access and refresh tokens are updated together
+	 */
+	public void testUpdateTokens() {
+		List<OauthRefreshTokenUpdate> refreshTokenUpdates = new ArrayList<OauthRefreshTokenUpdate>();
+		List<OauthAccessTokenUpdate> accessTokenUpdates = new ArrayList<OauthAccessTokenUpdate>();
+		for (int i = 1; i <= 3; i++) {
+			refreshTokenUpdates.add(new OauthRefreshTokenUpdate("r-" + i, "b" + i, new byte[] { 2, (byte) i }, new byte[] { 3, (byte) i }));
+			accessTokenUpdates.add(new OauthAccessTokenUpdate("a-" + i, "a" + i, "b" + i, new byte[] { 2, (byte) i }, new byte[] { 3, (byte) i }));
+		}
+		this.dao.updateOauthTokens(accessTokenUpdates, refreshTokenUpdates);
+
+		Assert.assertEquals(0, this.dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(3, this.dao.countMigratedAccessTokens());
+		Assert.assertEquals(0, this.dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(3, this.dao.countMigratedRefreshTokens());
+
+		List<OauthAccessTokenRecord> accessTokens = this.dao.getMigratedOauthAccessTokenRecords(10);
+		Assert.assertEquals(3, accessTokens.size());
+		Assert.assertEquals("a1", accessTokens.get(0).getTokenId());
+		Assert.assertEquals("b1", accessTokens.get(0).getRefreshToken());
+		Assert.assertEquals(2, accessTokens.get(0).getToken()[0]);
+		Assert.assertEquals(3, accessTokens.get(0).getAuthentication()[0]);
+		Assert.assertEquals("user1", accessTokens.get(0).getUserName());
+
+		this.dao.clearRefreshTokens();
+		Assert.assertEquals(0, this.dao.countMigratedRefreshTokens());
+	}
+
+}
@@ -12,6 +12,8 @@ package com.avego.oauth.migration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -25,7 +27,7 @@ import org.mockito.Mockito;
  * @version $Id$
  * @author conorroche
  */
-public class InMemTestOauthMigrationDao implements OauthMigrationDao {
+public class InMemTestOauthMigrationDao implements SyntheticTokenDao {
 
 	private CustomJdbcTokenStore tokenStore = new CustomJdbcTokenStore(Mockito.mock(DataSource.class));
 
@@ -36,7 +38,7 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#countUnmigratedAccessTokens()
 	 */
-	public int countUnmigratedAccessTokens() {
+	public synchronized int countUnmigratedAccessTokens() {
 		// note not an efficient way to count could for example store migrated and unmigrated in
 		// separate maps and count the keyset but as this is a test case just doing a quick
 		// and easy impl
@@ -50,7 +52,7 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#countMigratedAccessTokens()
 	 */
-	public int countMigratedAccessTokens() {
+	public synchronized int countMigratedAccessTokens() {
 		if (this.accessTokens != null) {
 			return countMigratedTokens(this.accessTokens.keySet());
 		}
@@ -61,7 +63,7 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#countUnmigratedRefreshTokens()
 	 */
-	public int countUnmigratedRefreshTokens() {
+	public synchronized int countUnmigratedRefreshTokens() {
 		if (this.refreshTokens != null) {
 			return countUnmigratedTokens(this.refreshTokens.keySet());
 		}
@@ -72,7 +74,7 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#countMigratedRefreshTokens()
 	 */
-	public int countMigratedRefreshTokens() {
+	public synchronized int countMigratedRefreshTokens() {
 		if (this.refreshTokens != null) {
 			return countMigratedTokens(this.refreshTokens.keySet());
 		}
@@ -107,7 +109,7 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#clearRefreshTokens()
 	 */
-	public void clearRefreshTokens() {
+	public synchronized void clearRefreshTokens() {
 		if (this.refreshTokens != null) {
 			this.refreshTokens.clear();
 		}
@@ -126,8 +128,8 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecords(int)
 	 */
 	@SuppressWarnings("unchecked")
-	public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(int limit) {
-		return (List<OauthAccessTokenRecord>) getOauthTokenRecords(this.accessTokens.values(), limit, false);
+	public synchronized List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(int limit) {
+		return (List<OauthAccessTokenRecord>) getOauthTokenRecords(this.accessTokens.values(), null, null, limit, false);
 	}
 
 	/**
@@ -135,8 +137,104 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(int)
 	 */
 	@SuppressWarnings("unchecked")
-	public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(int limit) {
-		return (List<OauthRefreshTokenRecord>) getOauthTokenRecords(this.refreshTokens.values(), limit, false);
+	public synchronized List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(int limit) {
+		return (List<OauthRefreshTokenRecord>) getOauthTokenRecords(this.refreshTokens.values(), null, null, limit, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecords(com.avego.oauth.migration.TokenIdRange, java.lang.String,
+	 *      int)
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, int limit) {
+		return (List<OauthAccessTokenRecord>) getOauthTokenRecords(this.accessTokens.values(), range, afterTokenId, limit, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(com.avego.oauth.migration.TokenIdRange, java.lang.String,
+	 *      int)
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, int limit) {
+		return (List<OauthRefreshTokenRecord>) getOauthTokenRecords(this.refreshTokens.values(), range, afterTokenId, limit, false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#streamUnmigratedOauthAccessTokenRecords(com.avego.oauth.migration.TokenIdRange,
+	 *      java.lang.String, com.avego.oauth.migration.TokenRecordCallback)
+	 */
+	public void streamUnmigratedOauthAccessTokenRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthAccessTokenRecord> callback) {
+		for (OauthAccessTokenRecord record : getUnmigratedOauthAccessTokenRecords(range, afterTokenId, Integer.MAX_VALUE)) {
+			if (!callback.processRecord(record)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#streamUnmigratedOauthRefreshTokenRecords(com.avego.oauth.migration.TokenIdRange,
+	 *      java.lang.String, com.avego.oauth.migration.TokenRecordCallback)
+	 */
+	public void streamUnmigratedOauthRefreshTokenRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback) {
+		for (OauthRefreshTokenRecord record : getUnmigratedOauthRefreshTokenRecords(range, afterTokenId, Integer.MAX_VALUE)) {
+			if (!callback.processRecord(record)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(java.util.List)
+	 */
+	public synchronized List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(List<String> tokenIds) {
+		List<OauthRefreshTokenRecord> records = new ArrayList<OauthRefreshTokenRecord>();
+		if (this.refreshTokens != null) {
+			for (String tokenId : tokenIds) {
+				OauthRefreshTokenRecord record = this.refreshTokens.get(tokenId);
+				if (record != null && isUnmigrated(tokenId)) {
+					records.add(record);
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecords(java.util.List)
+	 */
+	public synchronized List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(List<String> tokenIds) {
+		List<OauthAccessTokenRecord> records = new ArrayList<OauthAccessTokenRecord>();
+		if (this.accessTokens != null) {
+			for (String tokenId : tokenIds) {
+				OauthAccessTokenRecord record = this.accessTokens.get(tokenId);
+				if (record != null && isUnmigrated(tokenId)) {
+					records.add(record);
+				}
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#getUnmigratedOauthAccessTokenRecordsForRefreshToken(java.lang.String)
+	 */
+	public synchronized List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecordsForRefreshToken(String refreshToken) {
+		List<OauthAccessTokenRecord> records = new ArrayList<OauthAccessTokenRecord>();
+		if (this.accessTokens != null) {
+			for (OauthAccessTokenRecord record : this.accessTokens.values()) {
+				if (isUnmigrated(record.getTokenId()) && refreshToken.equals(record.getRefreshToken())) {
+					records.add(record);
+				}
+			}
+		}
+		return records;
 	}
 
 	/**
@@ -144,8 +242,8 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#getMigratedOauthAccessTokenRecords(int)
 	 */
 	@SuppressWarnings("unchecked")
-	public List<OauthAccessTokenRecord> getMigratedOauthAccessTokenRecords(int limit) {
-		return (List<OauthAccessTokenRecord>) getOauthTokenRecords(this.accessTokens.values(), limit, true);
+	public synchronized List<OauthAccessTokenRecord> getMigratedOauthAccessTokenRecords(int limit) {
+		return (List<OauthAccessTokenRecord>) getOauthTokenRecords(this.accessTokens.values(), null, null, limit, true);
 	}
 
 	/**
@@ -153,30 +251,46 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * @see com.avego.oauth.migration.OauthMigrationDao#getMigratedOauthRefreshTokenRecords(int)
 	 */
 	@SuppressWarnings("unchecked")
-	public List<OauthRefreshTokenRecord> getMigratedOauthRefreshTokenRecords(int limit) {
-		return (List<OauthRefreshTokenRecord>) getOauthTokenRecords(this.refreshTokens.values(), limit, true);
+	public synchronized List<OauthRefreshTokenRecord> getMigratedOauthRefreshTokenRecords(int limit) {
+		return (List<OauthRefreshTokenRecord>) getOauthTokenRecords(this.refreshTokens.values(), null, null, limit, true);
 	}
 
 	/**
 	 * This builds a list of token records from the given collection with up to limit entries in it
 	 * @param records The records
+	 * @param range The token id range or null for all token ids
+	 * @param afterTokenId The token id records must be after or null for no lower bound
 	 * @param limit The max no. of records to return in the list
 	 * @param migrated Whether to get migrated token records
 	 * @return The list of token records from the given records
 	 */
-	private List<? extends TokenRecord> getOauthTokenRecords(Collection<? extends TokenRecord> records, int limit, boolean migrated) {
+	private List<? extends TokenRecord> getOauthTokenRecords(Collection<? extends TokenRecord> records, TokenIdRange range, String afterTokenId, int limit,
+			boolean migrated) {
 		List<TokenRecord> res = Collections.emptyList();
 		if (records != null && !records.isEmpty()) {
 			res = new ArrayList<TokenRecord>();
 			for (TokenRecord record : records) {
 				boolean recordUnmigrated = isUnmigrated(record.getTokenId());
+				if (range != null && !range.contains(record.getTokenId())) {
+					continue;
+				}
+				if (afterTokenId != null && record.getTokenId().compareTo(afterTokenId) <= 0) {
+					continue;
+				}
 				if ((migrated && !recordUnmigrated) || (!migrated && recordUnmigrated)) {
-					if (res.size() == limit) {
-						break;
-					}
 					res.add(record);
 				}
 			}
+			// like the jdbc daos the records are returned in token id order so pages can be resumed from the last token id
+			Collections.sort(res, new Comparator<TokenRecord>() {
+
+				public int compare(TokenRecord o1, TokenRecord o2) {
+					return o1.getTokenId().compareTo(o2.getTokenId());
+				}
+			});
+			if (res.size() > limit) {
+				res = new ArrayList<TokenRecord>(res.subList(0, limit));
+			}
 		}
 		return res;
 	}
@@ -185,7 +299,7 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthAccessToken(java.lang.String, java.lang.String, java.lang.String, byte[], byte[])
 	 */
-	public void updateOauthAccessToken(String oldTokenId, String newTokenId, String newRefreshToken, byte[] tokenData, byte[] authData) {
+	public synchronized void updateOauthAccessToken(String oldTokenId, String newTokenId, String newRefreshToken, byte[] tokenData, byte[] authData) {
 		OauthAccessTokenRecord record = this.accessTokens.remove(oldTokenId);
 		if (record == null) {
 			throw new IllegalStateException("No access token record was found with the id: " + oldTokenId + " when trying to update a token with the new id: "
@@ -202,7 +316,7 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 	 * {@inheritDoc}
 	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthRefreshToken(java.lang.String, java.lang.String, byte[], byte[])
 	 */
-	public void updateOauthRefreshToken(String oldTokenId, String newTokenId, byte[] tokenData, byte[] authData) {
+	public synchronized void updateOauthRefreshToken(String oldTokenId, String newTokenId, byte[] tokenData, byte[] authData) {
 		OauthRefreshTokenRecord record = this.refreshTokens.remove(oldTokenId);
 		if (record == null) {
 			throw new IllegalStateException("No refresh token record was found with the id: " + oldTokenId + " when trying to update a token with the new id: "
@@ -214,6 +328,69 @@ public class InMemTestOauthMigrationDao implements OauthMigrationDao {
 		this.refreshTokens.put(newTokenId, record);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthAccessTokens(java.util.List)
+	 */
+	public synchronized void updateOauthAccessTokens(List<OauthAccessTokenUpdate> updates) {
+		for (OauthAccessTokenUpdate update : updates) {
+			updateOauthAccessToken(update.getOldTokenId(), update.getNewTokenId(), update.getNewRefreshToken(), update.getTokenData(), update.getAuthData());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthRefreshTokens(java.util.List)
+	 */
+	public synchronized void updateOauthRefreshTokens(List<OauthRefreshTokenUpdate> updates) {
+		for (OauthRefreshTokenUpdate update : updates) {
+			updateOauthRefreshToken(update.getOldTokenId(), update.getNewTokenId(), update.getTokenData(), update.getAuthData());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#updateOauthTokens(java.util.List, java.util.List)
+	 */
+	public synchronized void updateOauthTokens(List<OauthAccessTokenUpdate> accessTokenUpdates, List<OauthRefreshTokenUpdate> refreshTokenUpdates) {
+		updateOauthRefreshTokens(refreshTokenUpdates);
+		updateOauthAccessTokens(accessTokenUpdates);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.OauthMigrationDao#finishMigration()
+	 */
+	public void finishMigration() {
+		// the tokens are migrated in place
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.SyntheticTokenDao#insertOauthAccessTokens(java.util.List)
+	 */
+	public synchronized void insertOauthAccessTokens(List<OauthAccessTokenRecord> records) {
+		if (this.accessTokens == null) {
+			this.accessTokens = new HashMap<String, OauthAccessTokenRecord>();
+		}
+		for (OauthAccessTokenRecord record : records) {
+			this.accessTokens.put(record.getTokenId(), record);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.avego.oauth.migration.SyntheticTokenDao#insertOauthRefreshTokens(java.util.List)
+	 */
+	public synchronized void insertOauthRefreshTokens(List<OauthRefreshTokenRecord> records) {
+		if (this.refreshTokens == null) {
+			this.refreshTokens = new HashMap<String, OauthRefreshTokenRecord>();
+		}
+		for (OauthRefreshTokenRecord record : records) {
+			this.refreshTokens.put(record.getTokenId(), record);
+		}
+	}
+
 	/**
 	 * This gets the accessTokens
 	 * @return the accessTokens
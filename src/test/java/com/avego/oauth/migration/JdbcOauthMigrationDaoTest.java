@@ -0,0 +1,447 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+/**
+ * The JdbcOauthMigrationDaoTest represents a test case for the JdbcOauthMigrationDao, it runs the dao against an in memory h2 db
+ * @version $Id$
+ * @author conorroche
+ */
+public class JdbcOauthMigrationDaoTest extends TestCase {
+
+	private static final String TARGET_ACCESS_TOKEN_TABLE = "oauth_access_token_new";
+	private static final String TARGET_REFRESH_TOKEN_TABLE = "oauth_refresh_token_new";
+
+	private Map<String, Object> params;
+	private H2OauthMigrationDao dao;
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		this.params = new HashMap<String, Object>();
+		this.params.put(JdbcOauthMigrationDao.JDBC_URL_KEY, "jdbc:h2:mem:" + getName());
+		this.dao = new H2OauthMigrationDao(this.params);
+		this.dao.getJdbcTemplate().execute("create table " + TARGET_ACCESS_TOKEN_TABLE + " (token_id VARCHAR(256) PRIMARY KEY, token BLOB,"
+				+ " authentication_id VARCHAR(256), user_name VARCHAR(256), client_id VARCHAR(256), authentication BLOB, refresh_token VARCHAR(256))");
+		this.dao.getJdbcTemplate().execute("create table " + TARGET_REFRESH_TOKEN_TABLE
+				+ " (token_id VARCHAR(256) PRIMARY KEY, token BLOB, authentication BLOB)");
+		insertTokens(this.dao, 1, 3);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		this.dao.getJdbcTemplate().execute("drop all objects");
+		this.dao.close();
+	}
+
+	/**
+	 * This tests the where clause and bind args selecting a page of tokens within a range after the last token read
+	 * @throws Exception
+	 */
+	public void testWhereClause() throws Exception {
+		List<Object> args = new ArrayList<Object>();
+		Assert.assertEquals(" where token_id like ('%-%')", this.dao.buildWhereClause(null, null, false, args));
+		Assert.assertTrue(args.isEmpty());
+
+		Assert.assertEquals(" where token_id not like ('%-%') and token_id > ?", this.dao.buildWhereClause(null, "a1", true, args));
+		Assert.assertEquals(1, args.size());
+		Assert.assertEquals("a1", args.get(0));
+
+		args.clear();
+		Assert.assertEquals(" where token_id like ('%-%') and token_id >= ? and token_id < ? and token_id > ?",
+				this.dao.buildWhereClause(new TokenIdRange("a-2", "a-5"), "a-3", false, args));
+		Assert.assertEquals(3, args.size());
+		Assert.assertEquals("a-2", args.get(0));
+		Assert.assertEquals("a-5", args.get(1));
+		Assert.assertEquals("a-3", args.get(2));
+
+		args.clear();
+		Assert.assertEquals(" where token_id like ('%-%') and token_id < ?", this.dao.buildWhereClause(new TokenIdRange(null, "a-5"), null, false, args));
+		Assert.assertEquals(1, args.size());
+	}
+
+	/**
+	 * This tests that the pages of unmigrated tokens are read in token id order after the last token of the previous page
+	 * and stay within their range
+	 * @throws Exception
+	 */
+	public void testKeysetPaging() throws Exception {
+		insertTokens(this.dao, 4, 6);
+		TokenIdRange range = new TokenIdRange("a-2", "a-6");
+
+		List<OauthAccessTokenRecord> page = this.dao.getUnmigratedOauthAccessTokenRecords(range, null, 2);
+		Assert.assertEquals(2, page.size());
+		Assert.assertEquals("a-2", page.get(0).getTokenId());
+		Assert.assertEquals("a-3", page.get(1).getTokenId());
+
+		page = this.dao.getUnmigratedOauthAccessTokenRecords(range, page.get(1).getTokenId(), 2);
+		Assert.assertEquals(2, page.size());
+		Assert.assertEquals("a-4", page.get(0).getTokenId());
+		Assert.assertEquals("a-5", page.get(1).getTokenId());
+
+		page = this.dao.getUnmigratedOauthAccessTokenRecords(range, page.get(1).getTokenId(), 2);
+		Assert.assertTrue(page.isEmpty());
+
+		// a migrated token in the range is skipped
+		this.dao.updateOauthAccessToken("a-3", "a3", "r-3", new byte[] { 2 }, new byte[] { 3 });
+		page = this.dao.getUnmigratedOauthAccessTokenRecords(range, "a-2", 2);
+		Assert.assertEquals("a-4", page.get(0).getTokenId());
+
+		List<OauthRefreshTokenRecord> refreshPage = this.dao.getUnmigratedOauthRefreshTokenRecords(null, "r-4", 10);
+		Assert.assertEquals(2, refreshPage.size());
+		Assert.assertEquals("r-5", refreshPage.get(0).getTokenId());
+		Assert.assertEquals("r-6", refreshPage.get(1).getTokenId());
+	}
+
+	/**
+	 * This tests that the updates are sent in batches of the batch size and committed each commit interval number of rows
+	 * @throws Exception
+	 */
+	public void testBatchUpdates() throws Exception {
+		insertTokens(this.dao, 4, 7);
+		Map<String, Object> batchParams = new HashMap<String, Object>(this.params);
+		batchParams.put(H2OauthMigrationDao.CREATE_SCHEMA_KEY, "false");
+		batchParams.put(JdbcOauthMigrationDao.BATCH_SIZE_KEY, "3");
+		batchParams.put(JdbcOauthMigrationDao.COMMIT_INTERVAL_KEY, "5");
+		CountingH2OauthMigrationDao batchDao = new CountingH2OauthMigrationDao(batchParams);
+		try {
+			batchDao.updateOauthAccessTokens(createAccessTokenUpdates(1, 7));
+
+			// 3 rows, then 2 rows flushed at the commit after 5 rows then the last 2 rows
+			Assert.assertEquals(3, batchDao.calls.count("executeBatch"));
+			Assert.assertEquals(21, batchDao.calls.count("setBytes") + batchDao.calls.count("setString"));
+			Assert.assertEquals(2, batchDao.calls.count("commit"));
+			Assert.assertEquals(0, batchDao.calls.count("rollback"));
+			Assert.assertEquals(0, batchDao.countUnmigratedAccessTokens());
+			Assert.assertEquals(7, batchDao.countMigratedAccessTokens());
+
+			// a failed batch rolls back the rows since the last commit
+			batchDao.calls.clear();
+			List<OauthRefreshTokenUpdate> updates = createRefreshTokenUpdates(1, 7);
+			updates.set(6, new OauthRefreshTokenUpdate("r-7", "b1", new byte[] { 2 }, new byte[] { 3 }));
+			try {
+				batchDao.updateOauthRefreshTokens(updates);
+				fail("Expected the duplicate token id to fail the batch");
+			} catch (DataAccessException ex) {
+				// expected
+			}
+			Assert.assertEquals(1, batchDao.calls.count("commit"));
+			Assert.assertEquals(1, batchDao.calls.count("rollback"));
+			Assert.assertEquals(5, batchDao.countMigratedRefreshTokens());
+			Assert.assertEquals(2, batchDao.countUnmigratedRefreshTokens());
+		} finally {
+			batchDao.close();
+		}
+	}
+
+	/**
+	 * This tests that copied access tokens are inserted into the target table with all their columns and the access token
+	 * table is left as it was
+	 * @throws Exception
+	 */
+	public void testCopyAccessTokens() throws Exception {
+		H2OauthMigrationDao copyDao = createCopyDao(true, false);
+		copyDao.updateOauthAccessTokens(createAccessTokenUpdates(1, 3));
+
+		Assert.assertTrue(copyDao.isCopyingTokens());
+		Assert.assertFalse(copyDao.isCopyingRefreshTokens());
+		Assert.assertEquals(3, copyDao.countUnmigratedAccessTokens());
+		Assert.assertEquals(3, copyDao.countMigratedAccessTokens());
+		List<OauthAccessTokenRecord> copied = copyDao.getMigratedOauthAccessTokenRecords(10);
+		Assert.assertEquals("a1", copied.get(0).getTokenId());
+		Assert.assertEquals("auth1", copied.get(0).getAuthenticationId());
+		Assert.assertEquals("user1", copied.get(0).getUserName());
+		Assert.assertEquals("client", copied.get(0).getClientId());
+		Assert.assertEquals("b1", copied.get(0).getRefreshToken());
+		Assert.assertEquals(2, copied.get(0).getToken()[0]);
+		Assert.assertEquals(3, copied.get(0).getAuthentication()[0]);
+
+		// a single token is copied with the other columns of its unmigrated row
+		this.dao.getJdbcTemplate().update("delete from " + TARGET_ACCESS_TOKEN_TABLE);
+		copyDao.updateOauthAccessToken("a-2", "a2", "b2", new byte[] { 2 }, new byte[] { 3 });
+		copied = copyDao.getMigratedOauthAccessTokenRecords(10);
+		Assert.assertEquals(1, copied.size());
+		Assert.assertEquals("user2", copied.get(0).getUserName());
+	}
+
+	/**
+	 * This tests that the access and refresh tokens copied together are written to both target tables
+	 * @throws Exception
+	 */
+	public void testJointCopy() throws Exception {
+		H2OauthMigrationDao copyDao = createCopyDao(true, true);
+		copyDao.updateOauthTokens(createAccessTokenUpdates(1, 3), createRefreshTokenUpdates(1, 3));
+
+		Assert.assertEquals(3, copyDao.countMigratedAccessTokens());
+		Assert.assertEquals(3, copyDao.countMigratedRefreshTokens());
+		Assert.assertEquals(3, copyDao.countUnmigratedRefreshTokens());
+
+		// the refresh token pass of a joint migration would copy the same refresh tokens again
+		OauthDataMigrator migrator = new OauthDataMigrator(copyDao, getClass().getClassLoader(), false, false);
+		migrator.setJointMigration(true);
+		try {
+			migrator.migrateData();
+			fail("Expected a joint migration copying the refresh tokens to be rejected");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 * This tests that a copy run again after it was stopped replaces the tokens it copied before rather than failing on their keys
+	 * @throws Exception
+	 */
+	public void testCopyAgain() throws Exception {
+		H2OauthMigrationDao copyDao = createCopyDao(true, true);
+		copyDao.updateOauthTokens(createAccessTokenUpdates(1, 2), createRefreshTokenUpdates(1, 2));
+		copyDao.updateOauthTokens(createAccessTokenUpdates(1, 3), createRefreshTokenUpdates(1, 3));
+		copyDao.updateOauthRefreshTokens(createRefreshTokenUpdates(3, 3));
+
+		Assert.assertEquals(3, copyDao.countMigratedAccessTokens());
+		Assert.assertEquals(3, copyDao.countMigratedRefreshTokens());
+	}
+
+	/**
+	 * This tests that the target tables are renamed to the token table names once every token is copied
+	 * @throws Exception
+	 */
+	public void testRenameTables() throws Exception {
+		this.params.put(JdbcOauthMigrationDao.RENAME_TABLES_KEY, "true");
+		H2OauthMigrationDao copyDao = createCopyDao(true, true);
+		copyDao.updateOauthTokens(createAccessTokenUpdates(1, 3), createRefreshTokenUpdates(1, 3));
+		copyDao.finishMigration();
+
+		Assert.assertEquals(3, this.dao.getJdbcTemplate().queryForInt("select count(*) from oauth_access_token where token_id not like '%-%'"));
+		Assert.assertEquals(3, this.dao.getJdbcTemplate().queryForInt("select count(*) from oauth_access_token_old where token_id like '%-%'"));
+		Assert.assertEquals(3, this.dao.getJdbcTemplate().queryForInt("select count(*) from oauth_refresh_token where token_id not like '%-%'"));
+		Assert.assertEquals(3, this.dao.getJdbcTemplate().queryForInt("select count(*) from oauth_refresh_token_old where token_id like '%-%'"));
+	}
+
+	/**
+	 * This tests that the tables are not renamed when tokens were created after they were copied
+	 * @throws Exception
+	 */
+	public void testRenameTablesWithUncopiedTokens() throws Exception {
+		this.params.put(JdbcOauthMigrationDao.RENAME_TABLES_KEY, "true");
+		H2OauthMigrationDao copyDao = createCopyDao(true, false);
+		copyDao.updateOauthAccessTokens(createAccessTokenUpdates(1, 3));
+		insertTokens(this.dao, 4, 4);
+		try {
+			copyDao.finishMigration();
+			fail("Expected the tables not to be renamed");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		Assert.assertEquals(4, copyDao.countUnmigratedAccessTokens());
+		Assert.assertEquals(3, copyDao.countMigratedAccessTokens());
+	}
+
+	/**
+	 * This tests the sql that renames the tables, mysql renames them all in one statement
+	 * @throws Exception
+	 */
+	public void testRenameTablesSql() throws Exception {
+		Map<String, String> renames = new LinkedHashMap<String, String>();
+		renames.put("oauth_access_token", "oauth_access_token_old");
+		renames.put(TARGET_ACCESS_TOKEN_TABLE, "oauth_access_token");
+
+		List<String> statements = this.dao.getRenameTablesSql(renames);
+		Assert.assertEquals(2, statements.size());
+		Assert.assertEquals("alter table oauth_access_token rename to oauth_access_token_old", statements.get(0));
+		Assert.assertEquals("alter table oauth_access_token_new rename to oauth_access_token", statements.get(1));
+
+		Map<String, Object> mysqlParams = new HashMap<String, Object>();
+		mysqlParams.put(JdbcOauthMigrationDao.JDBC_URL_KEY, "jdbc:mysql://127.0.0.1:3306/oauth");
+		statements = new MysqlOauthMigrationDao(mysqlParams).getRenameTablesSql(renames);
+		Assert.assertEquals(1, statements.size());
+		Assert.assertEquals("rename table oauth_access_token to oauth_access_token_old, oauth_access_token_new to oauth_access_token", statements.get(0));
+	}
+
+	/**
+	 * The CountingH2OauthMigrationDao represents a h2 dao whose connections and statements count the calls made on them
+	 */
+	private static final class CountingH2OauthMigrationDao extends H2OauthMigrationDao {
+
+		private CallCounter calls;
+
+		CountingH2OauthMigrationDao(Map<String, Object> params) throws SQLException {
+			super(params);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#buildPooledDataSource(javax.sql.DataSource)
+		 */
+		@Override
+		protected DataSource buildPooledDataSource(final DataSource target) {
+			// this is called by the super constructor so the counter is set here
+			this.calls = new CallCounter(null);
+			final CallCounter counter = this.calls;
+			return super.buildPooledDataSource(new AbstractDataSource() {
+
+				public Connection getConnection() throws SQLException {
+					return counter.wrap(target.getConnection(), Connection.class);
+				}
+
+				public Connection getConnection(String username, String password) throws SQLException {
+					return counter.wrap(target.getConnection(username, password), Connection.class);
+				}
+			});
+		}
+	}
+
+	/**
+	 * The CallCounter represents an invocation handler that counts the calls of each method before passing them on to the
+	 * jdbc object it wraps, the statements prepared by a wrapped connection are counted as well
+	 */
+	private static final class CallCounter implements InvocationHandler {
+
+		private final Object target;
+		private final Map<String, Integer> calls;
+
+		CallCounter(Object target) {
+			this(target, new HashMap<String, Integer>());
+		}
+
+		private CallCounter(Object target, Map<String, Integer> calls) {
+			this.target = target;
+			this.calls = calls;
+		}
+
+		<T> T wrap(T jdbcObject, Class<T> type) {
+			return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, new CallCounter(jdbcObject, this.calls)));
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			synchronized (this.calls) {
+				Integer num = this.calls.get(method.getName());
+				this.calls.put(method.getName(), num == null ? 1 : num + 1);
+			}
+			Object result;
+			try {
+				result = method.invoke(this.target, args);
+			} catch (InvocationTargetException ex) {
+				throw ex.getCause();
+			}
+			if (result instanceof PreparedStatement) {
+				return wrap((PreparedStatement) result, PreparedStatement.class);
+			}
+			return result;
+		}
+
+		int count(String method) {
+			synchronized (this.calls) {
+				Integer num = this.calls.get(method);
+				return num == null ? 0 : num;
+			}
+		}
+
+		void clear() {
+			synchronized (this.calls) {
+				this.calls.clear();
+			}
+		}
+	}
+
+	private H2OauthMigrationDao createCopyDao(boolean copyAccessTokens, boolean copyRefreshTokens) throws Exception {
+		Map<String, Object> copyParams = new HashMap<String, Object>(this.params);
+		copyParams.put(H2OauthMigrationDao.CREATE_SCHEMA_KEY, "false");
+		if (copyAccessTokens) {
+			copyParams.put(JdbcOauthMigrationDao.TARGET_ACCESS_TOKEN_TABLE_KEY, TARGET_ACCESS_TOKEN_TABLE);
+		}
+		if (copyRefreshTokens) {
+			copyParams.put(JdbcOauthMigrationDao.TARGET_REFRESH_TOKEN_TABLE_KEY, TARGET_REFRESH_TOKEN_TABLE);
+		}
+		return new H2OauthMigrationDao(copyParams);
+	}
+
+	/**
+	 * This inserts unmigrated access tokens a-from to a-to with the refresh tokens r-from to r-to
+	 * @param dao The dao
+	 * @param from The first token number
+	 * @param to The last token number
+	 */
+	static void insertTokens(SyntheticTokenDao dao, int from, int to) {
+		List<OauthRefreshTokenRecord> refreshTokens = new ArrayList<OauthRefreshTokenRecord>();
+		List<OauthAccessTokenRecord> accessTokens = new ArrayList<OauthAccessTokenRecord>();
+		for (int i = from; i <= to; i++) {
+			OauthRefreshTokenRecord refreshToken = new OauthRefreshTokenRecord();
+			refreshToken.setTokenId("r-" + i);
+			refreshToken.setToken(new byte[] { (byte) i });
+			refreshToken.setAuthentication(new byte[] { 1, (byte) i });
+			refreshTokens.add(refreshToken);
+
+			OauthAccessTokenRecord accessToken = new OauthAccessTokenRecord();
+			accessToken.setTokenId("a-" + i);
+			accessToken.setToken(new byte[] { (byte) i });
+			accessToken.setAuthenticationId("auth" + i);
+			accessToken.setUserName("user" + i);
+			accessToken.setClientId("client");
+			accessToken.setAuthentication(new byte[] { 1, (byte) i });
+			accessToken.setRefreshToken("r-" + i);
+			accessTokens.add(accessToken);
+		}
+		dao.insertOauthRefreshTokens(refreshTokens);
+		dao.insertOauthAccessTokens(accessTokens);
+	}
+
+	private static List<OauthAccessTokenUpdate> createAccessTokenUpdates(int from, int to) {
+		List<OauthAccessTokenUpdate> updates = new ArrayList<OauthAccessTokenUpdate>();
+		for (int i = from; i <= to; i++) {
+			OauthAccessTokenUpdate update = new OauthAccessTokenUpdate("a-" + i, "a" + i, "b" + i, new byte[] { 2, (byte) i }, new byte[] { 3,
+					(byte) i });
+			update.setAuthenticationId("auth" + i);
+			update.setUserName("user" + i);
+			update.setClientId("client");
+			updates.add(update);
+		}
+		return updates;
+	}
+
+	private static List<OauthRefreshTokenUpdate> createRefreshTokenUpdates(int from, int to) {
+		List<OauthRefreshTokenUpdate> updates = new ArrayList<OauthRefreshTokenUpdate>();
+		for (int i = from; i <= to; i++) {
+			updates.add(new OauthRefreshTokenUpdate("r-" + i, "b" + i, new byte[] { 2, (byte) i }, new byte[] { 3, (byte) i }));
+		}
+		return updates;
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.DefaultAuthorizationRequest;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+/**
+ * The MigratingJdbcTokenStoreTest represents a test case for the MigratingJdbcTokenStore, it runs the store against an in memory h2 db
+ * with a migrator that creates the new token data without needing the old classes
+ * @version $Id$
+ * @author conorroche
+ */
+public class MigratingJdbcTokenStoreTest extends TestCase {
+
+	private CountingH2OauthMigrationDao dao;
+	private TestMigrator migrator;
+	private MigratingJdbcTokenStore store;
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(JdbcOauthMigrationDao.JDBC_URL_KEY, "jdbc:h2:mem:" + getName());
+		this.dao = new CountingH2OauthMigrationDao(params);
+		JdbcOauthMigrationDaoTest.insertTokens(this.dao, 1, 3);
+		this.migrator = new TestMigrator(this.dao);
+		this.store = new MigratingJdbcTokenStore(this.dao.getDataSource(), this.migrator);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		this.dao.getJdbcTemplate().execute("drop all objects");
+		this.dao.close();
+	}
+
+	/**
+	 * This tests that unmigrated access tokens are migrated when they are read
+	 * @throws Exception
+	 */
+	public void testReadUnmigratedAccessToken() throws Exception {
+		OAuth2AccessToken token = this.store.readAccessToken("a-1");
+		Assert.assertNotNull(token);
+		Assert.assertEquals("a-1", token.getValue());
+		Assert.assertEquals(1, this.store.getNumAccessTokensMigrated());
+		Assert.assertEquals(2, this.dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(1, this.dao.countMigratedAccessTokens());
+
+		OAuth2Authentication authentication = this.store.readAuthentication("a-2");
+		Assert.assertNotNull(authentication);
+		Assert.assertEquals("client", authentication.getAuthorizationRequest().getClientId());
+		Assert.assertEquals(2, this.store.getNumAccessTokensMigrated());
+		Assert.assertEquals(2, this.migrator.numAccessTokensTransformed);
+	}
+
+	/**
+	 * This tests that an access token already migrated is read by its new key without looking for an unmigrated row
+	 * @throws Exception
+	 */
+	public void testReadMigratedAccessToken() throws Exception {
+		Assert.assertNotNull(this.store.readAccessToken("a-1"));
+		this.dao.numUnmigratedLookups = 0;
+
+		Assert.assertEquals("a-1", this.store.readAccessToken("a-1").getValue());
+		Assert.assertNotNull(this.store.readAuthentication("a-1"));
+		Assert.assertEquals(0, this.dao.numUnmigratedLookups);
+		Assert.assertEquals(1, this.migrator.numAccessTokensTransformed);
+		Assert.assertEquals(1, this.store.getNumAccessTokensMigrated());
+	}
+
+	/**
+	 * This tests that unmigrated refresh tokens are migrated when they are read
+	 * @throws Exception
+	 */
+	public void testReadUnmigratedRefreshToken() throws Exception {
+		Assert.assertEquals("r-1", this.store.readRefreshToken("r-1").getValue());
+		Assert.assertNotNull(this.store.readAuthenticationForRefreshToken("r-2"));
+		Assert.assertEquals(2, this.store.getNumRefreshTokensMigrated());
+		Assert.assertEquals(1, this.dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(2, this.dao.countMigratedRefreshTokens());
+
+		// the migrated refresh token is read without migrating it again
+		this.dao.numUnmigratedLookups = 0;
+		Assert.assertEquals("r-1", this.store.readRefreshToken("r-1").getValue());
+		Assert.assertEquals(0, this.dao.numUnmigratedLookups);
+		Assert.assertEquals(2, this.migrator.numRefreshTokensTransformed);
+	}
+
+	/**
+	 * This tests that values that cannot be unmigrated token ids are not looked up in the unmigrated rows
+	 * @throws Exception
+	 */
+	public void testUnknownTokens() throws Exception {
+		Assert.assertNull(this.store.readAccessToken("abc"));
+		Assert.assertNull(this.store.readAuthentication("abc"));
+		Assert.assertNull(this.store.readRefreshToken("abc"));
+		this.store.removeAccessToken("abc");
+		this.store.removeAccessTokenUsingRefreshToken("abc");
+		Assert.assertEquals(0, this.dao.numUnmigratedLookups);
+
+		// a value with a dash is looked up but there is nothing to migrate
+		Assert.assertNull(this.store.readAccessToken("a-9"));
+		Assert.assertEquals(1, this.dao.numUnmigratedLookups);
+		Assert.assertEquals(0, this.migrator.numAccessTokensTransformed);
+		Assert.assertEquals(0, this.store.getNumAccessTokensMigrated());
+	}
+
+	/**
+	 * This tests that removing unmigrated tokens removes their rows rather than leaving them to be migrated later
+	 * @throws Exception
+	 */
+	public void testRemoveUnmigratedTokens() throws Exception {
+		this.store.removeAccessToken("a-1");
+		Assert.assertEquals(2, this.dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(0, this.dao.countMigratedAccessTokens());
+		Assert.assertNull(this.store.readAccessToken("a-1"));
+
+		// the unmigrated access token still refers to the unmigrated refresh token value
+		this.store.removeAccessTokenUsingRefreshToken("r-2");
+		Assert.assertEquals(1, this.dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(0, this.dao.countMigratedAccessTokens());
+		Assert.assertNull(this.store.readAccessToken("a-2"));
+
+		this.store.removeRefreshToken("r-3");
+		Assert.assertEquals(2, this.dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(0, this.dao.countMigratedRefreshTokens());
+		Assert.assertNull(this.store.readRefreshToken("r-3"));
+	}
+
+	/**
+	 * This tests that a token migrated by the bulk migration after the store read its unmigrated row is still read
+	 * when the update of the store changes no rows
+	 * @throws Exception
+	 */
+	public void testMigratedConcurrently() throws Exception {
+		this.migrator.migrateConcurrently = true;
+		Assert.assertEquals("a-1", this.store.readAccessToken("a-1").getValue());
+		Assert.assertEquals("r-1", this.store.readRefreshToken("r-1").getValue());
+		Assert.assertEquals(1, this.dao.countMigratedAccessTokens());
+		Assert.assertEquals(1, this.dao.countMigratedRefreshTokens());
+	}
+
+	/**
+	 * The CountingH2OauthMigrationDao represents a h2 dao that counts the lookups of unmigrated tokens by their ids
+	 */
+	private static final class CountingH2OauthMigrationDao extends H2OauthMigrationDao {
+
+		private volatile int numUnmigratedLookups;
+
+		CountingH2OauthMigrationDao(Map<String, Object> params) throws SQLException {
+			super(params);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getUnmigratedOauthAccessTokenRecords(java.util.List)
+		 */
+		@Override
+		public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecords(List<String> tokenIds) {
+			this.numUnmigratedLookups++;
+			return super.getUnmigratedOauthAccessTokenRecords(tokenIds);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getUnmigratedOauthAccessTokenRecordsForRefreshToken(java.lang.String)
+		 */
+		@Override
+		public List<OauthAccessTokenRecord> getUnmigratedOauthAccessTokenRecordsForRefreshToken(String refreshToken) {
+			this.numUnmigratedLookups++;
+			return super.getUnmigratedOauthAccessTokenRecordsForRefreshToken(refreshToken);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.avego.oauth.migration.JdbcOauthMigrationDao#getUnmigratedOauthRefreshTokenRecords(java.util.List)
+		 */
+		@Override
+		public List<OauthRefreshTokenRecord> getUnmigratedOauthRefreshTokenRecords(List<String> tokenIds) {
+			this.numUnmigratedLookups++;
+			return super.getUnmigratedOauthRefreshTokenRecords(tokenIds);
+		}
+	}
+
+	/**
+	 * The TestMigrator represents a migrator that serializes new tokens with the old token values rather than converting
+	 * the old token data which needs the old classes
+	 */
+	private static final class TestMigrator extends OauthDataMigrator {
+
+		private int numAccessTokensTransformed;
+		private int numRefreshTokensTransformed;
+		private boolean migrateConcurrently;
+
+		TestMigrator(OauthMigrationDao dao) {
+			super(dao, TestMigrator.class.getClassLoader(), false, false);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.avego.oauth.migration.OauthDataMigrator#transformAccessToken(com.avego.oauth.migration.OauthAccessTokenRecord)
+		 */
+		@Override
+		protected OauthAccessTokenUpdate transformAccessToken(OauthAccessTokenRecord tokenRecord) {
+			this.numAccessTokensTransformed++;
+			DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(tokenRecord.getTokenId());
+			token.setRefreshToken(new DefaultOAuth2RefreshToken(tokenRecord.getRefreshToken()));
+			OauthAccessTokenUpdate update = new OauthAccessTokenUpdate(tokenRecord.getTokenId(), getDao().generateNewTokenKey(tokenRecord.getTokenId()),
+					getDao().generateNewTokenKey(tokenRecord.getRefreshToken()), SerializationUtils.serialize(token),
+					SerializationUtils.serialize(createAuthentication(tokenRecord.getClientId())));
+			if (this.migrateConcurrently) {
+				getDao().updateOauthAccessTokens(Collections.singletonList(update));
+			}
+			return update;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.avego.oauth.migration.OauthDataMigrator#transformRefreshToken(com.avego.oauth.migration.OauthRefreshTokenRecord)
+		 */
+		@Override
+		protected OauthRefreshTokenUpdate transformRefreshToken(OauthRefreshTokenRecord tokenRecord) {
+			this.numRefreshTokensTransformed++;
+			OauthRefreshTokenUpdate update = new OauthRefreshTokenUpdate(tokenRecord.getTokenId(), getDao().generateNewTokenKey(tokenRecord.getTokenId()),
+					SerializationUtils.serialize(new DefaultOAuth2RefreshToken(tokenRecord.getTokenId())),
+					SerializationUtils.serialize(createAuthentication("client")));
+			if (this.migrateConcurrently) {
+				getDao().updateOauthRefreshTokens(Collections.singletonList(update));
+			}
+			return update;
+		}
+
+		private static OAuth2Authentication createAuthentication(String clientId) {
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put("client_id", clientId);
+			return new OAuth2Authentication(new DefaultAuthorizationRequest(parameters), null);
+		}
+	}
+
+}
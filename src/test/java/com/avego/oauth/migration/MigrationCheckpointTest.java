@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The MigrationCheckpointTest represents a test case for the MigrationCheckpoint
+ * @version $Id$
+ * @author conorroche
+ */
+public class MigrationCheckpointTest extends TestCase {
+
+	private static final String TOKEN_TYPE = "access token";
+
+	/**
+	 * This tests that the progress saved by one checkpoint is loaded by the next until the run completes
+	 * @throws Exception
+	 */
+	public void testSaveAndLoad() throws Exception {
+		File file = createCheckpointFile();
+		TokenIdRange range = new TokenIdRange(null, "8");
+
+		MigrationCheckpoint checkpoint = new MigrationCheckpoint(file, 0);
+		checkpoint.runStarted();
+		checkpoint.setTotal(TOKEN_TYPE, 10);
+		checkpoint.rangeProgress(TOKEN_TYPE, range, "1-a", 3, 10);
+		checkpoint.rangeProgress(TOKEN_TYPE, range, "2-a", 2, 10);
+		checkpoint.rangeCompleted(TOKEN_TYPE, null, 4, 10);
+		checkpoint.runFailed();
+
+		checkpoint = new MigrationCheckpoint(file, 0);
+		Assert.assertEquals(10, checkpoint.getTotal(TOKEN_TYPE));
+		Assert.assertEquals(9, checkpoint.getNumMigrated(TOKEN_TYPE));
+		Assert.assertEquals("2-a", checkpoint.getLastTokenId(TOKEN_TYPE, range));
+		Assert.assertFalse(checkpoint.isCompleted(TOKEN_TYPE, range));
+		Assert.assertTrue(checkpoint.isCompleted(TOKEN_TYPE, null));
+		Assert.assertEquals(-1, checkpoint.getTotal("refresh token"));
+
+		checkpoint.runCompleted();
+		checkpoint = new MigrationCheckpoint(file, 0);
+		Assert.assertEquals(-1, checkpoint.getTotal(TOKEN_TYPE));
+		Assert.assertEquals(0, checkpoint.getNumMigrated(TOKEN_TYPE));
+		Assert.assertNull(checkpoint.getLastTokenId(TOKEN_TYPE, range));
+	}
+
+	/**
+	 * This tests that a range that failed part way through resumes after the last token written
+	 * @throws Exception
+	 */
+	public void testResume() throws Exception {
+		File file = createCheckpointFile();
+		TestMigration migration = new TestMigration(50);
+		migration.failingTokenId = "0-30";
+
+		MigrationCheckpoint checkpoint = new MigrationCheckpoint(file, 0);
+		checkpoint.runStarted();
+		try {
+			new RangeMigrationTask<OauthAccessTokenRecord, OauthAccessTokenUpdate>(migration, null, 10, new AtomicBoolean(false), false, checkpoint)
+					.call();
+			Assert.fail("Expected the transform failure to be rethrown");
+		} catch (IOException ex) {
+			// expected
+		}
+		checkpoint.runFailed();
+		Assert.assertEquals(30, migration.written.size());
+
+		checkpoint = new MigrationCheckpoint(file, 0);
+		Assert.assertEquals("0-29", checkpoint.getLastTokenId(TOKEN_TYPE, null));
+		Assert.assertEquals(30, checkpoint.getNumMigrated(TOKEN_TYPE));
+
+		// the resumed run must not re-read the written tokens, the test migration does not filter them out
+		migration.failingTokenId = null;
+		checkpoint.runStarted();
+		RangeMigrationResult result = new RangeMigrationTask<OauthAccessTokenRecord, OauthAccessTokenUpdate>(migration, null, 10,
+				new AtomicBoolean(false), false, checkpoint).call();
+		checkpoint.runCompleted();
+		Assert.assertEquals(20, result.getNumMigrated());
+		Assert.assertEquals(50, migration.written.size());
+		Assert.assertEquals(50, new TreeSet<String>(migration.written).size());
+	}
+
+	/**
+	 * This tests that progress saved for one split of the token ids is not resumed by a run that splits them differently
+	 * @throws Exception
+	 */
+	public void testRangeSplit() throws Exception {
+		File file = createCheckpointFile();
+		MigrationCheckpoint checkpoint = new MigrationCheckpoint(file, 0);
+		checkpoint.checkRangeSplit("4 range(s)");
+		checkpoint.runStarted();
+		checkpoint.rangeProgress(TOKEN_TYPE, TokenIdRange.split(4).get(0), "1-a", 3, 10);
+		checkpoint.runFailed();
+
+		checkpoint = new MigrationCheckpoint(file, 0);
+		checkpoint.checkRangeSplit("4 range(s)");
+		Assert.assertEquals("1-a", checkpoint.getLastTokenId(TOKEN_TYPE, TokenIdRange.split(4).get(0)));
+
+		checkpoint = new MigrationCheckpoint(file, 0);
+		try {
+			checkpoint.checkRangeSplit("8 range(s)");
+			fail("Expected the checkpoint of a different range split to be rejected");
+		} catch (IllegalStateException ex) {
+			Assert.assertTrue(ex.getMessage().contains("4 range(s)"));
+		}
+
+		// a completed run is not resumed so the next run may split the token ids differently
+		checkpoint.runCompleted();
+		checkpoint = new MigrationCheckpoint(file, 0);
+		checkpoint.checkRangeSplit("8 range(s)");
+	}
+
+	private File createCheckpointFile() throws IOException {
+		File file = File.createTempFile("checkpoint", ".properties");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * The TestMigration represents an in memory migration of access tokens which does not remove migrated tokens
+	 */
+	private static class TestMigration implements TokenMigration<OauthAccessTokenRecord, OauthAccessTokenUpdate> {
+
+		final Set<String> tokenIds = new TreeSet<String>();
+		final List<String> written = new ArrayList<String>();
+		String failingTokenId;
+
+		TestMigration(int numTokens) {
+			for (int i = 0; i < numTokens; i++) {
+				this.tokenIds.add("0-" + (i < 10 ? "0" : "") + i);
+			}
+		}
+
+		public String getTokenType() {
+			return TOKEN_TYPE;
+		}
+
+		public int countUnmigratedRecords() {
+			return this.tokenIds.size();
+		}
+
+		public List<OauthAccessTokenRecord> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+			List<OauthAccessTokenRecord> records = new ArrayList<OauthAccessTokenRecord>();
+			for (String tokenId : this.tokenIds) {
+				if (records.size() == limit) {
+					break;
+				}
+				if (afterTokenId == null || tokenId.compareTo(afterTokenId) > 0) {
+					OauthAccessTokenRecord record = new OauthAccessTokenRecord();
+					record.setTokenId(tokenId);
+					records.add(record);
+				}
+			}
+			return records;
+		}
+
+		public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthAccessTokenRecord> callback) {
+			for (OauthAccessTokenRecord record : getUnmigratedRecords(range, afterTokenId, Integer.MAX_VALUE)) {
+				if (!callback.processRecord(record)) {
+					return;
+				}
+			}
+		}
+
+		public OauthAccessTokenUpdate transform(OauthAccessTokenRecord record) throws IOException {
+			if (record.getTokenId().equals(this.failingTokenId)) {
+				throw new IOException("Failed to transform: " + record.getTokenId());
+			}
+			return new OauthAccessTokenUpdate(record.getTokenId(), record.getTokenId().replace("-", ""), null, null, null);
+		}
+
+		public void write(List<OauthAccessTokenUpdate> updates) {
+			for (OauthAccessTokenUpdate update : updates) {
+				this.written.add(update.getOldTokenId());
+			}
+		}
+	}
+
+}
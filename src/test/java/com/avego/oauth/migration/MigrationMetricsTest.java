@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The MigrationMetricsTest represents a test case for the MigrationMetrics
+ * @version $Id$
+ * @author conorroche
+ */
+public class MigrationMetricsTest extends TestCase {
+
+	/**
+	 * This tests the counters and latency percentiles of a stage
+	 */
+	public void testStageMetrics() {
+		StageMetrics metrics = new StageMetrics(MigrationStage.CONVERT);
+		Assert.assertEquals(0, metrics.getPercentileNanos(0.5));
+		for (int i = 1; i <= 100; i++) {
+			metrics.record(i * 1000, 1, 10);
+		}
+		metrics.record(1000000, 5, 0);
+
+		Assert.assertEquals(101, metrics.getCount());
+		Assert.assertEquals(105, metrics.getItems());
+		Assert.assertEquals(1000, metrics.getBytes());
+		Assert.assertEquals(1000000, metrics.getMaxNanos());
+		Assert.assertEquals((5050 * 1000 + 1000000) / 101, metrics.getMeanNanos());
+
+		// percentiles are bucket upper bounds so are at most twice the exact value
+		long p50 = metrics.getPercentileNanos(0.5);
+		Assert.assertTrue("p50: " + p50, p50 >= 51000 && p50 < 102000);
+		long p99 = metrics.getPercentileNanos(0.99);
+		Assert.assertTrue("p99: " + p99, p99 >= 100000 && p99 < 200000);
+		Assert.assertEquals(1000000, metrics.getPercentileNanos(1));
+	}
+
+	/**
+	 * This tests the summary has a row per stage
+	 */
+	public void testPrintSummary() {
+		MigrationMetrics metrics = new MigrationMetrics();
+		metrics.record(MigrationStage.DAO_READ, metrics.start(), 100, 4096);
+		metrics.record(MigrationStage.KEY_HASH, metrics.start(), 0);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		metrics.printSummary(new PrintStream(bytes, true));
+		String summary = bytes.toString();
+		for (MigrationStage stage : MigrationStage.values()) {
+			Assert.assertTrue(summary, summary.contains(stage.getLabel()));
+		}
+		Assert.assertEquals(100, metrics.getStageMetrics(MigrationStage.DAO_READ).getItems());
+		Assert.assertTrue(summary, summary.contains("db stages: "));
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The MigrationPipelineTest represents a test case for the MigrationPipeline
+ * @version $Id$
+ * @author conorroche
+ */
+public class MigrationPipelineTest extends TestCase {
+
+	private static final int NUM_TOKENS = 2000;
+
+	/**
+	 * This tests that the pipeline migrates every token exactly once when reading pages
+	 * @throws Exception
+	 */
+	public void testPagedPipeline() throws Exception {
+		verifyPipeline(false);
+	}
+
+	/**
+	 * This tests that the pipeline migrates every token exactly once when streaming
+	 * @throws Exception
+	 */
+	public void testStreamingPipeline() throws Exception {
+		verifyPipeline(true);
+	}
+
+	/**
+	 * This tests that a failure in the transformer stage stops the pipeline and is rethrown
+	 * @throws Exception
+	 */
+	public void testTransformFailure() throws Exception {
+		TestMigration migration = new TestMigration(NUM_TOKENS);
+		migration.failingTokenId = migration.unmigrated.toArray(new String[0])[NUM_TOKENS / 2];
+		MigrationPipeline pipeline = new MigrationPipeline(2, 3, 2, 5, 10, false);
+		try {
+			pipeline.migrate(migration);
+			Assert.fail("Expected the transform failure to be rethrown");
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause() instanceof IOException);
+		}
+	}
+
+	private void verifyPipeline(boolean streaming) throws Exception {
+		TestMigration migration = new TestMigration(NUM_TOKENS);
+		MigrationPipeline pipeline = new MigrationPipeline(4, 3, 2, 5, 10, streaming);
+		List<RangeMigrationResult> results = pipeline.migrate(migration);
+
+		Assert.assertEquals(4, results.size());
+		int numRead = 0;
+		for (RangeMigrationResult result : results) {
+			numRead += result.getNumMigrated();
+		}
+		Assert.assertEquals(NUM_TOKENS, numRead);
+		Assert.assertEquals(0, migration.countUnmigratedRecords());
+		Assert.assertEquals(NUM_TOKENS, migration.written.size());
+		Assert.assertEquals(NUM_TOKENS, new TreeSet<String>(migration.written).size());
+	}
+
+	/**
+	 * The TestMigration represents an in memory migration of refresh tokens
+	 */
+	private static class TestMigration implements TokenMigration<OauthRefreshTokenRecord, OauthRefreshTokenUpdate> {
+
+		final Set<String> unmigrated = new TreeSet<String>();
+		final List<String> written = new ArrayList<String>();
+		volatile String failingTokenId;
+
+		TestMigration(int numTokens) {
+			for (int i = 0; i < numTokens; i++) {
+				this.unmigrated.add(UUID.randomUUID().toString());
+			}
+		}
+
+		public String getTokenType() {
+			return "refresh token";
+		}
+
+		public synchronized int countUnmigratedRecords() {
+			return this.unmigrated.size();
+		}
+
+		public synchronized List<OauthRefreshTokenRecord> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+			List<OauthRefreshTokenRecord> records = new ArrayList<OauthRefreshTokenRecord>();
+			for (String tokenId : this.unmigrated) {
+				if (records.size() == limit) {
+					break;
+				}
+				if ((range == null || range.contains(tokenId)) && (afterTokenId == null || tokenId.compareTo(afterTokenId) > 0)) {
+					OauthRefreshTokenRecord record = new OauthRefreshTokenRecord();
+					record.setTokenId(tokenId);
+					records.add(record);
+				}
+			}
+			return records;
+		}
+
+		public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback) {
+			for (OauthRefreshTokenRecord record : getUnmigratedRecords(range, afterTokenId, Integer.MAX_VALUE)) {
+				if (!callback.processRecord(record)) {
+					return;
+				}
+			}
+		}
+
+		public OauthRefreshTokenUpdate transform(OauthRefreshTokenRecord record) throws IOException {
+			if (record.getTokenId().equals(this.failingTokenId)) {
+				throw new IOException("Failed to transform: " + record.getTokenId());
+			}
+			return new OauthRefreshTokenUpdate(record.getTokenId(), record.getTokenId().replace("-", ""), null, null);
+		}
+
+		public synchronized void write(List<OauthRefreshTokenUpdate> updates) {
+			for (OauthRefreshTokenUpdate update : updates) {
+				this.unmigrated.remove(update.getOldTokenId());
+				this.written.add(update.getOldTokenId());
+			}
+		}
+	}
+
+}
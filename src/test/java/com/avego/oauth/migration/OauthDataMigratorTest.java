@@ -80,6 +80,31 @@ public class OauthDataMigratorTest extends TestCase {
 
 	}
 
+	/**
+	 * This tests that the token values are only replaced directly in the serialized token data when transcoding is enabled
+	 * @throws Exception
+	 */
+	public void testTranscodedDataMigration() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>(3);
+		params.put(OauthMigrationDaoFactory.MIGRATION_DAO_PROPERTY, InMemTestOauthMigrationDao.class.getName());
+		Assert.assertFalse(new OauthDataMigrator(params).isTranscodeTokens());
+
+		params.put(OauthDataMigrator.TRANSCODE_TOKENS_PARAM, Boolean.TRUE);
+		OauthDataMigrator migrator = new OauthDataMigrator(params);
+		Assert.assertTrue(migrator.isTranscodeTokens());
+
+		addTestPrincipalClass(migrator);
+
+		InMemTestOauthMigrationDao dao = (InMemTestOauthMigrationDao) migrator.getDao();
+		initTestTokenData(dao);
+
+		migrator.migrateData();
+		Assert.assertEquals(0, dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(0, dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(1, dao.countMigratedAccessTokens());
+		Assert.assertEquals(1, dao.countMigratedRefreshTokens());
+	}
+
 	/**
 	 * This tests that if the remove refresh param is set to true
 	 * it clears the refresh tokens
@@ -124,6 +149,125 @@ public class OauthDataMigratorTest extends TestCase {
 
 	}
 
+	/**
+	 * This tests the data migration using the parallel
+	 * migration mode
+	 * @throws Exception
+	 */
+	public void testParallelDataMigration() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>(3);
+		params.put(OauthMigrationDaoFactory.MIGRATION_DAO_PROPERTY, InMemTestOauthMigrationDao.class.getName());
+		params.put(OauthDataMigrator.MIGRATION_MODE_PARAM, MigrationMode.PARALLEL.name());
+		params.put(OauthDataMigrator.MIGRATION_THREADS_PARAM, "4");
+
+		OauthDataMigrator migrator = new OauthDataMigrator(params);
+		Assert.assertEquals(MigrationMode.PARALLEL, migrator.getMigrationMode());
+		Assert.assertEquals(4, migrator.getMigrationThreads());
+
+		addTestPrincipalClass(migrator);
+
+		verifyMigrationOfNoTokens(migrator);
+
+		InMemTestOauthMigrationDao dao = (InMemTestOauthMigrationDao) migrator.getDao();
+		initTestTokenData(dao);
+
+		migrator.migrateData();
+		Assert.assertEquals(0, dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(0, dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(1, dao.countMigratedAccessTokens());
+		Assert.assertEquals(1, dao.countMigratedRefreshTokens());
+	}
+
+	/**
+	 * This tests the data migration using the pipeline
+	 * migration mode
+	 * @throws Exception
+	 */
+	public void testPipelineDataMigration() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>(4);
+		params.put(OauthMigrationDaoFactory.MIGRATION_DAO_PROPERTY, InMemTestOauthMigrationDao.class.getName());
+		params.put(OauthDataMigrator.MIGRATION_MODE_PARAM, MigrationMode.PIPELINE.name());
+		params.put(OauthDataMigrator.PIPELINE_TRANSFORMER_THREADS_PARAM, "3");
+		params.put(OauthDataMigrator.PIPELINE_QUEUE_CAPACITY_PARAM, "1");
+
+		OauthDataMigrator migrator = new OauthDataMigrator(params);
+		Assert.assertEquals(MigrationMode.PIPELINE, migrator.getMigrationMode());
+		Assert.assertEquals(3, migrator.getPipelineTransformerThreads());
+		Assert.assertEquals(1, migrator.getPipelineQueueCapacity());
+
+		addTestPrincipalClass(migrator);
+
+		verifyMigrationOfNoTokens(migrator);
+
+		InMemTestOauthMigrationDao dao = (InMemTestOauthMigrationDao) migrator.getDao();
+		initTestTokenData(dao);
+
+		migrator.migrateData();
+		Assert.assertEquals(0, dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(0, dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(1, dao.countMigratedAccessTokens());
+		Assert.assertEquals(1, dao.countMigratedRefreshTokens());
+	}
+
+	/**
+	 * This tests the data migration streaming the token
+	 * records rather than reading them a page at a time
+	 * @throws Exception
+	 */
+	public void testStreamingDataMigration() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>(3);
+		params.put(OauthMigrationDaoFactory.MIGRATION_DAO_PROPERTY, InMemTestOauthMigrationDao.class.getName());
+		params.put(OauthDataMigrator.STREAMING_READS_PARAM, Boolean.TRUE);
+
+		OauthDataMigrator migrator = new OauthDataMigrator(params);
+		Assert.assertTrue(migrator.isStreamingReads());
+
+		addTestPrincipalClass(migrator);
+
+		verifyMigrationOfNoTokens(migrator);
+
+		InMemTestOauthMigrationDao dao = (InMemTestOauthMigrationDao) migrator.getDao();
+		initTestTokenData(dao);
+
+		migrator.migrateData();
+		Assert.assertEquals(0, dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(0, dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(1, dao.countMigratedAccessTokens());
+		Assert.assertEquals(1, dao.countMigratedRefreshTokens());
+	}
+
+	/**
+	 * This tests migrating the access tokens together with their refresh tokens,
+	 * both paged and streamed, the refresh token must be migrated by the access token pass
+	 * @throws Exception
+	 */
+	public void testJointDataMigration() throws Exception {
+		for (boolean streaming : new boolean[] { false, true }) {
+			Map<String, Object> params = new HashMap<String, Object>(3);
+			params.put(OauthMigrationDaoFactory.MIGRATION_DAO_PROPERTY, InMemTestOauthMigrationDao.class.getName());
+			params.put(OauthDataMigrator.JOINT_MIGRATION_PARAM, Boolean.TRUE);
+			params.put(OauthDataMigrator.STREAMING_READS_PARAM, Boolean.valueOf(streaming));
+
+			OauthDataMigrator migrator = new OauthDataMigrator(params);
+			Assert.assertTrue(migrator.isJointMigration());
+
+			addTestPrincipalClass(migrator);
+
+			InMemTestOauthMigrationDao dao = (InMemTestOauthMigrationDao) migrator.getDao();
+			initTestTokenData(dao);
+			dao.getAccessTokens().get("test-token").setRefreshToken("test-refresh-token");
+
+			migrator.migrateAccessTokens();
+			Assert.assertEquals(0, dao.countUnmigratedAccessTokens());
+			Assert.assertEquals(0, dao.countUnmigratedRefreshTokens());
+			Assert.assertEquals(1, dao.countMigratedAccessTokens());
+			Assert.assertEquals(1, dao.countMigratedRefreshTokens());
+
+			OauthAccessTokenRecord accessToken = dao.getMigratedOauthAccessTokenRecords(1).get(0);
+			Assert.assertNotNull(dao.getRefreshTokens().get(accessToken.getRefreshToken()));
+		}
+	}
+
 	private void verifyMigrationOfNoTokens(OauthDataMigrator migrator) throws IllegalArgumentException, IOException, ClassNotFoundException,
 			NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
 		OauthMigrationDao dao = migrator.getDao();
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import oracle.jdbc.pool.OracleDataSource;
+
+/**
+ * The OracleOauthMigrationDaoTest represents a test case for the oracle specific sql, binds and driver settings of the
+ * OracleOauthMigrationDao, no connections are made
+ * @version $Id$
+ * @author conorroche
+ */
+public class OracleOauthMigrationDaoTest extends TestCase {
+
+	private Map<String, Object> params;
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		this.params = new HashMap<String, Object>();
+		this.params.put(JdbcOauthMigrationDao.JDBC_URL_KEY, "jdbc:oracle:thin:@//localhost:1521/xe");
+		this.params.put(JdbcOauthMigrationDao.USER_KEY, "oauth");
+		this.params.put(JdbcOauthMigrationDao.PASS_KEY, "oauth");
+	}
+
+	/**
+	 * This tests that the pages are limited with rownum around the ordered keyset query
+	 * @throws Exception
+	 */
+	public void testLimitedQuerySql() throws Exception {
+		OracleOauthMigrationDao dao = new OracleOauthMigrationDao(this.params);
+		List<Object> args = new ArrayList<Object>();
+		String sql = "select token_id from oauth_access_token" + dao.buildWhereClause(new TokenIdRange("a", "b"), "a-1", false, args)
+				+ " order by token_id";
+		Assert.assertEquals("select * from (select token_id from oauth_access_token where token_id like ('%-%') and token_id >= ?"
+				+ " and token_id < ? and token_id > ? order by token_id) where rownum <= 100", dao.getLimitedQuerySql(sql, 100));
+		Assert.assertEquals(3, args.size());
+	}
+
+	/**
+	 * This tests that blob values up to the direct bind size are bound as bytes and larger ones as streams of their length
+	 * @throws Exception
+	 */
+	public void testSetBlobParameter() throws Exception {
+		OracleOauthMigrationDao dao = new OracleOauthMigrationDao(this.params);
+		BindRecorder recorder = new BindRecorder();
+		PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class },
+				recorder);
+
+		dao.setBlobParameter(ps, 1, null);
+		Assert.assertEquals("setNull", recorder.method);
+		Assert.assertEquals(Types.BLOB, recorder.args[1]);
+
+		dao.setBlobParameter(ps, 2, new byte[OracleOauthMigrationDao.MAX_DIRECT_BIND_SIZE]);
+		Assert.assertEquals("setBytes", recorder.method);
+		Assert.assertEquals(2, recorder.args[0]);
+
+		dao.setBlobParameter(ps, 3, new byte[OracleOauthMigrationDao.MAX_DIRECT_BIND_SIZE + 1]);
+		Assert.assertEquals("setBinaryStream", recorder.method);
+		Assert.assertEquals(3, recorder.args[0]);
+		Assert.assertTrue(recorder.args[1] instanceof InputStream);
+		Assert.assertEquals(OracleOauthMigrationDao.MAX_DIRECT_BIND_SIZE + 1, recorder.args[2]);
+	}
+
+	/**
+	 * This tests the row and lob prefetch the driver is configured with and that it only caches statements when the pool does not
+	 * @throws Exception
+	 */
+	public void testDriverSettings() throws Exception {
+		OracleOauthMigrationDao dao = new OracleOauthMigrationDao(this.params);
+		OracleDataSource ds = (OracleDataSource) dao.buildDataSource();
+		Properties props = ds.getConnectionProperties();
+		Assert.assertEquals(String.valueOf(OracleOauthMigrationDao.DEFAULT_ORACLE_FETCH_SIZE), props.getProperty("defaultRowPrefetch"));
+		Assert.assertEquals(String.valueOf(OracleOauthMigrationDao.DEFAULT_LOB_PREFETCH_SIZE), props.getProperty("oracle.jdbc.defaultLobPrefetchSize"));
+		Assert.assertFalse(ds.getImplicitCachingEnabled());
+		Assert.assertNotNull(dao.getConnectionPool());
+
+		this.params.put(JdbcOauthMigrationDao.FETCH_SIZE_KEY, "50");
+		this.params.put(OracleOauthMigrationDao.LOB_PREFETCH_SIZE_KEY, "16384");
+		this.params.put(JdbcOauthMigrationDao.POOL_SIZE_KEY, "0");
+		dao = new OracleOauthMigrationDao(this.params);
+		ds = (OracleDataSource) dao.getDataSource();
+		props = ds.getConnectionProperties();
+		Assert.assertEquals("50", props.getProperty("defaultRowPrefetch"));
+		Assert.assertEquals("16384", props.getProperty("oracle.jdbc.defaultLobPrefetchSize"));
+		Assert.assertTrue(ds.getImplicitCachingEnabled());
+		Assert.assertNull(dao.getConnectionPool());
+	}
+
+	/**
+	 * The BindRecorder represents an invocation handler for a fake prepared statement that records the last call made on it
+	 */
+	private static final class BindRecorder implements InvocationHandler {
+
+		private String method;
+		private Object[] args;
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			this.method = method.getName();
+			this.args = args;
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+/**
+ * The PooledDataSourceTest represents a test case for the PooledDataSource
+ * @version $Id$
+ * @author conorroche
+ */
+public class PooledDataSourceTest extends TestCase {
+
+	private FakeDataSource target;
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		this.target = new FakeDataSource();
+	}
+
+	/**
+	 * This tests that closed connections and statements are reused rather than closed
+	 * @throws Exception
+	 */
+	public void testReuse() throws Exception {
+		PooledDataSource pool = new PooledDataSource(this.target, 2);
+		for (int i = 0; i < 3; i++) {
+			Connection con = pool.getConnection();
+			PreparedStatement ps = con.prepareStatement("update");
+			ps.setString(1, "token");
+			ps.executeUpdate();
+			ps.close();
+			con.close();
+			Assert.assertTrue(con.isClosed());
+		}
+		Assert.assertEquals(1, this.target.numConnections);
+		Assert.assertEquals(1, this.target.connection.count("prepareStatement"));
+		Assert.assertEquals(3, this.target.statement.count("clearParameters"));
+		Assert.assertEquals(0, this.target.statement.count("close"));
+		Assert.assertEquals(0, this.target.connection.count("close"));
+		Assert.assertEquals(1, pool.getNumCreated());
+		Assert.assertEquals(3, pool.getNumBorrowed());
+		Assert.assertEquals(2, pool.getStatementHits());
+		Assert.assertEquals(1, pool.getStatementMisses());
+		Assert.assertEquals(0, pool.getNumActive());
+
+		pool.close();
+		Assert.assertEquals(1, this.target.statement.count("close"));
+		Assert.assertEquals(1, this.target.connection.count("close"));
+	}
+
+	/**
+	 * This tests that waiting for a connection when all are in use times out after the max wait
+	 * @throws Exception
+	 */
+	public void testMaxWait() throws Exception {
+		PooledDataSource pool = new PooledDataSource(this.target, 1);
+		pool.setMaxWait(50);
+		Connection con = pool.getConnection();
+		try {
+			pool.getConnection();
+			fail("Expected the wait for a connection to time out");
+		} catch (SQLException ex) {
+			// expected
+		}
+		Assert.assertEquals(1, pool.getNumTimeouts());
+		Assert.assertTrue(pool.getMaxWaitMillis() >= 40);
+
+		// a returned connection is handed to the next caller
+		con.close();
+		pool.getConnection().close();
+		Assert.assertEquals(1, pool.getNumCreated());
+	}
+
+	/**
+	 * This tests that a connection left in a transaction is rolled back and an invalid idle connection is replaced
+	 * @throws Exception
+	 */
+	public void testResetAndValidate() throws Exception {
+		PooledDataSource pool = new PooledDataSource(this.target, 1);
+		pool.setValidationInterval(0);
+
+		Connection con = pool.getConnection();
+		this.target.connection.results.put("getAutoCommit", Boolean.FALSE);
+		con.close();
+		Assert.assertEquals(1, this.target.connection.count("rollback"));
+		Assert.assertEquals(1, this.target.connection.count("setAutoCommit"));
+
+		this.target.connection.results.put("isValid", Boolean.FALSE);
+		pool.getConnection().close();
+		Assert.assertEquals(1, pool.getNumInvalid());
+		Assert.assertEquals(2, pool.getNumCreated());
+	}
+
+	/**
+	 * This tests that connections with other credentials are not supported and a closed pool closes its idle connections
+	 * @throws Exception
+	 */
+	public void testCredentialsAndClose() throws Exception {
+		PooledDataSource pool = new PooledDataSource(this.target, 2);
+		try {
+			pool.getConnection("user", "pass");
+			fail("Expected connections with other credentials to be unsupported");
+		} catch (SQLFeatureNotSupportedException ex) {
+			// expected
+		}
+		pool.getConnection().close();
+		pool.close();
+		Assert.assertEquals(1, this.target.connection.count("close"));
+		try {
+			pool.getConnection();
+			fail("Expected the closed pool to refuse connections");
+		} catch (SQLException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 * This tests that the number of connections the migration threads need allows a read and a write connection per
+	 * parallel thread and one per pipeline reader and writer
+	 */
+	public void testRequiredConnections() {
+		Assert.assertEquals(3, OauthDataMigrator.getRequiredConnections(MigrationMode.SERIAL, 8, 2, 2));
+		Assert.assertEquals(17, OauthDataMigrator.getRequiredConnections(MigrationMode.PARALLEL, 8, 2, 2));
+		Assert.assertEquals(6, OauthDataMigrator.getRequiredConnections(MigrationMode.PIPELINE, 8, 3, 2));
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(OauthDataMigrator.MIGRATION_MODE_PARAM, "parallel");
+		params.put(OauthDataMigrator.MIGRATION_THREADS_PARAM, 20);
+		Assert.assertEquals(41, OauthDataMigrator.getRequiredConnections(params));
+	}
+
+	/**
+	 * The Recorder represents an invocation handler for fake jdbc objects that counts the calls of each method
+	 */
+	private static final class Recorder implements InvocationHandler {
+
+		private final Map<String, Integer> calls = new HashMap<String, Integer>();
+		private final Map<String, Object> results = new HashMap<String, Object>();
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+			Integer num = this.calls.get(method.getName());
+			this.calls.put(method.getName(), num == null ? 1 : num + 1);
+			Object result = this.results.get(method.getName());
+			if (result == null && method.getReturnType() == boolean.class) {
+				return Boolean.TRUE;
+			} else if (result == null && method.getReturnType() == int.class) {
+				return 0;
+			}
+			return result;
+		}
+
+		synchronized int count(String method) {
+			Integer num = this.calls.get(method);
+			return num == null ? 0 : num;
+		}
+	}
+
+	/**
+	 * The FakeDataSource represents a datasource that hands out fake connections which record their calls
+	 */
+	private static final class FakeDataSource extends AbstractDataSource {
+
+		private Recorder connection;
+		private Recorder statement;
+		private int numConnections;
+
+		public Connection getConnection() {
+			this.numConnections++;
+			this.connection = new Recorder();
+			this.statement = new Recorder();
+			this.connection.results.put("prepareStatement", Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, this.statement));
+			return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, this.connection);
+		}
+
+		public Connection getConnection(String username, String password) {
+			return getConnection();
+		}
+	}
+
+}
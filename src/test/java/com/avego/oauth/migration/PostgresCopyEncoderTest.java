@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The PostgresCopyEncoderTest represents a test case for the PostgresCopyEncoder
+ * @version $Id$
+ * @author conorroche
+ */
+public class PostgresCopyEncoderTest extends TestCase {
+
+	/**
+	 * This tests that the rows are encoded between the binary copy header and trailer
+	 * @throws Exception
+	 */
+	public void testEncode() throws Exception {
+		PostgresCopyEncoder encoder = new PostgresCopyEncoder(3);
+		encoder.addRow("a-b", new byte[] { 1, 2, 3 }, null);
+		encoder.addRow("\u00e9", new byte[0], "c");
+		Assert.assertEquals(2, encoder.getNumRows());
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoder.toByteArray()));
+		byte[] signature = new byte[11];
+		in.readFully(signature);
+		Assert.assertEquals("PGCOPY\n\u00ff\r\n\u0000", new String(signature, "ISO-8859-1"));
+		Assert.assertEquals(0, in.readInt());
+		Assert.assertEquals(0, in.readInt());
+
+		Assert.assertEquals(3, in.readShort());
+		Assert.assertEquals("a-b", readString(in));
+		Assert.assertEquals(3, in.readInt());
+		Assert.assertEquals(1, in.readByte());
+		Assert.assertEquals(2, in.readByte());
+		Assert.assertEquals(3, in.readByte());
+		Assert.assertEquals(-1, in.readInt());
+
+		Assert.assertEquals(3, in.readShort());
+		Assert.assertEquals("\u00e9", readString(in));
+		Assert.assertEquals(0, in.readInt());
+		Assert.assertEquals("c", readString(in));
+
+		Assert.assertEquals(-1, in.readShort());
+		Assert.assertEquals(-1, in.read());
+	}
+
+	/**
+	 * This tests that a row with the wrong number of fields is rejected
+	 */
+	public void testWrongNumberOfFields() {
+		PostgresCopyEncoder encoder = new PostgresCopyEncoder(2);
+		try {
+			encoder.addRow("a");
+			fail("Expected the row to be rejected");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+		Assert.assertEquals(0, encoder.getNumRows());
+	}
+
+	private static String readString(DataInputStream in) throws Exception {
+		byte[] value = new byte[in.readInt()];
+		in.readFully(value);
+		return new String(value, "UTF-8");
+	}
+
+}
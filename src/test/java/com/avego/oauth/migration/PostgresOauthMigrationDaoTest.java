@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+/**
+ * The PostgresOauthMigrationDaoTest represents a test case for the sql and transactions of the PostgresOauthMigrationDao,
+ * it runs the dao against fake connections that record the calls made on them
+ * @version $Id$
+ * @author conorroche
+ */
+public class PostgresOauthMigrationDaoTest extends TestCase {
+
+	private Map<String, Object> params;
+
+	/**
+	 * {@inheritDoc}
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		this.params = new HashMap<String, Object>();
+		this.params.put(JdbcOauthMigrationDao.JDBC_URL_KEY, "jdbc:postgresql://localhost:5432/oauth");
+		this.params.put(JdbcOauthMigrationDao.POOL_SIZE_KEY, "0");
+	}
+
+	/**
+	 * This tests that the access and refresh tokens are copied to the staging tables and updated in one transaction
+	 * @throws Exception
+	 */
+	public void testUpdateTokens() throws Exception {
+		RecordingPostgresOauthMigrationDao dao = new RecordingPostgresOauthMigrationDao(this.params);
+		dao.updateOauthTokens(Arrays.asList(createAccessTokenUpdate(1), createAccessTokenUpdate(2)), Arrays.asList(createRefreshTokenUpdate(1)));
+
+		Assert.assertEquals(Arrays.asList("setAutoCommit false", "create temporary table if not exists oauth_refresh_token_stage"
+				+ " (old_token_id varchar(256), token_id varchar(256), token bytea, authentication bytea) on commit delete rows",
+				"copy 1 rows to oauth_refresh_token_stage",
+				"update oauth_refresh_token t set token_id = s.token_id, token = s.token, authentication = s.authentication"
+						+ " from oauth_refresh_token_stage s where t.token_id = s.old_token_id",
+				"create temporary table if not exists oauth_access_token_stage (old_token_id varchar(256), token_id varchar(256),"
+						+ " token bytea, authentication_id varchar(256), user_name varchar(256), client_id varchar(256), authentication bytea,"
+						+ " refresh_token varchar(256)) on commit delete rows", "copy 2 rows to oauth_access_token_stage",
+				"update oauth_access_token t set token_id = s.token_id, refresh_token = s.refresh_token, token = s.token,"
+						+ " authentication = s.authentication from oauth_access_token_stage s where t.token_id = s.old_token_id", "commit",
+				"setAutoCommit true"), dao.calls);
+
+		// nothing is sent for empty updates
+		dao.calls.clear();
+		dao.updateOauthAccessTokens(new ArrayList<OauthAccessTokenUpdate>());
+		dao.updateOauthRefreshTokens(null);
+		Assert.assertTrue(dao.calls.isEmpty());
+	}
+
+	/**
+	 * This tests that copied tokens replace any copies already in the target tables before they are inserted
+	 * @throws Exception
+	 */
+	public void testCopyTokens() throws Exception {
+		this.params.put(JdbcOauthMigrationDao.TARGET_ACCESS_TOKEN_TABLE_KEY, "oauth_access_token_new");
+		this.params.put(JdbcOauthMigrationDao.TARGET_REFRESH_TOKEN_TABLE_KEY, "oauth_refresh_token_new");
+		RecordingPostgresOauthMigrationDao dao = new RecordingPostgresOauthMigrationDao(this.params);
+		dao.updateOauthAccessTokens(Arrays.asList(createAccessTokenUpdate(1)));
+
+		Assert.assertEquals(7, dao.calls.size());
+		Assert.assertEquals("delete from oauth_access_token_new t using oauth_access_token_stage s where t.token_id = s.token_id", dao.calls.get(3));
+		Assert.assertEquals("insert into oauth_access_token_new (token_id, token, authentication_id, user_name, client_id, authentication, refresh_token)"
+				+ " select token_id, token, authentication_id, user_name, client_id, authentication, refresh_token from oauth_access_token_stage",
+				dao.calls.get(4));
+		Assert.assertEquals("commit", dao.calls.get(5));
+
+		dao.calls.clear();
+		dao.updateOauthRefreshTokens(Arrays.asList(createRefreshTokenUpdate(1)));
+		Assert.assertEquals("delete from oauth_refresh_token_new t using oauth_refresh_token_stage s where t.token_id = s.token_id", dao.calls.get(3));
+		Assert.assertEquals("insert into oauth_refresh_token_new (token_id, token, authentication) select token_id, token, authentication"
+				+ " from oauth_refresh_token_stage", dao.calls.get(4));
+	}
+
+	/**
+	 * This tests that a failed copy rolls back the transaction and restores the auto commit of the connection
+	 * @throws Exception
+	 */
+	public void testCopyFailure() throws Exception {
+		RecordingPostgresOauthMigrationDao dao = new RecordingPostgresOauthMigrationDao(this.params);
+		dao.failCopy = true;
+		try {
+			dao.updateOauthTokens(Arrays.asList(createAccessTokenUpdate(1)), Arrays.asList(createRefreshTokenUpdate(1)));
+			fail("Expected the failed copy to fail the update");
+		} catch (DataAccessException ex) {
+			// expected
+		}
+		Assert.assertEquals(Arrays.asList("setAutoCommit false", dao.calls.get(1), "rollback", "setAutoCommit true"), dao.calls);
+	}
+
+	/**
+	 * This tests that the records are streamed through a cursor in a read only transaction and that the connection is restored after
+	 * @throws Exception
+	 */
+	public void testStreamRecords() throws Exception {
+		RecordingPostgresOauthMigrationDao dao = new RecordingPostgresOauthMigrationDao(this.params);
+		dao.streamUnmigratedOauthAccessTokenRecords(null, null, new TokenRecordCallback<OauthAccessTokenRecord>() {
+
+			public boolean processRecord(OauthAccessTokenRecord record) {
+				return true;
+			}
+		});
+		Assert.assertEquals(6, dao.calls.size());
+		Assert.assertEquals(Arrays.asList("setAutoCommit false", "setReadOnly true"), dao.calls.subList(0, 2));
+		Assert.assertTrue(dao.calls.get(2).startsWith("select "));
+		Assert.assertEquals(Arrays.asList("commit", "setReadOnly false", "setAutoCommit true"), dao.calls.subList(3, 6));
+	}
+
+	/**
+	 * This tests that the tables are renamed in a single call so postgres renames them in one transaction
+	 * @throws Exception
+	 */
+	public void testRenameTablesSql() throws Exception {
+		RecordingPostgresOauthMigrationDao dao = new RecordingPostgresOauthMigrationDao(this.params);
+		Map<String, String> renames = new LinkedHashMap<String, String>();
+		renames.put("oauth_access_token", "oauth_access_token_old");
+		renames.put("oauth_access_token_new", "oauth_access_token");
+		Assert.assertEquals(Arrays.asList("alter table oauth_access_token rename to oauth_access_token_old;"
+				+ " alter table oauth_access_token_new rename to oauth_access_token"), dao.getRenameTablesSql(renames));
+	}
+
+	private static OauthAccessTokenUpdate createAccessTokenUpdate(int i) {
+		OauthAccessTokenUpdate update = new OauthAccessTokenUpdate("a-" + i, "a" + i, "b" + i, new byte[] { 2 }, new byte[] { 3 });
+		update.setAuthenticationId("auth" + i);
+		update.setUserName("user" + i);
+		update.setClientId("client");
+		return update;
+	}
+
+	private static OauthRefreshTokenUpdate createRefreshTokenUpdate(int i) {
+		return new OauthRefreshTokenUpdate("r-" + i, "b" + i, new byte[] { 2 }, new byte[] { 3 });
+	}
+
+	/**
+	 * The RecordingPostgresOauthMigrationDao represents a postgres dao whose connections record the statements executed on
+	 * them, the transaction calls and the copies made rather than sending them to a db
+	 */
+	private static final class RecordingPostgresOauthMigrationDao extends PostgresOauthMigrationDao {
+
+		private List<String> calls;
+		private boolean failCopy;
+
+		RecordingPostgresOauthMigrationDao(Map<String, Object> params) throws SQLException {
+			super(params);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.avego.oauth.migration.PostgresOauthMigrationDao#buildDataSource()
+		 */
+		@Override
+		protected DataSource buildDataSource() {
+			// this is called by the super constructor so the calls are created here
+			this.calls = new ArrayList<String>();
+			final InvocationHandler recorder = new InvocationHandler() {
+
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String name = method.getName();
+					if ("createStatement".equals(name)) {
+						return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Statement.class }, this);
+					} else if ("prepareStatement".equals(name)) {
+						RecordingPostgresOauthMigrationDao.this.calls.add((String) args[0]);
+						return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { PreparedStatement.class }, this);
+					} else if ("executeQuery".equals(name)) {
+						return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class }, this);
+					} else if ("execute".equals(name)) {
+						RecordingPostgresOauthMigrationDao.this.calls.add((String) args[0]);
+					} else if ("setAutoCommit".equals(name) || "setReadOnly".equals(name) || "commit".equals(name) || "rollback".equals(name)) {
+						RecordingPostgresOauthMigrationDao.this.calls.add(args == null ? name : name + " " + args[0]);
+					} else if ("isReadOnly".equals(name) || "next".equals(name)) {
+						// the connections are not read only and the queries return no rows
+						return Boolean.FALSE;
+					}
+					return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+				}
+			};
+			return new AbstractDataSource() {
+
+				public Connection getConnection() {
+					return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, recorder);
+				}
+
+				public Connection getConnection(String username, String password) {
+					return getConnection();
+				}
+			};
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.avego.oauth.migration.PostgresOauthMigrationDao#copyIn(java.sql.Connection, java.lang.String,
+		 *      com.avego.oauth.migration.PostgresCopyEncoder)
+		 */
+		@Override
+		protected void copyIn(Connection con, String tableName, PostgresCopyEncoder encoder) throws SQLException {
+			if (this.failCopy) {
+				throw new SQLException("Failed to copy to " + tableName);
+			}
+			this.calls.add("copy " + encoder.getNumRows() + " rows to " + tableName);
+		}
+	}
+
+}
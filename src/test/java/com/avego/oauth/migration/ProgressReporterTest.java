@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The ProgressReporterTest represents a test case for the ProgressReporter
+ * @version $Id$
+ * @author conorroche
+ */
+public class ProgressReporterTest extends TestCase {
+
+	/**
+	 * This tests that a tracked migration records the tokens written and the transform errors
+	 * @throws Exception
+	 */
+	public void testTrack() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ProgressReporter reporter = new ProgressReporter("refresh token", 4, 0, new PrintStream(bytes, true));
+		TokenMigration<OauthRefreshTokenRecord, OauthRefreshTokenUpdate> migration = reporter.track(new TestMigration());
+		reporter.start();
+
+		OauthRefreshTokenRecord record = new OauthRefreshTokenRecord();
+		record.setTokenId("good");
+		OauthRefreshTokenUpdate update = migration.transform(record);
+		migration.write(Arrays.asList(update, update));
+
+		record.setTokenId("bad");
+		try {
+			migration.transform(record);
+			Assert.fail("Expected the transform failure to be rethrown");
+		} catch (IOException ex) {
+			// expected
+		}
+		reporter.stop();
+
+		Assert.assertEquals(2, reporter.getNumMigrated());
+		Assert.assertEquals(20, reporter.getNumBytes());
+		Assert.assertEquals(1, reporter.getNumErrors());
+		String report = bytes.toString();
+		Assert.assertTrue(report, report.startsWith("Migrated 2/4 refresh token(s), "));
+		Assert.assertTrue(report, report.trim().endsWith(", 1 error(s)"));
+	}
+
+	/**
+	 * The TestMigration represents a migration that converts every token except the bad one
+	 */
+	private static class TestMigration implements TokenMigration<OauthRefreshTokenRecord, OauthRefreshTokenUpdate> {
+
+		public String getTokenType() {
+			return "refresh token";
+		}
+
+		public int countUnmigratedRecords() {
+			return 0;
+		}
+
+		public List<OauthRefreshTokenRecord> getUnmigratedRecords(TokenIdRange range, String afterTokenId, int limit) {
+			return Collections.emptyList();
+		}
+
+		public void streamUnmigratedRecords(TokenIdRange range, String afterTokenId, TokenRecordCallback<OauthRefreshTokenRecord> callback) {
+			// no records
+		}
+
+		public OauthRefreshTokenUpdate transform(OauthRefreshTokenRecord record) throws IOException {
+			if ("bad".equals(record.getTokenId())) {
+				throw new IOException("Bad token");
+			}
+			return new OauthRefreshTokenUpdate(record.getTokenId(), "new", new byte[6], new byte[4]);
+		}
+
+		public void write(List<OauthRefreshTokenUpdate> updates) {
+			// nothing to write to
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+/**
+ * The SerializationContextTest represents a test case for the SerializationContext
+ * @version $Id$
+ * @author conorroche
+ */
+public class SerializationContextTest extends TestCase {
+
+	/**
+	 * This tests that the reused buffers produce the same data as a fresh serialization and that each call returns its own copy
+	 * @throws Exception
+	 */
+	public void testSerialize() throws Exception {
+		SerializationContext context = SerializationContext.get();
+		Assert.assertSame(context, SerializationContext.get());
+
+		ArrayList<String> small = new ArrayList<String>(Arrays.asList("a", "b"));
+		byte[] large = new byte[2 * 1024 * 1024];
+		large[large.length - 1] = 1;
+
+		byte[] first = context.serialize(small);
+		Assert.assertTrue(Arrays.equals(SerializationUtils.serialize(small), first));
+		Assert.assertTrue(Arrays.equals(SerializationUtils.serialize(large), context.serialize(large)));
+		byte[] second = context.serialize(small);
+		Assert.assertNotSame(first, second);
+		Assert.assertTrue(Arrays.equals(first, second));
+	}
+
+	/**
+	 * This tests that the reused input can be opened again once closed and that a stream opened while another is still open
+	 * does not disturb it
+	 * @throws Exception
+	 */
+	public void testDeserialize() throws Exception {
+		SerializationContext context = SerializationContext.get();
+		byte[] a = context.serialize("token a");
+		byte[] b = context.serialize("token b");
+
+		ObjectInputStream first = context.openObjectInputStream(a);
+		ObjectInputStream nested = context.openObjectInputStream(b);
+		Assert.assertEquals("token b", nested.readObject());
+		nested.close();
+		Assert.assertEquals("token a", first.readObject());
+		first.close();
+
+		for (int i = 0; i < 3; i++) {
+			ObjectInputStream ois = context.openObjectInputStream(i % 2 == 0 ? a : b);
+			try {
+				Assert.assertEquals(i % 2 == 0 ? "token a" : "token b", ois.readObject());
+			} finally {
+				ois.close();
+			}
+		}
+
+		try {
+			context.openObjectInputStream(new byte[] { 1, 2, 3 });
+			Assert.fail("Expected the bad stream header to fail");
+		} catch (IOException ex) {
+			// the reused input must be released so it can be opened again
+		}
+		ObjectInputStream ois = context.openObjectInputStream(a);
+		Assert.assertEquals("token a", ois.readObject());
+		ois.close();
+	}
+
+}
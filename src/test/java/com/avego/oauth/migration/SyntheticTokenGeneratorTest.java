@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+/**
+ * The SyntheticTokenGeneratorTest represents a test case for the SyntheticTokenGenerator
+ * @version $Id$
+ * @author conorroche
+ */
+public class SyntheticTokenGeneratorTest extends TestCase {
+
+	/**
+	 * This tests that generated tokens are in the pre 1.0 form and can be migrated
+	 * @throws Exception
+	 */
+	public void testGenerateAndMigrate() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(SyntheticTokenGenerator.USERS_PARAM, "20");
+		params.put(SyntheticTokenGenerator.CLIENTS_PARAM, "3");
+		params.put(SyntheticTokenGenerator.REFRESH_TOKEN_RATIO_PARAM, "0.5");
+		params.put(SyntheticTokenGenerator.SEED_PARAM, "42");
+
+		InMemTestOauthMigrationDao dao = new InMemTestOauthMigrationDao();
+		ClassLoader oldClassLoader = ClassLoaderUtils.createOldLibClassLoader();
+		SyntheticTokenGenerator generator = new SyntheticTokenGenerator(dao, oldClassLoader, params);
+		generator.setBatchSize(7);
+		int numRefreshTokens = generator.generate(100);
+
+		Assert.assertEquals(100, dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(numRefreshTokens, dao.countUnmigratedRefreshTokens());
+		Assert.assertTrue("refresh tokens: " + numRefreshTokens, numRefreshTokens > 20 && numRefreshTokens < 80);
+
+		// tokens are backward compatible so can be read with the new classes
+		OauthAccessTokenRecord record = dao.getAccessTokens().values().iterator().next();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record.getToken()));
+		try {
+			OAuth2AccessToken token = (OAuth2AccessToken) ois.readObject();
+			Assert.assertEquals(record.getTokenId(), token.getValue());
+		} finally {
+			ois.close();
+		}
+
+		OauthDataMigrator migrator = new OauthDataMigrator(dao, oldClassLoader, false, true);
+		migrator.migrateData();
+		Assert.assertEquals(0, dao.countUnmigratedAccessTokens());
+		Assert.assertEquals(0, dao.countUnmigratedRefreshTokens());
+		Assert.assertEquals(100, dao.countMigratedAccessTokens());
+		Assert.assertEquals(numRefreshTokens, dao.countMigratedRefreshTokens());
+	}
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.SerializationUtils;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.DefaultOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+
+/**
+ * The TokenBlobTranscoderTest represents a test case for the TokenBlobTranscoder
+ * @version $Id$
+ * @author conorroche
+ */
+public class TokenBlobTranscoderTest extends TestCase {
+
+	private static final TokenBlobTranscoder.ValueRewriter NEW_VALUE = new TokenBlobTranscoder.ValueRewriter() {
+
+		public String rewrite(String oldValue) {
+			return "new-" + oldValue;
+		}
+	};
+
+	/**
+	 * This tests that an old access token is transcoded to the same token with the new values
+	 * @throws Exception
+	 */
+	public void testTranscodeAccessToken() throws Exception {
+		byte[] data = FileUtils.readFileToByteArray(new File("src/test/resources", "token1.dat"));
+		OAuth2AccessToken original = (OAuth2AccessToken) SerializationUtils.deserialize(data);
+		TokenBlobTranscoder transcoder = new TokenBlobTranscoder();
+
+		OAuth2AccessToken token = (OAuth2AccessToken) SerializationUtils.deserialize(transcoder.transcodeAccessToken(data, NEW_VALUE, NEW_VALUE));
+		Assert.assertEquals("new-" + original.getValue(), token.getValue());
+		Assert.assertEquals("new-" + original.getRefreshToken().getValue(), token.getRefreshToken().getValue());
+		Assert.assertEquals(original.getRefreshToken().getClass(), token.getRefreshToken().getClass());
+		Assert.assertEquals(((ExpiringOAuth2RefreshToken) original.getRefreshToken()).getExpiration(),
+				((ExpiringOAuth2RefreshToken) token.getRefreshToken()).getExpiration());
+		Assert.assertEquals(original.getExpiration(), token.getExpiration());
+		Assert.assertEquals(original.getScope(), token.getScope());
+		Assert.assertEquals(original.getTokenType(), token.getTokenType());
+		Assert.assertEquals(original.getAdditionalInformation(), token.getAdditionalInformation());
+
+		// with nothing to replace the data is returned as is
+		Assert.assertSame(data, transcoder.transcodeAccessToken(data, null, null));
+		Assert.assertEquals(2, transcoder.getNumTranscoded());
+		Assert.assertEquals(0, transcoder.getNumUnrecognised());
+	}
+
+	/**
+	 * This tests that an old refresh token is transcoded to the same token with the new value
+	 * @throws Exception
+	 */
+	public void testTranscodeRefreshToken() throws Exception {
+		byte[] data = FileUtils.readFileToByteArray(new File("src/test/resources", "refreshtoken1.dat"));
+		ExpiringOAuth2RefreshToken original = (ExpiringOAuth2RefreshToken) SerializationUtils.deserialize(data);
+		TokenBlobTranscoder transcoder = new TokenBlobTranscoder();
+
+		ExpiringOAuth2RefreshToken token = (ExpiringOAuth2RefreshToken) SerializationUtils.deserialize(transcoder.transcodeRefreshToken(data, NEW_VALUE));
+		Assert.assertEquals("new-" + original.getValue(), token.getValue());
+		Assert.assertEquals(original.getExpiration(), token.getExpiration());
+
+		DefaultOAuth2RefreshToken plain = new DefaultOAuth2RefreshToken("plain-token");
+		OAuth2RefreshToken transcoded = (OAuth2RefreshToken) SerializationUtils.deserialize(transcoder.transcodeRefreshToken(
+				SerializationUtils.serialize(plain), NEW_VALUE));
+		Assert.assertEquals("new-plain-token", transcoded.getValue());
+	}
+
+	/**
+	 * This tests that streams which cannot be transcoded safely are not recognised so the caller falls back to the objects
+	 * @throws Exception
+	 */
+	public void testUnrecognised() throws Exception {
+		byte[] data = FileUtils.readFileToByteArray(new File("src/test/resources", "token1.dat"));
+		TokenBlobTranscoder transcoder = new TokenBlobTranscoder();
+
+		Assert.assertNull(transcoder.transcodeRefreshToken(data, NEW_VALUE));
+		Assert.assertNull(transcoder.transcodeAccessToken(Arrays.copyOf(data, data.length - 1), NEW_VALUE, NEW_VALUE));
+		Assert.assertNull(transcoder.transcodeAccessToken(new byte[] { 1, 2, 3 }, NEW_VALUE, NEW_VALUE));
+		Assert.assertNull(transcoder.transcodeAccessToken(SerializationUtils.serialize(new HashMap<String, String>()), NEW_VALUE, NEW_VALUE));
+
+		// the value string is shared with the additional information so replacing it in place would change both
+		String value = "shared-value";
+		DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(value);
+		Map<String, Object> info = new HashMap<String, Object>(Collections.singletonMap("original", (Object) value));
+		token.setAdditionalInformation(info);
+		Assert.assertNull(transcoder.transcodeAccessToken(SerializationUtils.serialize(token), NEW_VALUE, null));
+
+		Assert.assertEquals(0, transcoder.getNumTranscoded());
+		Assert.assertEquals(5, transcoder.getNumUnrecognised());
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2013 Avego Ltd., All Rights Reserved.
+ * For licensing terms please contact Avego LTD.
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+/**
+ * The TokenIdRangeTest represents a test case for the TokenIdRange
+ * @version $Id$
+ * @author conorroche
+ */
+public class TokenIdRangeTest extends TestCase {
+
+	/**
+	 * This tests that split ranges do not overlap and together cover every token id
+	 */
+	public void testSplitCoversAllTokenIds() {
+		for (int numRanges : new int[] { 1, 3, 4, 7, 16, 256, 1000 }) {
+			List<TokenIdRange> ranges = TokenIdRange.split(numRanges);
+			Assert.assertEquals(Math.min(numRanges, TokenIdRange.MAX_RANGES), ranges.size());
+			Assert.assertNull(ranges.get(0).getLowerBound());
+			Assert.assertNull(ranges.get(ranges.size() - 1).getUpperBound());
+
+			for (int i = 0; i < 1000; i++) {
+				assertInExactlyOneRange(ranges, UUID.randomUUID().toString());
+			}
+			assertInExactlyOneRange(ranges, "");
+			assertInExactlyOneRange(ranges, "test-token");
+			assertInExactlyOneRange(ranges, "ffffffff-ffff-ffff-ffff-ffffffffffff");
+		}
+	}
+
+	private void assertInExactlyOneRange(List<TokenIdRange> ranges, String tokenId) {
+		int matches = 0;
+		for (TokenIdRange range : ranges) {
+			if (range.contains(tokenId)) {
+				matches++;
+			}
+		}
+		Assert.assertEquals("token id: " + tokenId, 1, matches);
+	}
+
+}
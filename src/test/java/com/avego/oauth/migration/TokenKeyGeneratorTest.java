@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.mockito.Mockito;
+
+/**
+ * The TokenKeyGeneratorTest represents a test case for the TokenKeyGenerator
+ * @version $Id$
+ * @author conorroche
+ */
+public class TokenKeyGeneratorTest extends TestCase {
+
+	private final CustomJdbcTokenStore tokenStore = new CustomJdbcTokenStore(Mockito.mock(DataSource.class));
+
+	/**
+	 * This tests that the generated keys are the same as the keys created by the jdbc token store
+	 */
+	public void testSameKeysAsTokenStore() {
+		TokenKeyGenerator generator = new TokenKeyGenerator();
+		Assert.assertNull(generator.generateKey(null));
+		for (String value : new String[] { "", "a", UUID.randomUUID().toString(), "username=joe,client_id=app", "caf\u00e9 \u20ac \ud83d\ude00",
+				"unpaired \ud800 surrogate" }) {
+			Assert.assertEquals(value, this.tokenStore.extractTokenKey(value), generator.generateKey(value));
+		}
+
+		// values whose md5 starts with zeros must still be padded to 32 chars, and values longer than the initial buffer must be handled
+		Random random = new Random(42);
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			value.append((char) (random.nextInt(5) == 0 ? 0x80 + random.nextInt(0x700) : 0x20 + random.nextInt(0x5f)));
+			String key = generator.generateKey(value.toString());
+			Assert.assertEquals(32, key.length());
+			Assert.assertEquals(this.tokenStore.extractTokenKey(value.toString()), key);
+		}
+	}
+
+	/**
+	 * This tests that a generator shared by several threads creates the right keys
+	 * @throws Exception
+	 */
+	public void testConcurrentUse() throws Exception {
+		final TokenKeyGenerator generator = new TokenKeyGenerator();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<Boolean>() {
+
+					public Boolean call() {
+						for (int j = 0; j < 2000; j++) {
+							String value = UUID.randomUUID().toString();
+							if (!TokenKeyGeneratorTest.this.tokenStore.extractTokenKey(value).equals(generator.generateKey(value))) {
+								return Boolean.FALSE;
+							}
+						}
+						return Boolean.TRUE;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				Assert.assertTrue(result.get().booleanValue());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 the original author or authors.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.avego.oauth.migration;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The TokenLogTest represents a test case for the TokenLog
+ * @version $Id$
+ * @author conorroche
+ */
+public class TokenLogTest extends TestCase {
+
+	/**
+	 * This tests that all the logged lines are written in order once the log is closed
+	 * @throws Exception
+	 */
+	public void testLog() throws Exception {
+		File file = File.createTempFile("token-log", ".txt");
+		file.deleteOnExit();
+		TokenLog log = new TokenLog(file);
+		for (int i = 0; i < 20000; i++) {
+			log.log("token " + i);
+		}
+		log.close();
+
+		@SuppressWarnings("unchecked")
+		List<String> lines = FileUtils.readLines(file, "UTF-8");
+		Assert.assertEquals(20000, lines.size());
+		Assert.assertEquals("token 0", lines.get(0));
+		Assert.assertEquals("token 19999", lines.get(19999));
+	}
+
+}